@@ -0,0 +1,165 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The change journal for the storage engines without sqlite, with the same rules as the
+ * triggers of {@link SQLiteStorageEngine}: one entry per record, every change replaces the entry
+ * of the record with a new sequence number. Changes of the sync state only (e.g. the results of a push)
+ * are not journaled. A change is remote, if the record is synced after the change.
+ * <p>
+ * The engines create the entries with the values before and after a change and keep the previous
+ * entry for the undo of a transaction.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+final class ChangeJournal {
+
+    // the columns of the sync state of a record
+    private static final Set<String> SYNC_COLUMNS = Set.of("usn", "kintoid", "lastmodified", "syncedusn");
+
+    private final NavigableMap<Long, KintoChange> entries; // seq -> entry
+    private final Map<String, KintoChange> lastEntries; // collection and uuid -> entry
+    private long lastSeq;
+
+    ChangeJournal() {
+        entries = new TreeMap<>();
+        lastEntries = new HashMap<>();
+    }
+
+    // the entry of a change of a record, null if the change is not journaled
+    // the values are null for a new or a removed record
+    synchronized @Nullable KintoChange createChange(@NotNull String collection, @NotNull String uuid,
+                                                    @Nullable Map<String, String> oldValues,
+                                                    @Nullable Map<String, String> newValues) {
+        if (newValues == null) {
+            if (oldValues == null) {
+                return null;
+            }
+            return new KintoChange(++lastSeq, collection, uuid, KintoChange.Operation.DELETE, false,
+                    kintoID(oldValues), toLong(oldValues.get("lastmodified")));
+        }
+        boolean synced = isSynced(newValues);
+        if (oldValues != null && synced && isDataEqual(oldValues, newValues)) {
+            return null;
+        }
+        KintoChange.Operation operation = oldValues == null ? KintoChange.Operation.INSERT : KintoChange.Operation.UPDATE;
+        return new KintoChange(++lastSeq, collection, uuid, operation, synced,
+                kintoID(newValues), toLong(newValues.get("lastmodified")));
+    }
+
+    // the entry of a change of the relations of a record, null if the record not exists
+    synchronized @Nullable KintoChange createRelationChange(@NotNull String collection, @NotNull String uuid,
+                                                            @Nullable Map<String, String> values) {
+        if (values == null) {
+            return null;
+        }
+        return new KintoChange(++lastSeq, collection, uuid, KintoChange.Operation.UPDATE, isSynced(values),
+                kintoID(values), toLong(values.get("lastmodified")));
+    }
+
+    // the entry of a local remove marked as remote, null if the last change of the record is no local remove
+    synchronized @Nullable KintoChange createRemoteChange(@NotNull String collection, @NotNull String uuid) {
+        return createRemoteChange(lastEntries.get(key(collection, uuid)));
+    }
+
+    // the given entry marked as remote, for the engines with entries not yet in the journal
+    @Nullable KintoChange createRemoteChange(@Nullable KintoChange entry) {
+        if (entry == null || entry.getOperation() != KintoChange.Operation.DELETE || entry.isRemote()) {
+            return null;
+        }
+        return new KintoChange(entry.getSeq(), entry.getCollection(), entry.getUUID(), entry.getOperation(), true,
+                entry.getKintoID(), entry.getLastModified());
+    }
+
+    synchronized @Nullable KintoChange get(@NotNull String collection, @NotNull String uuid) {
+        return lastEntries.get(key(collection, uuid));
+    }
+
+    // replace the entry of the record, returns the previous entry
+    synchronized @Nullable KintoChange put(@NotNull KintoChange entry) {
+        KintoChange previous = lastEntries.put(key(entry.getCollection(), entry.getUUID()), entry);
+        if (previous != null) {
+            entries.remove(previous.getSeq());
+        }
+        entries.put(entry.getSeq(), entry);
+        lastSeq = Math.max(lastSeq, entry.getSeq());
+        return previous;
+    }
+
+    // remove the entry of the record, returns the removed entry
+    synchronized @Nullable KintoChange remove(@NotNull String collection, @NotNull String uuid) {
+        KintoChange previous = lastEntries.remove(key(collection, uuid));
+        if (previous != null) {
+            entries.remove(previous.getSeq());
+        }
+        return previous;
+    }
+
+    // the entries after the sequence number, all collections for null
+    synchronized @NotNull List<KintoChange> read(@Nullable String collection, long sinceSeq, int limit) {
+        List<KintoChange> changes = new ArrayList<>();
+        for (KintoChange entry : entries.tailMap(sinceSeq, false).values()) {
+            if (changes.size() >= limit) {
+                break;
+            }
+            if (collection == null || collection.equals(entry.getCollection())) {
+                changes.add(entry);
+            }
+        }
+        return changes;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        lastEntries.clear();
+    }
+
+    private static String key(@NotNull String collection, @NotNull String uuid) {
+        return collection + "/" + uuid;
+    }
+
+    // the kinto record id is empty for records never synced
+    private static @Nullable String kintoID(@NotNull Map<String, String> values) {
+        String kintoID = values.get("kintoid");
+        return kintoID == null || kintoID.isEmpty() ? null : kintoID;
+    }
+
+    // the record is synced, if the synced usn is the usn of the record
+    private static boolean isSynced(@NotNull Map<String, String> values) {
+        String syncedUSN = values.get("syncedusn");
+        return syncedUSN != null && toLong(syncedUSN) == toLong(values.get("usn"));
+    }
+
+    // compare the values without the sync state
+    private static boolean isDataEqual(@NotNull Map<String, String> oldValues, @NotNull Map<String, String> newValues) {
+        Set<String> columns = new HashSet<>(oldValues.keySet());
+        columns.addAll(newValues.keySet());
+        columns.removeAll(SYNC_COLUMNS);
+        for (String column : columns) {
+            if (!Objects.equals(oldValues.get(column), newValues.get(column))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long toLong(@Nullable String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException exception) {
+            Double number = RecordEvaluator.parseNumber(value);
+            return number == null ? 0 : number.longValue();
+        }
+    }
+}
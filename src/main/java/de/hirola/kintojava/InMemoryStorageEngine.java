@@ -0,0 +1,690 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A storage engine without sqlite, the records are kept in memory and discarded on close.
+ * <p>
+ * The records of a collection are immutable and stored by uuid in a concurrent hash map.
+ * A record is changed by replacing it with compare-and-set, so reads never wait for writes.
+ * Every column has a secondary index: a hash index for text columns (equal, in) and
+ * an ordered index for numeric columns (equal, in, between, greater, less).
+ * The candidates of an index are checked against all conditions of the query.
+ * <p>
+ * Transactions are undo logs of the calling thread. The changes of a transaction are visible
+ * to other threads before the commit (read uncommitted) and are undone on rollback.
+ * Nested transactions are part of the outer transaction.
+ * The change journal is kept in memory with the same rules as the triggers of {@link SQLiteStorageEngine}.
+ * <pre>
+ *     KintoConfiguration configuration = new KintoConfiguration.Builder("com.myfirm.AppName")
+ *             .objectTypes(types)
+ *             .storageEngine(new InMemoryStorageEngine())
+ *             .build();
+ * </pre>
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+public final class InMemoryStorageEngine implements StorageEngine {
+
+    private final Map<String, Table> tables; // collection name -> records
+    private final Map<String, Map<String, List<String>>> relations; // relation name -> parent uuid -> child uuid
+    private final Map<String, String> relationCollections; // relation name -> collection with the list
+    private final Map<String, String> metadata;
+    private final ChangeJournal journal;
+    private final AtomicLong insertSequence; // order of insertion of the records
+    private final ThreadLocal<Transaction> transaction;
+    private volatile boolean open;
+
+    /**
+     * Create an empty engine.
+     */
+    public InMemoryStorageEngine() {
+        tables = new ConcurrentHashMap<>();
+        relations = new ConcurrentHashMap<>();
+        relationCollections = new ConcurrentHashMap<>();
+        metadata = new ConcurrentHashMap<>();
+        journal = new ChangeJournal();
+        insertSequence = new AtomicLong();
+        transaction = new ThreadLocal<>();
+        open = true;
+    }
+
+    @Override
+    public void openCollection(@NotNull CollectionSchema schema) throws SQLException {
+        checkOpen();
+        tables.compute(schema.getName(), (name, table) -> {
+            if (table == null) {
+                return new Table(schema.getColumns(), Collections.emptyList());
+            }
+            if (table.columns.equals(schema.getColumns())) {
+                return table;
+            }
+            // the values of removed columns are deleted, the indices are built again
+            return new Table(schema.getColumns(), table.order.values());
+        });
+        for (Relation relation : schema.getRelations()) {
+            relations.putIfAbsent(relation.getName(), new ConcurrentHashMap<>());
+            relationCollections.put(relation.getName(), schema.getName());
+        }
+    }
+
+    @Override
+    public void beginTransaction() throws SQLException {
+        checkOpen();
+        Transaction current = transaction.get();
+        if (current == null) {
+            current = new Transaction();
+            transaction.set(current);
+        }
+        current.depth++;
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        Transaction current = transaction.get();
+        if (current == null) {
+            throw new SQLException("There is no transaction of this thread.");
+        }
+        if (--current.depth == 0) {
+            transaction.remove();
+        }
+    }
+
+    @Override
+    public void rollback() {
+        Transaction current = transaction.get();
+        if (current == null) {
+            return;
+        }
+        // the undo actions are not logged again
+        transaction.remove();
+        while (!current.undoLog.isEmpty()) {
+            current.undoLog.pop().run();
+        }
+    }
+
+    @Override
+    public void insert(@NotNull String collection, @NotNull Map<String, String> values) throws SQLException {
+        Table table = getTable(collection);
+        String uuid = values.get("uuid");
+        if (uuid == null) {
+            throw new SQLException("NOT NULL constraint failed: " + collection + ".uuid");
+        }
+        Record record = new Record(insertSequence.incrementAndGet(), new HashMap<>(values));
+        if (!replace(table, uuid, null, record)) {
+            throw new SQLException("UNIQUE constraint failed: " + collection + ".uuid");
+        }
+        journal(collection, uuid, null, record.values);
+    }
+
+    @Override
+    public int update(@NotNull String collection, @NotNull String uuid, long expectedUSN,
+                      @NotNull Map<String, String> values) throws SQLException {
+        Table table = getTable(collection);
+        while (true) {
+            Record current = table.rows.get(uuid);
+            if (current == null || (expectedUSN != ANY_USN && current.getUSN() != expectedUSN)) {
+                return 0;
+            }
+            Map<String, String> changedValues = new HashMap<>(current.values);
+            changedValues.putAll(values);
+            changedValues.put("usn", String.valueOf(current.getUSN() + 1));
+            if (replace(table, uuid, current, new Record(current.sequence, changedValues))) {
+                journal(collection, uuid, current.values, changedValues);
+                return 1;
+            }
+            // changed by another thread, try again with the actual record
+        }
+    }
+
+    @Override
+    public int updateFields(@NotNull String collection, @NotNull String uuid,
+                            @NotNull KintoFieldUpdate fieldUpdate) throws SQLException {
+        Table table = getTable(collection);
+        KintoQuery condition = fieldUpdate.getCondition();
+        while (true) {
+            Record current = table.rows.get(uuid);
+            if (current == null || (condition != null && !table.matches(current, condition))) {
+                return 0;
+            }
+            Map<String, String> changedValues = new HashMap<>(current.values);
+            RecordEvaluator.applyFieldUpdate(changedValues, fieldUpdate);
+            if (replace(table, uuid, current, new Record(current.sequence, changedValues))) {
+                journal(collection, uuid, current.values, changedValues);
+                return 1;
+            }
+        }
+    }
+
+    @Override
+    public int delete(@NotNull String collection, @NotNull String uuid, long expectedUSN) throws SQLException {
+        Table table = getTable(collection);
+        while (true) {
+            Record current = table.rows.get(uuid);
+            if (current == null || (expectedUSN != ANY_USN && current.getUSN() != expectedUSN)) {
+                return 0;
+            }
+            if (replace(table, uuid, current, null)) {
+                journal(collection, uuid, current.values, null);
+                return 1;
+            }
+        }
+    }
+
+    @Override
+    public Cursor query(@NotNull String collection, @NotNull KintoQuery query) throws SQLException {
+        return new RecordCursor(getTable(collection).select(query));
+    }
+
+    @Override
+    public @Nullable KintoRow findByUUID(@NotNull String collection, @NotNull String uuid) throws SQLException {
+        Record record = getTable(collection).rows.get(uuid);
+        return record == null ? null : new KintoRow(record.values);
+    }
+
+    @Override
+    public int addRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                            @NotNull Collection<String> childUUIDs) throws SQLException {
+        List<String> entries = getRelation(relation)
+                .computeIfAbsent(parentUUID, uuid -> new CopyOnWriteArrayList<>());
+        int count = 0;
+        for (String childUUID : childUUIDs) {
+            if (((CopyOnWriteArrayList<String>) entries).addIfAbsent(childUUID)) {
+                logUndo(() -> entries.remove(childUUID));
+                count++;
+            }
+        }
+        if (count > 0) {
+            journalRelation(relation, parentUUID);
+        }
+        return count;
+    }
+
+    @Override
+    public int removeRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                               @NotNull Collection<String> childUUIDs) throws SQLException {
+        List<String> entries = getRelation(relation).get(parentUUID);
+        if (entries == null) {
+            return 0;
+        }
+        int count = 0;
+        for (String childUUID : childUUIDs) {
+            if (entries.remove(childUUID)) {
+                logUndo(() -> ((CopyOnWriteArrayList<String>) entries).addIfAbsent(childUUID));
+                count++;
+            }
+        }
+        if (count > 0) {
+            journalRelation(relation, parentUUID);
+        }
+        return count;
+    }
+
+    @Override
+    public int removeAllRelations(@NotNull Relation relation, @NotNull String parentUUID) throws SQLException {
+        Map<String, List<String>> entries = getRelation(relation);
+        List<String> removedEntries = entries.remove(parentUUID);
+        if (removedEntries == null) {
+            return 0;
+        }
+        logUndo(() -> entries.put(parentUUID, removedEntries));
+        if (!removedEntries.isEmpty()) {
+            journalRelation(relation, parentUUID);
+        }
+        return removedEntries.size();
+    }
+
+    @Override
+    public Map<String, List<String>> readRelations(@NotNull Relation relation,
+                                                   @Nullable Collection<String> parentUUIDs) throws SQLException {
+        Map<String, List<String>> entries = getRelation(relation);
+        Map<String, List<String>> childUUIDs = new HashMap<>();
+        Collection<String> uuids = parentUUIDs == null ? entries.keySet() : parentUUIDs;
+        for (String parentUUID : uuids) {
+            List<String> children = entries.get(parentUUID);
+            if (children != null && !children.isEmpty()) {
+                childUUIDs.put(parentUUID, new ArrayList<>(children));
+            }
+        }
+        return childUUIDs;
+    }
+
+    @Override
+    public List<KintoChange> readChanges(@Nullable String collection, long sinceSeq, int limit) throws SQLException {
+        checkOpen();
+        return journal.read(collection, sinceSeq, limit);
+    }
+
+    @Override
+    public void markRemoteDeletes(@NotNull String collection, @NotNull Collection<String> uuids) throws SQLException {
+        checkOpen();
+        for (String uuid : uuids) {
+            putJournalEntry(journal.createRemoteChange(collection, uuid));
+        }
+    }
+
+    @Override
+    public @Nullable String getMetadata(@NotNull String key) {
+        return metadata.get(key);
+    }
+
+    @Override
+    public void setMetadata(@NotNull String key, @NotNull String value) throws SQLException {
+        checkOpen();
+        String oldValue = metadata.put(key, value);
+        logUndo(() -> {
+            if (oldValue == null) {
+                metadata.remove(key);
+            } else {
+                metadata.put(key, oldValue);
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        tables.clear();
+        relations.clear();
+        metadata.clear();
+        journal.clear();
+    }
+
+    private void checkOpen() throws SQLException {
+        if (!open) {
+            throw new SQLException("The datastore is closed.");
+        }
+    }
+
+    private @NotNull Table getTable(@NotNull String collection) throws SQLException {
+        checkOpen();
+        Table table = tables.get(collection);
+        if (table == null) {
+            throw new SQLException("no such table: " + collection);
+        }
+        return table;
+    }
+
+    private @NotNull Map<String, List<String>> getRelation(@NotNull Relation relation) throws SQLException {
+        checkOpen();
+        Map<String, List<String>> entries = relations.get(relation.getName());
+        if (entries == null) {
+            throw new SQLException("no such table: " + relation.getName());
+        }
+        return entries;
+    }
+
+    // log the undo action of a change, if the calling thread has a transaction
+    private void logUndo(@NotNull Runnable undoAction) {
+        Transaction current = transaction.get();
+        if (current != null) {
+            current.undoLog.push(undoAction);
+        }
+    }
+
+    // journal a change of a record, the values are null for a new or a removed record
+    private void journal(@NotNull String collection, @NotNull String uuid,
+                         @Nullable Map<String, String> oldValues, @Nullable Map<String, String> newValues) {
+        putJournalEntry(journal.createChange(collection, uuid, oldValues, newValues));
+    }
+
+    // journal a change of the relations as change of the record with the list
+    private void journalRelation(@NotNull Relation relation, @NotNull String parentUUID) {
+        String collection = relationCollections.get(relation.getName());
+        Table table = collection == null ? null : tables.get(collection);
+        Record record = table == null ? null : table.rows.get(parentUUID);
+        if (record != null) {
+            putJournalEntry(journal.createRelationChange(collection, parentUUID, record.values));
+        }
+    }
+
+    // replace the journal entry of the record, the previous entry is restored on rollback
+    private void putJournalEntry(@Nullable KintoChange entry) {
+        if (entry == null) {
+            return;
+        }
+        KintoChange previous = journal.put(entry);
+        logUndo(() -> {
+            if (previous == null) {
+                journal.remove(entry.getCollection(), entry.getUUID());
+            } else {
+                journal.put(previous);
+            }
+        });
+    }
+
+    // replace a record with compare-and-set, expected or replacement is null for insert and delete
+    // the index entries of the new values are added before and the old entries are removed after the replacement,
+    // so a query finds the record all the time
+    private boolean replace(@NotNull Table table, @NotNull String uuid,
+                            @Nullable Record expected, @Nullable Record replacement) {
+        if (replacement != null) {
+            table.addIndexEntries(uuid, replacement, expected);
+        }
+        boolean replaced;
+        if (expected == null) {
+            replaced = table.rows.putIfAbsent(uuid, replacement) == null;
+        } else if (replacement == null) {
+            replaced = table.rows.remove(uuid, expected);
+        } else {
+            replaced = table.rows.replace(uuid, expected, replacement);
+        }
+        if (!replaced) {
+            if (replacement != null) {
+                // keep the entries of the actual record
+                table.removeIndexEntries(uuid, replacement, table.rows.get(uuid));
+            }
+            return false;
+        }
+        if (replacement != null) {
+            table.order.put(replacement.sequence, replacement);
+        } else {
+            table.order.remove(expected.sequence, expected);
+        }
+        if (expected != null) {
+            table.removeIndexEntries(uuid, expected, replacement);
+        }
+        logUndo(() -> replace(table, uuid, replacement, expected));
+        return true;
+    }
+
+    // an immutable record, replaced on every change
+    private static final class Record {
+
+        private final long sequence;
+        private final Map<String, String> values;
+
+        private Record(long sequence, @NotNull Map<String, String> values) {
+            this.sequence = sequence;
+            this.values = Collections.unmodifiableMap(values);
+        }
+
+        private long getUSN() {
+            String usn = values.get("usn");
+            return usn == null ? 0 : Long.parseLong(usn);
+        }
+    }
+
+    // the records of a collection with the secondary indices
+    private static final class Table {
+
+        private final LinkedHashMap<String, String> columns;
+        private final Map<String, Boolean> numericColumns;
+        private final ConcurrentHashMap<String, Record> rows; // uuid -> record
+        private final ConcurrentSkipListMap<Long, Record> order; // insertion sequence -> record
+        private final Map<String, Index> indices; // column -> index
+
+        private Table(@NotNull LinkedHashMap<String, String> columns, @NotNull Collection<Record> records) {
+            this.columns = new LinkedHashMap<>(columns);
+            numericColumns = new HashMap<>();
+            indices = new HashMap<>();
+            for (Map.Entry<String, String> column : columns.entrySet()) {
+                boolean numeric = RecordEvaluator.isNumericType(column.getValue());
+                numericColumns.put(column.getKey(), numeric);
+                if (!column.getKey().equals("uuid")) {
+                    indices.put(column.getKey(), numeric ? new OrderedIndex() : new HashIndex());
+                }
+            }
+            rows = new ConcurrentHashMap<>();
+            order = new ConcurrentSkipListMap<>();
+            for (Record record : records) {
+                Map<String, String> values = new HashMap<>(record.values);
+                values.keySet().retainAll(columns.keySet());
+                Record migratedRecord = new Record(record.sequence, values);
+                String uuid = values.get("uuid");
+                rows.put(uuid, migratedRecord);
+                order.put(migratedRecord.sequence, migratedRecord);
+                addIndexEntries(uuid, migratedRecord, null);
+            }
+        }
+
+        // add the entries of the values, which differ from the other record
+        private void addIndexEntries(@NotNull String uuid, @NotNull Record record, @Nullable Record other) {
+            for (Map.Entry<String, Index> index : indices.entrySet()) {
+                String value = record.values.get(index.getKey());
+                if (value != null && (other == null || !value.equals(other.values.get(index.getKey())))) {
+                    index.getValue().add(value, uuid);
+                }
+            }
+        }
+
+        // remove the entries of the values, which differ from the other record
+        private void removeIndexEntries(@NotNull String uuid, @NotNull Record record, @Nullable Record other) {
+            for (Map.Entry<String, Index> index : indices.entrySet()) {
+                String value = record.values.get(index.getKey());
+                if (value != null && (other == null || !value.equals(other.values.get(index.getKey())))) {
+                    index.getValue().remove(value, uuid);
+                }
+            }
+        }
+
+        // the records of the query in the order of insertion
+        private @NotNull List<Record> select(@NotNull KintoQuery query) {
+            // use the smallest set of candidates of the indices
+            Set<String> candidates = null;
+            for (KintoQuery.Condition condition : query.getConditions()) {
+                Set<String> indexCandidates;
+                if (condition.getAttributeName().equals("uuid")
+                        && (condition.getOperator() == KintoQuery.Operator.EQUAL
+                        || condition.getOperator() == KintoQuery.Operator.IN)) {
+                    indexCandidates = new HashSet<>();
+                    for (Object value : condition.getValues()) {
+                        indexCandidates.add(String.valueOf(StorageEngine.toColumnValue(value)));
+                    }
+                } else {
+                    Index index = indices.get(condition.getAttributeName());
+                    indexCandidates = index == null ? null : index.find(condition);
+                }
+                if (indexCandidates != null && (candidates == null || indexCandidates.size() < candidates.size())) {
+                    candidates = indexCandidates;
+                }
+            }
+            List<Record> records = new ArrayList<>();
+            if (candidates == null) {
+                for (Record record : order.values()) {
+                    if (matches(record, query)) {
+                        records.add(record);
+                    }
+                }
+                return records;
+            }
+            for (String uuid : candidates) {
+                Record record = rows.get(uuid);
+                if (record != null && matches(record, query)) {
+                    records.add(record);
+                }
+            }
+            records.sort(Comparator.comparingLong(record -> record.sequence));
+            return records;
+        }
+
+        private boolean matches(@NotNull Record record, @NotNull KintoQuery query) {
+            return RecordEvaluator.matches(record.values, query, numericColumns);
+        }
+    }
+
+    // a secondary index: value of a column -> uuid of the records
+    private interface Index {
+
+        void add(@NotNull String value, @NotNull String uuid);
+
+        void remove(@NotNull String value, @NotNull String uuid);
+
+        // the candidates for the condition, null if the index can't be used
+        @Nullable Set<String> find(@NotNull KintoQuery.Condition condition);
+    }
+
+    // index of a text column for equal and in
+    private static final class HashIndex implements Index {
+
+        private final ConcurrentHashMap<String, Set<String>> entries = new ConcurrentHashMap<>();
+
+        @Override
+        public void add(@NotNull String value, @NotNull String uuid) {
+            entries.computeIfAbsent(value, key -> ConcurrentHashMap.newKeySet()).add(uuid);
+        }
+
+        @Override
+        public void remove(@NotNull String value, @NotNull String uuid) {
+            entries.computeIfPresent(value, (key, uuids) -> {
+                uuids.remove(uuid);
+                return uuids.isEmpty() ? null : uuids;
+            });
+        }
+
+        @Override
+        public @Nullable Set<String> find(@NotNull KintoQuery.Condition condition) {
+            if (condition.getOperator() != KintoQuery.Operator.EQUAL
+                    && condition.getOperator() != KintoQuery.Operator.IN) {
+                return null;
+            }
+            Set<String> candidates = new HashSet<>();
+            for (Object value : condition.getValues()) {
+                Set<String> uuids = entries.get(String.valueOf(StorageEngine.toColumnValue(value)));
+                if (uuids != null) {
+                    candidates.addAll(uuids);
+                }
+            }
+            return candidates;
+        }
+    }
+
+    // index of a numeric column, sorted by value, for equal, in and ranges
+    private static final class OrderedIndex implements Index {
+
+        private final ConcurrentSkipListMap<Double, Set<String>> numbers = new ConcurrentSkipListMap<>();
+        private final Set<String> others = ConcurrentHashMap.newKeySet(); // records with text in the column
+
+        @Override
+        public void add(@NotNull String value, @NotNull String uuid) {
+            Double number = RecordEvaluator.parseNumber(value);
+            if (number == null) {
+                others.add(uuid);
+            } else {
+                numbers.computeIfAbsent(number, key -> ConcurrentHashMap.newKeySet()).add(uuid);
+            }
+        }
+
+        @Override
+        public void remove(@NotNull String value, @NotNull String uuid) {
+            Double number = RecordEvaluator.parseNumber(value);
+            if (number == null) {
+                others.remove(uuid);
+            } else {
+                numbers.computeIfPresent(number, (key, uuids) -> {
+                    uuids.remove(uuid);
+                    return uuids.isEmpty() ? null : uuids;
+                });
+            }
+        }
+
+        @Override
+        public @Nullable Set<String> find(@NotNull KintoQuery.Condition condition) {
+            List<Double> values = new ArrayList<>();
+            for (Object value : condition.getValues()) {
+                Double number = RecordEvaluator.parseNumber(StorageEngine.toColumnValue(value));
+                if (number == null) {
+                    // compared with text
+                    return null;
+                }
+                values.add(number);
+            }
+            Set<String> candidates = new HashSet<>();
+            switch (condition.getOperator()) {
+                case EQUAL:
+                case IN:
+                    for (Double value : values) {
+                        Set<String> uuids = numbers.get(value);
+                        if (uuids != null) {
+                            candidates.addAll(uuids);
+                        }
+                    }
+                    return candidates;
+                case GREATER:
+                case GREATER_OR_EQUAL:
+                    collect(numbers.tailMap(values.get(0),
+                            condition.getOperator() == KintoQuery.Operator.GREATER_OR_EQUAL), candidates);
+                    // text is greater than numbers
+                    candidates.addAll(others);
+                    return candidates;
+                case LESS:
+                case LESS_OR_EQUAL:
+                    collect(numbers.headMap(values.get(0),
+                            condition.getOperator() == KintoQuery.Operator.LESS_OR_EQUAL), candidates);
+                    return candidates;
+                case BETWEEN:
+                    if (values.get(0) > values.get(1)) {
+                        return candidates;
+                    }
+                    collect(numbers.subMap(values.get(0), true, values.get(1), true), candidates);
+                    return candidates;
+                default:
+                    return null;
+            }
+        }
+
+        private static void collect(@NotNull Map<Double, Set<String>> range, @NotNull Set<String> candidates) {
+            for (Set<String> uuids : range.values()) {
+                candidates.addAll(uuids);
+            }
+        }
+    }
+
+    // the undo log of the transaction of a thread
+    private static final class Transaction {
+
+        private final Deque<Runnable> undoLog = new ArrayDeque<>();
+        private int depth;
+    }
+
+    // a cursor for a snapshot of the records
+    private static final class RecordCursor implements Cursor {
+
+        private final Iterator<Record> records;
+        private Record current;
+
+        private RecordCursor(@NotNull List<Record> records) {
+            this.records = records.iterator();
+        }
+
+        @Override
+        public boolean next() {
+            if (records.hasNext()) {
+                current = records.next();
+                return true;
+            }
+            current = null;
+            return false;
+        }
+
+        @Override
+        public KintoRow readRow() throws SQLException {
+            if (current == null) {
+                throw new SQLException("The cursor is not on a record.");
+            }
+            return new KintoRow(current.values);
+        }
+
+        @Override
+        public void close() {
+            current = null;
+        }
+    }
+}
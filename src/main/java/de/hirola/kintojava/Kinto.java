@@ -3,17 +3,31 @@ package de.hirola.kintojava;
 import de.hirola.kintojava.model.DataSet;
 import de.hirola.kintojava.model.KintoObject;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
  * This software us licensed under the AGPL-3.0 or later.
  *
  * The singleton object for data management with sqlite and kinto.
+ * <p>
+ * The object can be shared between threads. Every collection is protected by its own read-write lock,
+ * so operations on different collections run in parallel. Writes to a collection are exclusive,
+ * reads of a collection run concurrently and do not wait for writes in the local datastore.
+ * Reads of objects with embedded objects lock all related collections in a fixed order (deadlock free).
+ * The changes of an object must not be made from several threads at the same time.
  *
  * @author Michael Schmidt (Hirola)
  * @since 1.1.1
@@ -25,9 +39,18 @@ public final class Kinto {
 
     private final String bucket;
     private final KintoLogger kintoLogger;
-    private final ArrayList<KintoCollection> collections;
-    private final KintoDatabaseAdapter dataBase;
-    private final boolean syncEnabled;
+    private final ArrayList<KintoCollection<?>> collections;
+    private final Map<Class<?>, KintoCollection<?>> collectionsByType; // fast access to the collection of a type
+    private final StorageEngine storageEngine; // the storage of the local datastore
+    private final ForkJoinPool hydrationPool; // creates objects from large result sets, can be null
+    private final Map<Class<?>, Set<KintoCollection<?>>> relatedCollections; // collections to lock for reading a type
+    private final String kintoURL; // the base url of the remote kinto
+    private final int syncPageSize; // the records of a page on a pull, 0 for the default of remote kinto
+    private final int syncPrefetchDepth; // the pages loaded in advance on a pull
+    private final int syncParallelism; // the collections pulled at the same time
+    private final int syncCompressionThreshold; // the size of compressed batch requests, 0 for no compression
+    private volatile KintoSync kintoSync; // the sync with remote kinto, null before login
+    private final Map<String, Duration> startupTimings; // duration of the steps on start
 
     public Kinto(@NotNull KintoConfiguration kintoConfiguration) throws KintoException {
         String appPackageName = kintoConfiguration.getAppPackageName();
@@ -44,33 +67,126 @@ public final class Kinto {
         // activate logging
         kintoLogger = KintoLogger.getInstance(null);
         collections = new ArrayList<>(size);
-        syncEnabled = false;
+        collectionsByType = new IdentityHashMap<>(size * 2);
+        relatedCollections = new ConcurrentHashMap<>();
+        kintoURL = kintoConfiguration.getKintoURL();
+        syncPageSize = kintoConfiguration.getSyncPageSize();
+        syncPrefetchDepth = kintoConfiguration.getSyncPrefetchDepth();
+        syncParallelism = kintoConfiguration.getSyncParallelism();
+        syncCompressionThreshold = kintoConfiguration.getSyncCompressionThreshold();
+        kintoSync = null;
+        // pool for creating objects in parallel
+        int hydrationParallelism = kintoConfiguration.getHydrationParallelism();
+        if (hydrationParallelism > 1) {
+            hydrationPool = new ForkJoinPool(hydrationParallelism);
+        } else {
+            hydrationPool = null;
+        }
+        startupTimings = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        long stepStart = start;
         // initialize the local datastore for the collection
-        dataBase = new KintoDatabaseAdapter(appPackageName);
-        // create or check collections (schema)
-        for (Class<? extends KintoObject> aClass : kintoConfiguration.getObjectTypes()) {
-            initializeCollection(aClass);
+        if (kintoConfiguration.getStorageEngine() != null) {
+            storageEngine = kintoConfiguration.getStorageEngine();
+        } else if (!kintoConfiguration.getShardPlacement().isEmpty()) {
+            // a database for every shard
+            storageEngine = ShardedStorageEngine.create(kintoConfiguration);
+        } else {
+            storageEngine = new SQLiteStorageEngine(new KintoDatabaseAdapter(appPackageName,
+                    kintoConfiguration.getStorageProfile(), kintoConfiguration.getStorageMode()));
         }
+        stepStart = addStartupTiming("openDatastore", stepStart);
+        // the schema and the metadata of the local datastore, e.g. all tables with one query
+        try {
+            storageEngine.open();
+        } catch (SQLException exception) {
+            String errorMessage = "Can't read the schema of the local datastore: " + exception.getMessage();
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage);
+        }
+        stepStart = addStartupTiming("readSchema", stepStart);
+        // build the collections (reflection) in parallel, the tables are checked and created on first use
+        initializeCollections(kintoConfiguration.getObjectTypes());
+        addStartupTiming("buildCollections", stepStart);
+        addStartupTiming("total", start);
+        kintoLogger.log(KintoLogger.DEBUG, TAG, "Startup timings: " + startupTimings, null);
     }
 
     /**
      * Get the local datastore connection.
      *
-     * @return An opened connection to the local datastore.
+     * @return An opened connection to the local datastore, null if the storage engine doesn't use sqlite.
+     * With shards, the connection to the default shard with all other shards attached.
+     */
+    public @Nullable KintoDatabaseAdapter getLocalDatastoreConnection() {
+        if (storageEngine instanceof SQLiteStorageEngine) {
+            return ((SQLiteStorageEngine) storageEngine).getDatabaseAdapter();
+        }
+        if (storageEngine instanceof ShardedStorageEngine) {
+            SQLiteStorageEngine defaultShard = ((ShardedStorageEngine) storageEngine)
+                    .getShard(ShardedStorageEngine.DEFAULT_SHARD);
+            return defaultShard == null ? null : defaultShard.getDatabaseAdapter();
+        }
+        return null;
+    }
+
+    /**
+     * Get the storage engine of the local datastore.
+     *
+     * @return The storage engine used by the collections.
      */
-    public KintoDatabaseAdapter getLocalDatastoreConnection() {
-        return dataBase;
+    public StorageEngine getStorageEngine() {
+        return storageEngine;
     }
 
 
     /**
-     * Try to log in to the remote kinto service.
+     * Get the durations of the steps while creating this object: open the local datastore (openDatastore),
+     * read the tables and the metadata of the local datastore (readSchema), build the collections (buildCollections)
+     * and the duration of all steps (total). The tables of a collection are checked and created
+     * on the first use of the collection, not on start.
+     *
+     * @return The durations of the start steps in order of execution.
+     */
+    public Map<String, Duration> getStartupTimings() {
+        return Collections.unmodifiableMap(startupTimings);
+    }
+
+    /**
+     * Get the collection for the objects of a type. The collection can be kept
+     * for frequent use, the lookup of the collection is not repeated.
+     *
+     * @param type the type of objects
+     * @param <T> the type of objects
+     * @return The collection of the type.
+     * @throws KintoException if the type is not managed
+     */
+    public <T extends KintoObject> KintoCollection<T> collection(@NotNull Class<T> type) throws KintoException {
+        KintoCollection<?> collection = findCollection(type);
+        if (collection == null) {
+            String errorMessage = "Cant' find the collection for the object type "
+                    + type
+                    + ".";
+            throw new KintoException(errorMessage);
+        }
+        // the registry maps every type to the collection of the type
+        @SuppressWarnings("unchecked")
+        KintoCollection<T> typedCollection = (KintoCollection<T>) collection;
+        return typedCollection;
+    }
+
+    /**
+     * Try to log in to the remote kinto service. After the login the local datastore can be synced.
      *
      * @param credentials for the login to remote kinto sync data store
-     * @throws KintoException if the login failed
+     * @throws KintoException if the remote kinto is not available or the login failed
+     * @see #sync()
      */
     public void login(@NotNull Credentials credentials) throws KintoException {
-        System.out.println("Not implemented yet " + credentials.getBasicAuthString());
+        KintoSync sync = new KintoSync(this, kintoURL, bucket, credentials,
+                syncPageSize, syncPrefetchDepth, syncParallelism, syncCompressionThreshold);
+        sync.login();
+        kintoSync = sync;
     }
 
     /**
@@ -86,12 +202,9 @@ public final class Kinto {
             throw new KintoException("Can't add a null object.");
         }
         if (isOpen()) {
-            Iterator<KintoCollection> iterator = collections.stream().iterator();
-            while (iterator.hasNext()) {
-                KintoCollection collection = iterator.next();
-                if (collection.getType().equals(kintoObject.getClass())) {
-                    collection.addRecord(kintoObject);
-                }
+            KintoCollection<?> collection = findCollection(kintoObject.getClass());
+            if (collection != null) {
+                collection.addRecord(kintoObject);
             }
         } else {
             throw new KintoException("The local datastore is not available.");
@@ -104,18 +217,118 @@ public final class Kinto {
      * @param kintoObject object to update in local datastore
      * @throws KintoException if the object not existing in local datastore or
      *                        an error occurred while updating in datastore
+     * @throws KintoConflictException if the object was changed in local datastore since it was loaded
      */
     public void update(@NotNull KintoObject kintoObject) throws KintoException {
         if (!kintoObject.isPersistent()) {
             throw new KintoException("Can't update a non existing object.");
         }
         if (isOpen()) {
-            Iterator<KintoCollection> iterator = collections.stream().iterator();
-            while (iterator.hasNext()) {
-                KintoCollection collection = iterator.next();
-                if (collection.getType().equals(kintoObject.getClass())) {
-                    collection.updateRecord(kintoObject);
-                }
+            KintoCollection<?> collection = findCollection(kintoObject.getClass());
+            if (collection != null) {
+                collection.updateRecord(kintoObject);
+            }
+        } else {
+            throw new KintoException("The local datastore is not available.");
+        }
+    }
+
+    /**
+     * Change single attributes of an object in local datastore with one statement.
+     * The object must not be loaded before, concurrent changes of the attributes are not lost.
+     * Loaded objects with the uuid are not changed.
+     *
+     * @param type the type of the object
+     * @param uuid the uuid of the object
+     * @param fieldUpdate the changes and an optional condition
+     * @return The count of changed objects, 0 if the object not exists or the condition is not fulfilled.
+     * @throws KintoException if an attribute can't be changed or
+     *                        an error occurred while updating in datastore
+     * @see KintoFieldUpdate
+     */
+    public int update(@NotNull Class<? extends KintoObject> type,
+                      @NotNull String uuid,
+                      @NotNull KintoFieldUpdate fieldUpdate) throws KintoException {
+        if (isOpen()) {
+            return collection(type).updateFields(uuid, fieldUpdate);
+        } else {
+            throw new KintoException("The local datastore is not available.");
+        }
+    }
+
+    /**
+     * Change single attributes of an existing object in local datastore with one statement.
+     * If the object was changed, the changed attributes of the object are loaded from the local datastore.
+     * Other changes of the object are not saved.
+     *
+     * @param kintoObject the object to change
+     * @param fieldUpdate the changes and an optional condition
+     * @return The count of changed objects, 0 if the condition is not fulfilled.
+     * @throws KintoException if the object not existing in local datastore or
+     *                        an error occurred while updating in datastore
+     * @see KintoFieldUpdate
+     */
+    public int update(@NotNull KintoObject kintoObject, @NotNull KintoFieldUpdate fieldUpdate) throws KintoException {
+        if (!kintoObject.isPersistent()) {
+            throw new KintoException("Can't update a non existing object.");
+        }
+        if (isOpen()) {
+            return collection(kintoObject.getClass()).updateFields(kintoObject, fieldUpdate);
+        } else {
+            throw new KintoException("The local datastore is not available.");
+        }
+    }
+
+    /**
+     * Add an object to a list attribute (1:m relation) of an existing object.
+     * Only the relation entry is saved in local datastore, the object with the list is not updated.
+     * The object is also added to the list, if the entry was not already saved in local datastore.
+     *
+     * @param kintoObject the object with the list attribute
+     * @param attributeName name of the list attribute
+     * @param listObject the object to add, must exist in local datastore
+     * @throws KintoException if an object not existing in local datastore or
+     *                        an error occurred while updating in datastore
+     * @throws KintoConflictException if the object was changed in local datastore since it was loaded
+     */
+    public void addToRelation(@NotNull KintoObject kintoObject,
+                              @NotNull String attributeName,
+                              @NotNull KintoObject listObject) throws KintoException {
+        if (!kintoObject.isPersistent()) {
+            throw new KintoException("Can't update a non existing object.");
+        }
+        if (isOpen()) {
+            KintoCollection<?> collection = findCollection(kintoObject.getClass());
+            if (collection != null) {
+                collection.addRelationRecord(kintoObject, attributeName, listObject);
+            }
+        } else {
+            throw new KintoException("The local datastore is not available.");
+        }
+    }
+
+    /**
+     * Remove an object from a list attribute (1:m relation) of an existing object.
+     * Only the relation entry is removed from local datastore, the object with the list is not updated.
+     * The object is also removed from the list, if the entry was saved in local datastore.
+     *
+     * @param kintoObject the object with the list attribute
+     * @param attributeName name of the list attribute
+     * @param listObject the object to remove
+     * @throws KintoException if the object not existing in local datastore or
+     *                        an error occurred while updating in datastore
+     * @throws KintoConflictException if the object was changed in local datastore since it was loaded
+     */
+    public void removeFromRelation(@NotNull KintoObject kintoObject,
+                                   @NotNull String attributeName,
+                                   @NotNull KintoObject listObject) throws KintoException {
+        if (!kintoObject.isPersistent()) {
+            throw new KintoException("Can't update a non existing object.");
+        }
+        if (isOpen()) {
+            KintoCollection<?> collection = findCollection(kintoObject.getClass());
+            if (collection != null) {
+                collection.removeRelationRecord(kintoObject, attributeName, listObject);
             }
         } else {
             throw new KintoException("The local datastore is not available.");
@@ -129,6 +342,7 @@ public final class Kinto {
      * @param kintoObject Object to remove
      * @throws KintoException if the object not existing in local datastore
      *                        or an error occurred while removing from datastore
+     * @throws KintoConflictException if the object was changed in local datastore since it was loaded
      */
     public void remove(@NotNull KintoObject kintoObject) throws KintoException{
         if (!kintoObject.isPersistent()) {
@@ -138,12 +352,9 @@ public final class Kinto {
             if (kintoObject.isUseInRelation()) {
                 throw new KintoException("Can't remove the object. It's used in an other object. Please update the other object before.");
             }
-            Iterator<KintoCollection> iterator = collections.stream().iterator();
-            while (iterator.hasNext()) {
-                KintoCollection collection = iterator.next();
-                if (collection.getType().equals(kintoObject.getClass())) {
-                    collection.removeRecord(kintoObject);
-                }
+            KintoCollection<?> collection = findCollection(kintoObject.getClass());
+            if (collection != null) {
+                collection.removeRecord(kintoObject);
             }
         } else {
             throw new KintoException("The local datastore is not available.");
@@ -159,6 +370,56 @@ public final class Kinto {
      * @throws KintoException if the length of uuid is 0 or an exception occurred while getting object from datastore
      */
     public KintoObject findByUUID(@NotNull Class<? extends KintoObject> type, @NotNull String uuid) throws KintoException {
+        // the object and all embedded objects are read in a consistent state
+        List<Lock> locks = KintoCollection.lockCollections(getRelatedCollections(type), false);
+        try {
+            return loadByUUID(type, uuid);
+        } finally {
+            KintoCollection.unlockCollections(locks);
+        }
+    }
+
+    /**
+     * Get all objects from datastore with given type.
+     *
+     * @param type the type of objects
+     * @return A list of all objects from datastore with the type. The list can be empty.
+     * @throws KintoException if an exception occurred while getting objects from datastore
+     */
+    public List<? extends KintoObject> findAll(@NotNull Class<? extends KintoObject> type) throws KintoException {
+        // the objects and all embedded objects are read in a consistent state
+        List<Lock> locks = KintoCollection.lockCollections(getRelatedCollections(type), false);
+        try {
+            return loadAll(type);
+        } finally {
+            KintoCollection.unlockCollections(locks);
+        }
+    }
+
+    /**
+     * Publish all objects of a type fulfilling the query (reactive streams).
+     * The objects are read from local datastore only if requested by the subscriber
+     * and are not collected in a list. The embedded objects of the published objects
+     * contain only the uuid, use {@link #findByUUID(Class, String)} to load them.
+     *
+     * @param type the type of objects
+     * @param query to filter the objects, an empty query publish all objects
+     * @param <T> the type of objects
+     * @return A publisher for the objects, every subscriber gets the current objects of the local datastore.
+     * @throws KintoException if the type is not managed or the local datastore is not available
+     * @see KintoQuery
+     */
+    public <T extends KintoObject> Flow.Publisher<T> publish(@NotNull Class<T> type,
+                                                             @NotNull KintoQuery query) throws KintoException {
+        if (isOpen()) {
+            return new KintoQueryPublisher<>(collection(type), query);
+        } else {
+            throw new KintoException("The local datastore is not available.");
+        }
+    }
+
+    // get an object with all embedded objects
+    private KintoObject loadByUUID(@NotNull Class<? extends KintoObject> type, @NotNull String uuid) throws KintoException {
         if (uuid.length() == 0) {
             throw new KintoException("The uuid must be not null and greater than 0.");
         }
@@ -167,84 +428,81 @@ public final class Kinto {
             KintoObject kintoObject = null;
             // create an object list with native attributes
             boolean collectionFound = false;
-            Iterator<KintoCollection> iterator = collections.stream().iterator();
-            while (iterator.hasNext()) {
-                KintoCollection collection = iterator.next();
-                if (collection.getType().equals(type)) {
-                    collectionFound = true;
-                    try {
-                        // returns a kinto object
-                        // contains embedded objects with empty values
-                        kintoObject = collection.findByUUID(uuid); // can be null
-                        if (kintoObject != null) {
-                            Field[] attributes = kintoObject.getClass().getDeclaredFields();
-                            Iterator<Field> fieldIterator = Arrays.stream(attributes).iterator();
-                            while (fieldIterator.hasNext()) {
-                                // 1:1 embedded attribute
-                                Field attribute = fieldIterator.next();
-                                Class<?> attributeType = attribute.getType();
-                                if (DataSet.haveAttributeKintoObjectAsSuperClass(attributeType)) {
-                                    // get the uuid from embedded object
-                                    attribute.setAccessible(true);
-                                    KintoObject embeddedObject = (KintoObject) attribute.get(kintoObject);
-                                    // check if object has values from datastore - have no null values
-                                    if (embeddedObject != null) {
-                                        String embeddedObjectUUID = embeddedObject.getUUID();
-                                        // call this func recursive
-                                        // fill the "empty" object with values
-                                        // check if we can cast the class
-                                        if (!KintoObject.class.isAssignableFrom(attributeType)) {
-                                            throw new KintoException("List element is not from type KintoObject.");
-                                        }
-                                        @SuppressWarnings("unchecked")
-                                        Class<? extends KintoObject> objectType = (Class<? extends KintoObject>) attributeType;
-                                        embeddedObject = findByUUID(objectType, embeddedObjectUUID);
-                                        if (embeddedObject == null) {
-                                            throw new KintoException("An embedded object was not found in datastore.");
-                                        }
+            KintoCollection<?> collection = findCollection(type);
+            if (collection != null) {
+                collectionFound = true;
+                try {
+                    // returns a kinto object
+                    // contains embedded objects with empty values
+                    kintoObject = collection.findByUUID(uuid); // can be null
+                    if (kintoObject != null) {
+                        Field[] attributes = kintoObject.getClass().getDeclaredFields();
+                        Iterator<Field> fieldIterator = Arrays.stream(attributes).iterator();
+                        while (fieldIterator.hasNext()) {
+                            // 1:1 embedded attribute
+                            Field attribute = fieldIterator.next();
+                            Class<?> attributeType = attribute.getType();
+                            if (DataSet.haveAttributeKintoObjectAsSuperClass(attributeType)) {
+                                // get the uuid from embedded object
+                                attribute.setAccessible(true);
+                                KintoObject embeddedObject = (KintoObject) attribute.get(kintoObject);
+                                // check if object has values from datastore - have no null values
+                                if (embeddedObject != null) {
+                                    String embeddedObjectUUID = embeddedObject.getUUID();
+                                    // call this func recursive
+                                    // fill the "empty" object with values
+                                    // check if we can cast the class
+                                    if (!KintoObject.class.isAssignableFrom(attributeType)) {
+                                        throw new KintoException("List element is not from type KintoObject.");
+                                    }
+                                    @SuppressWarnings("unchecked")
+                                    Class<? extends KintoObject> objectType = (Class<? extends KintoObject>) attributeType;
+                                    embeddedObject = findByUUID(objectType, embeddedObjectUUID);
+                                    if (embeddedObject == null) {
+                                        throw new KintoException("An embedded object was not found in datastore.");
                                     }
-                                    // update the enclosed object
-                                    attribute.set(kintoObject, embeddedObject);
                                 }
-                                // 1:m embedded attributes
-                                if (attributeType.isAssignableFrom(List.class)) {
-                                    attribute.setAccessible(true);
-                                    // the list for the objects with all attributes
-                                    List<KintoObject> embeddedObjects = new ArrayList<>();
-                                    ArrayList<?> arrayListObjects = (ArrayList<?>) attribute.get(kintoObject);
-                                    for (Object arrayListObject : arrayListObjects) {
-                                        if (KintoObject.class.isAssignableFrom(arrayListObject.getClass())) {
-                                            // get the uuid from embedded object
-                                            attributeType = arrayListObject.getClass();
-                                            KintoObject embeddedObject = (KintoObject) arrayListObject;
-                                            if (!embeddedObject.isPersistent()) {
-                                                String embeddedObjectUUID = embeddedObject.getUUID();
-                                                // call this func recursive
-                                                // fill the "empty" object with values
-                                                // check if we can cast the class
-                                                if (!KintoObject.class.isAssignableFrom(attributeType)) {
-                                                    throw new KintoException("List element is not from type KintoObject.");
-                                                }
-                                                @SuppressWarnings("unchecked")
-                                                Class<? extends KintoObject> objectType = (Class<? extends KintoObject>) attributeType;
-                                                embeddedObject = findByUUID(objectType, embeddedObjectUUID);
-                                                if (embeddedObject == null) {
-                                                    throw new KintoException("An embedded object was not found in datastore.");
-                                                }
+                                // update the enclosed object
+                                attribute.set(kintoObject, embeddedObject);
+                            }
+                            // 1:m embedded attributes
+                            if (attributeType.isAssignableFrom(List.class)) {
+                                attribute.setAccessible(true);
+                                // the list for the objects with all attributes
+                                List<KintoObject> embeddedObjects = new ArrayList<>();
+                                ArrayList<?> arrayListObjects = (ArrayList<?>) attribute.get(kintoObject);
+                                for (Object arrayListObject : arrayListObjects) {
+                                    if (KintoObject.class.isAssignableFrom(arrayListObject.getClass())) {
+                                        // get the uuid from embedded object
+                                        attributeType = arrayListObject.getClass();
+                                        KintoObject embeddedObject = (KintoObject) arrayListObject;
+                                        if (!embeddedObject.isPersistent()) {
+                                            String embeddedObjectUUID = embeddedObject.getUUID();
+                                            // call this func recursive
+                                            // fill the "empty" object with values
+                                            // check if we can cast the class
+                                            if (!KintoObject.class.isAssignableFrom(attributeType)) {
+                                                throw new KintoException("List element is not from type KintoObject.");
+                                            }
+                                            @SuppressWarnings("unchecked")
+                                            Class<? extends KintoObject> objectType = (Class<? extends KintoObject>) attributeType;
+                                            embeddedObject = findByUUID(objectType, embeddedObjectUUID);
+                                            if (embeddedObject == null) {
+                                                throw new KintoException("An embedded object was not found in datastore.");
                                             }
-                                            // add the object to the embedded list
-                                            embeddedObjects.add(embeddedObject);
                                         }
+                                        // add the object to the embedded list
+                                        embeddedObjects.add(embeddedObject);
                                     }
-                                    // update the enclosed object
-                                    attribute.set(kintoObject, embeddedObjects);
                                 }
+                                // update the enclosed object
+                                attribute.set(kintoObject, embeddedObjects);
                             }
                         }
-                    } catch (IllegalAccessException | IllegalArgumentException exception) {
-                        // TODO: Error Message
-                        throw new KintoException(exception);
                     }
+                } catch (IllegalAccessException | IllegalArgumentException exception) {
+                    // TODO: Error Message
+                    throw new KintoException(exception);
                 }
             }
             if (!collectionFound) {
@@ -259,25 +517,23 @@ public final class Kinto {
         }
     }
 
-    public List<? extends KintoObject> findAll(@NotNull Class<? extends KintoObject> type) throws KintoException {
+    // get all objects of a type with all embedded objects
+    private List<? extends KintoObject> loadAll(@NotNull Class<? extends KintoObject> type) throws KintoException {
         if (isOpen()) {
             List<KintoObject> objects = new ArrayList<>();
             // the collection for the object class
-            KintoCollection kintoObjectClassCollection = null;
+            KintoCollection<?> kintoObjectClassCollection = null;
             // create an object list with native attributes
             boolean collectionFound = false;
-            Iterator<KintoCollection> iterator = collections.stream().iterator();
-            while (iterator.hasNext()) {
-                KintoCollection collection = iterator.next();
-                if (collection.getType().equals(type)) {
-                    collectionFound = true;
-                    try {
-                        objects = collection.findAll();
-                        // save the actual collection
-                        kintoObjectClassCollection = collection;
-                    } catch (KintoException exception) {
-                        kintoLogger.log(KintoLogger.ERROR, TAG, "Error while get all objects from collection.", exception);
-                    }
+            KintoCollection<?> collection = findCollection(type);
+            if (collection != null) {
+                collectionFound = true;
+                try {
+                    objects = new ArrayList<>(collection.findAll());
+                    // save the actual collection
+                    kintoObjectClassCollection = collection;
+                } catch (KintoException exception) {
+                    kintoLogger.log(KintoLogger.ERROR, TAG, "Error while get all objects from collection.", exception);
                 }
             }
             if (!collectionFound) {
@@ -401,11 +657,71 @@ public final class Kinto {
     }
 
     /**
-     * Publish all local data to the server, import remote changes.
-     * Not implemented yet.
+     * Import the remote changes into the local datastore and save the local changes in remote kinto.
+     * Only the records changed since the last sync are loaded from remote kinto.
+     * Objects changed in local datastore since the last sync are not overwritten,
+     * the changed objects are saved in remote kinto with as few batch requests as possible.
+     * Objects changed in local datastore and remote kinto are not synced (conflicts).
+     *
+     * @return The counts of the synced records by collection.
+     * @throws KintoException if not logged in, the remote kinto is not available or
+     *                        an error occurred while saving the records
+     * @see #login(Credentials)
+     */
+    public KintoSyncResult sync() throws KintoException {
+        KintoSync sync = kintoSync;
+        if (sync == null) {
+            throw new KintoException("The sync is not enabled, please log in to the remote kinto before.");
+        }
+        if (!isOpen()) {
+            throw new KintoException("The local datastore is not available.");
+        }
+        KintoSyncResult result = sync.sync(collections);
+        kintoLogger.log(KintoLogger.INFO, TAG, "Sync with bucket " + bucket + ": " + result, null);
+        return result;
+    }
+
+    /**
+     * Get the changes of the local datastore after a sequence number, e.g. to update a search index.
+     * The journal contains one entry per object with the last change, several changes of an object
+     * are coalesced. Use the sequence number of the last entry as cursor for the next call.
+     *
+     * @param seq the sequence number of the last read change, 0 for all changes
+     * @return The changes in the order of the sequence numbers. The list can be empty.
+     * @throws KintoException if the local datastore is not available or the journal can't be read
+     * @see KintoChange
+     */
+    public List<KintoChange> changesSince(long seq) throws KintoException {
+        return changesSince(seq, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get a limited count of changes of the local datastore after a sequence number.
+     * With several shards, the changes can only be read by type.
+     *
+     * @param seq the sequence number of the last read change, 0 for all changes
+     * @param limit the max count of changes
+     * @return The changes in the order of the sequence numbers. The list can be empty.
+     * @throws KintoException if the local datastore is not available or the journal can't be read
+     * @see #changesSince(Class, long, int)
+     */
+    public List<KintoChange> changesSince(long seq, int limit) throws KintoException {
+        return readChanges(null, seq, limit);
+    }
+
+    /**
+     * Get a limited count of changes of the objects of a type after a sequence number.
+     *
+     * @param type the type of objects
+     * @param seq the sequence number of the last read change of the type, 0 for all changes
+     * @param limit the max count of changes
+     * @return The changes in the order of the sequence numbers. The list can be empty.
+     * @throws KintoException if the type is not managed, the local datastore is not available
+     *                        or the journal can't be read
      */
-    public void sync() throws KintoException {
-        System.out.println("Sync to remote kinto with bucket " + bucket +" Not implemented yet.");
+    public List<KintoChange> changesSince(@NotNull Class<? extends KintoObject> type,
+                                          long seq, int limit) throws KintoException {
+        return readChanges(collection(type).getName(), seq, limit);
     }
 
     /**
@@ -414,7 +730,7 @@ public final class Kinto {
      * @return The flag, if remote kinto enabled or not.
      */
     public boolean syncEnabled() {
-        return syncEnabled;
+        return kintoSync != null;
     }
 
     /**
@@ -423,28 +739,147 @@ public final class Kinto {
      * @return The flag, if remote kinto enabled or not.
      */
     public boolean isOpen() {
-        return dataBase.isOpen();
+        return storageEngine.isOpen();
     }
 
     /**
      * Closed the local datastore.
      */
     public void close() {
-        if (isOpen()) {
-            try {
-                dataBase.close();
-            } catch (SQLException exception) {
-                if (Global.DEBUG) {
-                    exception.printStackTrace();
+        // wait for running operations on all collections
+        List<Lock> locks = KintoCollection.lockCollections(collections, true);
+        try {
+            if (hydrationPool != null) {
+                // the objects of a running search are created without the pool
+                hydrationPool.shutdown();
+            }
+            if (isOpen()) {
+                try {
+                    storageEngine.close();
+                } catch (SQLException exception) {
+                    if (Global.DEBUG) {
+                        exception.printStackTrace();
+                    }
                 }
             }
+        } finally {
+            KintoCollection.unlockCollections(locks);
+        }
+    }
+
+    // the pool for creating objects in parallel, null if disabled
+    ForkJoinPool getHydrationPool() {
+        return hydrationPool;
+    }
+
+    // get the collection of the type and the collections of all (transitive) embedded types
+    private Set<KintoCollection<?>> getRelatedCollections(@NotNull Class<?> type) {
+        return relatedCollections.computeIfAbsent(type, key -> {
+            Set<KintoCollection<?>> related = new LinkedHashSet<>();
+            collectRelatedCollections(key, related);
+            return Collections.unmodifiableSet(related);
+        });
+    }
+
+    private void collectRelatedCollections(@NotNull Class<?> type, @NotNull Set<KintoCollection<?>> related) {
+        KintoCollection<?> collection = findCollection(type);
+        if (collection == null || !related.add(collection)) {
+            // not managed or already visited (cyclic relations)
+            return;
+        }
+        for (DataSet dataSet : collection.getStorableAttributes().values()) {
+            if (dataSet.isKintoObject()) {
+                collectRelatedCollections(dataSet.getAttribute().getType(), related);
+            } else if (dataSet.isList()) {
+                collectRelatedCollections(dataSet.getListType(), related);
+            }
+        }
+    }
+
+    // the collections of the embedded objects (1:1) and the lists (1:m) of a collection, without the collection
+    @NotNull Set<KintoCollection<?>> getDependencies(@NotNull KintoCollection<?> collection) {
+        Set<KintoCollection<?>> dependencies = new LinkedHashSet<>();
+        for (DataSet dataSet : collection.getStorableAttributes().values()) {
+            KintoCollection<?> dependency = null;
+            if (dataSet.isKintoObject()) {
+                dependency = findCollection(dataSet.getAttribute().getType());
+            } else if (dataSet.isList()) {
+                dependency = findCollection(dataSet.getListType());
+            }
+            if (dependency != null && dependency != collection) {
+                dependencies.add(dependency);
+            }
+        }
+        return dependencies;
+    }
+
+    // get the collection of a type, null if the type is not managed
+    private @Nullable KintoCollection<?> findCollection(@NotNull Class<?> type) {
+        return collectionsByType.get(type);
+    }
+
+    // read the change journal of a collection or of all collections (null)
+    private List<KintoChange> readChanges(@Nullable String collection, long seq, int limit) throws KintoException {
+        if (!isOpen()) {
+            throw new KintoException("The local datastore is not available.");
+        }
+        try {
+            return storageEngine.readChanges(collection, seq, limit);
+        } catch (SQLException exception) {
+            String errorMessage = "Error occurred while reading the changes of local datastore: "
+                    + exception.getMessage();
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage);
+        }
+    }
+
+    // get a value of the metadata, null if the key not exists
+    @Nullable String getMetadata(@NotNull String key) {
+        return storageEngine.getMetadata(key);
+    }
+
+    // save a value of the metadata in local datastore
+    void setMetadata(@NotNull String key, @NotNull String value) throws SQLException {
+        storageEngine.setMetadata(key, value);
+    }
+
+    // fill list of collections, the collections are created in parallel
+    private void initializeCollections(List<Class<? extends KintoObject>> types) throws KintoException {
+        List<KintoCollection<?>> createdCollections;
+        try {
+            createdCollections = types.parallelStream()
+                    .map(this::createCollectionUnchecked)
+                    .collect(Collectors.toList());
+        } catch (CompletionException exception) {
+            // the pool of the stream can throw a copy of the exception with the exception of the worker as cause
+            for (Throwable cause = exception.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof KintoException) {
+                    throw (KintoException) cause;
+                }
+            }
+            throw new KintoException(exception);
+        }
+        // keep the order of the configuration
+        for (KintoCollection<?> collection : createdCollections) {
+            collections.add(collection);
+            collectionsByType.put(collection.getType(), collection);
+        }
+    }
+
+    // for use in streams, the kinto exception is thrown again by the caller
+    private <T extends KintoObject> KintoCollection<T> createCollectionUnchecked(Class<T> type) {
+        try {
+            return new KintoCollection<>(type, this);
+        } catch (KintoException exception) {
+            throw new CompletionException(exception);
         }
     }
 
-    // fill list of collections
-    private void initializeCollection(Class<? extends KintoObject> type) throws KintoException {
-        KintoCollection kintoCollection = new KintoCollection(type, this);
-        collections.add(kintoCollection);
+    // save the duration of a start step, returns the end of the step
+    private long addStartupTiming(String step, long stepStart) {
+        long now = System.nanoTime();
+        startupTimings.put(step, Duration.ofNanos(now - stepStart));
+        return now;
     }
 
 }
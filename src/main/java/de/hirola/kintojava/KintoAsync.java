@@ -0,0 +1,286 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.model.KintoObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The asynchronous access to a kinto object. All methods return immediately,
+ * the datastore operations are executed with the executor of this object.
+ * A failed operation completes the future exceptionally with a {@link KintoException}.
+ * <p>
+ * The default executor uses virtual threads on Java 21 and later. The jdbc driver blocks
+ * the carrier thread of a virtual thread while accessing the datastore (synchronized native calls),
+ * so the datastore calls run on a pool of platform threads and the virtual threads only wait for the results.
+ * On older platforms the operations run on the pool of platform threads.
+ * The count of concurrent datastore calls is limited (default: count of processors),
+ * the other tasks wait without blocking a thread of the pool.
+ *
+ * <pre>
+ *     KintoAsync kintoAsync = new KintoAsync.Builder(kinto).build();
+ *     kintoAsync.findAll(Book.class)
+ *             .thenAccept(books -> System.out.println(books.size()));
+ * </pre>
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+public final class KintoAsync {
+
+    private static final String TAG = KintoAsync.class.getSimpleName();
+
+    private final Kinto kinto;
+    private final Executor executor; // runs the operations
+    private final ExecutorService datastoreExecutor; // runs the datastore calls of virtual threads, null if not used
+    private final boolean ownsExecutor; // created by this object, shutdown on close
+    private final Semaphore datastorePermits; // limits the concurrent datastore calls
+
+    /**
+     * Create the asynchronous access with the given builder.
+     *
+     * @param builder with the kinto object and the executor
+     */
+    public KintoAsync(@NotNull Builder builder) {
+        kinto = builder.kinto;
+        if (builder.executor != null) {
+            executor = builder.executor;
+            datastoreExecutor = null;
+            ownsExecutor = false;
+        } else {
+            ExecutorService platformThreads = createDatastoreExecutor(builder.maxConcurrentDatastoreCalls);
+            ExecutorService virtualThreads = createVirtualThreadExecutor();
+            if (virtualThreads != null) {
+                executor = virtualThreads;
+                datastoreExecutor = platformThreads;
+            } else {
+                executor = platformThreads;
+                datastoreExecutor = null;
+            }
+            ownsExecutor = true;
+        }
+        datastorePermits = new Semaphore(builder.maxConcurrentDatastoreCalls, true);
+    }
+
+    /**
+     * Get the kinto object used by this object.
+     *
+     * @return The kinto object.
+     */
+    public Kinto getKinto() {
+        return kinto;
+    }
+
+    /**
+     * Add an object to the local datastore.
+     *
+     * @param kintoObject object to add
+     * @return A future, completed after adding the object.
+     * @see Kinto#add(KintoObject)
+     */
+    public CompletableFuture<Void> add(@NotNull KintoObject kintoObject) {
+        return submit(() -> {
+            kinto.add(kintoObject);
+            return null;
+        });
+    }
+
+    /**
+     * Update an existing object in local datastore.
+     *
+     * @param kintoObject object to update
+     * @return A future, completed after updating the object.
+     * @see Kinto#update(KintoObject)
+     */
+    public CompletableFuture<Void> update(@NotNull KintoObject kintoObject) {
+        return submit(() -> {
+            kinto.update(kintoObject);
+            return null;
+        });
+    }
+
+    /**
+     * Remove an existing object from local datastore.
+     *
+     * @param kintoObject object to remove
+     * @return A future, completed after removing the object.
+     * @see Kinto#remove(KintoObject)
+     */
+    public CompletableFuture<Void> remove(@NotNull KintoObject kintoObject) {
+        return submit(() -> {
+            kinto.remove(kintoObject);
+            return null;
+        });
+    }
+
+    /**
+     * Get all objects of a type from local datastore.
+     *
+     * @param type of the objects
+     * @return A future with the list of objects. The list can be empty.
+     * @see Kinto#findAll(Class)
+     */
+    public CompletableFuture<List<? extends KintoObject>> findAll(@NotNull Class<? extends KintoObject> type) {
+        return submit(() -> kinto.findAll(type));
+    }
+
+    /**
+     * Get an object with the given uuid from local datastore.
+     *
+     * @param type of the object
+     * @param uuid of the object
+     * @return A future with the object, the result is null if the object was not found.
+     * @see Kinto#findByUUID(Class, String)
+     */
+    public CompletableFuture<KintoObject> findByUUID(@NotNull Class<? extends KintoObject> type,
+                                                     @NotNull String uuid) {
+        return submit(() -> kinto.findByUUID(type, uuid));
+    }
+
+    /**
+     * Synchronize the local datastore with the remote kinto.
+     *
+     * @return A future, completed after the synchronization.
+     * @see Kinto#sync()
+     */
+    public CompletableFuture<Void> sync() {
+        return submit(() -> {
+            kinto.sync();
+            return null;
+        });
+    }
+
+    /**
+     * Shutdown the default executor. Running operations are completed.
+     * An executor from the builder and the kinto object are not closed.
+     */
+    public void close() {
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+        if (datastoreExecutor != null) {
+            datastoreExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Building the asynchronous access to a kinto object.
+     */
+    public static class Builder {
+
+        private final Kinto kinto;
+        private Executor executor;
+        private int maxConcurrentDatastoreCalls;
+
+        public Builder(@NotNull Kinto kinto) {
+            this.kinto = kinto;
+            executor = null; // virtual threads if available
+            maxConcurrentDatastoreCalls = Runtime.getRuntime().availableProcessors();
+        }
+
+        /**
+         * Run the operations with the given executor. The executor is not closed with this object.
+         *
+         * @param executor for the operations
+         * @return The builder.
+         */
+        public Builder executor(@NotNull Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Limit the count of operations accessing the local datastore at the same time.
+         * The default executor runs the datastore calls on this count of platform threads.
+         *
+         * @param maxCalls count of concurrent calls, at least 1
+         * @return The builder.
+         */
+        public Builder maxConcurrentDatastoreCalls(int maxCalls) {
+            maxConcurrentDatastoreCalls = Math.max(1, maxCalls);
+            return this;
+        }
+
+        public KintoAsync build() {
+            return new KintoAsync(this);
+        }
+    }
+
+    // a datastore operation
+    private interface KintoCall<T> {
+        T call() throws KintoException;
+    }
+
+    // run the operation with the executor, only a limited count of operations access the datastore
+    private <T> CompletableFuture<T> submit(@NotNull KintoCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    datastorePermits.acquire();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    future.completeExceptionally(new KintoException(exception));
+                    return;
+                }
+                try {
+                    future.complete(datastoreExecutor == null ? call.call() : callOnDatastoreThread(call));
+                } catch (Throwable exception) {
+                    future.completeExceptionally(exception);
+                } finally {
+                    datastorePermits.release();
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            future.completeExceptionally(new KintoException(exception));
+        }
+        return future;
+    }
+
+    // run the datastore call on a platform thread, the virtual thread waits without blocking its carrier
+    private <T> T callOnDatastoreThread(@NotNull KintoCall<T> call) throws Throwable {
+        Future<T> result;
+        try {
+            result = datastoreExecutor.submit(call::call);
+        } catch (RejectedExecutionException exception) {
+            throw new KintoException(exception);
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            result.cancel(false);
+            throw new KintoException(exception);
+        } catch (ExecutionException exception) {
+            throw exception.getCause();
+        }
+    }
+
+    // virtual threads on Java 21 and later, null on older platforms
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            KintoLogger.getInstance(null).log(KintoLogger.DEBUG, TAG,
+                    "Virtual threads are not available, using a thread pool.", null);
+            return null;
+        }
+    }
+
+    // the platform threads for the datastore calls, the app can exit without close
+    private static ExecutorService createDatastoreExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "kinto-datastore-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
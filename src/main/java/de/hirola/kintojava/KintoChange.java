@@ -0,0 +1,153 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Objects;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * An entry of the change journal of the local datastore. The journal contains one entry per object,
+ * several changes of an object are coalesced to one entry with a new sequence number.
+ * The changes of the relations (1:m) of an object are changes of the object.
+ * <p>
+ * The sequence number increases with every change, use the sequence number of the last read entry
+ * as cursor for the next read.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ * @see Kinto#changesSince(long)
+ */
+public final class KintoChange {
+
+    /**
+     * The kind of change of an object.
+     */
+    public enum Operation {
+        /**
+         * The object was added. An added object is still added after updates.
+         */
+        INSERT,
+        /**
+         * The object or the relations of the object were changed.
+         */
+        UPDATE,
+        /**
+         * The object was removed (tombstone).
+         */
+        DELETE
+    }
+
+    private final long seq;
+    private final String collection;
+    private final String uuid;
+    private final Operation operation;
+    private final boolean remote;
+    private final String kintoID;
+    private final long lastModified;
+
+    /**
+     * Create an entry of the journal.
+     *
+     * @param seq the sequence number of the entry
+     * @param collection name of the collection
+     * @param uuid of the object
+     * @param operation the kind of change
+     * @param remote flag, if the change was pulled from remote kinto
+     * @param kintoID the kinto record id of the object, null if the object was never synced
+     * @param lastModified the timestamp of the object in remote kinto, 0 if the object was never synced
+     */
+    public KintoChange(long seq, @NotNull String collection, @NotNull String uuid, @NotNull Operation operation,
+                       boolean remote, @Nullable String kintoID, long lastModified) {
+        this.seq = seq;
+        this.collection = collection;
+        this.uuid = uuid;
+        this.operation = operation;
+        this.remote = remote;
+        this.kintoID = kintoID;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Get the sequence number of the entry, the cursor for the next read of the journal.
+     *
+     * @return The sequence number, greater than the numbers of all older entries.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Get the name of the collection (type) of the changed object.
+     *
+     * @return The name of the collection.
+     */
+    public @NotNull String getCollection() {
+        return collection;
+    }
+
+    /**
+     * Get the uuid of the changed object.
+     *
+     * @return The uuid of the object.
+     */
+    public @NotNull String getUUID() {
+        return uuid;
+    }
+
+    /**
+     * Get the kind of change.
+     *
+     * @return The operation of the last change of the object.
+     */
+    public @NotNull Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Get the flag, if the change was pulled from a remote kinto. Only local changes are pushed.
+     *
+     * @return A flag to determine, if the change was made by the sync.
+     */
+    public boolean isRemote() {
+        return remote;
+    }
+
+    /**
+     * Get the kinto record id of the object at the time of the change.
+     *
+     * @return The kinto record id or null, if the object was never synced.
+     */
+    public @Nullable String getKintoID() {
+        return kintoID;
+    }
+
+    /**
+     * Get the timestamp of the object in remote kinto at the time of the change.
+     *
+     * @return The last modification in remote kinto, 0 if the object was never synced.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return seq + ":" + operation + " " + collection + "/" + uuid + (remote ? " (remote)" : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        KintoChange that = (KintoChange) o;
+        return seq == that.seq && collection.equals(that.collection) && uuid.equals(that.uuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(seq, collection, uuid);
+    }
+}
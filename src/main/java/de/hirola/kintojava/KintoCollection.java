@@ -6,31 +6,64 @@ import de.hirola.kintojava.model.Persisted;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.*;
-import java.sql.*;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
  * This software us licensed under the AGPL-3.0 or later.
  *
  * A collection contains a list of objects from same type.
- * If a collections exists, you must not change the fields of the objects (schema)!
+ * The objects are saved as records with the {@link StorageEngine} of kinto.
+ * The storage of the collection is checked and created in the local datastore on first use.
+ * If the attributes of the type were changed, the storage is migrated: new attributes are added
+ * as columns, the values of removed attributes are deleted.
+ * The collection of a type can be get with {@link Kinto#collection(Class)} and kept for frequent use.
+ * <p>
+ * A collection can be used from many threads. Every collection has its own read-write lock,
+ * the lock protects the collection table and the relation tables of the collection.
+ * Writes of a collection are exclusive, reads of a collection run concurrently.
+ * Operations on several collections acquire the locks in the order of the collection creation,
+ * see {@link #lockCollections(Collection, boolean)}.
  *
  * @author Michael Schmidt (Hirola)
  * @since 1.1.1
  *
  */
-public class KintoCollection {
+public class KintoCollection<T extends KintoObject> {
 
     private static final String TAG = KintoCollection.class.getSimpleName();
-    
+    // create objects in parallel only for larger result sets
+    private static final int PARALLEL_HYDRATION_THRESHOLD = 256;
+    // count of uuid in one query while syncing
+    private static final int SYNC_QUERY_CHUNK_SIZE = 500;
+    // the order of the collections for acquiring several locks
+    private static final AtomicInteger COLLECTION_COUNTER = new AtomicInteger();
+
     private final KintoLogger kintoLogger; // logging
-    private final KintoDatabaseAdapter dataBase; // layer for local datastore
-    private final Class<? extends KintoObject> type; // type (table) of kinto object
+    private final StorageEngine storageEngine; // layer for local datastore
+    private final ForkJoinPool hydrationPool; // create objects in parallel, can be null
+    private final Class<T> type; // type (table) of kinto object
     private final HashMap<String, DataSet> storableAttributes; // attributes (columns)
     private final HashMap<Field, String> relationTables; // 1:m relations for embedded KintoObject in relation table
-    private final boolean isSynced; // exists the collection in the remote kinto
+    private final HashMap<String, StorageEngine.Relation> relations; // the relations by name of the relation table
+    private final KintoRecordCodec recordCodec; // json of the records in remote kinto
+    private volatile boolean isSynced; // exists the collection in the remote kinto
+    private final int ordinal; // the position in the lock order
+    private final ReentrantReadWriteLock collectionLock; // protects the tables of the collection
+    private final ReentrantLock initializationLock; // the tables are created only once
+    private volatile boolean isInitialized; // the tables exist in local datastore
 
     /**
      * Create a collection for objects of class type.
@@ -39,19 +72,28 @@ public class KintoCollection {
      * @param kinto the kinto object for datastore operations
      * @throws KintoException if collection couldn't initialize.
      */
-    public KintoCollection(Class<? extends KintoObject> type, Kinto kinto) throws KintoException {
-        dataBase = kinto.getLocalDatastoreConnection();
+    public KintoCollection(Class<T> type, Kinto kinto) throws KintoException {
+        storageEngine = kinto.getStorageEngine();
+        hydrationPool = kinto.getHydrationPool();
         this.type = type;
-        // TODO: Synchronisation
+        // set with the first sync
         isSynced = false;
+        ordinal = COLLECTION_COUNTER.getAndIncrement();
+        collectionLock = new ReentrantReadWriteLock();
+        // get logging, used while building the attributes
+        kintoLogger = KintoLogger.getInstance(null);
         // build the list of persistent attributes
         relationTables = new HashMap<>();
+        relations = new HashMap<>();
         storableAttributes = buildAttributesMap(type);
-        // get logging
-        kintoLogger = KintoLogger.getInstance(null);
-        // check if table for collection exists
-        // local and remote
-        createLocalDataStoreForCollection();
+        Map<String, StorageEngine.Relation> listRelations = new HashMap<>();
+        for (Map.Entry<Field, String> relationTable : relationTables.entrySet()) {
+            listRelations.put(relationTable.getKey().getName(), relations.get(relationTable.getValue()));
+        }
+        recordCodec = new KintoRecordCodec(getName(), storableAttributes, listRelations);
+        // the storage for the collection is checked and created on first use
+        initializationLock = new ReentrantLock();
+        isInitialized = false;
     }
 
     /**
@@ -59,7 +101,7 @@ public class KintoCollection {
      *
      * @return The type of objects in the collection.
      */
-    public Class<? extends KintoObject> getType() {
+    public Class<T> getType() {
         return type;
     }
 
@@ -91,6 +133,48 @@ public class KintoCollection {
         return isSynced;
     }
 
+    // the collection was pulled from remote kinto
+    void setSynced() {
+        isSynced = true;
+    }
+
+    /**
+     * Acquire the locks of several collections. The locks are acquired in the order of the
+     * collection creation, so operations on several collections can not block each other (deadlock).
+     * The returned locks must be released with {@link #unlockCollections(List)}.
+     *
+     * @param collections to lock
+     * @param exclusive true for write locks, false for read locks
+     * @return The acquired locks in the order of acquisition.
+     */
+    static List<Lock> lockCollections(@NotNull Collection<? extends KintoCollection<?>> collections, boolean exclusive) {
+        List<KintoCollection<?>> orderedCollections = new ArrayList<>(collections);
+        orderedCollections.sort(Comparator.comparingInt(collection -> collection.ordinal));
+        List<Lock> locks = new ArrayList<>(orderedCollections.size());
+        try {
+            for (KintoCollection<?> collection : orderedCollections) {
+                Lock lock = exclusive ? collection.collectionLock.writeLock() : collection.collectionLock.readLock();
+                lock.lock();
+                locks.add(lock);
+            }
+        } catch (RuntimeException exception) {
+            unlockCollections(locks);
+            throw exception;
+        }
+        return locks;
+    }
+
+    /**
+     * Release the locks of several collections in the reverse order of acquisition.
+     *
+     * @param locks acquired with {@link #lockCollections(Collection, boolean)}
+     */
+    static void unlockCollections(@NotNull List<Lock> locks) {
+        for (int index = locks.size() - 1; index >= 0; index--) {
+            locks.get(index).unlock();
+        }
+    }
+
     /**
      * Add a none existing object to the local datastore.
      *
@@ -98,30 +182,221 @@ public class KintoCollection {
      * @throws KintoException if the object already exist or an error occurred while added to local datastore
      */
     public void addRecord(@NotNull KintoObject kintoObject) throws KintoException {
-        // object already saved
-        if (kintoObject.isPersistent()) {
-            // update
-            updateRecord(kintoObject);
-            return;
+        ensureInitialized();
+        collectionLock.writeLock().lock();
+        try {
+            // object already saved
+            if (kintoObject.isPersistent()) {
+                // update
+                updateRecord(kintoObject);
+                return;
+            }
+            // object from collection type?
+            if (isValidObjectType(kintoObject)) {
+                // the record of the object, attributes = columns
+                LinkedHashMap<String, String> values = new LinkedHashMap<>();
+                //  primary key from uuid
+                values.put("uuid", kintoObject.getUUID());
+                // kinto record id later from sync
+                values.put("kintoid", "");
+                // usn = 0 on insert
+                values.put("usn", "0");
+                // the saved values, to determine changes on update
+                HashMap<String, String> insertedValues = new HashMap<>();
+                for (String attributeName : storableAttributes.keySet()) {
+                    DataSet dataSet = storableAttributes.get(attributeName);
+                    if (dataSet == null) {
+                        String errorMessage = "Empty dataset for attribute "
+                                + attributeName
+                                + ".";
+                        throw new KintoException(errorMessage);
+                    }
+                    String sqlDataTypeString = dataSet.getSqlDataTypeString();
+                    // 1:m relations in extra tables
+                    if (!sqlDataTypeString.equalsIgnoreCase(DataSet.RELATION_DATA_MAPPING_STRING)) {
+                        String value = dataSet.getValueAsString(kintoObject);
+                        values.put(attributeName, value);
+                        insertedValues.put(attributeName, value);
+                    }
+                }
+                // all embedded kinto objects (all list attributes) for the kinto object
+                ArrayList<KintoObject> useInRelationObjects = new ArrayList<>();
+                // the entries of the embedded kinto objects in the relations (1:m relations)
+                LinkedHashMap<StorageEngine.Relation, List<String>> relationEntries = new LinkedHashMap<>();
+                String attributeName = "";
+                try {
+                    for (String key : storableAttributes.keySet()) {
+                        attributeName = key;
+                        DataSet dataSet = storableAttributes.get(attributeName);
+                        // get attributes using reflection
+                        Class<? extends KintoObject> clazz = kintoObject.getClass();
+                        // 1. 1:1 relations
+                        if (dataSet.isKintoObject()) {
+                            Field embeddedObjectAttribute = clazz.getDeclaredField(attributeName);
+                            embeddedObjectAttribute.setAccessible(true);
+                            KintoObject embeddedObject = (KintoObject) embeddedObjectAttribute.get(kintoObject);
+                            // embedded object can be null
+                            if (embeddedObject != null) {
+                                // all objects in local datastore?
+                                if (!embeddedObject.isPersistent()) {
+                                    String errorMessage = "The embedded object from type "
+                                            + embeddedObject.getClass().getSimpleName()
+                                            + " must exist in datastore before saving this object.";
+                                    throw new KintoException(errorMessage);
+                                }
+                            }
+                        }
+                        // 1: m relations
+                        if (dataSet.isList()) {
+                            Class<?> listElementClazz = dataSet.getListType();
+                            // check if we can cast the class
+                            if (!KintoObject.class.isAssignableFrom(listElementClazz)) {
+                                throw new KintoException("List element is not from type KintoObject.");
+                            }
+                            @SuppressWarnings("unchecked")
+                            Class<? extends KintoObject> listObjectType = (Class<? extends KintoObject>) listElementClazz;
+                            if (type != null){
+                                // add for all embedded kinto objects an entry in relation table
+                                String relationTable = relationTables.get(dataSet.getAttribute());
+                                if (relationTable == null) {
+                                    String logMessage = "The relation table of "
+                                            + listObjectType.getSimpleName()
+                                            + " was not found in configuration.";
+                                    throw new KintoException(logMessage);
+                                }
+                                // check if relation table exist
+                                Field listAttribute = clazz.getDeclaredField(attributeName);
+                                listAttribute.setAccessible(true);
+                                Object listAttributeObject = listAttribute.get(kintoObject);
+                                if (listAttributeObject instanceof List) {
+                                    List<?> listObjects = (List<?>) listAttributeObject;
+                                    for (Object listObject : listObjects) {
+                                        if (!KintoObject.class.isAssignableFrom(listObject.getClass())) {
+                                            String logMessage = "The object must extends KintoObject. This object extends "
+                                                    + listObject.getClass().getName();
+                                            throw new KintoException(logMessage);
+                                        }
+                                        KintoObject listKintoObject = (KintoObject) listObject;
+                                        // all objects in local datastore?
+                                        if (!listKintoObject.isPersistent()) {
+                                            String errorMessage = "The embedded object from type "
+                                                    + listKintoObject.getClass().getSimpleName()
+                                                    + " must exist in datastore before saving this object.";
+                                            throw new KintoException(errorMessage);
+                                        }
+                                        // add to the entries of the relation
+                                        relationEntries.computeIfAbsent(relations.get(relationTable),
+                                                relation -> new ArrayList<>()).add(listKintoObject.getUUID());
+                                        // add the object to the "global" list
+                                        useInRelationObjects.add(listKintoObject);
+                                    }
+                                    insertedValues.put(attributeName, buildUUIDString(listObjects));
+                                }
+                            }
+                        }
+                    }
+                } catch (NoSuchFieldException exception) {
+                    String errorMessage = "Can't get the attribute "
+                            + attributeName
+                            + " using reflection: "
+                            + exception.getMessage();
+                    kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                    throw new KintoException(errorMessage);
+                } catch (IllegalAccessException exception) {
+                    String errorMessage = "Getting value for attribute "
+                            + attributeName
+                            + " using reflection failed: "
+                            + exception.getMessage();
+                    kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                    throw new KintoException(errorMessage);
+                }
+                try {
+                    // use transaction for all statements
+                    storageEngine.beginTransaction();
+                    // create the record of the collection
+                    storageEngine.insert(getName(), values);
+                    // create relation entries
+                    for (Map.Entry<StorageEngine.Relation, List<String>> relationEntry : relationEntries.entrySet()) {
+                        storageEngine.addRelations(relationEntry.getKey(), kintoObject.getUUID(), relationEntry.getValue());
+                    }
+                    // set the flag for used in relation
+                    for(KintoObject useInRelationObject : useInRelationObjects) {
+                        try {
+                            Field attributeField = KintoObject.class.getDeclaredField("isUseInRelation");
+                            attributeField.setAccessible(true);
+                            attributeField.set(useInRelationObject, true);
+                        } catch (NoSuchFieldException exception) {
+                            // rollback all statements
+                            storageEngine.rollback();
+                            String errorMessage = "Can't determine the attribute 'isUseInRelation' for object "
+                                    + useInRelationObject.toString() + ". Rollback all transactions.";
+                            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                            throw new KintoException(errorMessage + ": " + exception.getMessage());
+                        } catch (IllegalAccessException exception) {
+                            // rollback all statements
+                            storageEngine.rollback();
+                            String errorMessage = "Can't set the attribute 'isUseInRelation' for object "
+                                    + useInRelationObject.toString()
+                                    + " using reflection.";
+                            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                            throw new KintoException(errorMessage + ": " + exception.getMessage());
+                        }
+                    }
+                    // commit all statements
+                    storageEngine.commit();
+                    // set the flag for local persistence
+                    Field isPersistentAttribute = KintoObject.class.getDeclaredField("isPersistent");
+                    isPersistentAttribute.setAccessible(true);
+                    isPersistentAttribute.set(kintoObject, true);
+                    getPersistedValues(kintoObject).putAll(insertedValues);
+                } catch (SQLException exception) {
+                    try {
+                        // rollback all statements
+                        storageEngine.rollback();
+                    } catch (SQLException e) {
+                        String logMessage = "Save and rollback failed, inconsistent data are possible.";
+                        kintoLogger.log(KintoLogger.ERROR, TAG, logMessage, e);
+                    }
+                    String errorMessage = "Saving the object failed.";
+                    kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                    throw new KintoException(errorMessage + ": " + exception.getMessage());
+                } catch (NoSuchFieldException | IllegalAccessException exception) {
+                    String logMessage = "Error occurred while set the flag 'isPersistent'";
+                    kintoLogger.log(KintoLogger.ERROR, TAG, logMessage, exception);
+                }
+            }
+        } finally {
+            collectionLock.writeLock().unlock();
         }
-        // object from collection type?
-        if (isValidObjectType(kintoObject)) {
-            // building sql insert command for the kinto object of this collection
-            // INSERT INTO table (column1,column2 ,..) VALUES( value1,	value2 ,...);
-            StringBuilder createRecordSQL = new StringBuilder("INSERT INTO ");
-            // the name of the collection (table)
-            createRecordSQL.append(getName());
-            // attributes = columns
-            // build a map with attribute and value
-            createRecordSQL.append(" (uuid, kintoid, usn");
-            // all attributes -> columns
-            StringBuilder valuesString = new StringBuilder(") VALUES(");
-            //  primary key from uuid
-            valuesString.append("'");
-            valuesString.append(kintoObject.getUUID());
-            // kinto record id later from sync
-            // usn = 0 on insert
-            valuesString.append("','', 0");
+    }
+
+    /**
+     * Update an existing object in local datastore.
+     * Only the attributes changed since the object was saved or loaded are written.
+     * If no attribute has changed, the local datastore is not accessed.
+     * The object is only updated, if it was not changed by another write since it was loaded or saved.
+     *
+     * @param kintoObject to updated
+     * @throws KintoException if object not exist or an error occurred while updating the object
+     * @throws KintoConflictException if the object was changed or removed in local datastore since it was loaded
+     */
+    public void updateRecord(@NotNull KintoObject kintoObject) throws KintoException {
+        ensureInitialized();
+        collectionLock.writeLock().lock();
+        try {
+            // object does not exist
+            if (!kintoObject.isPersistent()) {
+                throw  new KintoException("Object must be exist for updating.");
+            }
+            if (!isValidObjectType(kintoObject)) {
+                return;
+            }
+            // the values from the last save or load
+            Map<String, String> persistedValues = getPersistedValues(kintoObject);
+            // simple attributes and 1:1 relations with changed values
+            LinkedHashMap<String, String> changedValues = new LinkedHashMap<>();
+            // 1:m relations with changed lists
+            LinkedHashMap<DataSet, List<KintoObject>> changedLists = new LinkedHashMap<>();
             for (String attributeName : storableAttributes.keySet()) {
                 DataSet dataSet = storableAttributes.get(attributeName);
                 if (dataSet == null) {
@@ -130,575 +405,727 @@ public class KintoCollection {
                             + ".";
                     throw new KintoException(errorMessage);
                 }
-                String sqlDataTypeString = dataSet.getSqlDataTypeString();
-                // 1:m relations in extra tables
-                if (!sqlDataTypeString.equalsIgnoreCase(DataSet.RELATION_DATA_MAPPING_STRING)) {
-                    createRecordSQL.append(", ");
-                    valuesString.append(", ");
-                    createRecordSQL.append(attributeName);
-                    valuesString.append("'");
-                    valuesString.append(dataSet.getValueAsString(kintoObject));
-                    valuesString.append("'");
+                if (dataSet.isList()) {
+                    List<KintoObject> listObjects = getListObjects(kintoObject, dataSet);
+                    String value = buildUUIDString(listObjects);
+                    if (isChanged(persistedValues, attributeName, value)) {
+                        changedLists.put(dataSet, listObjects);
+                    }
+                } else {
+                    String value = dataSet.getValueAsString(kintoObject);
+                    if (isChanged(persistedValues, attributeName, value)) {
+                        changedValues.put(attributeName, value);
+                    }
                 }
             }
-            createRecordSQL.append(valuesString);
-            createRecordSQL.append(");");
-            // all embedded kinto objects (all list attributes) for the kinto object
-            ArrayList<KintoObject> useInRelationObjects = new ArrayList<>();
-            // building sql insert command for the embedded kinto object of this collection (1:m relations)
-            // INSERT INTO table (column1,column2 ,..) VALUES( value1,	value2 ,...);
-            ArrayList<String> createRelationRecordSQLCommands = new ArrayList<>();
-            String attributeName = "";
+            if (changedValues.isEmpty() && changedLists.isEmpty()) {
+                // nothing to do
+                return;
+            }
             try {
-                for (String key : storableAttributes.keySet()) {
-                    attributeName = key;
-                    DataSet dataSet = storableAttributes.get(attributeName);
-                    // get attributes using reflection
-                    Class<? extends KintoObject> clazz = kintoObject.getClass();
-                    // 1. 1:1 relations
-                    if (dataSet.isKintoObject()) {
-                        Field embeddedObjectAttribute = clazz.getDeclaredField(attributeName);
-                        embeddedObjectAttribute.setAccessible(true);
-                        KintoObject embeddedObject = (KintoObject) embeddedObjectAttribute.get(kintoObject);
-                        // embedded object can be null
-                        if (embeddedObject != null) {
-                            // all objects in local datastore?
-                            if (!embeddedObject.isPersistent()) {
-                                String errorMessage = "The embedded object from type "
-                                        + embeddedObject.getClass().getSimpleName()
-                                        + " must exist in datastore before saving this object.";
-                                throw new KintoException(errorMessage);
-                            }
-                        }
+                // use transactions
+                storageEngine.beginTransaction();
+                try {
+                    // compare and set the update sequence number, fails if the object was changed concurrently
+                    // changes of the lists are also a change of the object
+                    if (storageEngine.update(getName(), kintoObject.getUUID(), kintoObject.getUSN(), changedValues) == 0) {
+                        throw buildConflictException(kintoObject);
                     }
-                    // 1: m relations
-                    if (dataSet.isList()) {
-                        Class<?> listElementClazz = dataSet.getListType();
-                        // check if we can cast the class
-                        if (!KintoObject.class.isAssignableFrom(listElementClazz)) {
-                            throw new KintoException("List element is not from type KintoObject.");
-                        }
-                        @SuppressWarnings("unchecked")
-                        Class<? extends KintoObject> listObjectType = (Class<? extends KintoObject>) listElementClazz;
-                        if (type != null){
-                            // add for all embedded kinto objects an entry in relation table
-                            String relationTable = relationTables.get(dataSet.getAttribute());
-                            if (relationTable == null) {
-                                String logMessage = "The relation table of "
-                                        + listObjectType.getSimpleName()
-                                        + " was not found in configuration.";
-                                throw new KintoException(logMessage);
-                            }
-                            // check if relation table exist
-                            Field listAttribute = clazz.getDeclaredField(attributeName);
-                            listAttribute.setAccessible(true);
-                            Object listAttributeObject = listAttribute.get(kintoObject);
-                            if (listAttributeObject instanceof List) {
-                                List<?> listObjects = (List<?>) listAttributeObject;
-                                for (Object listObject : listObjects) {
-                                    if (!KintoObject.class.isAssignableFrom(listObject.getClass())) {
-                                        String logMessage = "The object must extends KintoObject. This object extends "
-                                                + listObject.getClass().getName();
-                                        throw new KintoException(logMessage);
-                                    }
-                                    KintoObject listKintoObject = (KintoObject) listObject;
-                                    // all objects in local datastore?
-                                    if (!listKintoObject.isPersistent()) {
-                                        String errorMessage = "The embedded object from type "
-                                                + listKintoObject.getClass().getSimpleName()
-                                                + " must exist in datastore before saving this object.";
-                                        throw new KintoException(errorMessage);
-                                    }
-                                    // build sql insert command(s)
-                                    // the name of the relation table
-                                    String sql = "INSERT INTO " + relationTable +
-                                            " (" +
-                                            // first the object type uuid
-                                            getName().toLowerCase(Locale.ROOT) +
-                                            "uuid, " +
-                                            // then the attribute type name
-                                            listObjectType.getSimpleName().toLowerCase(Locale.ROOT) +
-                                            "uuid) VALUES('" +
-                                            kintoObject.getUUID() +
-                                            "', '" +
-                                            listKintoObject.getUUID() +
-                                            "');";
-                                    // add to the sql command list
-                                    createRelationRecordSQLCommands.add(sql);
-                                    // add the object to the "global" list
-                                    useInRelationObjects.add(listKintoObject);
-                                }
-                            }
-                        }
+                    // 1:m relations, the objects are still exists in collections
+                    for (DataSet dataSet : changedLists.keySet()) {
+                        updateRelationRecords(kintoObject, dataSet, changedLists.get(dataSet));
                     }
+                    // commit all updates to local datastore
+                    // inclusive all statements from list attributes
+                    storageEngine.commit();
+                } catch (SQLException | KintoException exception) {
+                    // rollback all changes
+                    storageEngine.rollback();
+                    throw exception;
                 }
-            } catch (NoSuchFieldException exception) {
-                String errorMessage = "Can't get the attribute "
-                        + attributeName
-                        + " using reflection: "
+            } catch (SQLException exception) {
+                String errorMessage = "Error occurred while updating the local datastore: "
                         + exception.getMessage();
                 kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
                 throw new KintoException(errorMessage);
-            } catch (IllegalAccessException exception) {
-                String errorMessage = "Getting value for attribute "
-                        + attributeName
-                        + " using reflection failed: "
-                        + exception.getMessage();
-                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            }
+            setUSN(kintoObject, kintoObject.getUSN() + 1);
+            // the saved values for the next update
+            persistedValues.putAll(changedValues);
+            for (DataSet dataSet : changedLists.keySet()) {
+                persistedValues.put(dataSet.getAttribute().getName(), buildUUIDString(changedLists.get(dataSet)));
+            }
+        } finally {
+            collectionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add an object to a list attribute (1:m relation) of an existing object.
+     * Only the entry in the relation table is written, the object itself is not updated.
+     *
+     * @param kintoObject the object with the list attribute
+     * @param attributeName name of the list attribute
+     * @param listObject the object to add to the list, must exist in local datastore
+     * @throws KintoException if an object not exist, the attribute is not a list of objects
+     *                        or an error occurred while adding the entry
+     * @throws KintoConflictException if the object was changed in local datastore since it was loaded,
+     *                                the entry is not added
+     */
+    public void addRelationRecord(@NotNull KintoObject kintoObject,
+                                  @NotNull String attributeName,
+                                  @NotNull KintoObject listObject) throws KintoException {
+        ensureInitialized();
+        collectionLock.writeLock().lock();
+        try {
+            DataSet dataSet = getRelationDataSet(kintoObject, attributeName, listObject);
+            if (!listObject.isPersistent()) {
+                String errorMessage = "The embedded object from type "
+                        + listObject.getClass().getSimpleName()
+                        + " must exist in datastore before adding to the list.";
                 throw new KintoException(errorMessage);
             }
+            StorageEngine.Relation relation = relations.get(relationTables.get(dataSet.getAttribute()));
+            boolean isAdded;
             try {
-                // execute the sql commands
-                // use transaction for all statements
-                dataBase.beginTransaction();
-                // create entry in collection table
-                dataBase.executeSQL(createRecordSQL.toString());
-                // create relation table entries
-                if (createRelationRecordSQLCommands.size() > 0) {
-                    for (String createRelationRecordSQLCommand : createRelationRecordSQLCommands) {
-                        dataBase.executeSQL(createRelationRecordSQLCommand);
+                storageEngine.beginTransaction();
+                try {
+                    // an existing entry is not added again, the key of the relation is checked by the datastore
+                    isAdded = storageEngine.addRelation(relation, kintoObject.getUUID(), listObject.getUUID()) > 0;
+                    if (isAdded) {
+                        incrementUSN(kintoObject);
                     }
+                    storageEngine.commit();
+                } catch (SQLException | KintoException exception) {
+                    storageEngine.rollback();
+                    throw exception;
                 }
-                // set the flag for used in relation
-                for(KintoObject useInRelationObject : useInRelationObjects) {
-                    try {
-                        Field attributeField = KintoObject.class.getDeclaredField("isUseInRelation");
-                        attributeField.setAccessible(true);
-                        attributeField.set(useInRelationObject, true);
-                    } catch (NoSuchFieldException exception) {
-                        // rollback all statements
-                        dataBase.rollback();
-                        String errorMessage = "Can't determine the attribute 'isUseInRelation' for object "
-                                + useInRelationObject.toString() + ". Rollback all transactions.";
-                        kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
-                        throw new KintoException(errorMessage + ": " + exception.getMessage());
-                    } catch (IllegalAccessException exception) {
-                        // rollback all statements
-                        dataBase.rollback();
-                        String errorMessage = "Can't set the attribute 'isUseInRelation' for object "
-                                + useInRelationObject.toString()
-                                + " using reflection.";
-                        kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
-                        throw new KintoException(errorMessage + ": " + exception.getMessage());
+            } catch (SQLException exception) {
+                String errorMessage = "Error occurred while adding the relation entry to the local datastore: "
+                        + exception.getMessage();
+                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                throw new KintoException(errorMessage);
+            }
+            setUseInRelation(listObject);
+            if (isAdded) {
+                // update the list and the saved values of the object, the list is not searched
+                addToListAttribute(kintoObject, dataSet, listObject);
+                Map<String, String> persistedValues = getPersistedValues(kintoObject);
+                String persistedUUIDString = persistedValues.get(attributeName);
+                if (persistedUUIDString != null) {
+                    persistedValues.put(attributeName, persistedUUIDString.isEmpty()
+                            ? listObject.getUUID()
+                            : persistedUUIDString + "," + listObject.getUUID());
+                }
+            }
+        } finally {
+            collectionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an object from a list attribute (1:m relation) of an existing object.
+     * Only the entry in the relation table is removed, the object itself is not updated.
+     *
+     * @param kintoObject the object with the list attribute
+     * @param attributeName name of the list attribute
+     * @param listObject the object to remove from the list
+     * @throws KintoException if the object not exist, the attribute is not a list of objects
+     *                        or an error occurred while removing the entry
+     * @throws KintoConflictException if the object was changed in local datastore since it was loaded,
+     *                                the entry is not removed
+     */
+    public void removeRelationRecord(@NotNull KintoObject kintoObject,
+                                     @NotNull String attributeName,
+                                     @NotNull KintoObject listObject) throws KintoException {
+        ensureInitialized();
+        collectionLock.writeLock().lock();
+        try {
+            DataSet dataSet = getRelationDataSet(kintoObject, attributeName, listObject);
+            StorageEngine.Relation relation = relations.get(relationTables.get(dataSet.getAttribute()));
+            boolean isRemoved;
+            try {
+                storageEngine.beginTransaction();
+                try {
+                    isRemoved = storageEngine.removeRelation(relation, kintoObject.getUUID(), listObject.getUUID()) > 0;
+                    if (isRemoved) {
+                        incrementUSN(kintoObject);
                     }
+                    storageEngine.commit();
+                } catch (SQLException | KintoException exception) {
+                    storageEngine.rollback();
+                    throw exception;
                 }
-                // commit all statements
-                dataBase.commit();
-                // set the flag for local persistence
-                Field isPersistentAttribute = KintoObject.class.getDeclaredField("isPersistent");
-                isPersistentAttribute.setAccessible(true);
-                isPersistentAttribute.set(kintoObject, true);
             } catch (SQLException exception) {
+                String errorMessage = "Error occurred while removing the relation entry from the local datastore: "
+                        + exception.getMessage();
+                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                throw new KintoException(errorMessage);
+            }
+            if (isRemoved) {
+                // update the list and the saved values of the object
+                removeFromListAttribute(kintoObject, dataSet, listObject.getUUID());
+                Map<String, String> persistedValues = getPersistedValues(kintoObject);
+                String persistedUUIDString = persistedValues.get(attributeName);
+                if (persistedUUIDString != null) {
+                    persistedValues.put(attributeName, removeFromUUIDString(persistedUUIDString, listObject.getUUID()));
+                }
+            }
+        } finally {
+            collectionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an existing object from local datastore. If the object exist in remote kinto,
+     * the object will not be deleted there before sync.
+     * The object is only removed, if it was not changed since it was loaded or saved.
+     *
+     * @param kintoObject to be removed
+     * @throws KintoException if the object not exist or an error occurred while removing from local datastore
+     * @throws KintoConflictException if the object was changed or removed in local datastore since it was loaded
+     */
+    public void removeRecord(@NotNull KintoObject kintoObject) throws KintoException {
+        ensureInitialized();
+        collectionLock.writeLock().lock();
+        try {
+            // object does not exist
+            if (!kintoObject.isPersistent()) {
+                throw  new KintoException("Object must be exist for removing.");
+            }
+            if (!isValidObjectType(kintoObject)) {
+                return;
+            }
+            try {
+                // use transactions
+                storageEngine.beginTransaction();
                 try {
-                    // rollback all statements
-                    dataBase.rollback();
-                } catch (SQLException e) {
-                    String logMessage = "Save and rollback failed, inconsistent data are possible.";
-                    kintoLogger.log(KintoLogger.ERROR, TAG, logMessage, e);
+                    // compare the update sequence number, fails if the object was changed concurrently
+                    if (storageEngine.delete(getName(), kintoObject.getUUID(), kintoObject.getUSN()) == 0) {
+                        throw buildConflictException(kintoObject);
+                    }
+                    // remove all entries for kinto object in relations
+                    for (StorageEngine.Relation relation : relations.values()) {
+                        storageEngine.removeAllRelations(relation, kintoObject.getUUID());
+                    }
+                    storageEngine.commit();
+                } catch (SQLException | KintoException exception) {
+                    // rollback all changes
+                    storageEngine.rollback();
+                    throw exception;
                 }
-                String errorMessage = "Saving the object failed.";
+            } catch (SQLException exception) {
+                String errorMessage = "Error occurred while removing from local datastore: "
+                        + exception.getMessage();
                 kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
-                throw new KintoException(errorMessage + ": " + exception.getMessage());
+                throw new KintoException(errorMessage);
+            }
+            // the object is not longer saved in local datastore
+            try {
+                Field isPersistentAttribute = KintoObject.class.getDeclaredField("isPersistent");
+                isPersistentAttribute.setAccessible(true);
+                isPersistentAttribute.set(kintoObject, false);
+                getPersistedValues(kintoObject).clear();
             } catch (NoSuchFieldException | IllegalAccessException exception) {
                 String logMessage = "Error occurred while set the flag 'isPersistent'";
                 kintoLogger.log(KintoLogger.ERROR, TAG, logMessage, exception);
-            } finally {
-                createRelationRecordSQLCommands.clear();
             }
+        } finally {
+            collectionLock.writeLock().unlock();
         }
     }
 
     /**
-     * Update an existing object in local datastore.
+     * Get all objects from this collection saved in local datastore.
      *
-     * @param kintoObject to updated
-     * @throws KintoException if object not exist or an error occurred while updating the object
+     * @return List of all objects from this collection. The list can be empty.
+     * @throws KintoException if an error occurred while getting the objects
      */
-    public void updateRecord(@NotNull KintoObject kintoObject) throws KintoException {
-        // object does not exist
-        if (!kintoObject.isPersistent()) {
-            throw  new KintoException("Object must be exist for updating.");
+    public List<T> findAll() throws KintoException {
+        ensureInitialized();
+        // read the raw rows on this thread
+        List<KintoRow> rows = new ArrayList<>();
+        // the rows and the relation tables are read in a consistent state
+        collectionLock.readLock().lock();
+        try {
+            rows.addAll(storageEngine.find(getName(), new KintoQuery()));
+            // uuid of the embedded objects, one query for each relation table
+            readRelationUUIDs(rows, true);
+        } catch (SQLException exception) {
+            kintoLogger.log(KintoLogger.ERROR, TAG, "Error while searching for objects in local datastore", exception);
+            throw new KintoException(exception);
+        } finally {
+            collectionLock.readLock().unlock();
         }
-        String currentAttributeName = "";
-        ArrayList<String> replaceRelationRecordSQLCommands = new ArrayList<>();
+        // create the objects from the rows, in parallel for many rows
+        if (hydrationPool != null && rows.size() >= PARALLEL_HYDRATION_THRESHOLD) {
+            try {
+                // the order of the rows is kept by the parallel stream
+                return hydrationPool.submit(() -> rows.parallelStream()
+                        .map(this::createObjectFromRowUnchecked)
+                        .collect(Collectors.toList()))
+                        .get();
+            } catch (RejectedExecutionException exception) {
+                // the pool is shut down by closing kinto, the objects are created on this thread
+                kintoLogger.log(KintoLogger.DEBUG, TAG, "The pool for creating objects is shut down.", null);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new KintoException(exception);
+            } catch (ExecutionException exception) {
+                Throwable cause = exception.getCause();
+                if (cause instanceof HydrationException) {
+                    throw ((HydrationException) cause).getKintoException();
+                }
+                kintoLogger.log(KintoLogger.ERROR, TAG, "Error while creating objects from local datastore.", exception);
+                throw new KintoException(exception);
+            }
+        }
+        List<T> objects = new ArrayList<>(rows.size());
+        for (KintoRow row : rows) {
+            objects.add(createObjectFromRow(row));
+        }
+        return objects;
+    }
+
+    /**
+     * Get the object with the given UUID.
+     *
+     * @param uuid of the wanted object.
+     * @return A kinto object with the given UUID or null if no object with the UUID found or
+     *         an error occurred while getting the object from datastore.
+     */
+    public @Nullable T findByUUID(String uuid) {
         try {
-            if (kintoObject.isPersistent()) {
-                if (isValidObjectType(kintoObject)) {
-                    // get all objects (uuid) in relation table
-                    // use transactions
-                    dataBase.beginTransaction();
-                    // get attributes using reflection
-                    Class<? extends KintoObject> clazz = kintoObject.getClass();
-                    // build sql command for update the kinto object in local datastore
-                    // UPDATE table_name SET column1 = value1, column2 = value2...., columnN = valueN
-                    // WHERE [condition];
-                    int attributeCount = storableAttributes.size();
-                    StringBuilder updateSQL = new StringBuilder("UPDATE ");
-                    updateSQL.append(getName());
-                    updateSQL.append(" SET ");
-                    for (String attributeName : storableAttributes.keySet()) {
-                        attributeCount--;
-                        currentAttributeName = attributeName;
-                        DataSet dataSet = storableAttributes.get(attributeName);
-                        if (dataSet == null) {
-                            String errorMessage = "Empty dataset for attribute "
-                                    + attributeName
-                                    + ".";
-                            throw new KintoException(errorMessage);
-                        }
-                        if (dataSet.isList()) {
-                            // remove 1:m relations, the objects are still exists in collections
-                            // check if relation table exist
-                            Class<?> listElementClazz = dataSet.getListType();
-                            // check if we can cast the class
-                            if (!KintoObject.class.isAssignableFrom(listElementClazz)) {
-                                throw new KintoException("List element is not from type KintoObject.");
-                            }
-                            @SuppressWarnings("unchecked")
-                            Class<? extends KintoObject> listObjectType = (Class<? extends KintoObject>) listElementClazz;
-                            if (type != null) {
-                                // add for all embedded kinto objects an entry in relation table
-                                String relationTable = relationTables.get(dataSet.getAttribute());
-                                if (relationTable == null) {
-                                    String errorMessage = "The relation table of "
-                                            + listObjectType.getSimpleName()
-                                            + " was not found in configuration.";
-                                    throw new KintoException(errorMessage);
-                                }
-                                Field listAttribute = clazz.getDeclaredField(attributeName);
-                                listAttribute.setAccessible(true);
-                                Object listAttributeObject = listAttribute.get(kintoObject);
-                                // build sql delete command for relation table
-                                StringBuilder deleteSQL = new StringBuilder("DELETE FROM ");
-                                // the name of the relation table
-                                deleteSQL.append(relationTable);
-                                deleteSQL.append(" WHERE ");
-                                deleteSQL.append(getName().toLowerCase(Locale.ROOT));
-                                deleteSQL.append("uuid='");
-                                deleteSQL.append(kintoObject.getUUID());
-                                deleteSQL.append("' AND ");
-                                // all uuid from objects in list
-                                deleteSQL.append(listObjectType.getSimpleName().toLowerCase(Locale.ROOT));
-                                deleteSQL.append("uuid NOT IN (");
-                                // add the attributes (columns) values to sql statements
-                                if (listAttributeObject instanceof List) {
-                                    List<?> listObjects = (List<?>) listAttributeObject;
-                                    int objectListSize = listObjects.size();
-                                    if (objectListSize > 0) {
-                                        for (Object listObject : listObjects) {
-                                            if (!KintoObject.class.isAssignableFrom(listObject.getClass())) {
-                                                String logMessage = "The object must extends KintoObject. This object extends "
-                                                        + listObject.getClass().getName();
-                                                throw new KintoException(logMessage);
-                                            }
-                                            KintoObject listKintoObject = (KintoObject) listObject;
-                                            // build sql insert command for relation table - using
-                                            // INSERT INTO table(column_list) VALUES(value_list);
-                                            // the name of the relation table
-                                            String replaceRelationSQL = "INSERT INTO " + relationTable +
-                                                    // columns
-                                                    " (" +
-                                                    getName().toLowerCase(Locale.ROOT) +
-                                                    "uuid, " +
-                                                   listObjectType.getSimpleName().toLowerCase(Locale.ROOT) +
-                                                    // values
-                                                    "uuid) VALUES(" +
-                                                    // kinto object uuid
-                                                    "'" +
-                                                    kintoObject.getUUID() +
-                                                    "','" +
-                                                    listKintoObject.getUUID() +
-                                                    "');";
-                                            // add to the sql command batch
-                                            replaceRelationRecordSQLCommands.add(replaceRelationSQL);
-                                            // build the sql delete statement
-                                            // remove all uuid (objects) from relation table, there not in list
-                                            deleteSQL.append("'");
-                                            deleteSQL.append(kintoObject.getUUID());
-                                            deleteSQL.append("'");
-                                            if (objectListSize > 1) {
-                                                deleteSQL.append(",");
-                                            }
-                                            objectListSize--;
-                                        }
-                                        deleteSQL.append(");");
-                                    } else {
-                                        // empty list
-                                        deleteSQL.append("'');");
-                                    }
-                                    // if the last attribute a list the remove the last comma
-                                    if(attributeCount == 0) {
-                                        updateSQL.deleteCharAt(updateSQL.lastIndexOf(","));
-                                    }
-                                    try {
-                                        // first delete
-                                        dataBase.executeSQL(deleteSQL.toString());
-                                        // then replace (insert), if exists
-                                        if (replaceRelationRecordSQLCommands.size() > 0) {
-                                            for (String replaceRelationRecordSQLCommand : replaceRelationRecordSQLCommands) {
-                                                dataBase.executeSQL(replaceRelationRecordSQLCommand);
-                                            }
-                                        }
-                                    } catch (SQLException exception) {
-                                        String logMessage = "Error occurred while removing relation entries from local datastore: "
-                                                + exception.getMessage();
-                                        throw new KintoException(logMessage);
-                                    } finally {
-                                        // clear all sql commands
-                                        replaceRelationRecordSQLCommands.clear();
-                                    }
-                                }
-                            }
-                        }
-                        else {
-                            // simple attribute and 1:1 relation
-                            // column (attribute) name
-                            updateSQL.append(attributeName);
-                            // SQLite store any kind of data you want in any column of any table
-                            updateSQL.append("='");
-                            // column (attribute) value
-                            updateSQL.append(dataSet.getValueAsString(kintoObject));
-                            updateSQL.append("'");
-                            if(attributeCount > 0) {
-                                updateSQL.append(",");
-                            }
-                        }
-                    }
-                    updateSQL.append(" WHERE uuid='");
-                    updateSQL.append(kintoObject.getUUID());
-                    updateSQL.append("';");
-                    try {
-                        // remove the object from local datastore
-                        dataBase.executeSQL(updateSQL.toString());
-                        // commit all updates to local datastore
-                        // inclusive all delete statements from list attributes
-                        dataBase.commit();
-                    } catch (SQLException exception) {
-                        // rollback all changes
-                        dataBase.rollback();
-                        String errorMessage = "Error occurred while updating the local datastore: "
-                                + exception.getMessage();
+            ensureInitialized();
+        } catch (KintoException exception) {
+            kintoLogger.log(KintoLogger.ERROR, TAG, "Error while searching for objects in local datastore.", exception);
+            return null;
+        }
+        collectionLock.readLock().lock();
+        try {
+            if (uuid == null) {
+                return null;
+            }
+            try {
+                KintoRow row = storageEngine.findByUUID(getName(), uuid);
+                if (row == null) {
+                    return null;
+                }
+                readRelationUUIDs(Collections.singletonList(row), false);
+                // create object from this collection
+                return createObjectFromRow(row);
+            } catch (SQLException | KintoException exception) {
+                kintoLogger.log(KintoLogger.ERROR, TAG, "Error while searching for objects in local datastore.", exception);
+            }
+            return null;
+        } finally {
+            collectionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get a list of objects filtered by the given query.
+     *
+     * @param query to filter the result of the list
+     * @return A list of objects filtered by query. The list can be empty.
+     * @throws KintoException if an error occurred while getting the list of objects
+     * @see KintoQuery
+     */
+    public List<T> findByQuery(@NotNull KintoQuery query) throws KintoException {
+        ensureInitialized();
+        collectionLock.readLock().lock();
+        try {
+            validateQuery(query);
+            List<KintoRow> rows;
+            try {
+                rows = storageEngine.find(getName(), query);
+                readRelationUUIDs(rows, false);
+            } catch (SQLException exception) {
+                kintoLogger.log(KintoLogger.ERROR, TAG, "Error while searching for objects in local datastore", exception);
+                throw new KintoException(exception);
+            }
+            List<T> objects = new ArrayList<>(rows.size());
+            for (KintoRow row : rows) {
+                objects.add(createObjectFromRow(row));
+            }
+            return objects;
+        } finally {
+            collectionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Change single attributes of an object in the local datastore with one statement.
+     * The object must not be loaded before.
+     *
+     * @param uuid of the object
+     * @param fieldUpdate the changes and the optional condition
+     * @return The count of changed objects, 0 if the object not exist or the condition is not fulfilled.
+     * @throws KintoException if an attribute can't be changed or an error occurred while updating the object
+     * @see KintoFieldUpdate
+     */
+    public int updateFields(@NotNull String uuid, @NotNull KintoFieldUpdate fieldUpdate) throws KintoException {
+        ensureInitialized();
+        collectionLock.writeLock().lock();
+        try {
+            if (fieldUpdate.getChanges().isEmpty()) {
+                return 0;
+            }
+            for (KintoFieldUpdate.Change change : fieldUpdate.getChanges()) {
+                String attributeName = change.getAttributeName();
+                DataSet dataSet = storableAttributes.get(attributeName);
+                if (dataSet == null || dataSet.isList() || dataSet.isKintoObject()) {
+                    String errorMessage = "The attribute "
+                            + attributeName
+                            + " is not a simple attribute of "
+                            + getName()
+                            + ".";
+                    throw new KintoException(errorMessage);
+                }
+                if (change.getOperation() == KintoFieldUpdate.Operation.INCREMENT) {
+                    String sqlDataTypeString = dataSet.getSqlDataTypeString();
+                    if (!sqlDataTypeString.equals("INTEGER") && !sqlDataTypeString.equals("REAL")) {
+                        String errorMessage = "The attribute "
+                                + attributeName
+                                + " is not numeric and can't be incremented.";
                         throw new KintoException(errorMessage);
                     }
                 }
-            } else {
-                // error update an object before saving
-                throw new KintoException("Can not update an unsaved object.");
             }
-        } catch (SQLException exception) {
-            // auto commit error
-        } catch (NoSuchFieldException exception) {
-            String errorMessage = "Can not get the attribute "
-                    + currentAttributeName
-                    + " using reflection.";
-            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
-            throw new KintoException(errorMessage + ": " + exception.getMessage());
-        } catch (IllegalAccessException exception) {
-            String errorMessage = "Getting value for attribute "
-                    + currentAttributeName
-                    + " using reflection failed.";
-            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
-            throw new KintoException(errorMessage + ": " + exception.getMessage());
+            KintoQuery condition = fieldUpdate.getCondition();
+            if (condition != null) {
+                validateQuery(condition);
+            }
+            try {
+                // one change of the record, every change increments the update sequence number
+                return storageEngine.updateFields(getName(), uuid, fieldUpdate);
+            } catch (SQLException exception) {
+                String errorMessage = "Error occurred while updating the local datastore: "
+                        + exception.getMessage();
+                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                throw new KintoException(errorMessage);
+            }
+        } finally {
+            collectionLock.writeLock().unlock();
         }
     }
 
     /**
-     * Remove an existing object from local datastore. If the object exist in remote kinto,
-     * the object will not be deleted there before sync.
+     * Change single attributes of an existing object in local datastore with one statement.
+     * If the object was changed, the changed attributes of the object are loaded from the local datastore.
+     * The update sequence number of the object is only taken, if there was no other write
+     * since the object was loaded or saved. Other changes of the object are not saved.
      *
-     * @param kintoObject to be removed
-     * @throws KintoException if the object already exist or an error occurred while added to local datastore
+     * @param kintoObject the object to change
+     * @param fieldUpdate the changes and an optional condition
+     * @return The count of changed objects, 0 if the condition is not fulfilled.
+     * @throws KintoException if the object not exist or an error occurred while updating the object
      */
-    public void removeRecord(@NotNull KintoObject kintoObject) throws KintoException {
-        // object does not exist
-        if (!kintoObject.isPersistent()) {
-            throw  new KintoException("Object must be exist for removing.");
+    public int updateFields(@NotNull KintoObject kintoObject,
+                            @NotNull KintoFieldUpdate fieldUpdate) throws KintoException {
+        collectionLock.writeLock().lock();
+        try {
+            if (!kintoObject.isPersistent()) {
+                throw new KintoException("Object must be exist for updating.");
+            }
+            long expectedUSN = kintoObject.getUSN() + 1;
+            int count = updateFields(kintoObject.getUUID(), fieldUpdate);
+            if (count > 0) {
+                // load the new values
+                Set<String> attributeNames = new LinkedHashSet<>();
+                for (KintoFieldUpdate.Change change : fieldUpdate.getChanges()) {
+                    attributeNames.add(change.getAttributeName());
+                }
+                if (refreshAttributes(kintoObject, attributeNames) == expectedUSN) {
+                    // the object is up-to-date
+                    setUSN(kintoObject, expectedUSN);
+                }
+            }
+            return count;
+        } finally {
+            collectionLock.writeLock().unlock();
         }
-        String currentAttributeName = "";
+    }
+
+    /**
+     * Load the values of the given attributes from local datastore into the object.
+     * Only simple attributes (no embedded objects or lists) can be loaded.
+     *
+     * The update sequence number of the object is not changed.
+     *
+     * @param kintoObject the object to refresh
+     * @param attributeNames names of the attributes
+     * @return The update sequence number of the object in local datastore.
+     * @throws KintoException if the object not exist or an error occurred while loading the values
+     */
+    public long refreshAttributes(@NotNull KintoObject kintoObject,
+                                  @NotNull Collection<String> attributeNames) throws KintoException {
+        ensureInitialized();
+        collectionLock.readLock().lock();
         try {
             if (!kintoObject.isPersistent()) {
-                if (isValidObjectType(kintoObject)) {
-                    // get all objects (uuid) in relation table
-                    for (String attributeName : storableAttributes.keySet()) {
-                        currentAttributeName = attributeName;
-                        DataSet dataSet = storableAttributes.get(attributeName);
-                        if (dataSet == null) {
-                            String logMessage = "Empty dataset for attribute "
-                                    + attributeName
-                                    + ".";
-                            throw new KintoException(logMessage);
-                        }
-                        // get attributes using reflection
-                        Class<? extends KintoObject> clazz = kintoObject.getClass();
-                        // 1: m relations
-                        if (dataSet.isList()) {
-                            // check if relation table exist
-                            Class<?> listElementClazz = dataSet.getListType();
-                            // check if we can cast the class
-                            if (!KintoObject.class.isAssignableFrom(listElementClazz)) {
-                                throw new KintoException("List element is not from type KintoObject.");
-                            }
-                            @SuppressWarnings("unchecked")
-                            Class<? extends KintoObject> listObjectType = (Class<? extends KintoObject>) listElementClazz;
-                            if (type != null){
-                                // add for all embedded kinto objects an entry in relation table
-                                String relationTable = relationTables.get(dataSet.getAttribute());
-                                if (relationTable == null) {
-                                    String logMessage = "The relation table of "
-                                            + listObjectType.getSimpleName()
-                                            + " was not found in configuration.";
-                                    throw  new KintoException(logMessage);
-                                }
-                                Field listAttribute = clazz.getDeclaredField(attributeName);
-                                listAttribute.setAccessible(true);
-                                Object listAttributeObject = listAttribute.get(kintoObject);
-                                if (listAttributeObject instanceof List) {
-                                    // remove in relation tables
-                                    // use transactions
-                                    // build sql select command for relation table
-                                    StringBuilder sql = new StringBuilder("SELECT count(*) as "
-                                            + Global.rowcountColumnName + ", ");
-                                    // all uuid from objects in list
-                                    sql.append(listObjectType.getSimpleName().toLowerCase(Locale.ROOT));
-                                    sql.append("uuid FROM ");
-                                    // the name of the relation table
-                                    sql.append(relationTable);
-                                    sql.append(" WHERE ");
-                                    // the object type uuid
-                                    sql.append(getName().toLowerCase(Locale.ROOT));
-                                    sql.append("uuid='");
-                                    sql.append(kintoObject.getUUID());
-                                    sql.append("';");
-                                    try {
-                                        KintoQueryResultSet resultSet = dataBase.executeQuery(sql.toString());
-                                        // get the count of rows
-                                        int countOfResults = resultSet.getInt(Global.rowcountColumnName);
-                                        // uuid from list in local datastore not found -> error and rollback
-                                        if (countOfResults == 0) {
-                                            String logMessage = "Objects from the list attribute "
-                                                    + attributeName
-                                                    + " wasn't found in local datastore. "
-                                                    + "Check the datastore.";
-                                            throw new KintoException(logMessage);
-                                        }
-                                        // remove all entries for kinto object in relation table
-                                        sql = new StringBuilder("DELETE FROM ");
-                                        sql.append(relationTable);
-                                        sql.append(" WHERE ");
-                                        // the object type uuid
-                                        sql.append(getName().toLowerCase(Locale.ROOT));
-                                        sql.append("uuid='");
-                                        sql.append(kintoObject.getUUID());
-                                        sql.append("';");
-                                        // use transaction
-                                        dataBase.beginTransaction();
-                                        dataBase.executeSQL(sql.toString());
-                                        // remove the kinto object
-                                        sql = new StringBuilder("DELETE FROM ");
-                                        sql.append(getName());
-                                        sql.append(" WHERE ");
-                                        sql.append("uuid='");
-                                        sql.append(kintoObject.getUUID());
-                                        sql.append("';");
-                                        dataBase.executeSQL(sql.toString());
-                                        dataBase.commit();
-                                    } catch (SQLException exception) {
-                                        throw new KintoException("Error occurred while removing from local datastore: "
-                                                + exception.getMessage());
-                                    }
-                                }
-                            }
-                        }
+                throw new KintoException("Object must be exist for refreshing.");
+            }
+            if (!isValidObjectType(kintoObject)) {
+                return kintoObject.getUSN();
+            }
+            List<DataSet> dataSets = new ArrayList<>();
+            for (String attributeName : attributeNames) {
+                DataSet dataSet = storableAttributes.get(attributeName);
+                if (dataSet == null || dataSet.isList() || dataSet.isKintoObject()) {
+                    String errorMessage = "The attribute "
+                            + attributeName
+                            + " is not a simple attribute of "
+                            + getName()
+                            + ".";
+                    throw new KintoException(errorMessage);
+                }
+                dataSets.add(dataSet);
+            }
+            try {
+                KintoRow row = storageEngine.findByUUID(getName(), kintoObject.getUUID());
+                if (row == null) {
+                    throw new KintoException("The object " + kintoObject + " was not found in local datastore.");
+                }
+                Map<String, String> persistedValues = getPersistedValues(kintoObject);
+                for (DataSet dataSet : dataSets) {
+                    Field attribute = dataSet.getAttribute();
+                    Object value = readAttributeValue(dataSet, row);
+                    if (value != null) {
+                        attribute.setAccessible(true);
+                        attribute.set(kintoObject, value);
                     }
+                    // the value in object is the same as in local datastore
+                    persistedValues.put(attribute.getName(), row.getString(attribute.getName()));
                 }
-            } else {
-                // error remove an object before saving
-                throw new KintoException("Can't remove an unsaved object.");
+                return row.getLong("usn");
+            } catch (SQLException exception) {
+                String errorMessage = "Error while loading attributes from local datastore.";
+                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                throw new KintoException(errorMessage + exception.getMessage());
+            } catch (IllegalAccessException exception) {
+                String errorMessage = "An attribute couldn't set.";
+                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                throw new KintoException(errorMessage + exception.getMessage());
             }
-        } catch (NoSuchFieldException exception) {
-            String errorMessage = "Can't get the attribute "
-                    + currentAttributeName
-                    + " using reflection.";
-            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
-            throw new KintoException(errorMessage + ": " + exception.getMessage());
-        } catch (IllegalAccessException exception) {
-            String errorMessage = "Getting value for attribute "
-                    + currentAttributeName
-                    + " using reflection failed.";
+        } finally {
+            collectionLock.readLock().unlock();
+        }
+    }
+
+    // open a cursor for all objects fulfilling the query, the cursor must be closed after use
+    StorageEngine.Cursor openCursor(@NotNull KintoQuery query) throws KintoException {
+        ensureInitialized();
+        validateQuery(query);
+        try {
+            return storageEngine.query(getName(), query);
+        } catch (SQLException exception) {
+            kintoLogger.log(KintoLogger.ERROR, TAG, "Error while searching for objects in local datastore", exception);
+            throw new KintoException(exception);
+        }
+    }
+
+    // create the objects from rows of a cursor
+    // the uuid of the embedded objects (1:m relations) are read for the rows only
+    List<T> createObjects(@NotNull List<KintoRow> rows) throws KintoException {
+        ensureInitialized();
+        if (!relationTables.isEmpty() && !rows.isEmpty()) {
+            collectionLock.readLock().lock();
+            try {
+                readRelationUUIDs(rows, false);
+            } catch (SQLException exception) {
+                kintoLogger.log(KintoLogger.ERROR, TAG, "Error while searching for objects in local datastore", exception);
+                throw new KintoException(exception);
+            } finally {
+                collectionLock.readLock().unlock();
+            }
+        }
+        List<T> objects = new ArrayList<>(rows.size());
+        for (KintoRow row : rows) {
+            objects.add(createObjectFromRow(row));
+        }
+        return objects;
+    }
+
+    // save the records of pages from remote kinto and the checkpoint of the pull in one transaction
+    // the record id of remote kinto is the uuid of the object, deleted records are removed
+    // the records are merged by the storage engine (last write wins), records changed or removed
+    // in local datastore since the last push (journal sequence number) are not changed (conflicts),
+    // the timestamps of the remote records are saved with the conflicts for the push
+    void applyRemoteRecords(@NotNull List<StorageEngine.RemoteRecord> records,
+                            @NotNull String checkpointKey,
+                            long checkpoint,
+                            @NotNull String conflictsKey,
+                            long journalSeq,
+                            @NotNull KintoSyncResult result) throws KintoException {
+        ensureInitialized();
+        // the last version of every record, a record can be changed while paging
+        Map<String, StorageEngine.RemoteRecord> remoteRecords = new LinkedHashMap<>(records.size() * 2);
+        for (StorageEngine.RemoteRecord remoteRecord : records) {
+            StorageEngine.RemoteRecord previous = remoteRecords.get(remoteRecord.getUUID());
+            if (previous == null || previous.getLastModified() < remoteRecord.getLastModified()) {
+                remoteRecords.put(remoteRecord.getUUID(), remoteRecord);
+            }
+        }
+        collectionLock.writeLock().lock();
+        try {
+            StorageEngine.MergeResult mergeResult;
+            storageEngine.beginTransaction();
+            try {
+                mergeResult = storageEngine.mergeRemoteRecords(getName(), relations.values(),
+                        new ArrayList<>(remoteRecords.values()), journalSeq);
+                if (!mergeResult.getConflicts().isEmpty()) {
+                    Map<String, Long> conflicts = KintoSync.parseConflicts(storageEngine.getMetadata(conflictsKey));
+                    for (String uuid : mergeResult.getConflicts()) {
+                        conflicts.merge(uuid, remoteRecords.get(uuid).getLastModified(), Math::max);
+                    }
+                    storageEngine.setMetadata(conflictsKey, KintoSync.formatConflicts(conflicts));
+                }
+                storageEngine.setMetadata(checkpointKey, String.valueOf(checkpoint));
+                storageEngine.commit();
+            } catch (SQLException exception) {
+                // rollback all changes
+                storageEngine.rollback();
+                throw exception;
+            }
+            for (String uuid : mergeResult.getConflicts()) {
+                logConflict(uuid);
+            }
+            result.addPulled(getName(), mergeResult.getSaved(), mergeResult.getDeleted(), mergeResult.getConflicts());
+        } catch (SQLException exception) {
+            String errorMessage = "Error occurred while saving the records of remote kinto: "
+                    + exception.getMessage();
             kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
-            throw new KintoException(errorMessage + ": " + exception.getMessage());
+            throw new KintoException(errorMessage);
+        } finally {
+            collectionLock.writeLock().unlock();
         }
     }
 
-    /**
-     * Get all objects from this collection saved in local datastore.
-     *
-     * @return List of all objects from this collection. The list can be empty.
-     * @throws KintoException if an error occurred while getting the objects
-     */
-    public List<KintoObject> findAll() throws KintoException {
-        List<KintoObject> objects = new ArrayList<>();
+    // the entries of the change journal after the sequence number, in the order of the journal
+    List<KintoChange> readChanges(long sinceSeq) throws KintoException {
+        ensureInitialized();
+        try {
+            List<KintoChange> changes = new ArrayList<>();
+            List<KintoChange> page;
+            do {
+                page = storageEngine.readChanges(getName(), sinceSeq, SYNC_QUERY_CHUNK_SIZE);
+                changes.addAll(page);
+                if (!page.isEmpty()) {
+                    sinceSeq = page.get(page.size() - 1).getSeq();
+                }
+            } while (page.size() == SYNC_QUERY_CHUNK_SIZE);
+            return changes;
+        } catch (SQLException exception) {
+            kintoLogger.log(KintoLogger.ERROR, TAG, "Error while reading the change journal", exception);
+            throw new KintoException(exception);
+        }
+    }
+
+    // the objects of the uuid changed in local datastore since the last sync, including objects never synced
+    List<T> findUnsynced(@NotNull Collection<String> uuids) throws KintoException {
+        ensureInitialized();
+        List<KintoRow> rows = new ArrayList<>();
+        collectionLock.readLock().lock();
         try {
-            String sql = "SELECT * FROM " + getName() + ";";
-            KintoQueryResultSet resultSet = dataBase.executeQuery(sql);
-            while (resultSet.next()) {
-                objects.add(createObjectFromResultSet(resultSet));
+            Map<String, KintoRow> localRows = findLocalRows(uuids);
+            for (String uuid : uuids) {
+                KintoRow row = localRows.get(uuid);
+                if (row != null && !isSyncedRow(row)) {
+                    rows.add(row);
+                }
             }
+            readRelationUUIDs(rows, false);
         } catch (SQLException exception) {
             kintoLogger.log(KintoLogger.ERROR, TAG, "Error while searching for objects in local datastore", exception);
             throw new KintoException(exception);
+        } finally {
+            collectionLock.readLock().unlock();
+        }
+        List<T> objects = new ArrayList<>(rows.size());
+        for (KintoRow row : rows) {
+            objects.add(createObjectFromRow(row));
         }
         return objects;
     }
 
-    /**
-     * Get the object with the given UUID.
-     *
-     * @param uuid of the wanted object.
-     * @return A kinto object with the given UUID or null if no object with the UUID found or
-     *         an error occurred while getting the object from datastore.
-     */
-    public @Nullable KintoObject findByUUID(String uuid) {
-        if (uuid == null) {
-            return null;
+    // read the records of a list response of remote kinto, the records are handed to the handler one by one
+    void readRemoteRecords(@NotNull InputStream input,
+                           @NotNull KintoRecordCodec.RecordHandler handler) throws KintoException {
+        recordCodec.readRecords(input, handler);
+    }
+
+    // write the record of an object for remote kinto with the values saved in local datastore
+    // embedded objects are saved with the uuid, lists with the uuid of all objects
+    void writeRemoteRecord(@NotNull Appendable out, @NotNull KintoObject kintoObject) throws KintoException, IOException {
+        recordCodec.writeRecord(out, getPersistedValues(kintoObject));
+    }
+
+    // save the results of pushed objects (object -> timestamp of remote kinto) in local datastore and in the objects
+    // an object changed since it was read for the push is not synced
+    void applyPushResults(@NotNull Map<KintoObject, Long> pushedObjects) throws KintoException {
+        if (pushedObjects.isEmpty()) {
+            return;
         }
+        ensureInitialized();
+        collectionLock.writeLock().lock();
         try {
-            String sql = "SELECT count(*) as "+ Global.rowcountColumnName + ", * FROM " + getName()
-                    + " WHERE uuid='" + uuid + "';";
-            KintoQueryResultSet resultSet = dataBase.executeQuery(sql);
-            // get the count of rows
-            int countOfResults = resultSet.getInt(Global.rowcountColumnName);
-            if (countOfResults == 0) {
-                return null;
-            }
-            if (countOfResults > 1) {
-                String errorMessage = "There are more as one objects with UUID "
-                        + uuid
-                        + "in local datastore. Please check the datastore.";
-                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, null);
-                return null;
+            List<Map.Entry<KintoObject, Long>> syncedObjects = new ArrayList<>(pushedObjects.size());
+            storageEngine.beginTransaction();
+            try {
+                for (Map.Entry<KintoObject, Long> pushedObject : pushedObjects.entrySet()) {
+                    KintoObject kintoObject = pushedObject.getKey();
+                    // the update increments the usn
+                    Map<String, String> values = new LinkedHashMap<>();
+                    values.put("kintoid", kintoObject.getUUID());
+                    values.put("lastmodified", String.valueOf(pushedObject.getValue()));
+                    values.put("syncedusn", String.valueOf(kintoObject.getUSN() + 1));
+                    if (storageEngine.update(getName(), kintoObject.getUUID(), kintoObject.getUSN(), values) > 0) {
+                        syncedObjects.add(pushedObject);
+                    }
+                }
+                storageEngine.commit();
+            } catch (SQLException exception) {
+                // rollback all changes
+                storageEngine.rollback();
+                throw exception;
             }
-            if (resultSet.next()) {
-                // create object from this collection
-               return createObjectFromResultSet(resultSet);
+            for (Map.Entry<KintoObject, Long> syncedObject : syncedObjects) {
+                KintoObject kintoObject = syncedObject.getKey();
+                setSyncState(kintoObject, syncedObject.getValue());
+                setUSN(kintoObject, kintoObject.getUSN() + 1);
             }
-        } catch (SQLException | KintoException exception) {
-            kintoLogger.log(KintoLogger.ERROR, TAG, "Error while searching for objects in local datastore.", exception);
+        } catch (SQLException exception) {
+            String errorMessage = "Error occurred while saving the sync state in local datastore: "
+                    + exception.getMessage();
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage);
+        } finally {
+            collectionLock.writeLock().unlock();
         }
-        return null;
     }
 
-    /**
-     * Get a list of objects filtered by the given query.
-     * Not implemented yet.
-     *
-     * @param query to filter the result of the list
-     * @return A list of objects filtered by query. The list can be empty.
-     * @throws KintoException if an error occurred while getting the list of objects
-     * @see KintoQuery
-     */
-    public List<KintoObject> findByQuery(KintoQuery query) throws KintoException {
-        throw new KintoException("Sorry. Not implemented yet: " + query.getClass().getSimpleName());
+    // check and create the tables of the collection on first use
+    private void ensureInitialized() throws KintoException {
+        if (isInitialized) {
+            return;
+        }
+        initializationLock.lock();
+        try {
+            if (!isInitialized) {
+                long start = System.nanoTime();
+                createLocalDataStoreForCollection();
+                isInitialized = true;
+                String logMessage = "Tables of the collection "
+                        + getName()
+                        + " initialized in "
+                        + (System.nanoTime() - start) / 1000000
+                        + " ms.";
+                kintoLogger.log(KintoLogger.DEBUG, TAG, logMessage, null);
+            }
+        } finally {
+            initializationLock.unlock();
+        }
     }
 
     // build a map with attribute and value for the object
@@ -727,6 +1154,9 @@ public class KintoCollection {
                             String relationTableName = attributeDeclaringClassName + "To" + attributeClassName;
                             // add relation information to Map
                             relationTables.put(attribute, relationTableName);
+                            relations.put(relationTableName, new StorageEngine.Relation(relationTableName,
+                                    getName().toLowerCase(Locale.ROOT) + "uuid",
+                                    attributeClassName.toLowerCase(Locale.ROOT) + "uuid"));
                         }
                     }
                 }
@@ -744,130 +1174,449 @@ public class KintoCollection {
         return attributes;
     }
 
+    // create or migrate the storage of the collection and the relations
     private void createLocalDataStoreForCollection() throws KintoException {
-        // check if collection table exists
+        StorageEngine.CollectionSchema schema = new StorageEngine.CollectionSchema(getName(),
+                buildColumnDefinitions(), new ArrayList<>(relations.values()));
         try {
-            StringBuilder sql = new StringBuilder("SELECT name FROM sqlite_master WHERE type='table' AND name='");
-            sql.append(getName());
-            sql.append("';");
-            KintoQueryResultSet resultSet = dataBase.executeQuery(sql.toString());
-            // table exists?
-            // A TYPE_FORWARD_ONLY ResultSet only supports next() for navigation,
-            // and not methods like first(), last(), absolute(int), relative(int).
-            // The JDBC specification explicitly defines those to throw a SQLException if called on a TYPE_FORWARD_ONLY.
-            // TABLE EXISTS LOCAL
-            if (resultSet.next()) {
-                kintoLogger.log(KintoLogger.DEBUG, TAG, "KintoCollection of " + type + " exists in local datastore.", null);
-                // TODO Schema-Check
-            } else {
-                // create table for collection
-                kintoLogger.log(KintoLogger.DEBUG, TAG, "KintoCollection of " + getName() + " does not exists in local datastore.", null);
-                // SQLite store any kind of data you want in any column of any table
-                // build the sql statement for the collection table
-                // id from sqlite, kintoid from kinto, usn = update sequence number
-                // now add only persistent attributes (@Persisted)
-                sql = new StringBuilder("CREATE TABLE ");
-                sql.append(getName());
-                //  "meta" data
-                sql.append("(uuid TEXT PRIMARY KEY, kintoid TEXT, usn INT");
-                // object attributes
-                int size = storableAttributes.size();
-                if (size > 0) {
-                    for (String attributeName : storableAttributes.keySet()) {
-                        DataSet dataSet = storableAttributes.get(attributeName);
-                        if (dataSet == null) {
-                            String logMessage = "Empty dataset for attribute "
-                                    + attributeName
-                                    + ".";
-                            throw new KintoException(logMessage);
-                        }
-                        String sqlDataTypeString = dataSet.getSqlDataTypeString();
-                        // 1:m relations in extra tables
-                        if (!sqlDataTypeString.equalsIgnoreCase(DataSet.RELATION_DATA_MAPPING_STRING)) {
-                            sql.append(", ");
-                            sql.append(attributeName);
-                            sql.append(" ");
-                            sql.append(sqlDataTypeString);
-                        }
-                    }
-                }
-                sql.append(");");
-                String logMessage = "Create KintoCollection "
-                        + getName()
-                        + " with sql command: " + sql + ".";
-                kintoLogger.log(KintoLogger.DEBUG, TAG, logMessage, null);
-                // create the table in local datastore
-                dataBase.executeSQL(sql.toString());
-            }
+            storageEngine.openCollection(schema);
         } catch (SQLException exception) {
             if (Global.DEBUG) {
                 exception.printStackTrace();
             }
-            String logMessage = "Creation of table for the collection "
+            String logMessage = "Creation of the storage for the collection "
                     + getName()
                     + " has failed. "
                     + exception.getMessage();
             throw new KintoException(logMessage);
         }
-        // check if relation tables exists (if needed)
+    }
+
+    // the columns of the collection table, column name -> sql data type
+    private @NotNull LinkedHashMap<String, String> buildColumnDefinitions() throws KintoException {
+        LinkedHashMap<String, String> columns = new LinkedHashMap<>();
+        //  "meta" data
+        columns.put("uuid", "TEXT PRIMARY KEY");
+        columns.put("kintoid", "TEXT");
+        columns.put("usn", "INT");
+        // timestamp of the record in remote kinto and the usn of the last sync
+        columns.put("lastmodified", "INT");
+        columns.put("syncedusn", "INT");
+        // object attributes
+        for (String attributeName : storableAttributes.keySet()) {
+            DataSet dataSet = storableAttributes.get(attributeName);
+            if (dataSet == null) {
+                String logMessage = "Empty dataset for attribute "
+                        + attributeName
+                        + ".";
+                throw new KintoException(logMessage);
+            }
+            String sqlDataTypeString = dataSet.getSqlDataTypeString();
+            // 1:m relations in extra tables
+            if (!sqlDataTypeString.equalsIgnoreCase(DataSet.RELATION_DATA_MAPPING_STRING)) {
+                columns.put(attributeName, sqlDataTypeString);
+            }
+        }
+        return columns;
+    }
+
+    // add the uuid of embedded objects (1:m relations) to the rows
+    // if all is true, all entries of the relations are read, the rows are all records of the collection
+    private void readRelationUUIDs(List<KintoRow> rows, boolean all) throws SQLException {
+        if (relations.isEmpty() || rows.isEmpty()) {
+            return;
+        }
+        HashMap<String, KintoRow> rowsByUUID = new HashMap<>(rows.size() * 2);
+        for (KintoRow row : rows) {
+            rowsByUUID.put(row.getString("uuid"), row);
+        }
+        for (StorageEngine.Relation relation : relations.values()) {
+            Map<String, List<String>> entries = storageEngine.readRelations(relation, all ? null : rowsByUUID.keySet());
+            for (Map.Entry<String, List<String>> entry : entries.entrySet()) {
+                KintoRow row = rowsByUUID.get(entry.getKey());
+                if (row != null) {
+                    for (String childUUID : entry.getValue()) {
+                        row.addRelationUUID(relation.getName(), childUUID);
+                    }
+                }
+            }
+        }
+    }
+
+    // update the entries of the object in the relation of the list attribute
+    // only the differences between the list and the relation are written
+    private void updateRelationRecords(@NotNull KintoObject kintoObject,
+                                       @NotNull DataSet dataSet,
+                                       @NotNull List<KintoObject> listObjects) throws KintoException, SQLException {
+        Class<?> listElementClazz = dataSet.getListType();
+        String relationTable = relationTables.get(dataSet.getAttribute());
+        if (relationTable == null) {
+            String errorMessage = "The relation table of "
+                    + listElementClazz.getSimpleName()
+                    + " was not found in configuration.";
+            throw new KintoException(errorMessage);
+        }
+        StorageEngine.Relation relation = relations.get(relationTable);
+        // the entries in local datastore
+        HashSet<String> persistedUUIDs = new HashSet<>(storageEngine.readRelation(relation, kintoObject.getUUID()));
+        // the entries in the list
+        LinkedHashMap<String, KintoObject> actualObjects = new LinkedHashMap<>();
+        for (KintoObject listKintoObject : listObjects) {
+            actualObjects.put(listKintoObject.getUUID(), listKintoObject);
+        }
+        // removed from list
+        List<String> removedUUIDs = new ArrayList<>();
+        for (String persistedUUID : persistedUUIDs) {
+            if (!actualObjects.containsKey(persistedUUID)) {
+                removedUUIDs.add(persistedUUID);
+            }
+        }
+        // added to list
+        List<String> addedUUIDs = new ArrayList<>();
+        for (String actualUUID : actualObjects.keySet()) {
+            if (!persistedUUIDs.contains(actualUUID)) {
+                addedUUIDs.add(actualUUID);
+            }
+        }
+        if (!removedUUIDs.isEmpty()) {
+            storageEngine.removeRelations(relation, kintoObject.getUUID(), removedUUIDs);
+        }
+        if (!addedUUIDs.isEmpty()) {
+            storageEngine.addRelations(relation, kintoObject.getUUID(), addedUUIDs);
+            for (String addedUUID : addedUUIDs) {
+                setUseInRelation(actualObjects.get(addedUUID));
+            }
+        }
+    }
+
+    // set the flag for used in relation
+    private void setUseInRelation(@NotNull KintoObject kintoObject) throws KintoException {
         try {
-            if (relationTables.size() > 0) {
-                for (Field attribute : relationTables.keySet()) {
-                    Class<?> listObjectClass = ((Class<?>) ((ParameterizedType) attribute.getGenericType()).getActualTypeArguments()[0]);
-                    String attributeClassName = listObjectClass.getSimpleName();
-                    String relationTableName = relationTables.get(attribute);
-                    // check if table exists
-                    StringBuilder sql = new StringBuilder("SELECT name FROM sqlite_master WHERE type='table' AND name='");
-                    sql.append(relationTableName);
-                    sql.append("';");
-                    KintoQueryResultSet resultSet = dataBase.executeQuery(sql.toString());
-                    // table exists?
-                    // A TYPE_FORWARD_ONLY ResultSet only supports next() for navigation,
-                    // and not methods like first(), last(), absolute(int), relative(int).
-                    // The JDBC specification explicitly defines those to throw a SQLException if called on a TYPE_FORWARD_ONLY.
-                    // TABLE EXISTS LOCAL
-                    if (resultSet.next()) {
-                        //  relation table exists
-                        String logMessage = "Relation table for "
-                                + getName()
-                                + " and " + attributeClassName
-                                + " exists in local datastore.";
-                        kintoLogger.log(KintoLogger.DEBUG, TAG, logMessage, null);
-                    } else {
-                        // create table
-                        sql = new StringBuilder("CREATE TABLE ");
-                        sql.append(relationTableName);
-                        sql.append(" (");
-                        // collection type name
-                        sql.append(getName().toLowerCase(Locale.ROOT));
-                        sql.append("uuid TEXT, ");
-                        // attribute type name
-                        sql.append(attributeClassName.toLowerCase(Locale.ROOT));
-                        sql.append("uuid TEXT);");
-                        String logMessage = "Create one-to-many relation table for "
-                                + getName()
-                                + " and "
-                                + attributeClassName
-                                + " with sql command: " + sql + ".";
-                        kintoLogger.log(KintoLogger.DEBUG, TAG, logMessage, null);
-                        // create the table in local datastore
-                        dataBase.executeSQL(sql.toString());
+            Field attributeField = KintoObject.class.getDeclaredField("isUseInRelation");
+            attributeField.setAccessible(true);
+            attributeField.set(kintoObject, true);
+        } catch (NoSuchFieldException | IllegalAccessException exception) {
+            String errorMessage = "Can't set the attribute 'isUseInRelation' for object "
+                    + kintoObject
+                    + " using reflection.";
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage + ": " + exception.getMessage());
+        }
+    }
+
+    // check the object and get the data set of the list attribute for relation operations
+    private @NotNull DataSet getRelationDataSet(@NotNull KintoObject kintoObject,
+                                                @NotNull String attributeName,
+                                                @NotNull KintoObject listObject) throws KintoException {
+        if (!kintoObject.isPersistent()) {
+            throw new KintoException("Object must be exist for updating.");
+        }
+        if (!isValidObjectType(kintoObject)) {
+            String errorMessage = "The object from type "
+                    + kintoObject.getClass().getSimpleName()
+                    + " is not managed by the collection "
+                    + getName()
+                    + ".";
+            throw new KintoException(errorMessage);
+        }
+        DataSet dataSet = storableAttributes.get(attributeName);
+        if (dataSet == null || !dataSet.isList() || !relationTables.containsKey(dataSet.getAttribute())) {
+            String errorMessage = "The attribute "
+                    + attributeName
+                    + " is not a list of kinto objects in "
+                    + getName()
+                    + ".";
+            throw new KintoException(errorMessage);
+        }
+        if (!dataSet.getListType().isAssignableFrom(listObject.getClass())) {
+            String errorMessage = "The object from type "
+                    + listObject.getClass().getSimpleName()
+                    + " can't be added to the list "
+                    + attributeName
+                    + ".";
+            throw new KintoException(errorMessage);
+        }
+        return dataSet;
+    }
+
+    // add an object to the list attribute of the object
+    private void addToListAttribute(@NotNull KintoObject kintoObject,
+                                    @NotNull DataSet dataSet,
+                                    @NotNull KintoObject listObject) throws KintoException {
+        try {
+            Field listAttribute = dataSet.getAttribute();
+            listAttribute.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            List<Object> listObjects = (List<Object>) listAttribute.get(kintoObject);
+            if (listObjects == null) {
+                listObjects = new ArrayList<>();
+                listAttribute.set(kintoObject, listObjects);
+            }
+            listObjects.add(listObject);
+        } catch (IllegalAccessException | UnsupportedOperationException exception) {
+            String errorMessage = "Can't add the object to the attribute "
+                    + dataSet.getAttribute().getName()
+                    + ".";
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage + ": " + exception.getMessage());
+        }
+    }
+
+    // remove all objects with the uuid from the list attribute of the object
+    private void removeFromListAttribute(@NotNull KintoObject kintoObject,
+                                         @NotNull DataSet dataSet,
+                                         @NotNull String uuid) throws KintoException {
+        try {
+            Field listAttribute = dataSet.getAttribute();
+            listAttribute.setAccessible(true);
+            List<?> listObjects = (List<?>) listAttribute.get(kintoObject);
+            if (listObjects != null) {
+                listObjects.removeIf(listObject -> listObject instanceof KintoObject
+                        && ((KintoObject) listObject).getUUID().equals(uuid));
+            }
+        } catch (IllegalAccessException | UnsupportedOperationException exception) {
+            String errorMessage = "Can't remove the object from the attribute "
+                    + dataSet.getAttribute().getName()
+                    + ".";
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage + ": " + exception.getMessage());
+        }
+    }
+
+    // remove all entries of the uuid from a string built with buildUUIDString
+    private @NotNull String removeFromUUIDString(@NotNull String uuidString, @NotNull String uuid) {
+        String separatedUUIDString = "," + uuidString + ",";
+        String separatedUUID = "," + uuid + ",";
+        while (separatedUUIDString.contains(separatedUUID)) {
+            separatedUUIDString = separatedUUIDString.replace(separatedUUID, ",");
+        }
+        if (separatedUUIDString.length() <= 2) {
+            return "";
+        }
+        return separatedUUIDString.substring(1, separatedUUIDString.length() - 1);
+    }
+
+    // the exception for a failed compare of the update sequence number
+    private @NotNull KintoConflictException buildConflictException(@NotNull KintoObject kintoObject) {
+        String errorMessage = "The object "
+                + kintoObject
+                + " was changed or removed in local datastore since it was loaded (usn "
+                + kintoObject.getUSN()
+                + "). Load the object again.";
+        kintoLogger.log(KintoLogger.WARNING, TAG, errorMessage, null);
+        return new KintoConflictException(errorMessage, kintoObject.getUUID(), kintoObject.getUSN());
+    }
+
+    // increment the update sequence number of the object in local datastore after changing the relations
+    // the number of the object is only incremented, if the object was up-to-date, like an update of the object
+    private void incrementUSN(@NotNull KintoObject kintoObject) throws SQLException, KintoException {
+        Map<String, String> noChanges = Collections.emptyMap();
+        if (storageEngine.update(getName(), kintoObject.getUUID(), kintoObject.getUSN(), noChanges) == 0) {
+            // changed or removed since loaded, the change of the relation is rolled back
+            throw buildConflictException(kintoObject);
+        }
+        setUSN(kintoObject, kintoObject.getUSN() + 1);
+    }
+
+    // set the kinto id, the timestamp of remote kinto and the sync flag of a pushed object
+    private void setSyncState(@NotNull KintoObject kintoObject, long lastModified) throws KintoException {
+        try {
+            Field kintoID = KintoObject.class.getDeclaredField("kintoID");
+            kintoID.setAccessible(true);
+            kintoID.set(kintoObject, kintoObject.getUUID());
+            Field lastModifiedAttribute = KintoObject.class.getDeclaredField("lastModified");
+            lastModifiedAttribute.setAccessible(true);
+            lastModifiedAttribute.set(kintoObject, lastModified);
+            Field isSynced = KintoObject.class.getDeclaredField("isSynced");
+            isSynced.setAccessible(true);
+            isSynced.set(kintoObject, true);
+        } catch (NoSuchFieldException | IllegalAccessException exception) {
+            String errorMessage = "Can't set the sync state of the object using reflection.";
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage + ": " + exception.getMessage());
+        }
+    }
+
+    // set the update sequence number of the object
+    private void setUSN(@NotNull KintoObject kintoObject, long usn) throws KintoException {
+        try {
+            Field usnAttribute = KintoObject.class.getDeclaredField("usn");
+            usnAttribute.setAccessible(true);
+            usnAttribute.set(kintoObject, usn);
+        } catch (NoSuchFieldException | IllegalAccessException exception) {
+            String errorMessage = "Can't set the attribute 'usn' using reflection.";
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage + ": " + exception.getMessage());
+        }
+    }
+
+    // get the objects of a list attribute
+    private @NotNull List<KintoObject> getListObjects(@NotNull KintoObject kintoObject,
+                                                      @NotNull DataSet dataSet) throws KintoException {
+        Class<?> listElementClazz = dataSet.getListType();
+        // check if we can cast the class
+        if (!KintoObject.class.isAssignableFrom(listElementClazz)) {
+            throw new KintoException("List element is not from type KintoObject.");
+        }
+        List<KintoObject> listObjects = new ArrayList<>();
+        try {
+            Field listAttribute = dataSet.getAttribute();
+            listAttribute.setAccessible(true);
+            Object listAttributeObject = listAttribute.get(kintoObject);
+            if (listAttributeObject instanceof List) {
+                for (Object listObject : (List<?>) listAttributeObject) {
+                    if (!KintoObject.class.isAssignableFrom(listObject.getClass())) {
+                        String errorMessage = "The object must extends KintoObject. This object extends "
+                                + listObject.getClass().getName();
+                        throw new KintoException(errorMessage);
                     }
+                    listObjects.add((KintoObject) listObject);
                 }
             }
-        } catch (SQLException exception) {
-            String errorMessage = "Error occurred while checking the relation table.";
-            kintoLogger.log(KintoLogger.DEBUG, TAG, errorMessage, exception);
+        } catch (IllegalAccessException exception) {
+            String errorMessage = "Getting value for attribute "
+                    + dataSet.getAttribute().getName()
+                    + " using reflection failed.";
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage + ": " + exception.getMessage());
+        }
+        return listObjects;
+    }
+
+    // the uuid of all objects in a list, used to determine changes of list attributes
+    private @NotNull String buildUUIDString(@NotNull List<?> listObjects) {
+        StringBuilder uuidString = new StringBuilder();
+        for (Object listObject : listObjects) {
+            if (uuidString.length() > 0) {
+                uuidString.append(",");
+            }
+            if (listObject instanceof KintoObject) {
+                uuidString.append(((KintoObject) listObject).getUUID());
+            } else {
+                uuidString.append(listObject);
+            }
+        }
+        return uuidString.toString();
+    }
+
+    // check if the value of an attribute differs from the value in local datastore
+    private boolean isChanged(@NotNull Map<String, String> persistedValues, String attributeName, String value) {
+        if (!persistedValues.containsKey(attributeName)) {
+            return true;
+        }
+        return !Objects.equals(persistedValues.get(attributeName), value);
+    }
+
+    // the values of the attributes like saved in local datastore
+    private @NotNull Map<String, String> getPersistedValues(@NotNull KintoObject kintoObject) throws KintoException {
+        try {
+            Field persistedValuesAttribute = KintoObject.class.getDeclaredField("persistedValues");
+            persistedValuesAttribute.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            Map<String, String> persistedValues = (Map<String, String>) persistedValuesAttribute.get(kintoObject);
+            return persistedValues;
+        } catch (NoSuchFieldException | IllegalAccessException exception) {
+            String errorMessage = "Can't get the attribute 'persistedValues' using reflection.";
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
             throw new KintoException(errorMessage + ": " + exception.getMessage());
         }
     }
 
+    // check the attributes of the query, lists can't be used in queries
+    private void validateQuery(@NotNull KintoQuery query) throws KintoException {
+        for (KintoQuery.Condition condition : query.getConditions()) {
+            String attributeName = condition.getAttributeName();
+            if (!attributeName.equals("uuid")) {
+                DataSet dataSet = storableAttributes.get(attributeName);
+                if (dataSet == null || dataSet.isList()) {
+                    String errorMessage = "The attribute "
+                            + attributeName
+                            + " can't be used in a query for "
+                            + getName()
+                            + ".";
+                    throw new KintoException(errorMessage);
+                }
+            }
+        }
+    }
+
+    // get the value of a simple attribute from the row
+    private @Nullable Object readAttributeValue(@NotNull DataSet dataSet, @NotNull KintoRow resultSet) throws SQLException {
+        String attributeName = dataSet.getAttribute().getName();
+        Object value = null;
+        String attributeJavaTypeString = dataSet.getJavaDataTypeString();
+        switch (attributeJavaTypeString) {
+            case "boolean":
+                value = resultSet.getBoolean(attributeName);
+                break;
+            case "int":
+                value = resultSet.getInt(attributeName);
+                break;
+            case "long":
+                value = resultSet.getLong(attributeName);
+                break;
+            case "float":
+                value = resultSet.getFloat(attributeName);
+                break;
+            case "double":
+                value = resultSet.getDouble(attributeName);
+                break;
+            case "java.time.LocalDate":
+                value = resultSet.getDate(attributeName);
+                break;
+            case "java.lang.String":
+                value = resultSet.getString(attributeName);
+                break;
+        }
+        return value;
+    }
+
+    // the rows of the records in local datastore by uuid, queried in chunks
+    private @NotNull Map<String, KintoRow> findLocalRows(@NotNull Collection<String> uuidCollection) throws SQLException {
+        Map<String, KintoRow> rows = new HashMap<>(uuidCollection.size() * 2);
+        List<String> uuids = new ArrayList<>(uuidCollection);
+        for (int from = 0; from < uuids.size(); from += SYNC_QUERY_CHUNK_SIZE) {
+            List<String> chunk = uuids.subList(from, Math.min(uuids.size(), from + SYNC_QUERY_CHUNK_SIZE));
+            for (KintoRow row : storageEngine.find(getName(), new KintoQuery().in("uuid", chunk.toArray()))) {
+                rows.put(row.getString("uuid"), row);
+            }
+        }
+        return rows;
+    }
+
+    // an object changed in local datastore and remote kinto
+    private void logConflict(@NotNull String uuid) {
+        String logMessage = "The object "
+                + uuid
+                + " of collection "
+                + getName()
+                + " was changed in local datastore and remote kinto.";
+        kintoLogger.log(KintoLogger.WARNING, TAG, logMessage, null);
+    }
+
+    // the record is synced, if the record was not changed since the last sync
+    private boolean isSyncedRow(@NotNull KintoRow row) throws SQLException {
+        String syncedUSN = row.getString("syncedusn");
+        return syncedUSN != null && !syncedUSN.isEmpty() && row.getLong("syncedusn") == row.getLong("usn");
+    }
+
     private boolean isValidObjectType(@NotNull KintoObject kintoObject) {
         // object from collection type?
         return kintoObject.getClass().equals(type);
     }
 
-    private @NotNull KintoObject createObjectFromResultSet(KintoQueryResultSet resultSet) throws KintoException {
+    // for use in streams, the kinto exception is thrown again by the caller
+    private @NotNull T createObjectFromRowUnchecked(KintoRow row) {
+        try {
+            return createObjectFromRow(row);
+        } catch (KintoException exception) {
+            throw new HydrationException(exception);
+        }
+    }
+
+    // create an object from a row, the row must contain the uuid of all embedded objects
+    // uses no datastore access and can be called on any thread
+    private @NotNull T createObjectFromRow(KintoRow resultSet) throws KintoException {
         try {
             // create object from local datastore using reflection
             Constructor<? extends KintoObject> constructor = type.getConstructor();
@@ -881,10 +1630,22 @@ public class KintoCollection {
             Field uuid = KintoObject.class.getDeclaredField("uuid");
             uuid.setAccessible(true);
             uuid.set(kintoObject, resultSet.getString("uuid"));
+            // set the update sequence number
+            Field usn = KintoObject.class.getDeclaredField("usn");
+            usn.setAccessible(true);
+            usn.set(kintoObject, resultSet.getLong("usn"));
             // set the kinto id
             Field kintoid = KintoObject.class.getDeclaredField("kintoID");
             kintoid.setAccessible(true);
             kintoid.set(kintoObject, resultSet.getString("kintoid"));
+            // set the timestamp of remote kinto
+            Field lastModified = KintoObject.class.getDeclaredField("lastModified");
+            lastModified.setAccessible(true);
+            lastModified.set(kintoObject, resultSet.getLong("lastmodified"));
+            // the object is synced, if not changed since the last sync
+            Field isSynced = KintoObject.class.getDeclaredField("isSynced");
+            isSynced.setAccessible(true);
+            isSynced.set(kintoObject, isSyncedRow(resultSet));
             // set the other attributes
             for (String attributeName : storableAttributes.keySet()) {
                 DataSet dataSet = storableAttributes.get(attributeName);
@@ -897,7 +1658,7 @@ public class KintoCollection {
                         throw new KintoException("The superclass of the embedded object is not KintoObject.");
                     }
                     String embeddedKintoObjectUUID = resultSet.getString(attributeName);
-                    if (embeddedKintoObjectUUID.length() > 0) {
+                    if (embeddedKintoObjectUUID != null && embeddedKintoObjectUUID.length() > 0) {
                         // embedded object can be null
                         // create embedded object using reflection
                         //noinspection unchecked
@@ -934,8 +1695,6 @@ public class KintoCollection {
                     constructor = (Constructor<? extends KintoObject>) listObjectClass.getConstructor();
                     // get the uuid from relation table
                     String relationTableName = relationTables.get(attribute);
-                    // the name of the embedded object column uuid
-                    String uuidColumnName = listObjectClass.getSimpleName().toLowerCase(Locale.ROOT) + "uuid";
                     if (relationTableName == null) {
                         String errorMessage = "Can't find the relation table name of type '"
                                 + attributeName
@@ -943,15 +1702,10 @@ public class KintoCollection {
                         kintoLogger.log(KintoLogger.DEBUG, TAG, errorMessage, null);
                         throw new KintoException(errorMessage);
                     }
-                    String sql = "SELECT " + uuidColumnName
-                            + " FROM " + relationTableName
-                            + " WHERE " + getName().toLowerCase(Locale.ROOT) + "uuid='"
-                            + kintoObject.getUUID() + "';";
-                    KintoQueryResultSet uuidResultSet = dataBase.executeQuery(sql);
-                    while (uuidResultSet.next()) {
+                    for (String listObjectUUID : resultSet.getRelationUUIDs(relationTableName)) {
                         // create an object with uuid
                         KintoObject listKintoObject = constructor.newInstance();
-                        uuid.set(listKintoObject, uuidResultSet.getString(uuidColumnName));
+                        uuid.set(listKintoObject, listObjectUUID);
                         // set the use in relation flag
                         try {
                             Field attributeField = KintoObject.class.getDeclaredField("isUseInRelation");
@@ -975,30 +1729,7 @@ public class KintoCollection {
                     listField.set(kintoObject, embeddedObjectList);
                 } else {
                     // attributes
-                    String attributeJavaTypeString = dataSet.getJavaDataTypeString();
-                    switch (attributeJavaTypeString) {
-                        case "boolean":
-                            value = resultSet.getBoolean(attributeName);
-                            break;
-                        case "int":
-                            value = resultSet.getInt(attributeName);
-                            break;
-                        case "long":
-                            value = resultSet.getLong(attributeName);
-                            break;
-                        case "float":
-                            value = resultSet.getFloat(attributeName);
-                            break;
-                        case "double":
-                            value = resultSet.getDouble(attributeName);
-                            break;
-                        case "java.time.LocalDate":
-                            value = resultSet.getDate(attributeName);
-                            break;
-                        case "java.lang.String":
-                            value = resultSet.getString(attributeName);
-                            break;
-                    }
+                    value = readAttributeValue(dataSet, resultSet);
                 }
                 // set value to attribute
                 if (value != null) {
@@ -1006,11 +1737,22 @@ public class KintoCollection {
                     attribute.set(kintoObject, value);
                 }
             }
+            // the values from local datastore, to determine changes on update
+            Map<String, String> persistedValues = getPersistedValues(kintoObject);
+            for (String attributeName : storableAttributes.keySet()) {
+                DataSet dataSet = storableAttributes.get(attributeName);
+                if (dataSet.isList()) {
+                    String relationTableName = relationTables.get(dataSet.getAttribute());
+                    persistedValues.put(attributeName, buildUUIDString(resultSet.getRelationUUIDs(relationTableName)));
+                } else {
+                    persistedValues.put(attributeName, resultSet.getString(attributeName));
+                }
+            }
             // set the flag for local persistence
             Field isPersistentAttribute = KintoObject.class.getDeclaredField("isPersistent");
             isPersistentAttribute.setAccessible(true);
             isPersistentAttribute.set(kintoObject, true);
-            return kintoObject;
+            return type.cast(kintoObject);
         } catch (NoSuchMethodException exception) {
             // constructor not found
             String errorMessage = "The constructor was not found.";
@@ -1042,4 +1784,18 @@ public class KintoCollection {
             throw new KintoException(errorMessage + exception.getMessage());
         }
     }
+
+    // transports a kinto exception out of a stream
+    private static final class HydrationException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private HydrationException(KintoException exception) {
+            super(exception);
+        }
+
+        private KintoException getKintoException() {
+            return (KintoException) getCause();
+        }
+    }
 }
@@ -2,11 +2,10 @@ package de.hirola.kintojava;
 
 import de.hirola.kintojava.model.KintoObject;
 import de.hirola.kintojava.model.Persisted;
+import org.jetbrains.annotations.Nullable;
 
 import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.*;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
@@ -21,10 +20,32 @@ import java.util.Iterator;
  */
 public class KintoConfiguration {
 
+    /**
+     * The storage of the local datastore.
+     */
+    public enum StorageMode {
+        /** A file in the directory of the storage profile (default). */
+        FILE,
+        /** In memory, discarded on close. */
+        MEMORY,
+        /** A new temporary file, deleted on close. */
+        TEMPORARY_FILE
+    }
+
     private final String appPackageName;
     private final ArrayList<Class<? extends KintoObject>> objectTypes;
+    private final String kintoProtocol;
     private final String kintoServer;
     private final int kintoPort;
+    private final int hydrationParallelism;
+    private final int syncPageSize;
+    private final int syncPrefetchDepth;
+    private final int syncParallelism;
+    private final int syncCompressionThreshold;
+    private final StorageProfile storageProfile;
+    private final StorageMode storageMode;
+    private final StorageEngine storageEngine;
+    private final Map<String, String> shardPlacement;
 
     /**
      * Create a new kinto configuration with given builder.
@@ -35,8 +56,22 @@ public class KintoConfiguration {
         this.appPackageName = builder.appPackageName;
         this.objectTypes = builder.objectTypes;
         validateObjectList();
+        this.kintoProtocol = builder.kintoProtocol;
+        if (!kintoProtocol.equals("https") && !kintoProtocol.equals("http")) {
+            throw new KintoException("The protocol \"" + kintoProtocol + "\" is not supported.");
+        }
         this.kintoServer = builder.kintoServer;
         this.kintoPort = builder.kintoPort;
+        this.hydrationParallelism = builder.hydrationParallelism;
+        this.syncPageSize = builder.syncPageSize;
+        this.syncPrefetchDepth = builder.syncPrefetchDepth;
+        this.syncParallelism = builder.syncParallelism;
+        this.syncCompressionThreshold = builder.syncCompressionThreshold;
+        this.storageProfile = builder.storageProfile;
+        this.storageMode = builder.storageMode;
+        this.storageEngine = builder.storageEngine;
+        this.shardPlacement = Collections.unmodifiableMap(new HashMap<>(builder.shardPlacement));
+        validateShardPlacement();
     }
 
     /**
@@ -63,7 +98,88 @@ public class KintoConfiguration {
      * @return The base url for the kinto service.
      */
     public String getKintoURL() {
-        return "https://" + this.kintoServer + ":" + this.kintoPort + "/v1/";
+        return this.kintoProtocol + "://" + this.kintoServer + ":" + this.kintoPort + "/v1/";
+    }
+
+    /**
+     * Get the count of threads to create objects from large result sets.
+     *
+     * @return The parallelism for creating objects, 1 if the objects created on the calling thread.
+     */
+    public int getHydrationParallelism() {
+        return hydrationParallelism;
+    }
+
+    /**
+     * Get the count of records of a page loaded from remote kinto on a pull.
+     *
+     * @return The count of records of a page, 0 for the default of remote kinto.
+     */
+    public int getSyncPageSize() {
+        return syncPageSize;
+    }
+
+    /**
+     * Get the count of pages loaded from remote kinto while a page is saved on a pull.
+     *
+     * @return The count of pages loaded in advance, 0 if the pages loaded one after the other.
+     */
+    public int getSyncPrefetchDepth() {
+        return syncPrefetchDepth;
+    }
+
+    /**
+     * Get the count of collections pulled from remote kinto at the same time.
+     *
+     * @return The count of collections, 1 if the collections are pulled one after the other.
+     */
+    public int getSyncParallelism() {
+        return syncParallelism;
+    }
+
+    /**
+     * Get the size of the batch requests to remote kinto, from which the requests are sent compressed.
+     *
+     * @return The count of bytes of a request, 0 if the requests are sent uncompressed.
+     */
+    public int getSyncCompressionThreshold() {
+        return syncCompressionThreshold;
+    }
+
+    /**
+     * Get the settings of the local datastore.
+     *
+     * @return The storage profile for the local datastore.
+     */
+    public StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
+    /**
+     * Get the storage of the local datastore.
+     *
+     * @return The storage mode for the local datastore.
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Get the storage engine of the local datastore.
+     *
+     * @return The storage engine or null for the default engine (sqlite).
+     */
+    public @Nullable StorageEngine getStorageEngine() {
+        return storageEngine;
+    }
+
+    /**
+     * Get the placement of the collections in the shards of the local datastore.
+     *
+     * @return The name of the shard by name of the collection, empty if all collections are in one database.
+     */
+    public Map<String, String> getShardPlacement() {
+        return shardPlacement;
     }
 
     /**
@@ -73,14 +189,34 @@ public class KintoConfiguration {
 
         private String appPackageName;
         private ArrayList<Class<? extends KintoObject>> objectTypes;
+        private String kintoProtocol;
         private String kintoServer;
         private int kintoPort;
+        private int hydrationParallelism;
+        private int syncPageSize;
+        private int syncPrefetchDepth;
+        private int syncParallelism;
+        private int syncCompressionThreshold;
+        private StorageProfile storageProfile;
+        private StorageMode storageMode;
+        private StorageEngine storageEngine;
+        private final Map<String, String> shardPlacement;
 
         public Builder(String packageName) {
             this.appPackageName = packageName;  // get the bucket name from package name, e.g. com.myfirm.AppName
             objectTypes = new ArrayList<>(); // all types managed by kinto
+            kintoProtocol = "https"; // default protocol
             kintoServer = "localhost"; // default server
             kintoPort = 443; // default port
+            hydrationParallelism = 1; // create objects on the calling thread
+            syncPageSize = 0; // the page size of remote kinto
+            syncPrefetchDepth = 1; // load the next page while a page is saved
+            syncParallelism = 4; // pull independent collections at the same time
+            syncCompressionThreshold = 0; // send the batch requests uncompressed
+            storageProfile = StorageProfile.DURABLE; // default settings of the local datastore
+            storageMode = StorageMode.FILE; // the local datastore is kept
+            storageEngine = null; // sqlite with the storage profile and mode
+            shardPlacement = new HashMap<>(); // all collections in one database
         }
 
         public Builder objectTypes(ArrayList<Class<? extends KintoObject>> types) {
@@ -98,6 +234,143 @@ public class KintoConfiguration {
             return this;
         }
 
+        /**
+         * Set the protocol of the remote kinto, e.g. http for a kinto in a local network or for tests.
+         *
+         * @param protocol https (default) or http
+         * @return The builder.
+         */
+        public Builder kintoProtocol(String protocol) {
+            if (protocol != null) {
+                kintoProtocol = protocol.toLowerCase(Locale.ROOT);
+            }
+            return this;
+        }
+
+        /**
+         * Create the objects of large result sets in parallel.
+         * The rows are read on the calling thread, the objects are created
+         * with the given count of threads. The order of the result is not changed.
+         *
+         * @param parallelism count of threads, 1 or lower to disable
+         * @return The builder.
+         */
+        public Builder parallelHydration(int parallelism) {
+            hydrationParallelism = Math.max(1, parallelism);
+            return this;
+        }
+
+        /**
+         * Set the count of records of a page loaded from remote kinto on a pull (<code>_limit</code>).
+         * The remote kinto uses its maximum, if the count is higher.
+         *
+         * @param records count of records of a page, 0 or lower for the default of remote kinto
+         * @return The builder.
+         */
+        public Builder syncPageSize(int records) {
+            syncPageSize = Math.max(0, records);
+            return this;
+        }
+
+        /**
+         * Set the count of pages loaded from remote kinto while a page is saved in the local datastore on a pull.
+         * The loading of the next pages and the saving overlap, every page loaded in advance is held in memory.
+         *
+         * @param pages count of pages loaded in advance, 0 or lower to load the pages one after the other
+         * @return The builder.
+         */
+        public Builder syncPrefetchDepth(int pages) {
+            syncPrefetchDepth = Math.max(0, pages);
+            return this;
+        }
+
+        /**
+         * Set the count of collections pulled from remote kinto at the same time.
+         * A collection is pulled after the collections of its embedded objects and lists,
+         * independent collections are pulled in parallel over one connection (HTTP/2).
+         *
+         * @param collections count of collections, 1 or lower to pull the collections one after the other
+         * @return The builder.
+         */
+        public Builder syncParallelism(int collections) {
+            syncParallelism = Math.max(1, collections);
+            return this;
+        }
+
+        /**
+         * Send large batch requests to remote kinto compressed with gzip (<code>Content-Encoding</code>).
+         * The remote kinto must accept compressed requests, e.g. behind a proxy with decompression.
+         * The responses of remote kinto are always requested compressed (<code>Accept-Encoding</code>).
+         *
+         * @param bytes the size of a request from which the request is compressed, 0 or lower to disable
+         * @return The builder.
+         */
+        public Builder syncCompressionThreshold(int bytes) {
+            syncCompressionThreshold = Math.max(0, bytes);
+            return this;
+        }
+
+        /**
+         * Set the location and the settings of the local datastore,
+         * e.g. {@link StorageProfile#BULK_LOAD} for importing large data sets.
+         *
+         * @param profile settings of the local datastore
+         * @return The builder.
+         */
+        public Builder storageProfile(StorageProfile profile) {
+            if (profile != null) {
+                storageProfile = profile;
+            }
+            return this;
+        }
+
+        /**
+         * Store the local datastore in a file, in memory or in a temporary file.
+         * A datastore in memory or in a temporary file is discarded on {@link Kinto#close()},
+         * e.g. for tests or as working set of a job.
+         *
+         * @param mode storage of the local datastore
+         * @return The builder.
+         */
+        public Builder storageMode(StorageMode mode) {
+            if (mode != null) {
+                storageMode = mode;
+            }
+            return this;
+        }
+
+        /**
+         * Use another storage engine for the local datastore, e.g. {@link InMemoryStorageEngine}.
+         * The storage profile and the storage mode are only used for the default engine (sqlite).
+         * The engine is closed with {@link Kinto#close()}.
+         *
+         * @param engine for the local datastore, null for the default engine
+         * @return The builder.
+         */
+        public Builder storageEngine(StorageEngine engine) {
+            storageEngine = engine;
+            return this;
+        }
+
+        /**
+         * Place collections in an own database file (shard), e.g. to write logs and the catalog in parallel.
+         * Every shard has its own writer. The other collections are in the database of the app
+         * ({@link ShardedStorageEngine#DEFAULT_SHARD}).
+         * A list attribute (1:m relation) is stored in the shard of the collection with the list.
+         * The shards are not used with an own storage engine.
+         *
+         * @param shardName name of the shard, letters, digits and underscore
+         * @param types the types of the collections in the shard
+         * @return The builder.
+         */
+        @SafeVarargs
+        public final Builder shard(String shardName, Class<? extends KintoObject>... types) {
+            for (Class<? extends KintoObject> type : types) {
+                shardPlacement.put(type.getSimpleName(), shardName);
+            }
+            return this;
+        }
+
         public Builder appPackageName(String appPackageName) {
             this.appPackageName = appPackageName;
             return this;
@@ -112,6 +385,16 @@ public class KintoConfiguration {
         }
     }
 
+    // check the names of the shards, the names are used as schema names in sql statements
+    private void validateShardPlacement() throws KintoException {
+        for (String shardName : shardPlacement.values()) {
+            if (shardName == null || !shardName.matches("[A-Za-z_][A-Za-z0-9_]*")
+                    || shardName.equalsIgnoreCase("main") || shardName.equalsIgnoreCase("temp")) {
+                throw new KintoException("The shard name \"" + shardName + "\" is not valid.");
+            }
+        }
+    }
+
     // check if all attributes types in object list
     // use reflection to check attributes
     private void validateObjectList() throws KintoException {
@@ -0,0 +1,52 @@
+package de.hirola.kintojava;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Exception for a write of an outdated object. The object was changed or removed
+ * in the local datastore after it was loaded or saved. The object must be loaded again
+ * before the changes can be saved.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ *
+ */
+public class KintoConflictException extends KintoException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String uuid;
+    private final long expectedUSN;
+
+    /**
+     * Create an exception object for a conflict.
+     *
+     * @param message of the exception
+     * @param uuid of the outdated object
+     * @param expectedUSN the update sequence number of the outdated object
+     */
+    public KintoConflictException(String message, String uuid, long expectedUSN) {
+        super(message);
+        this.uuid = uuid;
+        this.expectedUSN = expectedUSN;
+    }
+
+    /**
+     * Get the uuid of the outdated object.
+     *
+     * @return The uuid of the object.
+     */
+    public String getUUID() {
+        return uuid;
+    }
+
+    /**
+     * Get the update sequence number of the outdated object.
+     *
+     * @return The update sequence number the object was loaded or saved with.
+     */
+    public long getExpectedUSN() {
+        return expectedUSN;
+    }
+}
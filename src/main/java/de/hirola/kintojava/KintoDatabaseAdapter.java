@@ -1,15 +1,40 @@
 package de.hirola.kintojava;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
  * This software us licensed under the AGPL-3.0 or later.
  *
  * The transparent access to the database on Android and JVM.
+ * <p>
+ * The adapter can be used from many threads. All writes use one connection,
+ * the writing thread holds the connection from the begin to the end of a transaction.
+ * A thread reads uncommitted changes from its own transaction.
+ * Reads of other threads use own connections and see the last committed state
+ * (write-ahead logging), so reads do not wait for writes.
+ * <p>
+ * The settings of the connections are taken from a {@link StorageProfile}.
+ * <p>
+ * A database in memory ({@link KintoConfiguration.StorageMode#MEMORY}) has no write-ahead logging,
+ * the connections for reading share the cache with the connection for writing and read uncommitted changes.
+ * A temporary file ({@link KintoConfiguration.StorageMode#TEMPORARY_FILE}) is deleted on close.
+ * <p>
+ * Other databases can be attached with {@link #attach(String, String)}, e.g. the shards of
+ * a {@link ShardedStorageEngine}, and used in queries with the schema name (<code>logs.Telemetry</code>).
  *
  * @author Michael Schmidt (Hirola)
  * @since 1.1.1
@@ -23,8 +48,26 @@ public class KintoDatabaseAdapter {
     // url for jdbc connection
     private final static String JDB_URL_PREFIX = "jdbc:sqlite:" ;
 
+    // the count of open connections for reading, kept for reuse
+    private final static int MAX_IDLE_READ_CONNECTIONS = 4;
+    // wait for locks of other connections (ms)
+    private final static int BUSY_TIMEOUT = 5000;
+    // unique names for databases in memory
+    private final static AtomicInteger MEMORY_DATABASE_COUNTER = new AtomicInteger();
+    // the default limit of attached databases in sqlite
+    private final static int MAX_ATTACHED_DATABASES = 10;
+
     private final Connection database; // we use the H2 as embedded database
+    private final String url; // to open connections for reading
+    private final String databasePath; // file or uri of the database, e.g. for attaching
+    private final Map<String, String> attachedDatabases; // schema name -> path of attached databases
+    private final StorageProfile storageProfile; // settings of all connections
+    private final KintoConfiguration.StorageMode storageMode; // file, memory or temporary file
+    private final File temporaryFile; // deleted on close, null if not a temporary file
+    private final ReentrantLock writeLock; // only one thread can use the connection for writing
+    private final Queue<Connection> readConnections; // idle connections for reading
     private final KintoLogger logger = KintoLogger.getInstance("debug-sql"); // log sql for debug
+    private volatile boolean isClosed;
 
     /**
      * Create an adapter to access to the local database on Android and JVM.
@@ -34,6 +77,54 @@ public class KintoDatabaseAdapter {
      * @throws KintoException if error occurred while creating / accessing the local database.
      */
     public KintoDatabaseAdapter(@NotNull String appPackageName) throws KintoException {
+        this(appPackageName, StorageProfile.DURABLE);
+    }
+
+    /**
+     * Create an adapter to access to the local database on Android and JVM
+     * with the settings of the given profile.
+     * The name of the app is used for the database name.
+     *
+     * @param appPackageName name of app
+     * @param storageProfile settings of the local database
+     * @throws KintoException if error occurred while creating / accessing the local database.
+     */
+    public KintoDatabaseAdapter(@NotNull String appPackageName, @NotNull StorageProfile storageProfile)
+            throws KintoException {
+        this(appPackageName, storageProfile, KintoConfiguration.StorageMode.FILE);
+    }
+
+    /**
+     * Create an adapter to access to the local database on Android and JVM
+     * with the settings of the given profile, in a file, in memory or in a temporary file.
+     * The name of the app is used for the database name.
+     *
+     * @param appPackageName name of app
+     * @param storageProfile settings of the local database
+     * @param storageMode where the local database is stored
+     * @throws KintoException if error occurred while creating / accessing the local database.
+     */
+    public KintoDatabaseAdapter(@NotNull String appPackageName, @NotNull StorageProfile storageProfile,
+                                @NotNull KintoConfiguration.StorageMode storageMode) throws KintoException {
+        this(appPackageName, storageProfile, storageMode, null);
+    }
+
+    /**
+     * Create an adapter to access to a shard of the local database on Android and JVM
+     * with the settings of the given profile, in a file, in memory or in a temporary file.
+     * The name of the app and the name of the shard are used for the database name, e.g. <code>AppName-logs</code>.
+     *
+     * @param appPackageName name of app
+     * @param storageProfile settings of the local database
+     * @param storageMode where the local database is stored
+     * @param shardName name of the shard, null for the database of the app
+     * @throws KintoException if error occurred while creating / accessing the local database.
+     */
+    public KintoDatabaseAdapter(@NotNull String appPackageName, @NotNull StorageProfile storageProfile,
+                                @NotNull KintoConfiguration.StorageMode storageMode,
+                                @Nullable String shardName) throws KintoException {
+        this.storageProfile = storageProfile;
+        this.storageMode = storageMode;
         String databasePath;
         String databaseName;
         if (appPackageName.contains(".")) {
@@ -41,24 +132,35 @@ public class KintoDatabaseAdapter {
         } else {
             databaseName = appPackageName;
         }
-        // build the path, determine if android or jvm
-        // see https://developer.android.com/reference/java/lang/System#getProperties()
-        try {
-            String vendor = System.getProperty("java.vm.vendor"); // can be null
-            if (vendor != null) {
-                if (vendor.equals("The Android Project")) {
-                    // path for local database on Android
-                    databasePath = "/data/data/" + appPackageName + "/" + databaseName + ".db";
-                } else {
-                    //  path for local database on JVM
-                    String userHomeDir = System.getProperty("user.home");
-                    databasePath = userHomeDir + File.separator + ".kinto-java" + File.separator + databaseName + ".db";
+        if (shardName != null) {
+            databaseName = databaseName + "-" + shardName;
+        }
+        switch (storageMode) {
+            case MEMORY:
+                // a named database in memory, all connections of this adapter share the cache
+                // the database exists as long as the connection for writing is open
+                databasePath = "file:kinto-" + databaseName + "-" + MEMORY_DATABASE_COUNTER.incrementAndGet()
+                        + "?mode=memory&cache=shared";
+                temporaryFile = null;
+                break;
+            case TEMPORARY_FILE:
+                // a new file, deleted on close
+                try {
+                    File directory = null;
+                    if (storageProfile.getLocation() != null) {
+                        directory = createDirectory(storageProfile.getLocation());
+                    }
+                    temporaryFile = File.createTempFile("kinto-" + databaseName + "-", ".db", directory);
+                    temporaryFile.deleteOnExit();
+                } catch (IOException | SecurityException exception) {
+                    throw new KintoException("Can't create a temporary file for the local datastore: "
+                            + exception.getMessage());
                 }
-            } else {
-                throw new KintoException("Could not determine the runtime environment.");
-            }
-        } catch (SecurityException exception){
-            throw new KintoException("Could not determine the runtime environment.");
+                databasePath = temporaryFile.getAbsolutePath();
+                break;
+            default:
+                databasePath = buildDatabasePath(appPackageName, databaseName, storageProfile);
+                temporaryFile = null;
         }
         // create or open local sqlite db
         // connect to an SQLite database (bucket) that does not exist, it automatically creates a new database
@@ -66,13 +168,30 @@ public class KintoDatabaseAdapter {
             // we use a jdbc compliant database on Android and JVM
             // register the driver
             Class.forName (JDBC_DRIVER);
-            String url = JDB_URL_PREFIX + databasePath;
+            this.databasePath = databasePath;
+            url = JDB_URL_PREFIX + databasePath;
             database = DriverManager.getConnection(url);
+            try (Statement statement = database.createStatement()) {
+                if (storageProfile.getPageSize() > 0) {
+                    // only used for a new database, must be set before the journal mode
+                    statement.execute("PRAGMA page_size=" + storageProfile.getPageSize() + ";");
+                }
+                if (storageMode != KintoConfiguration.StorageMode.MEMORY) {
+                    // with WAL readers and the writer do not block each other
+                    statement.execute("PRAGMA journal_mode=" + storageProfile.getJournalMode().name() + ";");
+                }
+                statement.execute("PRAGMA synchronous=" + storageProfile.getSynchronous().name() + ";");
+            }
+            applyConnectionSettings(database);
        } catch (ClassNotFoundException exception) {
             throw new KintoException("The JDBC driver was not found: " + exception.getMessage());
         } catch (SQLException exception) {
             throw new KintoException("Can't access the local datastore: " + exception.getMessage());
         }
+        writeLock = new ReentrantLock();
+        readConnections = new ConcurrentLinkedQueue<>();
+        attachedDatabases = new ConcurrentHashMap<>();
+        isClosed = false;
     }
 
     /**
@@ -86,11 +205,70 @@ public class KintoDatabaseAdapter {
         if (Global.DEBUG_SQL) {
             logger.log(KintoLogger.DEBUG,TAG, sql, null);
         }
-        database.createStatement().execute(sql);
+        writeLock.lock();
+        try (Statement statement = database.createStatement()) {
+            statement.execute(sql);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Execute a sql statement with placeholders.
+     *
+     * @param sql statement with placeholders (?) to be execute
+     * @param parameters the values of the placeholders
+     * @return The count of changed rows.
+     * @throws SQLException if an error occurred while accessing database
+     */
+    public int executeUpdate(String sql, Object... parameters) throws SQLException {
+        if (Global.DEBUG_SQL) {
+            logger.log(KintoLogger.DEBUG,TAG, sql, null);
+        }
+        writeLock.lock();
+        try (PreparedStatement statement = database.prepareStatement(sql)) {
+            for (int index = 0; index < parameters.length; index++) {
+                statement.setObject(index + 1, parameters[index]);
+            }
+            return statement.executeUpdate();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Execute a sql statement with placeholders once for every entry of the batch.
+     * The statement is prepared only once.
+     *
+     * @param sql statement with placeholders (?) to be execute
+     * @param batch the values of the placeholders for every execution
+     * @return The update counts of all executions.
+     * @throws SQLException if an error occurred while accessing database
+     */
+    public int[] executeBatch(String sql, List<Object[]> batch) throws SQLException {
+        if (Global.DEBUG_SQL) {
+            logger.log(KintoLogger.DEBUG,TAG, sql + " (batch of " + batch.size() + ")", null);
+        }
+        if (batch.isEmpty()) {
+            return new int[0];
+        }
+        writeLock.lock();
+        try (PreparedStatement statement = database.prepareStatement(sql)) {
+            for (Object[] parameters : batch) {
+                for (int index = 0; index < parameters.length; index++) {
+                    statement.setObject(index + 1, parameters[index]);
+                }
+                statement.addBatch();
+            }
+            return statement.executeBatch();
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     /**
      * A layer to execute a given query und returns the result of the query.
+     * The result set must be closed after use.
      *
      * @param sql query to be execute
      * @return The result of the given query
@@ -98,22 +276,51 @@ public class KintoDatabaseAdapter {
      * @see KintoQueryResultSet
      */
     public KintoQueryResultSet executeQuery(String sql) throws SQLException {
+        return executeQuery(sql, new Object[0]);
+    }
+
+    /**
+     * A layer to execute a given query with placeholders und returns the result of the query.
+     * The result set must be closed after use.
+     *
+     * @param sql query with placeholders (?) to be execute
+     * @param parameters the values of the placeholders
+     * @return The result of the given query
+     * @throws SQLException if an error occurred while accessing database
+     * @see KintoQueryResultSet
+     */
+    public KintoQueryResultSet executeQuery(String sql, Object... parameters) throws SQLException {
         //TODO check for inject sql?
         if (Global.DEBUG_SQL) {
             logger.log(KintoLogger.DEBUG,TAG, sql, null);
         }
-        Statement statement = database.createStatement();
-        ResultSet resultSet = statement.executeQuery(sql);
-        return new KintoQueryResultSet(resultSet);
+        if (writeLock.isHeldByCurrentThread()) {
+            // read the changes of the own transaction
+            return executeQuery(database, sql, parameters, null);
+        }
+        Connection connection = readConnections.poll();
+        if (connection == null) {
+            connection = openReadConnection();
+        }
+        Connection readConnection = connection;
+        return executeQuery(readConnection, sql, parameters, () -> releaseReadConnection(readConnection));
     }
 
     /**
      * A layer to begin a transaction.
+     * The connection for writing is locked for other threads until the end of the transaction.
+     * Every transaction must be completed with commit or rollback.
      *
      * @throws SQLException if an error occurred while accessing database
      */
     public void beginTransaction() throws SQLException {
-        database.setAutoCommit(false);
+        writeLock.lock();
+        try {
+            database.setAutoCommit(false);
+        } catch (SQLException exception) {
+            writeLock.unlock();
+            throw exception;
+        }
     }
 
     /**
@@ -122,6 +329,9 @@ public class KintoDatabaseAdapter {
      * @throws SQLException if an error occurred while accessing database
      */
     public void commit() throws SQLException {
+        if (!writeLock.isHeldByCurrentThread()) {
+            throw new SQLException("There is no transaction of this thread.");
+        }
         boolean errorOccurred = false;
         Exception commitException = null;
         try {
@@ -131,7 +341,11 @@ public class KintoDatabaseAdapter {
             errorOccurred = true;
         } finally {
             // default: transactions not used
-            database.setAutoCommit(true);
+            try {
+                database.setAutoCommit(true);
+            } finally {
+                writeLock.unlock();
+            }
         }
         if (errorOccurred) {
             throw new SQLException(commitException);
@@ -140,11 +354,23 @@ public class KintoDatabaseAdapter {
 
     /**
      * A layer to roll back a transaction.
+     * Without a transaction of the calling thread nothing happens.
      *
      * @throws SQLException if an error occurred while accessing database
      */
     public void rollback() throws SQLException {
-        database.rollback();
+        if (!writeLock.isHeldByCurrentThread()) {
+            return;
+        }
+        try {
+            database.rollback();
+        } finally {
+            try {
+                database.setAutoCommit(true);
+            } finally {
+                writeLock.unlock();
+            }
+        }
     }
 
     /**
@@ -161,12 +387,236 @@ public class KintoDatabaseAdapter {
     }
 
     /**
-     * Close the database.
+     * Get the profile with the settings of the local database.
+     *
+     * @return The storage profile used to open the database.
+     */
+    public StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
+    /**
+     * Get the storage of the local database.
+     *
+     * @return The mode used to open the database.
+     */
+    public KintoConfiguration.StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Get the path of the database, the uri for a database in memory.
+     *
+     * @return The path of the database, e.g. to attach the database to another adapter.
+     */
+    public String getDatabasePath() {
+        return databasePath;
+    }
+
+    /**
+     * Attach another database to all connections of this adapter. The tables of the database
+     * can be used in statements with the schema name, e.g. <code>SELECT * FROM logs.Telemetry;</code>.
+     *
+     * @param schemaName name of the database in statements, letters, digits and underscore
+     * @param path of the database, see {@link #getDatabasePath()}
+     * @throws SQLException if the name is not valid, too many databases are attached
+     * or an error occurred while accessing database
+     */
+    public void attach(@NotNull String schemaName, @NotNull String path) throws SQLException {
+        if (!schemaName.matches("[A-Za-z_][A-Za-z0-9_]*")
+                || schemaName.equalsIgnoreCase("main") || schemaName.equalsIgnoreCase("temp")) {
+            throw new SQLException("The schema name " + schemaName + " is not valid.");
+        }
+        if (attachedDatabases.size() >= MAX_ATTACHED_DATABASES) {
+            throw new SQLException("Too many attached databases, the limit is " + MAX_ATTACHED_DATABASES + ".");
+        }
+        writeLock.lock();
+        try {
+            attachDatabase(database, schemaName, path);
+            attachedDatabases.put(schemaName, path);
+        } finally {
+            writeLock.unlock();
+        }
+        // idle connections for reading are opened again with all attached databases
+        Connection connection;
+        while ((connection = readConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Read the actual settings of the local database, e.g. to check a storage profile.
+     * The settings are read from the connection for writing.
+     *
+     * @return The values of the pragmas page_size, cache_size, mmap_size, temp_store,
+     * journal_mode and synchronous.
+     * @throws SQLException if an error occurred while accessing database
+     */
+    public Map<String, String> readStorageSettings() throws SQLException {
+        String[] pragmas = {"page_size", "cache_size", "mmap_size", "temp_store", "journal_mode", "synchronous"};
+        Map<String, String> settings = new LinkedHashMap<>();
+        writeLock.lock();
+        try (Statement statement = database.createStatement()) {
+            for (String pragma : pragmas) {
+                try (ResultSet resultSet = statement.executeQuery("PRAGMA " + pragma + ";")) {
+                    settings.put(pragma, resultSet.next() ? resultSet.getString(1) : null);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return settings;
+    }
+
+    /**
+     * Close the database. A database in memory is discarded, a temporary file is deleted.
      *
      * @throws SQLException if an error occurred while closing database
      */
     public void close() throws SQLException {
-        database.close();
+        isClosed = true;
+        Connection connection;
+        while ((connection = readConnections.poll()) != null) {
+            connection.close();
+        }
+        writeLock.lock();
+        try {
+            database.close();
+        } finally {
+            writeLock.unlock();
+            if (temporaryFile != null) {
+                deleteTemporaryFiles();
+            }
+        }
+    }
+
+    // the path of the database file, determine if android or jvm
+    private static String buildDatabasePath(String appPackageName, String databaseName,
+                                            StorageProfile storageProfile) throws KintoException {
+        String databasePath;
+        // see https://developer.android.com/reference/java/lang/System#getProperties()
+        try {
+            String vendor = System.getProperty("java.vm.vendor"); // can be null
+            if (vendor != null) {
+                if (storageProfile.getLocation() != null) {
+                    // path from the storage profile
+                    File directory = createDirectory(storageProfile.getLocation());
+                    databasePath = directory.getAbsolutePath() + File.separator + databaseName + ".db";
+                } else if (vendor.equals("The Android Project")) {
+                    // path for local database on Android
+                    databasePath = "/data/data/" + appPackageName + "/" + databaseName + ".db";
+                } else {
+                    //  path for local database on JVM
+                    String userHomeDir = System.getProperty("user.home");
+                    databasePath = userHomeDir + File.separator + ".kinto-java" + File.separator + databaseName + ".db";
+                }
+            } else {
+                throw new KintoException("Could not determine the runtime environment.");
+            }
+        } catch (SecurityException exception){
+            throw new KintoException("Could not determine the runtime environment.");
+        }
+        return databasePath;
+    }
+
+    // the directory for the database, created if not exists
+    private static File createDirectory(String location) throws KintoException {
+        File directory = new File(location);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new KintoException("Can't create the directory for the local datastore: "
+                    + directory.getAbsolutePath());
+        }
+        return directory;
+    }
+
+    // execute a query, the action is executed after closing the result set
+    private KintoQueryResultSet executeQuery(Connection connection, String sql, Object[] parameters,
+                                             Runnable releaseAction) throws SQLException {
+        PreparedStatement statement = null;
+        try {
+            statement = connection.prepareStatement(sql);
+            for (int index = 0; index < parameters.length; index++) {
+                statement.setObject(index + 1, parameters[index]);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            return new KintoQueryResultSet(resultSet, releaseAction);
+        } catch (SQLException exception) {
+            if (statement != null) {
+                statement.close();
+            }
+            if (releaseAction != null) {
+                releaseAction.run();
+            }
+            throw exception;
+        }
+    }
+
+    // open an additional connection for reading
+    private Connection openReadConnection() throws SQLException {
+        if (isClosed) {
+            throw new SQLException("The local datastore is closed.");
+        }
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA query_only=true;");
+            if (storageMode == KintoConfiguration.StorageMode.MEMORY) {
+                // without write-ahead logging, a shared cache locks the tables of the writer
+                statement.execute("PRAGMA read_uncommitted=true;");
+            }
+        }
+        applyConnectionSettings(connection);
+        for (Map.Entry<String, String> attachedDatabase : attachedDatabases.entrySet()) {
+            attachDatabase(connection, attachedDatabase.getKey(), attachedDatabase.getValue());
+        }
+        return connection;
+    }
+
+    private static void attachDatabase(Connection connection, String schemaName, String path) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("ATTACH DATABASE ? AS " + schemaName + ";")) {
+            statement.setString(1, path);
+            statement.execute();
+        }
+    }
+
+    // the settings of the storage profile, valid only for the given connection
+    private void applyConnectionSettings(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT + ";");
+            if (storageProfile.getCacheSize() > 0) {
+                // negative values are the size in KiB, positive values the count of pages
+                statement.execute("PRAGMA cache_size=-" + storageProfile.getCacheSize() + ";");
+            }
+            statement.execute("PRAGMA mmap_size=" + storageProfile.getMmapSize() + ";");
+            statement.execute("PRAGMA temp_store=" + storageProfile.getTempStore().name() + ";");
+        }
+    }
+
+    // delete the temporary database with the journal files
+    private void deleteTemporaryFiles() {
+        String[] suffixes = {"", "-wal", "-shm", "-journal"};
+        for (String suffix : suffixes) {
+            File file = new File(temporaryFile.getAbsolutePath() + suffix);
+            if (file.exists() && !file.delete()) {
+                logger.log(KintoLogger.WARNING, TAG, "Can't delete the temporary file " + file + ".", null);
+            }
+        }
+    }
+
+    // give a connection for reading back, only some connections are kept
+    private void releaseReadConnection(Connection connection) {
+        try {
+            if (isClosed || readConnections.size() >= MAX_IDLE_READ_CONNECTIONS) {
+                connection.close();
+            } else {
+                readConnections.offer(connection);
+                // the adapter was closed in the meantime
+                if (isClosed && readConnections.remove(connection)) {
+                    connection.close();
+                }
+            }
+        } catch (SQLException exception) {
+            logger.log(KintoLogger.WARNING, TAG, "Can't close a connection for reading.", exception);
+        }
     }
 
 }
@@ -0,0 +1,161 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Changes of single attributes, executed in the local datastore with one statement.
+ * The object must not be loaded before and concurrent changes are not lost,
+ * e.g. for counters.
+ * Only simple attributes (no embedded objects or lists) can be changed.
+ *
+ * <pre>
+ *     // sell a book, if in stock
+ *     KintoFieldUpdate sell = new KintoFieldUpdate()
+ *             .decrement("numberInStock", 1)
+ *             .onlyIf(new KintoQuery().greaterThan("numberInStock", 0));
+ *     int changed = kinto.update(Book.class, uuid, sell);
+ * </pre>
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+public final class KintoFieldUpdate {
+
+    /**
+     * The kind of change for an attribute.
+     */
+    public enum Operation {INCREMENT, SET}
+
+    /**
+     * The change of an attribute.
+     */
+    public static final class Change {
+
+        private final String attributeName;
+        private final Operation operation;
+        private final Object value;
+
+        private Change(String attributeName, Operation operation, Object value) {
+            this.attributeName = attributeName;
+            this.operation = operation;
+            this.value = value;
+        }
+
+        /**
+         * Get the name of the changed attribute.
+         *
+         * @return The name of the attribute.
+         */
+        public String getAttributeName() {
+            return attributeName;
+        }
+
+        /**
+         * Get the kind of the change.
+         *
+         * @return The operation of the change.
+         */
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * Get the value of the change. For increments the value is added to the attribute value.
+         *
+         * @return The value of the change.
+         */
+        public Object getValue() {
+            return value;
+        }
+    }
+
+    private final List<Change> changes;
+    private KintoQuery condition;
+
+    /**
+     * Create an empty field update.
+     */
+    public KintoFieldUpdate() {
+        changes = new ArrayList<>();
+        condition = null;
+    }
+
+    /**
+     * Add a value to a numeric attribute.
+     *
+     * @param attributeName name of the attribute
+     * @param delta value to add
+     * @return The field update.
+     */
+    public KintoFieldUpdate increment(@NotNull String attributeName, @NotNull Number delta) {
+        changes.add(new Change(attributeName, Operation.INCREMENT, delta));
+        return this;
+    }
+
+    /**
+     * Subtract a value from a numeric attribute.
+     *
+     * @param attributeName name of the attribute
+     * @param delta value to subtract
+     * @return The field update.
+     */
+    public KintoFieldUpdate decrement(@NotNull String attributeName, @NotNull Number delta) {
+        Number negativeDelta;
+        if (delta instanceof Double || delta instanceof Float) {
+            negativeDelta = -delta.doubleValue();
+        } else {
+            negativeDelta = -delta.longValue();
+        }
+        changes.add(new Change(attributeName, Operation.INCREMENT, negativeDelta));
+        return this;
+    }
+
+    /**
+     * Set an attribute to a value.
+     *
+     * @param attributeName name of the attribute
+     * @param value new value of the attribute
+     * @return The field update.
+     */
+    public KintoFieldUpdate set(@NotNull String attributeName, @NotNull Object value) {
+        changes.add(new Change(attributeName, Operation.SET, value));
+        return this;
+    }
+
+    /**
+     * Execute the changes only, if the object fulfill the query.
+     *
+     * @param condition for the changes
+     * @return The field update.
+     */
+    public KintoFieldUpdate onlyIf(@NotNull KintoQuery condition) {
+        this.condition = condition;
+        return this;
+    }
+
+    /**
+     * Get all changes.
+     *
+     * @return The changes of the attributes. The list can be empty.
+     */
+    public List<Change> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * Get the condition for the changes.
+     *
+     * @return The condition for the changes or null, if the changes are executed always.
+     */
+    public @Nullable KintoQuery getCondition() {
+        return condition;
+    }
+}
@@ -0,0 +1,491 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Minimal json support for the messages of the kinto http api.
+ * Objects are parsed to maps (in order of the members), arrays to lists,
+ * integral numbers to Long, other numbers to Double.
+ * <p>
+ * Large texts, e.g. the records of a collection, can be read from a stream value by value
+ * ({@link #reader(InputStream)}) and written to a stream ({@link #write(Appendable, Object)}),
+ * without the whole text in memory.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+final class KintoJson {
+
+    // the count of chars read from the source at once
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer;
+    private int position; // in the buffer
+    private int limit; // count of chars in the buffer
+    private long offset; // count of chars before the buffer
+    private final BitSet firstElements; // the next member or element is the first, by depth
+    private int depth;
+
+    private KintoJson(@NotNull Reader reader) {
+        this.reader = reader;
+        buffer = new char[BUFFER_SIZE];
+        position = 0;
+        limit = 0;
+        offset = 0;
+        firstElements = new BitSet();
+        depth = 0;
+    }
+
+    /**
+     * Create a parser for a json text from a stream, e.g. the body of a response.
+     * The text is read in chunks, the values can be read one by one.
+     *
+     * @param input the json text, UTF-8 encoded
+     * @return The parser for the text.
+     */
+    static @NotNull KintoJson reader(@NotNull InputStream input) {
+        return new KintoJson(new InputStreamReader(input, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parse a json text.
+     *
+     * @param text the json text
+     * @return The value of the text: a map, a list, a string, a number, a boolean or null.
+     * @throws KintoException if the text is not valid json
+     */
+    static @Nullable Object parse(@NotNull String text) throws KintoException {
+        KintoJson parser = new KintoJson(new StringReader(text));
+        Object value = parser.readValue();
+        parser.endDocument();
+        return value;
+    }
+
+    /**
+     * Parse a json object.
+     *
+     * @param text the json text
+     * @return The members of the object.
+     * @throws KintoException if the text is not a valid json object
+     */
+    static @NotNull Map<String, Object> parseObject(@NotNull String text) throws KintoException {
+        Object value = parse(text);
+        if (!(value instanceof Map)) {
+            throw new KintoException("The response is not a json object.");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> members = (Map<String, Object>) value;
+        return members;
+    }
+
+    /**
+     * Append a value as json to a builder.
+     *
+     * @param builder for the json text
+     * @param value a map, a collection, a string, a number, a boolean or null
+     */
+    static void append(@NotNull StringBuilder builder, @Nullable Object value) {
+        try {
+            write(builder, value);
+        } catch (IOException exception) {
+            // a string builder throws no exception
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    /**
+     * Write a value as json, e.g. to a writer of a stream.
+     *
+     * @param out for the json text
+     * @param value a map, a collection, a string, a number, a boolean or null
+     * @throws IOException if the text can't be written
+     */
+    static void write(@NotNull Appendable out, @Nullable Object value) throws IOException {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value.toString());
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> member : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(out, String.valueOf(member.getKey()));
+                out.append(':');
+                write(out, member.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            out.append('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                write(out, element);
+            }
+            out.append(']');
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    /**
+     * Get a value as json text.
+     *
+     * @param value a map, a collection, a string, a number, a boolean or null
+     * @return The json text.
+     */
+    static @NotNull String toJson(@Nullable Object value) {
+        StringBuilder builder = new StringBuilder();
+        append(builder, value);
+        return builder.toString();
+    }
+
+    /**
+     * Write a string as json string with quotes.
+     *
+     * @param out for the json text
+     * @param value the string
+     * @throws IOException if the text can't be written
+     */
+    static void writeString(@NotNull Appendable out, @NotNull String value) throws IOException {
+        out.append('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+            String escape;
+            switch (character) {
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '\n':
+                    escape = "\\n";
+                    break;
+                case '\r':
+                    escape = "\\r";
+                    break;
+                case '\t':
+                    escape = "\\t";
+                    break;
+                default:
+                    escape = character < 0x20 ? String.format("\\u%04x", (int) character) : null;
+            }
+            if (escape != null) {
+                // the chars without escape at once
+                out.append(value, start, i).append(escape);
+                start = i + 1;
+            }
+        }
+        out.append(value, start, value.length()).append('"');
+    }
+
+    /**
+     * Read the begin of an object, the members are read with {@link #nextName()}.
+     *
+     * @throws KintoException if the next value is not an object
+     */
+    void beginObject() throws KintoException {
+        skipWhitespace();
+        if (peek() != '{') {
+            throw error("Expected {");
+        }
+        position++;
+        firstElements.set(++depth);
+    }
+
+    /**
+     * Read the name of the next member of an object, the value must be read or skipped before the next member.
+     *
+     * @return The name of the member or null at the end of the object.
+     * @throws KintoException if the text is not valid json
+     */
+    @Nullable String nextName() throws KintoException {
+        if (!hasNextElement('}')) {
+            return null;
+        }
+        if (peek() != '"') {
+            throw error("Expected a member name");
+        }
+        String name = readString();
+        skipWhitespace();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Read the begin of an array, the elements are read after {@link #hasNext()}.
+     *
+     * @throws KintoException if the next value is not an array
+     */
+    void beginArray() throws KintoException {
+        skipWhitespace();
+        if (peek() != '[') {
+            throw error("Expected [");
+        }
+        position++;
+        firstElements.set(++depth);
+    }
+
+    /**
+     * Check for a next element of an array, the element must be read or skipped before the next check.
+     *
+     * @return False at the end of the array.
+     * @throws KintoException if the text is not valid json
+     */
+    boolean hasNext() throws KintoException {
+        return hasNextElement(']');
+    }
+
+    /**
+     * Read the next value with all members or elements.
+     *
+     * @return The value: a map, a list, a string, a number, a boolean or null.
+     * @throws KintoException if the text is not valid json
+     */
+    @Nullable Object readValue() throws KintoException {
+        skipWhitespace();
+        char character = peek();
+        switch (character) {
+            case '{':
+                Map<String, Object> members = new LinkedHashMap<>();
+                beginObject();
+                String name;
+                while ((name = nextName()) != null) {
+                    members.put(name, readValue());
+                }
+                return members;
+            case '[':
+                List<Object> elements = new ArrayList<>();
+                beginArray();
+                while (hasNext()) {
+                    elements.add(readValue());
+                }
+                return elements;
+            case '"':
+                return readString();
+            case 't':
+                readLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                readLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                readLiteral("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    /**
+     * Skip the next value with all members or elements, without creating the values.
+     *
+     * @throws KintoException if the text is not valid json
+     */
+    void skipValue() throws KintoException {
+        skipWhitespace();
+        char character = peek();
+        if (character == '{') {
+            beginObject();
+            while (nextName() != null) {
+                skipValue();
+            }
+        } else if (character == '[') {
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+        } else if (character == '"') {
+            position++;
+            while ((character = next()) != '"') {
+                if (character == '\\') {
+                    next();
+                }
+            }
+        } else {
+            // number or literal
+            while (!isEndOfDocument() && "{}[],: \t\r\n\"".indexOf(buffer[position]) < 0) {
+                position++;
+            }
+        }
+    }
+
+    /**
+     * Check the end of the text after the last value.
+     *
+     * @throws KintoException if there is content after the last value
+     */
+    void endDocument() throws KintoException {
+        skipWhitespace();
+        if (!isEndOfDocument()) {
+            throw error("Unexpected content");
+        }
+    }
+
+    // check for a next member or element of the actual object or array
+    // the separator before the next member or element is read
+    private boolean hasNextElement(char end) throws KintoException {
+        skipWhitespace();
+        if (peek() == end) {
+            position++;
+            depth--;
+            return false;
+        }
+        if (firstElements.get(depth)) {
+            firstElements.clear(depth);
+        } else {
+            expect(',');
+            skipWhitespace();
+        }
+        return true;
+    }
+
+    private @NotNull String readString() throws KintoException {
+        position++; // "
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            // the chars without escape at once
+            int start = position;
+            while (position < limit && buffer[position] != '"' && buffer[position] != '\\') {
+                position++;
+            }
+            builder.append(buffer, start, position - start);
+            char character = next();
+            if (character == '"') {
+                return builder.toString();
+            }
+            if (character != '\\') {
+                builder.append(character);
+                continue;
+            }
+            character = next();
+            switch (character) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < hex.length; i++) {
+                        hex[i] = next();
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(new String(hex), 16));
+                    } catch (NumberFormatException exception) {
+                        throw error("Invalid unicode escape");
+                    }
+                    break;
+                default:
+                    // " \ /
+                    builder.append(character);
+            }
+        }
+    }
+
+    private @NotNull Number readNumber() throws KintoException {
+        long start = offset + position;
+        StringBuilder number = new StringBuilder();
+        boolean integral = true;
+        while (!isEndOfDocument()) {
+            char character = buffer[position];
+            if (character == '.' || character == 'e' || character == 'E') {
+                integral = false;
+            } else if (!(character == '-' || character == '+' || Character.isDigit(character))) {
+                break;
+            }
+            number.append(character);
+            position++;
+        }
+        try {
+            if (integral) {
+                return Long.parseLong(number.toString());
+            }
+            return Double.parseDouble(number.toString());
+        } catch (NumberFormatException exception) {
+            throw new KintoException("Invalid value in json at position " + start + ".");
+        }
+    }
+
+    private void readLiteral(@NotNull String literal) throws KintoException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (isEndOfDocument() || buffer[position] != literal.charAt(i)) {
+                throw error("Invalid value");
+            }
+            position++;
+        }
+    }
+
+    private void expect(char expected) throws KintoException {
+        if (next() != expected) {
+            throw error("Expected " + expected);
+        }
+    }
+
+    private char peek() throws KintoException {
+        if (isEndOfDocument()) {
+            throw error("Unexpected end");
+        }
+        return buffer[position];
+    }
+
+    private char next() throws KintoException {
+        char character = peek();
+        position++;
+        return character;
+    }
+
+    private void skipWhitespace() throws KintoException {
+        while (!isEndOfDocument() && Character.isWhitespace(buffer[position])) {
+            position++;
+        }
+    }
+
+    // read the next chunk of the text, if all chars of the buffer are read
+    private boolean isEndOfDocument() throws KintoException {
+        if (position < limit) {
+            return false;
+        }
+        try {
+            offset += limit;
+            position = 0;
+            limit = Math.max(0, reader.read(buffer, 0, buffer.length));
+        } catch (IOException exception) {
+            throw new KintoException("Can't read the json text: " + exception.getMessage());
+        }
+        return limit == 0;
+    }
+
+    private @NotNull KintoException error(@NotNull String message) {
+        return new KintoException(message + " in json at position " + (offset + position) + ".");
+    }
+}
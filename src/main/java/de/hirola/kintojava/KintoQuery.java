@@ -1,9 +1,10 @@
 package de.hirola.kintojava;
 
-import de.hirola.kintojava.model.KintoObject;
 import org.jetbrains.annotations.NotNull;
 
-import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -11,6 +12,15 @@ import java.util.List;
  * This software us licensed under the AGPL-3.0 or later.
  *
  * A query object can be used to get objects by a filter.
+ * All conditions of a query must be fulfilled (and).
+ * The conditions can only use simple attributes (no lists) and the uuid of the objects.
+ * Embedded objects (1:1 relations) are compared with the uuid of the embedded object.
+ *
+ * <pre>
+ *     KintoQuery query = new KintoQuery()
+ *             .greaterThan("price", 9.99)
+ *             .equalTo("title", "Test Book");
+ * </pre>
  *
  * @author Michael Schmidt (Hirola)
  * @since 0.1.0
@@ -18,24 +28,145 @@ import java.util.List;
  */
 public final class KintoQuery {
 
-    private final Connection localdbConnection;
+    /**
+     * The operators for comparing an attribute with values.
+     */
+    public enum Operator {
+        EQUAL("="),
+        NOT_EQUAL("<>"),
+        GREATER(">"),
+        GREATER_OR_EQUAL(">="),
+        LESS("<"),
+        LESS_OR_EQUAL("<="),
+        BETWEEN("BETWEEN"),
+        IN("IN");
+
+        private final String sqlOperator;
+
+        Operator(String sqlOperator) {
+            this.sqlOperator = sqlOperator;
+        }
+
+        /**
+         * Get the operator to use in sql statements.
+         *
+         * @return The sql operator.
+         */
+        public String getSqlOperator() {
+            return sqlOperator;
+        }
+    }
+
+    /**
+     * A condition of the query.
+     */
+    public static final class Condition {
+
+        private final String attributeName;
+        private final Operator operator;
+        private final List<Object> values;
+
+        private Condition(String attributeName, Operator operator, Object... values) {
+            this.attributeName = attributeName;
+            this.operator = operator;
+            this.values = Collections.unmodifiableList(Arrays.asList(values));
+        }
+
+        /**
+         * Get the name of the attribute to compare.
+         *
+         * @return The name of the attribute.
+         */
+        public String getAttributeName() {
+            return attributeName;
+        }
+
+        /**
+         * Get the operator for the comparison.
+         *
+         * @return The operator of the condition.
+         */
+        public Operator getOperator() {
+            return operator;
+        }
+
+        /**
+         * Get the values for the comparison. Between has two values, in can have many values.
+         *
+         * @return The values of the condition.
+         */
+        public List<Object> getValues() {
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return attributeName + " " + operator.getSqlOperator() + " " + values;
+        }
+    }
+
+    private final List<Condition> conditions;
+
+    /**
+     * Create a query without conditions, all objects fulfill the query.
+     */
+    public KintoQuery() {
+        conditions = new ArrayList<>();
+    }
 
-    public KintoQuery(@NotNull Connection localdbConnection) {
-        this.localdbConnection = localdbConnection;
+    public KintoQuery between(@NotNull String attributeName, @NotNull Object from, @NotNull Object to) {
+        conditions.add(new Condition(attributeName, Operator.BETWEEN, from, to));
+        return this;
     }
 
-    public static List<KintoObject> between(){return null;}
-    public static List<KintoObject> equalTo(){return null;}
-    public static List<KintoObject> greaterThan(){return null;}
-    public static List<KintoObject> in(){return null;}
-    public static List<KintoObject> lessThan(){return null;}
-    public static List<KintoObject> lessThanOrEqualTo(){return null;}
-    public static List<KintoObject> notEqualTo(){return null;}
+    public KintoQuery equalTo(@NotNull String attributeName, @NotNull Object value) {
+        conditions.add(new Condition(attributeName, Operator.EQUAL, value));
+        return this;
+    }
+
+    public KintoQuery greaterThan(@NotNull String attributeName, @NotNull Object value) {
+        conditions.add(new Condition(attributeName, Operator.GREATER, value));
+        return this;
+    }
+
+    public KintoQuery greaterThanOrEqualTo(@NotNull String attributeName, @NotNull Object value) {
+        conditions.add(new Condition(attributeName, Operator.GREATER_OR_EQUAL, value));
+        return this;
+    }
+
+    public KintoQuery in(@NotNull String attributeName, @NotNull Object... values) {
+        conditions.add(new Condition(attributeName, Operator.IN, values));
+        return this;
+    }
+
+    public KintoQuery lessThan(@NotNull String attributeName, @NotNull Object value) {
+        conditions.add(new Condition(attributeName, Operator.LESS, value));
+        return this;
+    }
+
+    public KintoQuery lessThanOrEqualTo(@NotNull String attributeName, @NotNull Object value) {
+        conditions.add(new Condition(attributeName, Operator.LESS_OR_EQUAL, value));
+        return this;
+    }
+
+    public KintoQuery notEqualTo(@NotNull String attributeName, @NotNull Object value) {
+        conditions.add(new Condition(attributeName, Operator.NOT_EQUAL, value));
+        return this;
+    }
+
+    /**
+     * Get the conditions of the query.
+     *
+     * @return The conditions of the query. The list can be empty.
+     */
+    public List<Condition> getConditions() {
+        return Collections.unmodifiableList(conditions);
+    }
 
     @Override
     public String toString() {
         return "KintoQuery{" +
-                "localdbConnection=" + localdbConnection +
+                "conditions=" + conditions +
                 '}';
     }
 }
@@ -0,0 +1,162 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.model.KintoObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Publish the objects of a query from local datastore (reactive streams).
+ * The rows are read from the cursor only if requested by the subscriber,
+ * the objects are not collected in a list. Every subscriber gets an own cursor.
+ * The objects are delivered on the thread calling {@link Flow.Subscription#request(long)}.
+ * The cursor is closed after the last object, on errors and on cancel.
+ * Embedded objects contain only the uuid, like the objects of {@link KintoCollection#findAll()}.
+ *
+ * @param <T> type of the published objects
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+final class KintoQueryPublisher<T extends KintoObject> implements Flow.Publisher<T> {
+
+    // the maximal count of rows read and converted at once
+    private static final int CHUNK_SIZE = 64;
+
+    private final KintoCollection<T> collection;
+    private final KintoQuery query;
+
+    KintoQueryPublisher(@NotNull KintoCollection<T> collection, @NotNull KintoQuery query) {
+        this.collection = collection;
+        this.query = query;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("The subscriber must not be null.");
+        }
+        QuerySubscription subscription = new QuerySubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    // the subscription with an own cursor
+    private final class QuerySubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand; // requested and not delivered objects
+        private final AtomicInteger workInProgress; // only one thread reads the cursor
+        private volatile boolean isCancelled;
+        private volatile Throwable invalidRequest;
+        private boolean isDone; // only used in drain
+        private StorageEngine.Cursor cursor; // only used in drain, opened on first request
+
+        QuerySubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            demand = new AtomicLong();
+            workInProgress = new AtomicInteger();
+            isCancelled = false;
+            isDone = false;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("The count of requested objects must be positive: " + n);
+            } else {
+                // add without overflow
+                demand.getAndUpdate(actual -> actual + n < 0 ? Long.MAX_VALUE : actual + n);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            isCancelled = true;
+            drain();
+        }
+
+        // deliver the requested objects, recursive calls from the subscriber only increase the work counter
+        private void drain() {
+            if (workInProgress.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!isDone) {
+                    if (isCancelled) {
+                        finish(null, false);
+                    } else if (invalidRequest != null) {
+                        finish(invalidRequest, true);
+                    } else {
+                        emit();
+                    }
+                }
+                missed = workInProgress.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        // read and deliver objects while requested
+        private void emit() {
+            try {
+                while (!isDone && !isCancelled && invalidRequest == null && demand.get() > 0) {
+                    if (cursor == null) {
+                        cursor = collection.openCursor(query);
+                    }
+                    int chunkSize = (int) Math.min(demand.get(), CHUNK_SIZE);
+                    List<KintoRow> rows = new ArrayList<>(chunkSize);
+                    boolean isExhausted = false;
+                    while (rows.size() < chunkSize) {
+                        if (!cursor.next()) {
+                            isExhausted = true;
+                            break;
+                        }
+                        rows.add(cursor.readRow());
+                    }
+                    for (T kintoObject : collection.createObjects(rows)) {
+                        if (isCancelled) {
+                            break;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(kintoObject);
+                    }
+                    if (isExhausted) {
+                        finish(null, !isCancelled);
+                    }
+                }
+            } catch (SQLException | KintoException exception) {
+                finish(exception instanceof KintoException ? exception : new KintoException(exception), true);
+            } catch (RuntimeException exception) {
+                finish(exception, true);
+            }
+        }
+
+        // close the cursor and send the terminal signal
+        private void finish(Throwable error, boolean signal) {
+            isDone = true;
+            if (cursor != null) {
+                try {
+                    cursor.close();
+                } catch (SQLException exception) {
+                    KintoLogger.getInstance(null).log(KintoLogger.WARNING,
+                            KintoQueryPublisher.class.getSimpleName(), "Can't close the cursor.", exception);
+                }
+                cursor = null;
+            }
+            if (signal) {
+                if (error == null) {
+                    subscriber.onComplete();
+                } else {
+                    subscriber.onError(error);
+                }
+            }
+        }
+    }
+}
@@ -1,22 +1,29 @@
 package de.hirola.kintojava;
 
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.LocalDate;
 import java.time.format.DateTimeParseException;
+import java.util.HashMap;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
  * This software us licensed under the AGPL-3.0 or later.
  *
  * A simple layer for a ResultSet to using with Android (Cursor) and JVM (ResultSet).
+ * The result set holds a connection of the local datastore and must be closed after use.
  *
  * @author Michael Schmidt (Hirola)
  * @since 1.1.1
  */
-public final class KintoQueryResultSet {
+public final class KintoQueryResultSet implements StorageEngine.Cursor {
 
     private final ResultSet resultSet;
+    private final Runnable releaseAction; // gives the connection back to the adapter, can be null
+    private String[] columnLabels; // read once from the metadata
+    private boolean isClosed;
 
     /**
      * Create an object for using in jvm.
@@ -24,7 +31,14 @@ public final class KintoQueryResultSet {
      * @param resultSet to use in this library
      */
     public KintoQueryResultSet(ResultSet resultSet) {
+        this(resultSet, null);
+    }
+
+    // create a result set, the action is executed after closing
+    KintoQueryResultSet(ResultSet resultSet, Runnable releaseAction) {
         this.resultSet = resultSet;
+        this.releaseAction = releaseAction;
+        isClosed = false;
     }
 
     /**
@@ -155,4 +169,55 @@ public final class KintoQueryResultSet {
                     + exception.getMessage());
         }
     }
+
+    /**
+     * Read all columns of the actual row. The row can be used after the cursor moved to the next row.
+     *
+     * @return The values of the actual row.
+     * @throws SQLException if the result set or the cursor is null
+     * @see KintoRow
+     */
+    public KintoRow readRow() throws SQLException {
+        if (resultSet == null) {
+            throw new SQLException("ResultSet must not be null.");
+        }
+        if (columnLabels == null) {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            columnLabels = new String[metaData.getColumnCount()];
+            for (int index = 0; index < columnLabels.length; index++) {
+                columnLabels[index] = metaData.getColumnLabel(index + 1);
+            }
+        }
+        HashMap<String, String> values = new HashMap<>(columnLabels.length * 2);
+        for (int index = 0; index < columnLabels.length; index++) {
+            values.put(columnLabels[index], resultSet.getString(index + 1));
+        }
+        return new KintoRow(values);
+    }
+
+    /**
+     * Close the result set and the statement. The connection is given back to the local datastore.
+     *
+     * @throws SQLException if an error occurred while closing the result set
+     */
+    @Override
+    public void close() throws SQLException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            if (resultSet != null) {
+                Statement statement = resultSet.getStatement();
+                resultSet.close();
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+        } finally {
+            if (releaseAction != null) {
+                releaseAction.run();
+            }
+        }
+    }
 }
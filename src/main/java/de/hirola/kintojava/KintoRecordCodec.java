@@ -0,0 +1,294 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.model.DataSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The conversion of the records of a collection between local datastore and remote kinto,
+ * created once from the attributes (data sets) of the collection.
+ * <p>
+ * The records of a list response are read from the stream of the response one by one
+ * and converted to the values of local datastore without the json objects of the records,
+ * unknown members are skipped. The objects are written as json from the values saved in local datastore.
+ * Embedded objects (1:1) are saved with the uuid, lists (1:m) with the uuid of all objects.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+final class KintoRecordCodec {
+
+    // the kind of the json value of an attribute
+    private enum ValueType {
+        TEXT, BOOLEAN, INTEGER, REAL, OBJECT, LIST
+    }
+
+    /**
+     * The receiver of the records read from a stream, e.g. the merge of the sync.
+     */
+    interface RecordHandler {
+
+        /**
+         * Handle a record of remote kinto.
+         *
+         * @param record the record with the values in the format of local datastore
+         * @throws KintoException if the record can't be handled, the reading is cancelled
+         */
+        void handle(@NotNull StorageEngine.RemoteRecord record) throws KintoException;
+    }
+
+    private final String collection;
+    private final Map<String, Attribute> attributes; // json member (attribute name) -> attribute
+
+    /**
+     * Create the codec of a collection.
+     *
+     * @param collection name of the collection
+     * @param dataSets the storable attributes of the collection by attribute name
+     * @param relations the relations (1:m) of the list attributes by attribute name
+     */
+    KintoRecordCodec(@NotNull String collection,
+                     @NotNull Map<String, DataSet> dataSets,
+                     @NotNull Map<String, StorageEngine.Relation> relations) {
+        this.collection = collection;
+        attributes = new LinkedHashMap<>();
+        for (Map.Entry<String, DataSet> entry : dataSets.entrySet()) {
+            DataSet dataSet = entry.getValue();
+            ValueType valueType;
+            if (dataSet.isList()) {
+                valueType = ValueType.LIST;
+            } else if (dataSet.isKintoObject()) {
+                valueType = ValueType.OBJECT;
+            } else {
+                switch (dataSet.getJavaDataTypeString()) {
+                    case "boolean":
+                        valueType = ValueType.BOOLEAN;
+                        break;
+                    case "int":
+                    case "long":
+                    case "java.time.LocalDateTime":
+                        valueType = ValueType.INTEGER;
+                        break;
+                    case "float":
+                    case "double":
+                        valueType = ValueType.REAL;
+                        break;
+                    default:
+                        valueType = ValueType.TEXT;
+                }
+            }
+            attributes.put(entry.getKey(), new Attribute(entry.getKey(), valueType, relations.get(entry.getKey())));
+        }
+    }
+
+    /**
+     * Read the records of a list response of remote kinto (<code>{"data": [...]}</code>) from a stream.
+     * Every record is handed to the handler as soon as it is read.
+     *
+     * @param input the body of the response
+     * @param handler the receiver of the records
+     * @throws KintoException if the response is not a list of records or the handler failed
+     */
+    void readRecords(@NotNull InputStream input, @NotNull RecordHandler handler) throws KintoException {
+        KintoJson json = KintoJson.reader(input);
+        boolean hasRecords = false;
+        json.beginObject();
+        String name;
+        while ((name = json.nextName()) != null) {
+            if (!name.equals("data")) {
+                json.skipValue();
+                continue;
+            }
+            hasRecords = true;
+            json.beginArray();
+            while (json.hasNext()) {
+                handler.handle(readRecord(json));
+            }
+        }
+        json.endDocument();
+        if (!hasRecords) {
+            throw new KintoException("The response of remote kinto contains no records.");
+        }
+    }
+
+    /**
+     * Write the record of an object as json object, with the values saved in local datastore.
+     *
+     * @param out for the json text
+     * @param persistedValues the values of the attributes like saved in local datastore
+     * @throws IOException if the text can't be written
+     */
+    void writeRecord(@NotNull Appendable out, @NotNull Map<String, String> persistedValues) throws IOException {
+        out.append('{');
+        boolean first = true;
+        for (Attribute attribute : attributes.values()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            KintoJson.writeString(out, attribute.name);
+            out.append(':');
+            String value = persistedValues.get(attribute.name);
+            if (attribute.valueType == ValueType.LIST) {
+                out.append('[');
+                if (value != null && !value.isEmpty()) {
+                    boolean firstUUID = true;
+                    for (String uuid : value.split(",")) {
+                        if (!firstUUID) {
+                            out.append(',');
+                        }
+                        firstUUID = false;
+                        KintoJson.writeString(out, uuid);
+                    }
+                }
+                out.append(']');
+            } else {
+                KintoJson.write(out, toRemoteValue(attribute, value));
+            }
+        }
+        out.append('}');
+    }
+
+    // read a record, the values of missing attributes are not changed
+    private @NotNull StorageEngine.RemoteRecord readRecord(@NotNull KintoJson json) throws KintoException {
+        String uuid = null;
+        long lastModified = 0;
+        boolean deleted = false;
+        String invalidAttribute = null;
+        Map<String, String> values = new LinkedHashMap<>();
+        Map<StorageEngine.Relation, List<String>> relationEntries = new LinkedHashMap<>();
+        json.beginObject();
+        String name;
+        while ((name = json.nextName()) != null) {
+            switch (name) {
+                case "id":
+                    Object id = json.readValue();
+                    uuid = id instanceof String ? (String) id : null;
+                    break;
+                case "last_modified":
+                    Object timestamp = json.readValue();
+                    lastModified = timestamp instanceof Number ? ((Number) timestamp).longValue() : 0;
+                    break;
+                case "deleted":
+                    deleted = Boolean.TRUE.equals(json.readValue());
+                    break;
+                default:
+                    Attribute attribute = attributes.get(name);
+                    if (attribute == null) {
+                        // not an attribute of the type, e.g. from another client
+                        json.skipValue();
+                    } else if (attribute.valueType == ValueType.LIST) {
+                        Object childUUIDs = json.readValue();
+                        List<String> uuids = new ArrayList<>();
+                        if (childUUIDs instanceof List) {
+                            for (Object childUUID : (List<?>) childUUIDs) {
+                                uuids.add(String.valueOf(childUUID));
+                            }
+                        }
+                        if (attribute.relation != null) {
+                            relationEntries.put(attribute.relation, uuids);
+                        }
+                    } else {
+                        Object value = json.readValue();
+                        String columnValue = toColumnValue(attribute, value);
+                        if (columnValue == null && value != null && invalidAttribute == null) {
+                            invalidAttribute = name;
+                        }
+                        values.put(name, columnValue);
+                    }
+            }
+        }
+        if (uuid == null) {
+            throw new KintoException("A record of the collection " + collection + " has no id.");
+        }
+        if (deleted) {
+            return new StorageEngine.RemoteRecord(uuid, lastModified, true, Collections.emptyMap(), Collections.emptyMap());
+        }
+        if (invalidAttribute != null) {
+            String errorMessage = "The value of attribute "
+                    + invalidAttribute
+                    + " in the record "
+                    + uuid
+                    + " of remote kinto has an invalid type.";
+            throw new KintoException(errorMessage);
+        }
+        return new StorageEngine.RemoteRecord(uuid, lastModified, false, values, relationEntries);
+    }
+
+    // convert a json value of a remote record to the value in local datastore, null for an invalid type
+    private static @Nullable String toColumnValue(@NotNull Attribute attribute, @Nullable Object value) {
+        if (attribute.valueType == ValueType.OBJECT) {
+            // the uuid of the embedded object
+            return value == null ? "" : String.valueOf(value);
+        }
+        if (value == null) {
+            return null;
+        }
+        switch (attribute.valueType) {
+            case BOOLEAN:
+                if (value instanceof Boolean) {
+                    return (Boolean) value ? "1" : "0";
+                }
+                break;
+            case INTEGER:
+                if (value instanceof Number) {
+                    return String.valueOf(((Number) value).longValue());
+                }
+                break;
+            case REAL:
+                if (value instanceof Number) {
+                    return String.valueOf(((Number) value).doubleValue());
+                }
+                break;
+            default:
+                if (value instanceof String) {
+                    return (String) value;
+                }
+        }
+        return null;
+    }
+
+    // convert a value in local datastore to the json value of a remote record
+    private static @Nullable Object toRemoteValue(@NotNull Attribute attribute, @Nullable String value) {
+        if (value == null || (attribute.valueType == ValueType.OBJECT && value.isEmpty())) {
+            return null;
+        }
+        try {
+            switch (attribute.valueType) {
+                case BOOLEAN:
+                    return value.equalsIgnoreCase("true")
+                            || (!value.equalsIgnoreCase("false") && Double.parseDouble(value) != 0);
+                case INTEGER:
+                    return Long.parseLong(value);
+                case REAL:
+                    return Double.parseDouble(value);
+                default:
+                    return value;
+            }
+        } catch (NumberFormatException exception) {
+            // not a number in local datastore, e.g. "true"
+            return value;
+        }
+    }
+
+    // an attribute of the collection with the kind of json value
+    private static final class Attribute {
+
+        private final String name;
+        private final ValueType valueType;
+        private final StorageEngine.Relation relation; // for lists only
+
+        private Attribute(@NotNull String name, @NotNull ValueType valueType, @Nullable StorageEngine.Relation relation) {
+            this.name = name;
+            this.valueType = valueType;
+            this.relation = relation;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A raw row from the local datastore, detached from the cursor.
+ * The values are read on the cursor thread and can be converted to
+ * objects later (and on other threads), without access to the datastore.
+ * The getters follow the conversion rules of {@link KintoQueryResultSet}.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+public final class KintoRow {
+
+    private final Map<String, String> values; // column label -> value
+    private final Map<String, List<String>> relationUUIDs; // relation table -> uuid of the embedded objects
+
+    /**
+     * Create a row with the given column values.
+     *
+     * @param values of the columns, the key is the label of the column
+     */
+    public KintoRow(@NotNull Map<String, String> values) {
+        this.values = values;
+        relationUUIDs = new HashMap<>();
+    }
+
+    /**
+     * Get the value for a given column name.
+     *
+     * @param columnLabel name of the column
+     * @return The string value of the row in column, can be null.
+     */
+    public String getString(String columnLabel) {
+        return values.get(columnLabel);
+    }
+
+    /**
+     * Get the value for a given column name.
+     *
+     * @param columnLabel name of the column
+     * @return The boolean value of the row in column, false if the column is null.
+     */
+    public boolean getBoolean(String columnLabel) {
+        String value = values.get(columnLabel);
+        if (value == null) {
+            return false;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        try {
+            return Double.parseDouble(value) != 0;
+        } catch (NumberFormatException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the value for a given column name.
+     *
+     * @param columnLabel name of the column
+     * @return The integer value of the row in column, 0 if the column is null.
+     * @throws SQLException if the column doesn't contain a number
+     */
+    public int getInt(String columnLabel) throws SQLException {
+        return (int) getLong(columnLabel);
+    }
+
+    /**
+     * Get the value for a given column name.
+     *
+     * @param columnLabel name of the column
+     * @return The long value of the row in column, 0 if the column is null.
+     * @throws SQLException if the column doesn't contain a number
+     */
+    public long getLong(String columnLabel) throws SQLException {
+        String value = values.get(columnLabel);
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException exception) {
+            return (long) parseDouble(columnLabel, value);
+        }
+    }
+
+    /**
+     * Get the value for a given column name.
+     *
+     * @param columnLabel name of the column
+     * @return The double value of the row in column, 0 if the column is null.
+     * @throws SQLException if the column doesn't contain a number
+     */
+    public double getDouble(String columnLabel) throws SQLException {
+        String value = values.get(columnLabel);
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        return parseDouble(columnLabel, value);
+    }
+
+    /**
+     * Get the value for a given column name.
+     *
+     * @param columnLabel name of the column
+     * @return The float value of the row in column, 0 if the column is null.
+     * @throws SQLException if the column doesn't contain a number
+     */
+    public float getFloat(String columnLabel) throws SQLException {
+        return (float) getDouble(columnLabel);
+    }
+
+    /**
+     * Get the value for a given column name.
+     *
+     * @param columnLabel name of the column
+     * @return The date value of the row in column.
+     * @throws SQLException if the column doesn't contain a validate format
+     */
+    public LocalDate getDate(String columnLabel) throws SQLException {
+        // save LocalDate as text in iso format
+        String isoLocalDateString = values.get(columnLabel);
+        try {
+            return LocalDate.parse(isoLocalDateString);
+        } catch (DateTimeParseException | NullPointerException exception) {
+            throw new SQLException("The column "
+                    + columnLabel
+                    + " doesn't contain a validate format: "
+                    + exception.getMessage());
+        }
+    }
+
+    /**
+     * Get the uuid of the embedded objects from a relation table (1:m relation).
+     *
+     * @param relationTable name of the relation table
+     * @return The list of uuid. The list can be empty.
+     */
+    public @NotNull List<String> getRelationUUIDs(String relationTable) {
+        List<String> uuidList = relationUUIDs.get(relationTable);
+        if (uuidList == null) {
+            return Collections.emptyList();
+        }
+        return uuidList;
+    }
+
+    /**
+     * Add the uuid of an embedded object from a relation table (1:m relation).
+     *
+     * @param relationTable name of the relation table
+     * @param uuid of the embedded object
+     */
+    public void addRelationUUID(String relationTable, String uuid) {
+        relationUUIDs.computeIfAbsent(relationTable, key -> new ArrayList<>()).add(uuid);
+    }
+
+    private double parseDouble(String columnLabel, String value) throws SQLException {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException exception) {
+            throw new SQLException("The column "
+                    + columnLabel
+                    + " doesn't contain a number: "
+                    + exception.getMessage());
+        }
+    }
+}
@@ -0,0 +1,1035 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.model.KintoObject;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The sync of the collections with the remote kinto (http api v1).
+ * Every collection of kinto java is a collection in the bucket of the app,
+ * the record id is the uuid of the object.
+ * <p>
+ * The pull loads only the records changed since the last pull, with the timestamp of the
+ * last pulled record (<code>_since</code>). The timestamp is saved for every collection
+ * in the local datastore (checkpoint), in the same transaction as the records.
+ * The records are read from the responses one by one (see {@link KintoRecordCodec}), the records of several
+ * pages are merged in one transaction by the storage engine (see {@link StorageEngine#mergeRemoteRecords}),
+ * the newer version of a record wins (last write wins). A record changed in local datastore since the last sync
+ * is not changed (conflict), the timestamp of the remote record is saved with the checkpoint for the push.
+ * A pull continues after the last saved transaction, if a pull was cancelled.
+ * The next pages (<code>Next-Page</code>) are loaded while a page is saved, the loading
+ * and the saving of the pages overlap (see {@link KintoConfiguration.Builder#syncPrefetchDepth}).
+ * A collection is pulled after the collections of its embedded objects and lists,
+ * independent collections are pulled at the same time (see {@link KintoConfiguration.Builder#syncParallelism}).
+ * <p>
+ * The push reads the local changes since the last push from the change journal of the local datastore
+ * (see {@link KintoChange}), the sequence number of the last pushed entry is saved for every collection.
+ * The changed objects are saved and the removed objects are deleted with batch requests (<code>/batch</code>),
+ * every batch contains as many records as the remote kinto allows (<code>batch_max_requests</code>).
+ * A record changed in remote kinto since the last sync is not overwritten or deleted by the sync,
+ * the object is reported as conflict (see {@link KintoSyncResult#getConflictUUIDs}). The journal entries
+ * of the conflicts are pushed again and the timestamp of the record in remote kinto is saved
+ * (from the pull or <code>details.existing</code> of the response), the next sync saves the local change
+ * in remote kinto.
+ * <p>
+ * The responses are requested compressed (gzip) and decompressed while the records are read,
+ * large batch requests can be sent compressed (see {@link KintoConfiguration.Builder#syncCompressionThreshold}).
+ * The sizes of the bodies before and after compression are counted in the {@link KintoSyncResult}.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+final class KintoSync {
+
+    private static final String TAG = KintoSync.class.getSimpleName();
+    // the key of the checkpoint of a collection in the metadata of local datastore
+    private static final String CHECKPOINT_METADATA_KEY_PREFIX = "sync.since.";
+    // the key of the sequence number of the last pushed journal entry of a collection
+    private static final String JOURNAL_METADATA_KEY_PREFIX = "sync.journal.";
+    // the key of the conflicts of a collection, not yet resolved by a push
+    private static final String CONFLICTS_METADATA_KEY_PREFIX = "sync.conflicts.";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(120);
+    // the default of kinto, if the server settings contain no value
+    private static final int DEFAULT_BATCH_MAX_REQUESTS = 25;
+    // the pulled records are saved in transactions of this count of records
+    private static final int MERGE_TRANSACTION_SIZE = 10000;
+
+    private final Kinto kinto;
+    private final URI kintoURI;
+    private final String bucket;
+    private final String authorization;
+    private final HttpClient httpClient;
+    private final ReentrantLock syncLock; // one sync at the same time
+    private volatile int batchMaxRequests; // the max count of requests in a batch, from the server settings
+    private final int pageSize; // the records of a page on a pull, 0 for the default of remote kinto
+    private final int prefetchDepth; // the pages loaded in advance on a pull
+    private final int parallelism; // the collections pulled at the same time
+    private final int compressionThreshold; // the size of compressed batch requests, 0 for no compression
+    private final KintoLogger kintoLogger;
+
+    /**
+     * Create the sync with a remote kinto.
+     *
+     * @param kinto the local datastore
+     * @param kintoURL the base url of the remote kinto, e.g. https://kinto.example.com:443/v1/
+     * @param bucket the name of the bucket
+     * @param credentials for the login to remote kinto
+     * @param pageSize the count of records of a page on a pull, 0 for the default of remote kinto
+     * @param prefetchDepth the count of pages loaded while a page is saved on a pull
+     * @param parallelism the count of collections pulled at the same time
+     * @param compressionThreshold the size of batch requests sent compressed, 0 for no compression
+     */
+    KintoSync(@NotNull Kinto kinto, @NotNull String kintoURL, @NotNull String bucket, @NotNull Credentials credentials,
+              int pageSize, int prefetchDepth, int parallelism, int compressionThreshold) {
+        this.kinto = kinto;
+        this.kintoURI = URI.create(kintoURL.endsWith("/") ? kintoURL : kintoURL + "/");
+        this.bucket = bucket;
+        authorization = "Basic " + Base64.getEncoder()
+                .encodeToString(credentials.getBasicAuthString().getBytes(StandardCharsets.UTF_8));
+        // the requests of the parallel pulls share one connection, if the remote kinto supports HTTP/2
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        syncLock = new ReentrantLock();
+        batchMaxRequests = DEFAULT_BATCH_MAX_REQUESTS;
+        this.pageSize = pageSize;
+        this.prefetchDepth = prefetchDepth;
+        this.parallelism = parallelism;
+        this.compressionThreshold = compressionThreshold;
+        kintoLogger = KintoLogger.getInstance(null);
+    }
+
+    /**
+     * Check the credentials with the remote kinto.
+     *
+     * @throws KintoException if the remote kinto is not available or the credentials are not valid
+     */
+    void login() throws KintoException {
+        HttpResponse<String> response = send(newRequest(kintoURI).GET());
+        if (response.statusCode() == 401 || response.statusCode() == 403) {
+            throw new KintoException("The login to the remote kinto failed, the credentials are not valid.");
+        }
+        checkStatus(response);
+        Map<String, Object> serverInfo = KintoJson.parseObject(response.body());
+        // the user is only in the response for valid credentials
+        if (!(serverInfo.get("user") instanceof Map)) {
+            throw new KintoException("The login to the remote kinto failed, the credentials are not accepted.");
+        }
+        Object settings = serverInfo.get("settings");
+        if (settings instanceof Map) {
+            Object maxRequests = ((Map<?, ?>) settings).get("batch_max_requests");
+            if (maxRequests instanceof Number && ((Number) maxRequests).intValue() > 0) {
+                batchMaxRequests = ((Number) maxRequests).intValue();
+            }
+        }
+        kintoLogger.log(KintoLogger.INFO, TAG, "Logged in to remote kinto " + kintoURI + ".", null);
+    }
+
+    /**
+     * Get the max count of requests in a batch request.
+     *
+     * @return The count from the settings of the remote kinto or the default of kinto.
+     */
+    int getBatchMaxRequests() {
+        return batchMaxRequests;
+    }
+
+    /**
+     * Load the changed records of the collections from remote kinto into local datastore
+     * and save the changed objects of local datastore in remote kinto.
+     *
+     * @param collections the collections to sync
+     * @return The counts of the synced records.
+     * @throws KintoException if the remote kinto is not available or the records can't be saved
+     */
+    @NotNull KintoSyncResult sync(@NotNull List<KintoCollection<?>> collections) throws KintoException {
+        KintoSyncResult result = new KintoSyncResult();
+        syncLock.lock();
+        try {
+            Map<KintoCollection<?>, Set<KintoCollection<?>>> dependencies = orderByDependencies(collections);
+            // the conflicts found by the pull are not resolved by the push of the same sync
+            Map<KintoCollection<?>, Map<String, Long>> knownConflicts = new HashMap<>();
+            for (KintoCollection<?> collection : dependencies.keySet()) {
+                knownConflicts.put(collection, getConflicts(collection));
+            }
+            pullCollections(dependencies, result);
+            // the objects are saved after the embedded objects
+            push(new ArrayList<>(dependencies.keySet()), knownConflicts, result);
+        } finally {
+            syncLock.unlock();
+        }
+        return result;
+    }
+
+    // the collections with the collections of the embedded objects and lists, a collection follows its dependencies
+    // for cyclic relations, the dependency closing the cycle is ignored
+    private @NotNull Map<KintoCollection<?>, Set<KintoCollection<?>>> orderByDependencies(
+            @NotNull List<KintoCollection<?>> collections) {
+        Map<KintoCollection<?>, Set<KintoCollection<?>>> orderedCollections = new LinkedHashMap<>();
+        Set<KintoCollection<?>> syncedCollections = new HashSet<>(collections);
+        Set<KintoCollection<?>> visiting = new HashSet<>();
+        for (KintoCollection<?> collection : collections) {
+            addWithDependencies(collection, syncedCollections, visiting, orderedCollections);
+        }
+        return orderedCollections;
+    }
+
+    private void addWithDependencies(@NotNull KintoCollection<?> collection,
+                                     @NotNull Set<KintoCollection<?>> syncedCollections,
+                                     @NotNull Set<KintoCollection<?>> visiting,
+                                     @NotNull Map<KintoCollection<?>, Set<KintoCollection<?>>> orderedCollections) {
+        if (orderedCollections.containsKey(collection) || !visiting.add(collection)) {
+            // already added or a cycle
+            return;
+        }
+        Set<KintoCollection<?>> dependencies = new LinkedHashSet<>();
+        for (KintoCollection<?> dependency : kinto.getDependencies(collection)) {
+            if (syncedCollections.contains(dependency) && !visiting.contains(dependency)) {
+                addWithDependencies(dependency, syncedCollections, visiting, orderedCollections);
+                dependencies.add(dependency);
+            }
+        }
+        visiting.remove(collection);
+        orderedCollections.put(collection, dependencies);
+    }
+
+    // pull the collections, independent collections at the same time
+    // a collection is pulled after its dependencies, e.g. the collections of the embedded objects
+    private void pullCollections(@NotNull Map<KintoCollection<?>, Set<KintoCollection<?>>> dependencies,
+                                 @NotNull KintoSyncResult result) throws KintoException {
+        if (parallelism <= 1 || dependencies.size() <= 1) {
+            for (KintoCollection<?> collection : dependencies.keySet()) {
+                pullCollection(collection, result);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, dependencies.size()));
+        try {
+            Map<KintoCollection<?>, CompletableFuture<Void>> pulls = new LinkedHashMap<>();
+            for (Map.Entry<KintoCollection<?>, Set<KintoCollection<?>>> entry : dependencies.entrySet()) {
+                // the dependencies are in the map before the collection
+                CompletableFuture<?>[] prerequisites = entry.getValue().stream()
+                        .map(pulls::get)
+                        .toArray(CompletableFuture[]::new);
+                KintoCollection<?> collection = entry.getKey();
+                pulls.put(collection, CompletableFuture.allOf(prerequisites)
+                        .thenRunAsync(() -> pullCollectionUnchecked(collection, result), executor));
+            }
+            CompletableFuture.allOf(pulls.values().toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException exception) {
+            if (exception.getCause() instanceof KintoException) {
+                throw (KintoException) exception.getCause();
+            }
+            throw new KintoException(exception);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // for use in futures, the kinto exception is thrown again by the caller
+    private void pullCollectionUnchecked(@NotNull KintoCollection<?> collection, @NotNull KintoSyncResult result) {
+        try {
+            pullCollection(collection, result);
+        } catch (KintoException exception) {
+            throw new CompletionException(exception);
+        }
+    }
+
+    // load the records changed since the checkpoint, page by page
+    private void pullCollection(@NotNull KintoCollection<?> collection,
+                                @NotNull KintoSyncResult result) throws KintoException {
+        String checkpointKey = CHECKPOINT_METADATA_KEY_PREFIX + collection.getName();
+        String since = kinto.getMetadata(checkpointKey);
+        long checkpoint = since == null ? 0 : Long.parseLong(since);
+        // oldest changes first, the checkpoint of every page is valid
+        StringBuilder query = new StringBuilder("_sort=last_modified");
+        if (since != null) {
+            query.append("&_since=").append(since);
+        }
+        if (pageSize > 0) {
+            query.append("&_limit=").append(pageSize);
+        }
+        URI firstPageURI = kintoURI.resolve("buckets/" + encode(bucket)
+                + "/collections/" + encode(collection.getName())
+                + "/records?" + query);
+        // the records are read from the responses one by one, several pages are saved in one transaction
+        // the next pages are loaded while a page is read and saved
+        PullBuffer pullBuffer = new PullBuffer(collection, checkpointKey, checkpoint, result);
+        try (PagePrefetch pages = new PagePrefetch(firstPageURI)) {
+            HttpResponse<InputStream> response;
+            while ((response = pages.next()) != null) {
+                try (InputStream body = openBody(response, result)) {
+                    if (response.statusCode() == 404) {
+                        // the collection not exists in remote kinto
+                        String logMessage = "The collection " + collection.getName() + " not exists in remote kinto.";
+                        kintoLogger.log(KintoLogger.DEBUG, TAG, logMessage, null);
+                        return;
+                    }
+                    checkStatus(response, body);
+                    collection.readRemoteRecords(body, pullBuffer);
+                } catch (IOException exception) {
+                    String errorMessage = "The response of remote kinto can't be read: " + exception.getMessage();
+                    kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                    throw new KintoException(errorMessage);
+                }
+            }
+        }
+        pullBuffer.flush();
+        collection.setSynced();
+        String logMessage = "Pulled collection " + collection.getName() + " until " + pullBuffer.checkpoint + ".";
+        kintoLogger.log(KintoLogger.DEBUG, TAG, logMessage, null);
+    }
+
+    // save the local changes of all collections since the last push with batch requests
+    // a change with a conflict known before the sync is based on the version of the record in remote kinto
+    private void push(@NotNull List<KintoCollection<?>> collections,
+                      @NotNull Map<KintoCollection<?>, Map<String, Long>> knownConflicts,
+                      @NotNull KintoSyncResult result) throws KintoException {
+        List<PushRequest> requests = new ArrayList<>();
+        Map<KintoCollection<?>, List<KintoChange>> pushedChanges = new LinkedHashMap<>();
+        Map<KintoCollection<?>, Map<String, Long>> conflicts = new LinkedHashMap<>();
+        for (KintoCollection<?> collection : collections) {
+            List<KintoChange> changes = collection.readChanges(getJournalSeq(collection));
+            if (changes.isEmpty()) {
+                continue;
+            }
+            pushedChanges.put(collection, changes);
+            // the conflicts of previous syncs and of the pull
+            conflicts.put(collection, getConflicts(collection));
+            Map<String, Long> collectionConflicts = knownConflicts.getOrDefault(collection, Collections.emptyMap());
+            // the changes pulled from remote kinto are not pushed
+            List<String> changedUUIDs = new ArrayList<>();
+            List<KintoChange> tombstones = new ArrayList<>();
+            for (KintoChange change : changes) {
+                if (change.isRemote()) {
+                    continue;
+                }
+                if (change.getOperation() != KintoChange.Operation.DELETE) {
+                    changedUUIDs.add(change.getUUID());
+                } else if (change.getKintoID() != null) {
+                    // objects never synced are not in remote kinto
+                    tombstones.add(change);
+                }
+            }
+            List<? extends KintoObject> objects = collection.findUnsynced(changedUUIDs);
+            if (objects.isEmpty() && tombstones.isEmpty()) {
+                continue;
+            }
+            String collectionPath = "/buckets/" + encode(bucket) + "/collections/" + encode(collection.getName());
+            if (!collection.isSynced()) {
+                // create the bucket and the collection, if not exists
+                requests.add(new PushRequest(collection, null, null, "/buckets/" + encode(bucket), true, 0));
+                requests.add(new PushRequest(collection, null, null, collectionPath, true, 0));
+            }
+            for (KintoObject kintoObject : objects) {
+                requests.add(new PushRequest(collection, kintoObject, null,
+                        collectionPath + "/records/" + encode(kintoObject.getUUID()), false,
+                        getBaseTimestamp(collectionConflicts, kintoObject.getUUID(), kintoObject.getLastModified())));
+            }
+            for (KintoChange tombstone : tombstones) {
+                requests.add(new PushRequest(collection, null, tombstone,
+                        collectionPath + "/records/" + encode(tombstone.getUUID()), false,
+                        getBaseTimestamp(collectionConflicts, tombstone.getUUID(), tombstone.getLastModified())));
+            }
+        }
+        int batchSize = batchMaxRequests;
+        for (int from = 0; from < requests.size(); from += batchSize) {
+            pushBatch(requests.subList(from, Math.min(requests.size(), from + batchSize)), conflicts, result);
+        }
+        for (Map.Entry<KintoCollection<?>, List<KintoChange>> collectionChanges : pushedChanges.entrySet()) {
+            savePushState(collectionChanges.getKey(), collectionChanges.getValue(),
+                    conflicts.get(collectionChanges.getKey()));
+        }
+    }
+
+    // save the sequence number of the last pushed journal entry and the conflicts of a collection
+    // the journal entries from the first conflict are read again by the next push
+    private void savePushState(@NotNull KintoCollection<?> collection,
+                               @NotNull List<KintoChange> changes,
+                               @NotNull Map<String, Long> conflicts) throws KintoException {
+        long journalSeq = changes.get(changes.size() - 1).getSeq();
+        Set<String> changedUUIDs = new HashSet<>();
+        for (KintoChange change : changes) {
+            if (change.isRemote()) {
+                continue;
+            }
+            changedUUIDs.add(change.getUUID());
+            if (conflicts.containsKey(change.getUUID()) && change.getSeq() <= journalSeq) {
+                journalSeq = change.getSeq() - 1;
+            }
+        }
+        // a conflict without local change is resolved by a pull or was removed in remote kinto
+        conflicts.keySet().retainAll(changedUUIDs);
+        try {
+            kinto.setMetadata(JOURNAL_METADATA_KEY_PREFIX + collection.getName(), String.valueOf(journalSeq));
+            kinto.setMetadata(CONFLICTS_METADATA_KEY_PREFIX + collection.getName(), formatConflicts(conflicts));
+        } catch (SQLException exception) {
+            String errorMessage = "Error occurred while saving the push state: " + exception.getMessage();
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage);
+        }
+    }
+
+    // the sequence number of the last pushed journal entry of a collection
+    private long getJournalSeq(@NotNull KintoCollection<?> collection) {
+        String journalSeq = kinto.getMetadata(JOURNAL_METADATA_KEY_PREFIX + collection.getName());
+        return journalSeq == null ? 0 : Long.parseLong(journalSeq);
+    }
+
+    // the conflicts of a collection, the uuid of the object with the timestamp of the record in remote kinto
+    private @NotNull Map<String, Long> getConflicts(@NotNull KintoCollection<?> collection) {
+        return parseConflicts(kinto.getMetadata(CONFLICTS_METADATA_KEY_PREFIX + collection.getName()));
+    }
+
+    // the conflicts from the value in the metadata of local datastore (uuid=timestamp,...)
+    static @NotNull Map<String, Long> parseConflicts(@Nullable String conflictsValue) {
+        Map<String, Long> conflicts = new LinkedHashMap<>();
+        if (conflictsValue != null && !conflictsValue.isEmpty()) {
+            for (String conflict : conflictsValue.split(",")) {
+                int separator = conflict.lastIndexOf('=');
+                conflicts.put(conflict.substring(0, separator), Long.parseLong(conflict.substring(separator + 1)));
+            }
+        }
+        return conflicts;
+    }
+
+    // the value of the conflicts in the metadata of local datastore
+    static @NotNull String formatConflicts(@NotNull Map<String, Long> conflicts) {
+        StringBuilder conflictsValue = new StringBuilder();
+        for (Map.Entry<String, Long> conflict : conflicts.entrySet()) {
+            if (conflictsValue.length() > 0) {
+                conflictsValue.append(',');
+            }
+            conflictsValue.append(conflict.getKey()).append('=').append(conflict.getValue());
+        }
+        return conflictsValue.toString();
+    }
+
+    // the timestamp of the record in remote kinto for the condition of the push
+    // a change with a conflict is based on the version of remote kinto, the local change wins
+    private static long getBaseTimestamp(@NotNull Map<String, Long> conflicts, @NotNull String uuid,
+                                         long lastModified) {
+        Long remoteLastModified = conflicts.get(uuid);
+        return remoteLastModified != null && remoteLastModified > 0 ? remoteLastModified : lastModified;
+    }
+
+    // send a batch request and save the results in local datastore and in the objects
+    // the conflicts of the collections are resolved by the saved records and completed by the rejected records
+    private void pushBatch(@NotNull List<PushRequest> requests,
+                           @NotNull Map<KintoCollection<?>, Map<String, Long>> openConflicts,
+                           @NotNull KintoSyncResult result) throws KintoException {
+        BatchBody batchBody = new BatchBody(compressionThreshold);
+        writeBatch(batchBody, requests);
+        byte[] transferredBody = batchBody.toByteArray();
+        HttpRequest.Builder batchRequest = newRequest(kintoURI.resolve("batch"))
+                .header("Content-Type", "application/json");
+        if (batchBody.isCompressed()) {
+            batchRequest.header("Content-Encoding", "gzip");
+        }
+        HttpResponse<String> response = send(batchRequest.POST(HttpRequest.BodyPublishers.ofByteArray(transferredBody)),
+                textBody(result));
+        result.addSent(batchBody.getSize(), transferredBody.length);
+        checkStatus(response);
+        result.addBatchRequest();
+        Object responses = KintoJson.parseObject(response.body()).get("responses");
+        if (!(responses instanceof List) || ((List<?>) responses).size() != requests.size()) {
+            throw new KintoException("The batch response of remote kinto doesn't match the requests.");
+        }
+        // the responses in order of the requests
+        Map<KintoCollection<?>, Map<KintoObject, Long>> pushedObjects = new LinkedHashMap<>();
+        Map<KintoCollection<?>, List<String>> conflicts = new LinkedHashMap<>();
+        Map<KintoCollection<?>, Integer> deletes = new LinkedHashMap<>();
+        for (int index = 0; index < requests.size(); index++) {
+            PushRequest request = requests.get(index);
+            Object requestResponse = ((List<?>) responses).get(index);
+            int status = 0;
+            Object body = null;
+            if (requestResponse instanceof Map) {
+                Object statusValue = ((Map<?, ?>) requestResponse).get("status");
+                status = statusValue instanceof Number ? ((Number) statusValue).intValue() : 0;
+                body = ((Map<?, ?>) requestResponse).get("body");
+            }
+            pushedObjects.computeIfAbsent(request.collection, key -> new LinkedHashMap<>());
+            conflicts.computeIfAbsent(request.collection, key -> new ArrayList<>());
+            deletes.putIfAbsent(request.collection, 0);
+            if (request.createOnly) {
+                // an existing bucket or collection is not a failure
+                if ((status < 200 || status >= 300) && status != 412) {
+                    String errorMessage = "Creating " + request.path + " in remote kinto failed with status " + status + ".";
+                    kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, null);
+                    throw new KintoException(errorMessage);
+                }
+                request.collection.setSynced();
+            } else if (request.tombstone != null && (status == 200 || status == 404)) {
+                // a record deleted in remote kinto too is not a failure
+                if (status == 200) {
+                    deletes.merge(request.collection, 1, Integer::sum);
+                }
+                openConflicts.get(request.collection).remove(request.tombstone.getUUID());
+            } else if (request.kintoObject != null && (status == 200 || status == 201)) {
+                Object data = body instanceof Map ? ((Map<?, ?>) body).get("data") : null;
+                Object lastModified = data instanceof Map ? ((Map<?, ?>) data).get("last_modified") : null;
+                if (!(lastModified instanceof Number)) {
+                    throw new KintoException("The response for " + request.path + " contains no timestamp.");
+                }
+                pushedObjects.get(request.collection).put(request.kintoObject, ((Number) lastModified).longValue());
+                openConflicts.get(request.collection).remove(request.kintoObject.getUUID());
+            } else if (status == 412) {
+                // changed in remote kinto since the last sync
+                String logMessage = "The object "
+                        + request.getUUID()
+                        + " of collection "
+                        + request.collection.getName()
+                        + " was changed in local datastore and remote kinto.";
+                kintoLogger.log(KintoLogger.WARNING, TAG, logMessage, null);
+                conflicts.get(request.collection).add(request.getUUID());
+                openConflicts.get(request.collection).put(request.getUUID(),
+                        getExistingLastModified(body, request.lastModified));
+            } else {
+                String errorMessage = "Saving "
+                        + request.path
+                        + " in remote kinto failed with status "
+                        + status
+                        + ": "
+                        + (body instanceof Map ? ((Map<?, ?>) body).get("message") : body);
+                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, null);
+                throw new KintoException(errorMessage);
+            }
+        }
+        for (Map.Entry<KintoCollection<?>, Map<KintoObject, Long>> collectionObjects : pushedObjects.entrySet()) {
+            KintoCollection<?> collection = collectionObjects.getKey();
+            collection.applyPushResults(collectionObjects.getValue());
+            result.addPushed(collection.getName(), collectionObjects.getValue().size() + deletes.get(collection),
+                    conflicts.get(collection));
+        }
+    }
+
+    // the timestamp of the record in remote kinto from the response of a conflict (details.existing)
+    // the timestamp of the request, if the response contains no record
+    private static long getExistingLastModified(@Nullable Object body, long lastModified) {
+        Object details = body instanceof Map ? ((Map<?, ?>) body).get("details") : null;
+        Object existing = details instanceof Map ? ((Map<?, ?>) details).get("existing") : null;
+        Object existingLastModified = existing instanceof Map ? ((Map<?, ?>) existing).get("last_modified") : null;
+        return existingLastModified instanceof Number ? ((Number) existingLastModified).longValue() : lastModified;
+    }
+
+    // write the body of a batch request, the records are written from the values of the objects
+    private void writeBatch(@NotNull OutputStream output, @NotNull List<PushRequest> requests) throws KintoException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+            writer.write("{\"defaults\":{\"method\":\"PUT\"},\"requests\":[");
+            for (int index = 0; index < requests.size(); index++) {
+                if (index > 0) {
+                    writer.write(',');
+                }
+                requests.get(index).writeBatchRequest(writer);
+            }
+            writer.write("]}");
+        } catch (IOException exception) {
+            String errorMessage = "Can't write the batch request: " + exception.getMessage();
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage);
+        }
+    }
+
+    // a request to remote kinto with the credentials
+    private @NotNull HttpRequest.Builder newRequest(@NotNull URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", authorization)
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip");
+    }
+
+    // send a request to remote kinto
+    private @NotNull HttpResponse<String> send(@NotNull HttpRequest.Builder request) throws KintoException {
+        return send(request, textBody(null));
+    }
+
+    // send a request to remote kinto, e.g. with the body as stream
+    private <T> @NotNull HttpResponse<T> send(@NotNull HttpRequest.Builder request,
+                                              @NotNull HttpResponse.BodyHandler<T> bodyHandler) throws KintoException {
+        try {
+            return httpClient.send(request.build(), bodyHandler);
+        } catch (IOException exception) {
+            String errorMessage = "The remote kinto " + kintoURI + " is not available: " + exception.getMessage();
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage);
+        } catch (UncheckedIOException exception) {
+            String errorMessage = "The response of remote kinto can't be read: " + exception.getCause().getMessage();
+            kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+            throw new KintoException(errorMessage);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new KintoException(exception);
+        }
+    }
+
+    // the body of a response as text, decompressed if encoded with gzip
+    private @NotNull HttpResponse.BodyHandler<String> textBody(@Nullable KintoSyncResult result) {
+        return responseInfo -> HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(),
+                bytes -> {
+                    try (InputStream body = new ResponseBody(new ByteArrayInputStream(bytes),
+                            isGzipEncoded(responseInfo.headers()), result)) {
+                        return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                    } catch (IOException exception) {
+                        throw new UncheckedIOException(exception);
+                    }
+                });
+    }
+
+    // the body of a response as stream, decompressed while reading if encoded with gzip
+    private @NotNull InputStream openBody(@NotNull HttpResponse<InputStream> response,
+                                          @Nullable KintoSyncResult result) throws IOException {
+        try {
+            return new ResponseBody(response.body(), isGzipEncoded(response.headers()), result);
+        } catch (IOException exception) {
+            response.body().close();
+            throw exception;
+        }
+    }
+
+    private static boolean isGzipEncoded(@NotNull HttpHeaders headers) {
+        return headers.firstValue("Content-Encoding").map(encoding -> encoding.equalsIgnoreCase("gzip")).orElse(false);
+    }
+
+    // check the http status of a response with the body as stream, the body is read only for an error
+    private void checkStatus(@NotNull HttpResponse<?> response, @NotNull InputStream body) throws KintoException {
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            String text;
+            try {
+                text = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException exception) {
+                text = exception.getMessage();
+            }
+            failed(response, text);
+        }
+    }
+
+    // check the http status of a response
+    private void checkStatus(@NotNull HttpResponse<?> response) throws KintoException {
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            failed(response, String.valueOf(response.body()));
+        }
+    }
+
+    // a response with an error status
+    private void failed(@NotNull HttpResponse<?> response, @NotNull String body) throws KintoException {
+        String errorMessage = "The request "
+                + response.request().uri()
+                + " failed with status "
+                + response.statusCode()
+                + ": "
+                + errorMessageOf(body);
+        kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, null);
+        throw new KintoException(errorMessage);
+    }
+
+    // the message of an error response of kinto
+    private @Nullable String errorMessageOf(@NotNull String body) {
+        try {
+            Object message = KintoJson.parseObject(body).get("message");
+            return message == null ? body : message.toString();
+        } catch (KintoException exception) {
+            return body;
+        }
+    }
+
+    private static @NotNull String encode(@NotNull String pathSegment) {
+        return URLEncoder.encode(pathSegment, StandardCharsets.UTF_8);
+    }
+
+    // the records of a pull, saved with the checkpoint in transactions of MERGE_TRANSACTION_SIZE records
+    private final class PullBuffer implements KintoRecordCodec.RecordHandler {
+
+        private final KintoCollection<?> collection;
+        private final String checkpointKey;
+        private final KintoSyncResult result;
+        private final List<StorageEngine.RemoteRecord> records;
+        private long checkpoint;
+
+        private PullBuffer(@NotNull KintoCollection<?> collection, @NotNull String checkpointKey, long checkpoint,
+                           @NotNull KintoSyncResult result) {
+            this.collection = collection;
+            this.checkpointKey = checkpointKey;
+            this.checkpoint = checkpoint;
+            this.result = result;
+            records = new ArrayList<>();
+        }
+
+        @Override
+        public void handle(@NotNull StorageEngine.RemoteRecord record) throws KintoException {
+            // the records are sorted by timestamp, the checkpoint is valid after every record
+            checkpoint = Math.max(checkpoint, record.getLastModified());
+            records.add(record);
+            if (records.size() >= MERGE_TRANSACTION_SIZE) {
+                flush();
+            }
+        }
+
+        // save the records read since the last transaction
+        private void flush() throws KintoException {
+            if (!records.isEmpty()) {
+                collection.applyRemoteRecords(records, checkpointKey, checkpoint,
+                        CONFLICTS_METADATA_KEY_PREFIX + collection.getName(), getJournalSeq(collection), result);
+                records.clear();
+            }
+        }
+    }
+
+    // the pages of a pull, the next page is requested as soon as the headers of a page are received (Next-Page),
+    // at most prefetchDepth pages are requested in advance of the page read
+    private final class PagePrefetch implements AutoCloseable {
+
+        private CompletableFuture<Page> nextPage; // the page to read next, null after the last page
+        private boolean reading; // a page is read
+        private int openPages; // pages requested and not read, guarded by this
+        private Runnable deferredRequest; // the request of a page beyond the prefetch depth, guarded by this
+        private boolean closed; // guarded by this
+
+        private PagePrefetch(@NotNull URI firstPageURI) {
+            nextPage = new CompletableFuture<>();
+            request(firstPageURI, nextPage);
+        }
+
+        // the response of the next page, the previous page is read, null after the last page
+        private @Nullable HttpResponse<InputStream> next() throws KintoException {
+            Runnable request = null;
+            synchronized (this) {
+                if (reading) {
+                    reading = false;
+                    openPages--;
+                    if (deferredRequest != null && openPages <= prefetchDepth) {
+                        request = deferredRequest;
+                        deferredRequest = null;
+                    }
+                }
+            }
+            if (request != null) {
+                request.run();
+            }
+            if (nextPage == null) {
+                return null;
+            }
+            Page page;
+            try {
+                page = nextPage.get();
+            } catch (ExecutionException exception) {
+                Throwable cause = exception.getCause() instanceof CompletionException
+                        ? exception.getCause().getCause() : exception.getCause();
+                String errorMessage = "The remote kinto " + kintoURI + " is not available: " + cause.getMessage();
+                kintoLogger.log(KintoLogger.ERROR, TAG, errorMessage, exception);
+                throw new KintoException(errorMessage);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new KintoException(exception);
+            }
+            reading = true;
+            nextPage = page.nextPage;
+            return page.response;
+        }
+
+        // request a page, deferred if too many pages are requested and not read
+        private void request(@NotNull URI uri, @NotNull CompletableFuture<Page> page) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (openPages > prefetchDepth) {
+                    deferredRequest = () -> request(uri, page);
+                    return;
+                }
+                openPages++;
+            }
+            httpClient.sendAsync(newRequest(uri).GET().build(), HttpResponse.BodyHandlers.ofInputStream())
+                    .whenComplete((response, exception) -> {
+                        if (exception != null) {
+                            page.completeExceptionally(exception);
+                            return;
+                        }
+                        URI nextPageURI = null;
+                        if (response.statusCode() >= 200 && response.statusCode() < 300) {
+                            nextPageURI = response.headers().firstValue("Next-Page").map(URI::create).orElse(null);
+                        }
+                        CompletableFuture<Page> nextPage = nextPageURI == null ? null : new CompletableFuture<>();
+                        synchronized (this) {
+                            if (closed) {
+                                closeBody(response);
+                                return;
+                            }
+                            page.complete(new Page(response, nextPage));
+                        }
+                        if (nextPage != null) {
+                            request(nextPageURI, nextPage);
+                        }
+                    });
+        }
+
+        // the pages loaded in advance and not read are discarded, e.g. after an error
+        @Override
+        public synchronized void close() {
+            closed = true;
+            deferredRequest = null;
+            CompletableFuture<Page> page = nextPage;
+            while (page != null && page.isDone() && !page.isCompletedExceptionally()) {
+                Page loadedPage = page.join();
+                closeBody(loadedPage.response);
+                page = loadedPage.nextPage;
+            }
+        }
+
+        private void closeBody(@NotNull HttpResponse<InputStream> response) {
+            try {
+                response.body().close();
+            } catch (IOException exception) {
+                kintoLogger.log(KintoLogger.DEBUG, TAG, "Discarding a page failed: " + exception.getMessage(), null);
+            }
+        }
+    }
+
+    // a response of a pull with the following page, if exists
+    private static final class Page {
+
+        private final HttpResponse<InputStream> response;
+        private final CompletableFuture<Page> nextPage;
+
+        private Page(@NotNull HttpResponse<InputStream> response, @Nullable CompletableFuture<Page> nextPage) {
+            this.response = response;
+            this.nextPage = nextPage;
+        }
+    }
+
+    // the body of a response, decompressed if encoded with gzip
+    // the bytes before and after decompression are added to the sync result on close
+    private static final class ResponseBody extends FilterInputStream {
+
+        private final CountingInputStream transfer;
+        private final KintoSyncResult result;
+        private long count;
+        private boolean closed;
+
+        private ResponseBody(@NotNull InputStream input, boolean gzipEncoded,
+                             @Nullable KintoSyncResult result) throws IOException {
+            this(new CountingInputStream(input), gzipEncoded, result);
+        }
+
+        private ResponseBody(@NotNull CountingInputStream transfer, boolean gzipEncoded,
+                             @Nullable KintoSyncResult result) throws IOException {
+            super(gzipEncoded ? new GZIPInputStream(transfer) : transfer);
+            this.transfer = transfer;
+            this.result = result;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                if (result != null) {
+                    result.addReceived(count, transfer.count);
+                }
+            }
+            super.close();
+        }
+    }
+
+    // counts the bytes read from a stream
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        private CountingInputStream(@NotNull InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    // the body of a batch request, compressed with gzip as soon as the body reaches the threshold
+    private static final class BatchBody extends OutputStream {
+
+        private final int compressionThreshold; // 0 for no compression
+        private final ByteArrayOutputStream bytes;
+        private GZIPOutputStream gzip; // null until the threshold is reached
+        private long size; // the bytes before compression
+
+        private BatchBody(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            bytes = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            size += length;
+            if (gzip == null && compressionThreshold > 0 && size >= compressionThreshold) {
+                // compress the bytes written before
+                byte[] written = bytes.toByteArray();
+                bytes.reset();
+                gzip = new GZIPOutputStream(bytes);
+                gzip.write(written);
+            }
+            if (gzip != null) {
+                gzip.write(buffer, offset, length);
+            } else {
+                bytes.write(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (gzip != null) {
+                gzip.finish();
+            }
+        }
+
+        private boolean isCompressed() {
+            return gzip != null;
+        }
+
+        private long getSize() {
+            return size;
+        }
+
+        // the body as sent
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // a request of a batch, creates a bucket or a collection, saves an object or deletes a removed object
+    private static final class PushRequest {
+
+        private final KintoCollection<?> collection;
+        private final KintoObject kintoObject; // the saved object
+        private final KintoChange tombstone; // the removed object
+        private final String path;
+        private final boolean createOnly;
+        private final long lastModified; // the timestamp of the record in remote kinto, the change is based on
+
+        private PushRequest(@NotNull KintoCollection<?> collection,
+                            @Nullable KintoObject kintoObject,
+                            @Nullable KintoChange tombstone,
+                            @NotNull String path,
+                            boolean createOnly,
+                            long lastModified) {
+            this.collection = collection;
+            this.kintoObject = kintoObject;
+            this.tombstone = tombstone;
+            this.path = path;
+            this.createOnly = createOnly;
+            this.lastModified = lastModified;
+        }
+
+        private @Nullable String getUUID() {
+            if (kintoObject != null) {
+                return kintoObject.getUUID();
+            }
+            return tombstone == null ? null : tombstone.getUUID();
+        }
+
+        // write the request as member of a batch, the record of an object is written without a map
+        private void writeBatchRequest(@NotNull Appendable out) throws KintoException, IOException {
+            out.append("{\"path\":");
+            KintoJson.writeString(out, path);
+            if (tombstone != null) {
+                out.append(",\"method\":\"DELETE\"");
+            }
+            Map<String, Object> headers = new LinkedHashMap<>();
+            if (createOnly) {
+                headers.put("If-None-Match", "*");
+            } else if (lastModified > 0) {
+                // only if not changed in remote kinto since the last sync
+                headers.put("If-Match", "\"" + lastModified + "\"");
+            }
+            if (!headers.isEmpty()) {
+                out.append(",\"headers\":");
+                KintoJson.write(out, headers);
+            }
+            if (kintoObject != null) {
+                out.append(",\"body\":{\"data\":");
+                collection.writeRemoteRecord(out, kintoObject);
+                out.append('}');
+            } else if (createOnly) {
+                out.append(",\"body\":{\"data\":{}}");
+            }
+            out.append('}');
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The result of a sync with the remote kinto, the counts of the records by collection.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ * @see Kinto#sync()
+ */
+public final class KintoSyncResult {
+
+    private final Map<String, long[]> counts; // collection -> pulled, deleted, pushed
+    private final Map<String, Set<String>> conflicts; // collection -> uuid of the objects
+    private long batchRequests; // count of http requests to push the objects
+    private long bytesSent; // the request bodies before compression
+    private long transferredBytesSent; // the request bodies as sent
+    private long bytesReceived; // the response bodies after decompression
+    private long transferredBytesReceived; // the response bodies as received
+
+    KintoSyncResult() {
+        counts = new LinkedHashMap<>();
+        conflicts = new HashMap<>();
+    }
+
+    /**
+     * Get the names of the synced collections.
+     *
+     * @return The names of the collections in the order of the sync.
+     */
+    public synchronized Set<String> getCollectionNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(counts.keySet()));
+    }
+
+    /**
+     * Get the count of records added or changed in local datastore by the pull.
+     *
+     * @param collection name of the collection
+     * @return The count of saved records of the collection.
+     */
+    public synchronized long getPulled(@NotNull String collection) {
+        return getCount(collection, 0);
+    }
+
+    /**
+     * Get the count of records removed from local datastore by the pull.
+     *
+     * @param collection name of the collection
+     * @return The count of removed records of the collection.
+     */
+    public synchronized long getDeleted(@NotNull String collection) {
+        return getCount(collection, 1);
+    }
+
+    /**
+     * Get the count of objects saved in or deleted from remote kinto by the push.
+     *
+     * @param collection name of the collection
+     * @return The count of pushed objects of the collection.
+     */
+    public synchronized long getPushed(@NotNull String collection) {
+        return getCount(collection, 2);
+    }
+
+    /**
+     * Get the count of objects changed in local datastore and remote kinto.
+     * The local changes are kept and not pushed.
+     *
+     * @param collection name of the collection
+     * @return The count of objects with conflicts of the collection.
+     */
+    public synchronized long getConflicts(@NotNull String collection) {
+        return getConflictUUIDs(collection).size();
+    }
+
+    /**
+     * Get the objects changed in local datastore and remote kinto.
+     *
+     * @param collection name of the collection
+     * @return The uuid of the objects with conflicts of the collection.
+     */
+    public synchronized Set<String> getConflictUUIDs(@NotNull String collection) {
+        Set<String> uuids = conflicts.get(collection);
+        return uuids == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(uuids));
+    }
+
+    /**
+     * Get the count of records added or changed in local datastore by the pull of all collections.
+     *
+     * @return The count of saved records.
+     */
+    public synchronized long getPulled() {
+        return getTotal(0);
+    }
+
+    /**
+     * Get the count of records removed from local datastore by the pull of all collections.
+     *
+     * @return The count of removed records.
+     */
+    public synchronized long getDeleted() {
+        return getTotal(1);
+    }
+
+    /**
+     * Get the count of objects saved in or deleted from remote kinto by the push of all collections.
+     *
+     * @return The count of pushed objects.
+     */
+    public synchronized long getPushed() {
+        return getTotal(2);
+    }
+
+    /**
+     * Get the count of objects changed in local datastore and remote kinto of all collections.
+     *
+     * @return The count of objects with conflicts.
+     */
+    public synchronized long getConflicts() {
+        long total = 0;
+        for (Set<String> uuids : conflicts.values()) {
+            total += uuids.size();
+        }
+        return total;
+    }
+
+    /**
+     * Get the count of batch requests to push the objects. A batch request contains
+     * as many objects as the remote kinto allows (<code>batch_max_requests</code>).
+     *
+     * @return The count of http requests of the push.
+     */
+    public synchronized long getBatchRequests() {
+        return batchRequests;
+    }
+
+    /**
+     * Get the size of the bodies of the requests to remote kinto, before compression.
+     *
+     * @return The count of bytes of the json texts sent.
+     */
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Get the size of the bodies of the requests to remote kinto, as sent (compressed or not).
+     * The headers of the requests are not counted.
+     *
+     * @return The count of bytes sent.
+     */
+    public synchronized long getTransferredBytesSent() {
+        return transferredBytesSent;
+    }
+
+    /**
+     * Get the size of the bodies of the responses of remote kinto, after decompression.
+     *
+     * @return The count of bytes of the json texts received.
+     */
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Get the size of the bodies of the responses of remote kinto, as received (compressed or not).
+     * The headers of the responses are not counted.
+     *
+     * @return The count of bytes received.
+     */
+    public synchronized long getTransferredBytesReceived() {
+        return transferredBytesReceived;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("KintoSyncResult{");
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            builder.append(entry.getKey())
+                    .append("=pulled:").append(entry.getValue()[0])
+                    .append(" deleted:").append(entry.getValue()[1])
+                    .append(" pushed:").append(entry.getValue()[2])
+                    .append(" conflicts:").append(getConflicts(entry.getKey()))
+                    .append(", ");
+        }
+        return builder.append("batchRequests=").append(batchRequests)
+                .append(", bytesSent=").append(bytesSent).append('/').append(transferredBytesSent)
+                .append(", bytesReceived=").append(bytesReceived).append('/').append(transferredBytesReceived)
+                .append('}').toString();
+    }
+
+    // add the counts of a page of the pull
+    synchronized void addPulled(@NotNull String collection, long pulled, long deleted,
+                                @NotNull Collection<String> conflictUUIDs) {
+        long[] collectionCounts = getCounts(collection);
+        collectionCounts[0] += pulled;
+        collectionCounts[1] += deleted;
+        addConflicts(collection, conflictUUIDs);
+    }
+
+    // add the counts of a pushed collection
+    synchronized void addPushed(@NotNull String collection, long pushed, @NotNull Collection<String> conflictUUIDs) {
+        getCounts(collection)[2] += pushed;
+        addConflicts(collection, conflictUUIDs);
+    }
+
+    // count a batch request of the push
+    synchronized void addBatchRequest() {
+        batchRequests++;
+    }
+
+    // count the body of a request, before and after compression
+    synchronized void addSent(long bytes, long transferredBytes) {
+        bytesSent += bytes;
+        transferredBytesSent += transferredBytes;
+    }
+
+    // count the body of a response, after and before decompression
+    synchronized void addReceived(long bytes, long transferredBytes) {
+        bytesReceived += bytes;
+        transferredBytesReceived += transferredBytes;
+    }
+
+    // an object with conflicts in pull and push is counted once
+    private void addConflicts(@NotNull String collection, @NotNull Collection<String> conflictUUIDs) {
+        if (!conflictUUIDs.isEmpty()) {
+            conflicts.computeIfAbsent(collection, key -> new HashSet<>()).addAll(conflictUUIDs);
+        }
+    }
+
+    // the counts of a collection, created on first use
+    private long[] getCounts(@NotNull String collection) {
+        return counts.computeIfAbsent(collection, key -> new long[3]);
+    }
+
+    private long getCount(@NotNull String collection, int index) {
+        long[] collectionCounts = counts.get(collection);
+        return collectionCounts == null ? 0 : collectionCounts[index];
+    }
+
+    private long getTotal(int index) {
+        long total = 0;
+        for (long[] collectionCounts : counts.values()) {
+            total += collectionCounts[index];
+        }
+        return total;
+    }
+}
@@ -0,0 +1,1805 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A storage engine for insert-heavy data, e.g. telemetry. Every change is appended to a log
+ * of memory mapped segment files, there is no b-tree to maintain and no sync to disk per commit.
+ * <p>
+ * A record is stored in a compact binary format: the values are written in the order of the columns
+ * of the collection, numbers of numeric columns as 8 bytes. The location of the last version of every record
+ * is kept in memory (uuid to segment and offset), queries read the records from the mapped segments.
+ * The relations (1:m), the metadata and the change journal are kept in memory and written to the log as well.
+ * A change of a relation is written as the added or removed child uuid, the child uuids of a parent
+ * are written as one entry after many changes and by the compaction.
+ * <p>
+ * The changes of a transaction are kept by the calling thread and appended to the log on commit,
+ * as one group of entries followed by a commit entry. Other threads read the committed changes only,
+ * a rollback discards the changes. Like sqlite, a transaction holds the write lock of the log
+ * from its first change until its end. A change outside of transactions is a transaction of its own.
+ * <p>
+ * A background compactor copies the current entries of segments with many superseded versions
+ * to the end of the log and deletes the segments. On open, the log is read again and only the entries
+ * of committed transactions are applied; an incomplete entry at the end of a segment (crash while writing)
+ * is detected with a checksum and discarded with the rest of its transaction.
+ * <p>
+ * Changes are synced to disk when a segment is full, on {@link #sync()} and on close.
+ * With {@link Builder#syncOnCommit(boolean)}, every commit is synced.
+ * <pre>
+ *     StorageEngine engine = new LogStorageEngine.Builder("/srv/app/telemetry")
+ *             .segmentSize(128 * 1024 * 1024)
+ *             .build();
+ * </pre>
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+public final class LogStorageEngine implements StorageEngine {
+
+    private static final String TAG = LogStorageEngine.class.getSimpleName();
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // length and checksum of an entry
+    private static final int HEADER_SIZE = 8;
+
+    // types of the entries in the log
+    private static final byte SCHEMA_ENTRY = 1;
+    private static final byte PUT_ENTRY = 2;
+    private static final byte DELETE_ENTRY = 3;
+    private static final byte RELATION_ENTRY = 4; // all child uuids of a parent
+    private static final byte METADATA_ENTRY = 5;
+    private static final byte JOURNAL_ENTRY = 6;
+    private static final byte COMMIT_ENTRY = 7; // ends the entries of a transaction
+    private static final byte RELATION_ADD_ENTRY = 8; // a child uuid added to a parent
+    private static final byte RELATION_REMOVE_ENTRY = 9; // a child uuid removed from a parent
+    // the changes of a parent before all child uuids are written as one entry, at least the count of child uuids
+    private static final int RELATION_CHANGES_PER_ENTRY = 64;
+
+    // types of the values in a record
+    private static final byte NULL_VALUE = 0;
+    private static final byte TEXT_VALUE = 1;
+    private static final byte INTEGER_VALUE = 2;
+    private static final byte REAL_VALUE = 3;
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean syncOnCommit;
+    private final double compactionThreshold;
+    private final long compactionInterval;
+    private final KintoLogger kintoLogger;
+    private final ReentrantLock writeLock; // the log has one writer
+    private final ConcurrentSkipListMap<Integer, Segment> segments; // id -> segment, in the order of the log
+    private final Map<String, Table> tables; // collection name -> records
+    private final Map<String, Map<String, Set<String>>> relations; // relation name -> parent uuid -> child uuids
+    // relation name and parent uuid -> the last entry with all child uuids and the later changes
+    private final Map<String, List<Location>> relationLocations;
+    private final Map<String, String> relationCollections; // relation name -> collection with the list
+    private final Map<String, String> metadata;
+    private final Map<String, Location> metadataLocations; // key -> last entry
+    private final ChangeJournal journal;
+    private final Map<String, Location> journalLocations; // collection and uuid -> last entry
+    private final AtomicLong insertSequence; // order of insertion of the records
+    private final ThreadLocal<Transaction> transaction;
+    private ScheduledExecutorService compactor;
+    private volatile Segment activeSegment; // the segment for new entries
+    private volatile boolean open;
+
+    /**
+     * Create an engine with the given builder. The log is read on {@link #open()}.
+     *
+     * @param builder with the settings
+     */
+    public LogStorageEngine(@NotNull Builder builder) {
+        directory = new File(builder.directory);
+        segmentSize = builder.segmentSize;
+        syncOnCommit = builder.syncOnCommit;
+        compactionThreshold = builder.compactionThreshold;
+        compactionInterval = builder.compactionInterval;
+        kintoLogger = KintoLogger.getInstance(null);
+        writeLock = new ReentrantLock();
+        segments = new ConcurrentSkipListMap<>();
+        tables = new ConcurrentHashMap<>();
+        relations = new ConcurrentHashMap<>();
+        relationLocations = new ConcurrentHashMap<>();
+        relationCollections = new ConcurrentHashMap<>();
+        metadata = new ConcurrentHashMap<>();
+        metadataLocations = new ConcurrentHashMap<>();
+        journal = new ChangeJournal();
+        journalLocations = new ConcurrentHashMap<>();
+        insertSequence = new AtomicLong();
+        transaction = new ThreadLocal<>();
+        open = false;
+    }
+
+    /**
+     * Get the directory of the segment files.
+     *
+     * @return The directory of the log.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the count of segment files.
+     *
+     * @return The count of segments of the log.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void open() throws SQLException {
+        writeLock.lock();
+        try {
+            if (open) {
+                return;
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new SQLException("Can't create the directory " + directory + " for the log.");
+            }
+            File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+                    && name.endsWith(SEGMENT_SUFFIX));
+            List<File> segmentFiles = new ArrayList<>(Arrays.asList(files == null ? new File[0] : files));
+            segmentFiles.sort(Comparator.comparing(File::getName));
+            long start = System.currentTimeMillis();
+            for (File file : segmentFiles) {
+                String name = file.getName();
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = mapSegment(id, file, (int) file.length());
+                segments.put(id, segment);
+                replay(segment);
+            }
+            if (segments.isEmpty()) {
+                activeSegment = createSegment(segmentSize);
+            } else {
+                activeSegment = segments.lastEntry().getValue();
+                clearTail(activeSegment);
+            }
+            if (!segmentFiles.isEmpty()) {
+                kintoLogger.log(KintoLogger.INFO, TAG, "Read " + segmentFiles.size() + " segments of the log in "
+                        + (System.currentTimeMillis() - start) + " ms.", null);
+            }
+            if (compactionInterval > 0) {
+                compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "kinto-log-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                compactor.scheduleWithFixedDelay(this::compactInBackground,
+                        compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+            }
+            open = true;
+        } catch (IOException exception) {
+            throw new SQLException("Can't read the log in " + directory + ": " + exception.getMessage(), exception);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void openCollection(@NotNull CollectionSchema schema) throws SQLException {
+        checkOpen();
+        for (Relation relation : schema.getRelations()) {
+            relationCollections.put(relation.getName(), schema.getName());
+            relations.putIfAbsent(relation.getName(), new ConcurrentHashMap<>());
+        }
+        writeLock.lock();
+        try {
+            Table table = tables.get(schema.getName());
+            Schema actualSchema = table == null ? null : table.schema;
+            if (actualSchema != null && actualSchema.columns.equals(schema.getColumns())) {
+                return;
+            }
+            // a new version of the columns, the records are read with the columns of their version
+            int version = actualSchema == null ? 1 : actualSchema.version + 1;
+            Encoder encoder = new Encoder(SCHEMA_ENTRY);
+            encoder.writeString(schema.getName());
+            encoder.writeInt(version);
+            encoder.writeInt(schema.getColumns().size());
+            for (Map.Entry<String, String> column : schema.getColumns().entrySet()) {
+                encoder.writeString(column.getKey());
+                encoder.writeString(column.getValue());
+            }
+            // the columns are written at once, not with the transaction of the thread
+            appendAndApply(Collections.singletonList(encoder.toByteArray()));
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+    }
+
+    @Override
+    public void beginTransaction() throws SQLException {
+        checkOpen();
+        Transaction current = transaction.get();
+        if (current == null) {
+            current = new Transaction();
+            transaction.set(current);
+        }
+        current.depth++;
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        Transaction current = transaction.get();
+        if (current == null) {
+            throw new SQLException("There is no transaction of this thread.");
+        }
+        if (--current.depth == 0) {
+            transaction.remove();
+            if (current.locked) {
+                // the write lock is held since the first change of the transaction
+                try {
+                    appendAndApply(current.entries);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            afterWrite();
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        Transaction current = transaction.get();
+        if (current == null) {
+            return;
+        }
+        // the changes are not written to the log before the commit
+        transaction.remove();
+        if (current.locked) {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void insert(@NotNull String collection, @NotNull Map<String, String> values) throws SQLException {
+        Table table = getTable(collection);
+        String uuid = values.get("uuid");
+        if (uuid == null) {
+            throw new SQLException("NOT NULL constraint failed: " + collection + ".uuid");
+        }
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            if (readRecord(current, table, collection, uuid) != null) {
+                throw new SQLException("UNIQUE constraint failed: " + collection + ".uuid");
+            }
+            current.stage(encodeRecord(collection, table.schema, insertSequence.incrementAndGet(), values));
+            journal(current, collection, uuid, null, values);
+            endWrite(current);
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+    }
+
+    @Override
+    public int update(@NotNull String collection, @NotNull String uuid, long expectedUSN,
+                      @NotNull Map<String, String> values) throws SQLException {
+        Table table = getTable(collection);
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            byte[] body = readRecord(current, table, collection, uuid);
+            if (body == null) {
+                return 0;
+            }
+            Map<String, String> record = decodeRecord(table, body);
+            long usn = Long.parseLong(record.getOrDefault("usn", "0"));
+            if (expectedUSN != ANY_USN && usn != expectedUSN) {
+                return 0;
+            }
+            Map<String, String> oldRecord = new HashMap<>(record);
+            record.putAll(values);
+            record.put("usn", String.valueOf(usn + 1));
+            current.stage(encodeRecord(collection, table.schema, new Decoder(body).readPutSequence(), record));
+            journal(current, collection, uuid, oldRecord, record);
+            endWrite(current);
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+        return 1;
+    }
+
+    @Override
+    public int updateFields(@NotNull String collection, @NotNull String uuid,
+                            @NotNull KintoFieldUpdate fieldUpdate) throws SQLException {
+        Table table = getTable(collection);
+        KintoQuery condition = fieldUpdate.getCondition();
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            byte[] body = readRecord(current, table, collection, uuid);
+            if (body == null) {
+                return 0;
+            }
+            Map<String, String> record = decodeRecord(table, body);
+            if (condition != null && !RecordEvaluator.matches(record, condition, table.schema.numericColumns)) {
+                return 0;
+            }
+            Map<String, String> oldRecord = new HashMap<>(record);
+            RecordEvaluator.applyFieldUpdate(record, fieldUpdate);
+            current.stage(encodeRecord(collection, table.schema, new Decoder(body).readPutSequence(), record));
+            journal(current, collection, uuid, oldRecord, record);
+            endWrite(current);
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+        return 1;
+    }
+
+    @Override
+    public int delete(@NotNull String collection, @NotNull String uuid, long expectedUSN) throws SQLException {
+        Table table = getTable(collection);
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            byte[] body = readRecord(current, table, collection, uuid);
+            if (body == null) {
+                return 0;
+            }
+            Map<String, String> record = decodeRecord(table, body);
+            if (expectedUSN != ANY_USN && Long.parseLong(record.getOrDefault("usn", "0")) != expectedUSN) {
+                return 0;
+            }
+            current.stage(encodeDelete(collection, uuid));
+            journal(current, collection, uuid, record, null);
+            endWrite(current);
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+        return 1;
+    }
+
+    @Override
+    public Cursor query(@NotNull String collection, @NotNull KintoQuery query) throws SQLException {
+        Table table = getTable(collection);
+        Transaction current = transaction.get();
+        Map<String, byte[]> changedRecords = current == null ? null : current.records.get(collection);
+        List<Map<String, String>> records = new ArrayList<>();
+        Set<String> uuids = null;
+        for (KintoQuery.Condition condition : query.getConditions()) {
+            if (condition.getAttributeName().equals("uuid")
+                    && (condition.getOperator() == KintoQuery.Operator.EQUAL
+                    || condition.getOperator() == KintoQuery.Operator.IN)) {
+                uuids = new HashSet<>();
+                for (Object value : condition.getValues()) {
+                    uuids.add(String.valueOf(StorageEngine.toColumnValue(value)));
+                }
+                break;
+            }
+        }
+        if (uuids != null) {
+            // lookup in the index
+            SortedMap<Long, byte[]> bodies = new TreeMap<>();
+            for (String uuid : uuids) {
+                byte[] body = readRecord(current, table, collection, uuid);
+                if (body != null) {
+                    bodies.put(new Decoder(body).readPutSequence(), body);
+                }
+            }
+            for (byte[] body : bodies.values()) {
+                addIfMatches(table, body, query, records);
+            }
+        } else if (changedRecords == null) {
+            for (Map.Entry<Long, String> entry : table.order.entrySet()) {
+                Location location = table.rows.get(entry.getValue());
+                if (location != null && location.sequence == entry.getKey()) {
+                    addIfMatches(table, location.read(), query, records);
+                }
+            }
+        } else {
+            // the records changed by the transaction of the thread in the order of insertion
+            SortedMap<Long, byte[]> bodies = new TreeMap<>();
+            for (Map.Entry<Long, String> entry : table.order.entrySet()) {
+                Location location = table.rows.get(entry.getValue());
+                if (location != null && location.sequence == entry.getKey()
+                        && !changedRecords.containsKey(entry.getValue())) {
+                    bodies.put(location.sequence, location.read());
+                }
+            }
+            for (byte[] body : changedRecords.values()) {
+                if (body != null) {
+                    bodies.put(new Decoder(body).readPutSequence(), body);
+                }
+            }
+            for (byte[] body : bodies.values()) {
+                addIfMatches(table, body, query, records);
+            }
+        }
+        return new RecordCursor(records);
+    }
+
+    @Override
+    public @Nullable KintoRow findByUUID(@NotNull String collection, @NotNull String uuid) throws SQLException {
+        Table table = getTable(collection);
+        byte[] body = readRecord(transaction.get(), table, collection, uuid);
+        return body == null ? null : new KintoRow(decodeRecord(table, body));
+    }
+
+    @Override
+    public int addRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                            @NotNull Collection<String> childUUIDs) throws SQLException {
+        getRelation(relation);
+        int count;
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            count = 0;
+            for (String childUUID : new LinkedHashSet<>(childUUIDs)) {
+                if (!containsRelationEntry(current, relation.getName(), parentUUID, childUUID)) {
+                    current.stage(encodeRelationChange(RELATION_ADD_ENTRY, relation.getName(), parentUUID, childUUID));
+                    count++;
+                }
+            }
+            if (count > 0) {
+                writeRelation(current, relation.getName(), parentUUID);
+                endWrite(current);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+        return count;
+    }
+
+    @Override
+    public int removeRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                               @NotNull Collection<String> childUUIDs) throws SQLException {
+        getRelation(relation);
+        int count;
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            count = 0;
+            for (String childUUID : new LinkedHashSet<>(childUUIDs)) {
+                if (containsRelationEntry(current, relation.getName(), parentUUID, childUUID)) {
+                    current.stage(encodeRelationChange(RELATION_REMOVE_ENTRY, relation.getName(), parentUUID,
+                            childUUID));
+                    count++;
+                }
+            }
+            if (count > 0) {
+                writeRelation(current, relation.getName(), parentUUID);
+                endWrite(current);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+        return count;
+    }
+
+    @Override
+    public int removeAllRelations(@NotNull Relation relation, @NotNull String parentUUID) throws SQLException {
+        getRelation(relation);
+        int count;
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            count = readRelationEntries(current, relation.getName(), parentUUID).size();
+            if (count > 0) {
+                current.stage(encodeRelation(relation.getName(), parentUUID, Collections.emptyList()));
+                writeRelation(current, relation.getName(), parentUUID);
+                endWrite(current);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+        return count;
+    }
+
+    @Override
+    public Map<String, List<String>> readRelations(@NotNull Relation relation,
+                                                   @Nullable Collection<String> parentUUIDs) throws SQLException {
+        Map<String, Set<String>> entries = getRelation(relation);
+        Transaction current = transaction.get();
+        Map<String, RelationChange> changedEntries = current == null ? null : current.relations.get(relation.getName());
+        Map<String, List<String>> childUUIDs = new HashMap<>();
+        Collection<String> uuids = parentUUIDs;
+        if (uuids == null) {
+            uuids = new HashSet<>(entries.keySet());
+            if (changedEntries != null) {
+                uuids.addAll(changedEntries.keySet());
+            }
+        }
+        for (String parentUUID : uuids) {
+            List<String> children = readRelationEntries(current, relation.getName(), parentUUID);
+            if (!children.isEmpty()) {
+                childUUIDs.put(parentUUID, children);
+            }
+        }
+        return childUUIDs;
+    }
+
+    @Override
+    public List<KintoChange> readChanges(@Nullable String collection, long sinceSeq, int limit) throws SQLException {
+        checkOpen();
+        Transaction current = transaction.get();
+        if (current == null || current.changes.isEmpty()) {
+            return journal.read(collection, sinceSeq, limit);
+        }
+        // the entries of the transaction replace the saved entries and have the highest numbers
+        List<KintoChange> changes = new ArrayList<>();
+        int count = (int) Math.min(Integer.MAX_VALUE, (long) limit + current.changes.size());
+        for (KintoChange entry : journal.read(collection, sinceSeq, count)) {
+            if (!current.changes.containsKey(entry.getCollection() + "/" + entry.getUUID())) {
+                changes.add(entry);
+            }
+        }
+        for (KintoChange entry : current.changes.values()) {
+            if (entry.getSeq() > sinceSeq
+                    && (collection == null || collection.equals(entry.getCollection()))) {
+                changes.add(entry);
+            }
+        }
+        changes.sort(Comparator.comparingLong(KintoChange::getSeq));
+        return changes.size() > limit ? new ArrayList<>(changes.subList(0, limit)) : changes;
+    }
+
+    @Override
+    public void markRemoteDeletes(@NotNull String collection, @NotNull Collection<String> uuids) throws SQLException {
+        checkOpen();
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            for (String uuid : uuids) {
+                appendJournalEntry(current, journal.createRemoteChange(readJournalEntry(current, collection, uuid)));
+            }
+            endWrite(current);
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+    }
+
+    @Override
+    public @Nullable String getMetadata(@NotNull String key) {
+        Transaction current = transaction.get();
+        if (current != null && current.metadata.containsKey(key)) {
+            return current.metadata.get(key);
+        }
+        return metadata.get(key);
+    }
+
+    @Override
+    public void setMetadata(@NotNull String key, @NotNull String value) throws SQLException {
+        checkOpen();
+        writeLock.lock();
+        try {
+            Transaction current = beginWrite();
+            current.stage(encodeMetadata(key, value));
+            endWrite(current);
+        } finally {
+            writeLock.unlock();
+        }
+        afterWrite();
+    }
+
+    /**
+     * Sync all changes of the log to disk.
+     *
+     * @throws SQLException if the log is closed
+     */
+    public void sync() throws SQLException {
+        checkOpen();
+        activeSegment.buffer.force();
+    }
+
+    /**
+     * Compact all segments with a part of superseded entries greater than the compaction threshold.
+     * The compaction runs in background with the interval of the builder.
+     *
+     * @return The count of compacted segments.
+     * @throws SQLException if an error occurred while accessing the log
+     */
+    public int compact() throws SQLException {
+        checkOpen();
+        int count = 0;
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            long garbage = segment.garbage.get();
+            if (segment != activeSegment && garbage > 0 && garbage >= compactionThreshold * segment.size) {
+                writeLock.lock();
+                try {
+                    if (open && segments.containsKey(segment.id)) {
+                        compactSegment(segment);
+                        count++;
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        writeLock.lock();
+        try {
+            if (!open) {
+                return;
+            }
+            open = false;
+            IOException closeException = null;
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.buffer.force();
+                    segment.channel.close();
+                } catch (IOException exception) {
+                    closeException = exception;
+                }
+            }
+            segments.clear();
+            tables.clear();
+            relations.clear();
+            relationLocations.clear();
+            metadata.clear();
+            metadataLocations.clear();
+            journal.clear();
+            journalLocations.clear();
+            if (closeException != null) {
+                throw new SQLException("Can't close the log: " + closeException.getMessage(), closeException);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void checkOpen() throws SQLException {
+        if (!open) {
+            throw new SQLException("The datastore is closed.");
+        }
+    }
+
+    private @NotNull Table getTable(@NotNull String collection) throws SQLException {
+        checkOpen();
+        Table table = tables.get(collection);
+        if (table == null || table.schema == null) {
+            throw new SQLException("no such table: " + collection);
+        }
+        return table;
+    }
+
+    private @NotNull Map<String, Set<String>> getRelation(@NotNull Relation relation) throws SQLException {
+        checkOpen();
+        Map<String, Set<String>> entries = relations.get(relation.getName());
+        if (entries == null) {
+            throw new SQLException("no such table: " + relation.getName());
+        }
+        return entries;
+    }
+
+    // the transaction of the calling thread or a transaction for a single change outside of transactions,
+    // must be called with the write lock
+    private @NotNull Transaction beginWrite() {
+        Transaction current = transaction.get();
+        if (current == null) {
+            return new Transaction();
+        }
+        if (!current.locked) {
+            // held until the end of the transaction, the log has one writer
+            writeLock.lock();
+            current.locked = true;
+        }
+        return current;
+    }
+
+    // commit a single change outside of transactions, must be called with the write lock
+    private void endWrite(@NotNull Transaction current) throws SQLException {
+        if (current.depth == 0) {
+            appendAndApply(current.entries);
+        }
+    }
+
+    // sync a change outside of transactions and a commit, if configured
+    private void afterWrite() {
+        if (syncOnCommit && transaction.get() == null) {
+            Segment segment = activeSegment;
+            if (segment != null) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    // the last version of a record with the changes of the transaction, null if the record not exists
+    private static @Nullable byte[] readRecord(@Nullable Transaction current, @NotNull Table table,
+                                                @NotNull String collection, @NotNull String uuid) {
+        if (current != null) {
+            Map<String, byte[]> changedRecords = current.records.get(collection);
+            if (changedRecords != null && changedRecords.containsKey(uuid)) {
+                return changedRecords.get(uuid);
+            }
+        }
+        Location location = table.rows.get(uuid);
+        return location == null ? null : location.read();
+    }
+
+    // a copy of the child uuids of a parent with the changes of the transaction
+    private @NotNull List<String> readRelationEntries(@Nullable Transaction current, @NotNull String relation,
+                                                      @NotNull String parentUUID) {
+        RelationChange change = current == null ? null : current.getRelationChange(relation, parentUUID);
+        List<String> childUUIDs = new ArrayList<>();
+        Set<String> children = change != null && change.cleared ? null : getChildren(relation, parentUUID);
+        if (children != null) {
+            synchronized (children) {
+                for (String childUUID : children) {
+                    // an entry added again by the transaction is at the end
+                    if (change == null || !(change.removed.contains(childUUID) || change.added.contains(childUUID))) {
+                        childUUIDs.add(childUUID);
+                    }
+                }
+            }
+        }
+        if (change != null) {
+            childUUIDs.addAll(change.added);
+        }
+        return childUUIDs;
+    }
+
+    // a child uuid is an entry of a parent, with the changes of the transaction
+    private boolean containsRelationEntry(@NotNull Transaction current, @NotNull String relation,
+                                          @NotNull String parentUUID, @NotNull String childUUID) {
+        RelationChange change = current.getRelationChange(relation, parentUUID);
+        if (change != null) {
+            if (change.added.contains(childUUID)) {
+                return true;
+            }
+            if (change.cleared || change.removed.contains(childUUID)) {
+                return false;
+            }
+        }
+        Set<String> children = getChildren(relation, parentUUID);
+        if (children == null) {
+            return false;
+        }
+        synchronized (children) {
+            return children.contains(childUUID);
+        }
+    }
+
+    // the saved child uuids of a parent, read and changed with the lock of the set
+    private @Nullable Set<String> getChildren(@NotNull String relation, @NotNull String parentUUID) {
+        Map<String, Set<String>> entries = relations.get(relation);
+        return entries == null ? null : entries.get(parentUUID);
+    }
+
+    // the journal entry of a record with the changes of the transaction
+    private @Nullable KintoChange readJournalEntry(@NotNull Transaction current, @NotNull String collection,
+                                                   @NotNull String uuid) {
+        String key = collection + "/" + uuid;
+        if (current.changes.containsKey(key)) {
+            return current.changes.get(key);
+        }
+        return journal.get(collection, uuid);
+    }
+
+    // complete the staged changes of the child uuids of a parent, must be called with the write lock
+    // after many changes, all child uuids are written as one entry replacing the changes
+    private void writeRelation(@NotNull Transaction current, @NotNull String relation,
+                               @NotNull String parentUUID) throws SQLException {
+        List<Location> locations = relationLocations.get(relation + "/" + parentUUID);
+        if (locations != null && locations.size() > RELATION_CHANGES_PER_ENTRY) {
+            List<String> childUUIDs = readRelationEntries(current, relation, parentUUID);
+            if (locations.size() > childUUIDs.size()) {
+                current.stage(encodeRelation(relation, parentUUID, childUUIDs));
+            }
+        }
+        // a change of the relations is a change of the record with the list
+        String collection = relationCollections.get(relation);
+        Table table = collection == null ? null : tables.get(collection);
+        byte[] body = table == null ? null : readRecord(current, table, collection, parentUUID);
+        if (body != null) {
+            appendJournalEntry(current, journal.createRelationChange(collection, parentUUID,
+                    decodeRecord(table, body)));
+        }
+    }
+
+    // journal a change of a record, the values are null for a new or a removed record
+    // must be called with the write lock
+    private void journal(@NotNull Transaction current, @NotNull String collection, @NotNull String uuid,
+                         @Nullable Map<String, String> oldValues, @Nullable Map<String, String> newValues) {
+        appendJournalEntry(current, journal.createChange(collection, uuid, oldValues, newValues));
+    }
+
+    // replace the journal entry of the record, must be called with the write lock
+    private void appendJournalEntry(@NotNull Transaction current, @Nullable KintoChange entry) {
+        if (entry != null) {
+            current.stage(encodeJournal(entry));
+        }
+    }
+
+    private void addIfMatches(@NotNull Table table, byte[] body, @NotNull KintoQuery query,
+                              @NotNull List<Map<String, String>> records) throws SQLException {
+        Map<String, String> record = decodeRecord(table, body);
+        if (RecordEvaluator.matches(record, query, table.schema.numericColumns)) {
+            records.add(record);
+        }
+    }
+
+    // append the entries as one transaction and apply the changes to the state in memory,
+    // must be called with the write lock
+    private void appendAndApply(@NotNull List<byte[]> bodies) throws SQLException {
+        checkOpen();
+        if (bodies.isEmpty()) {
+            return;
+        }
+        List<Location> locations = append(bodies);
+        for (int index = 0; index < bodies.size(); index++) {
+            apply(locations.get(index), bodies.get(index));
+        }
+    }
+
+    // append the entries and a commit entry to one segment, must be called with the write lock
+    private @NotNull List<Location> append(@NotNull List<byte[]> bodies) throws SQLException {
+        byte[] commit = encodeCommit(bodies.size());
+        int size = HEADER_SIZE + commit.length;
+        for (byte[] body : bodies) {
+            size += HEADER_SIZE + body.length;
+        }
+        Segment segment = activeSegment;
+        if (segment.size + size > segment.capacity) {
+            try {
+                segment.buffer.force();
+                segment = createSegment(Math.max(segmentSize, size));
+            } catch (IOException exception) {
+                throw new SQLException("Can't create a segment of the log: " + exception.getMessage(), exception);
+            }
+            activeSegment = segment;
+        }
+        List<Location> locations = new ArrayList<>(bodies.size());
+        for (byte[] body : bodies) {
+            locations.add(write(segment, body));
+        }
+        // the entries are applied on open only with the commit entry
+        write(segment, commit).supersede();
+        return locations;
+    }
+
+    // must be called with the write lock
+    private static @NotNull Location write(@NotNull Segment segment, byte[] body) {
+        int offset = segment.size;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + HEADER_SIZE);
+        buffer.put(body);
+        buffer.putInt(offset + 4, checksum(body));
+        // the length marks the entry as written
+        buffer.putInt(offset, body.length);
+        segment.size = offset + HEADER_SIZE + body.length;
+        long sequence = body[0] == PUT_ENTRY ? new Decoder(body).readPutSequence() : 0;
+        return new Location(segment, offset, body.length, sequence);
+    }
+
+    // read all entries of a segment, the entries of a transaction are applied with its commit entry,
+    // an incomplete entry ends the segment and the entries of its transaction are discarded
+    private void replay(@NotNull Segment segment) {
+        List<Location> locations = new ArrayList<>();
+        List<byte[]> bodies = new ArrayList<>();
+        int offset = 0;
+        int committed = 0; // the end of the last transaction
+        while (offset + HEADER_SIZE <= segment.capacity) {
+            int length = segment.buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > segment.capacity) {
+                break;
+            }
+            Location location = new Location(segment, offset, length, 0);
+            byte[] body = location.read();
+            if (checksum(body) != segment.buffer.getInt(offset + 4)) {
+                kintoLogger.log(KintoLogger.WARNING, TAG, "Incomplete entry in " + segment.file.getName()
+                        + " at offset " + offset + ", the rest of the segment is discarded.", null);
+                break;
+            }
+            offset += HEADER_SIZE + length;
+            if (body[0] != COMMIT_ENTRY) {
+                long sequence = body[0] == PUT_ENTRY ? new Decoder(body).readPutSequence() : 0;
+                locations.add(new Location(segment, location.offset, length, sequence));
+                bodies.add(body);
+                continue;
+            }
+            if (new Decoder(body).readCommitCount() != bodies.size()) {
+                kintoLogger.log(KintoLogger.WARNING, TAG, "Invalid commit entry in " + segment.file.getName()
+                        + " at offset " + location.offset + ", the rest of the segment is discarded.", null);
+                bodies.clear();
+                break;
+            }
+            for (int index = 0; index < bodies.size(); index++) {
+                apply(locations.get(index), bodies.get(index));
+            }
+            location.supersede();
+            locations.clear();
+            bodies.clear();
+            committed = offset;
+        }
+        if (!bodies.isEmpty()) {
+            kintoLogger.log(KintoLogger.WARNING, TAG, "Transaction without commit in " + segment.file.getName()
+                    + " at offset " + committed + ", the entries are discarded.", null);
+        }
+        segment.size = committed;
+    }
+
+    // apply an entry of the log to the state in memory
+    private void apply(@NotNull Location location, byte[] body) {
+        Decoder decoder = new Decoder(body);
+        byte type = decoder.readByte();
+        switch (type) {
+            case SCHEMA_ENTRY: {
+                Table table = tables.computeIfAbsent(decoder.readString(), name -> new Table());
+                int version = decoder.readInt();
+                int count = decoder.readInt();
+                LinkedHashMap<String, String> columns = new LinkedHashMap<>();
+                for (int index = 0; index < count; index++) {
+                    columns.put(decoder.readString(), decoder.readString());
+                }
+                Schema schema = new Schema(version, columns);
+                table.schemas.putIfAbsent(version, schema);
+                if (table.schema == null || table.schema.version < version) {
+                    table.schema = schema;
+                }
+                break;
+            }
+            case PUT_ENTRY: {
+                Table table = tables.computeIfAbsent(decoder.readString(), name -> new Table());
+                decoder.readInt(); // version
+                long sequence = decoder.readLong();
+                String uuid = decoder.readString();
+                Location oldLocation = table.rows.put(uuid, location);
+                if (oldLocation != null) {
+                    oldLocation.supersede();
+                    if (oldLocation.sequence != sequence) {
+                        table.order.remove(oldLocation.sequence, uuid);
+                    }
+                }
+                table.order.put(sequence, uuid);
+                insertSequence.accumulateAndGet(sequence, Math::max);
+                break;
+            }
+            case DELETE_ENTRY: {
+                Table table = tables.computeIfAbsent(decoder.readString(), name -> new Table());
+                String uuid = decoder.readString();
+                Location oldLocation = table.rows.remove(uuid);
+                if (oldLocation != null) {
+                    oldLocation.supersede();
+                    table.order.remove(oldLocation.sequence, uuid);
+                }
+                // needed only as long as the removed versions are in older segments
+                location.supersede();
+                break;
+            }
+            case RELATION_ENTRY: {
+                String relation = decoder.readString();
+                String parentUUID = decoder.readString();
+                List<String> childUUIDs = decoder.readStringList();
+                Map<String, Set<String>> entries = relations.computeIfAbsent(relation, name -> new ConcurrentHashMap<>());
+                String key = relation + "/" + parentUUID;
+                // replaces the entries and the changes before
+                List<Location> oldLocations;
+                if (childUUIDs.isEmpty()) {
+                    entries.remove(parentUUID);
+                    oldLocations = relationLocations.remove(key);
+                    location.supersede();
+                } else {
+                    entries.put(parentUUID, new LinkedHashSet<>(childUUIDs));
+                    List<Location> locations = new ArrayList<>();
+                    locations.add(location);
+                    oldLocations = relationLocations.put(key, locations);
+                }
+                if (oldLocations != null) {
+                    for (Location oldLocation : oldLocations) {
+                        oldLocation.supersede();
+                    }
+                }
+                break;
+            }
+            case RELATION_ADD_ENTRY:
+            case RELATION_REMOVE_ENTRY: {
+                String relation = decoder.readString();
+                String parentUUID = decoder.readString();
+                String childUUID = decoder.readString();
+                Map<String, Set<String>> entries = relations.computeIfAbsent(relation, name -> new ConcurrentHashMap<>());
+                Set<String> children = entries.computeIfAbsent(parentUUID, uuid -> new LinkedHashSet<>());
+                synchronized (children) {
+                    if (type == RELATION_ADD_ENTRY) {
+                        children.add(childUUID);
+                    } else {
+                        children.remove(childUUID);
+                    }
+                    if (children.isEmpty()) {
+                        entries.remove(parentUUID);
+                    }
+                }
+                // the changes are kept until the next entry with all child uuids, e.g. of the compaction
+                relationLocations.computeIfAbsent(relation + "/" + parentUUID, key -> new ArrayList<>()).add(location);
+                break;
+            }
+            case METADATA_ENTRY: {
+                String key = decoder.readString();
+                String value = decoder.readNullableString();
+                Location oldLocation;
+                if (value == null) {
+                    metadata.remove(key);
+                    oldLocation = metadataLocations.remove(key);
+                    location.supersede();
+                } else {
+                    metadata.put(key, value);
+                    oldLocation = metadataLocations.put(key, location);
+                }
+                if (oldLocation != null) {
+                    oldLocation.supersede();
+                }
+                break;
+            }
+            case JOURNAL_ENTRY: {
+                String collection = decoder.readString();
+                String uuid = decoder.readString();
+                journal.put(decoder.readJournalEntry(collection, uuid));
+                Location oldLocation = journalLocations.put(collection + "/" + uuid, location);
+                if (oldLocation != null) {
+                    oldLocation.supersede();
+                }
+                break;
+            }
+            default:
+                kintoLogger.log(KintoLogger.WARNING, TAG, "Unknown entry type " + type + " in "
+                        + location.segment.file.getName() + " at offset " + location.offset + ".", null);
+        }
+    }
+
+    // copy the current entries of a segment to the end of the log and delete the segment,
+    // must be called with the write lock
+    private void compactSegment(@NotNull Segment segment) throws SQLException {
+        long start = System.currentTimeMillis();
+        boolean hasOlderSegments = segments.firstKey() < segment.id;
+        List<byte[]> bodies = new ArrayList<>();
+        Set<String> copiedRelations = new HashSet<>(); // relation name and parent uuid
+        int offset = 0;
+        while (offset < segment.size) {
+            int length = segment.buffer.getInt(offset);
+            byte[] body = new Location(segment, offset, length, 0).read();
+            Decoder decoder = new Decoder(body);
+            byte type = decoder.readByte();
+            boolean current;
+            switch (type) {
+                case SCHEMA_ENTRY:
+                    current = true;
+                    break;
+                case PUT_ENTRY: {
+                    Table table = tables.get(decoder.readString());
+                    decoder.readInt();
+                    decoder.readLong();
+                    Location location = table == null ? null : table.rows.get(decoder.readString());
+                    current = location != null && location.isAt(segment, offset);
+                    break;
+                }
+                case DELETE_ENTRY: {
+                    // the removed versions can be in older segments
+                    Table table = tables.get(decoder.readString());
+                    current = hasOlderSegments && table != null && !table.rows.containsKey(decoder.readString());
+                    break;
+                }
+                case RELATION_ENTRY:
+                case RELATION_ADD_ENTRY:
+                case RELATION_REMOVE_ENTRY: {
+                    String relation = decoder.readString();
+                    String parentUUID = decoder.readString();
+                    String key = relation + "/" + parentUUID;
+                    List<Location> locations = relationLocations.get(key);
+                    if (locations == null) {
+                        // an entry without child uuids is needed as long as older segments contain entries
+                        current = type == RELATION_ENTRY && hasOlderSegments && decoder.readInt() == 0;
+                    } else {
+                        current = isInSegment(locations, segment) && copiedRelations.add(key);
+                        if (current) {
+                            // the entries of the parent are copied as one entry with all child uuids
+                            body = encodeRelation(relation, parentUUID,
+                                    readRelationEntries(null, relation, parentUUID));
+                        }
+                    }
+                    break;
+                }
+                case METADATA_ENTRY: {
+                    String key = decoder.readString();
+                    Location location = metadataLocations.get(key);
+                    current = decoder.readNullableString() == null
+                            ? hasOlderSegments && location == null
+                            : location != null && location.isAt(segment, offset);
+                    break;
+                }
+                case JOURNAL_ENTRY: {
+                    Location location = journalLocations.get(decoder.readString() + "/" + decoder.readString());
+                    current = location != null && location.isAt(segment, offset);
+                    break;
+                }
+                default:
+                    current = false;
+            }
+            if (current) {
+                bodies.add(body);
+            }
+            offset += HEADER_SIZE + length;
+        }
+        // the copies are one transaction, a crash while copying keeps the segment
+        if (!bodies.isEmpty()) {
+            List<Location> locations = append(bodies);
+            for (int index = 0; index < bodies.size(); index++) {
+                if (bodies.get(index)[0] != SCHEMA_ENTRY) {
+                    apply(locations.get(index), bodies.get(index));
+                }
+            }
+        }
+        // the copies must be on disk before the segment is deleted
+        activeSegment.buffer.force();
+        segments.remove(segment.id);
+        try {
+            segment.channel.close();
+        } catch (IOException exception) {
+            kintoLogger.log(KintoLogger.WARNING, TAG, "Can't close " + segment.file.getName() + ".", exception);
+        }
+        // the mapped buffer stays valid for reads of other threads
+        if (!segment.file.delete()) {
+            kintoLogger.log(KintoLogger.WARNING, TAG, "Can't delete the compacted segment "
+                    + segment.file.getName() + ".", null);
+        }
+        kintoLogger.log(KintoLogger.INFO, TAG, "Compacted " + segment.file.getName() + " (" + bodies.size()
+                + " entries copied) in " + (System.currentTimeMillis() - start) + " ms.", null);
+    }
+
+    private static boolean isInSegment(@NotNull List<Location> locations, @NotNull Segment segment) {
+        for (Location location : locations) {
+            if (location.segment == segment) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void compactInBackground() {
+        try {
+            if (open) {
+                compact();
+            }
+        } catch (SQLException exception) {
+            kintoLogger.log(KintoLogger.ERROR, TAG, "Compaction of the log failed.", exception);
+        }
+    }
+
+    private @NotNull Segment createSegment(int capacity) throws IOException {
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        File file = new File(directory, String.format(Locale.ROOT, "%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        Segment segment = mapSegment(id, file, capacity);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private @NotNull Segment mapSegment(int id, @NotNull File file, int capacity) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new Segment(id, file, channel, buffer, capacity);
+        } catch (IOException exception) {
+            channel.close();
+            throw exception;
+        }
+    }
+
+    // remove the rest of an incomplete entry, new entries are appended at the end of the segment
+    private void clearTail(@NotNull Segment segment) {
+        if (segment.size + HEADER_SIZE <= segment.capacity && segment.buffer.getInt(segment.size) != 0) {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(segment.size);
+            byte[] zeros = new byte[8192];
+            while (buffer.hasRemaining()) {
+                buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+            }
+            segment.buffer.force();
+        }
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    // the values of a record in the order of the columns, the uuid is in front of the values
+    private static byte[] encodeRecord(@NotNull String collection, @NotNull Schema schema, long sequence,
+                                       @NotNull Map<String, String> values) throws SQLException {
+        for (String column : values.keySet()) {
+            if (!schema.columns.containsKey(column)) {
+                throw new SQLException("table " + collection + " has no column named " + column);
+            }
+        }
+        Encoder encoder = new Encoder(PUT_ENTRY);
+        encoder.writeString(collection);
+        encoder.writeInt(schema.version);
+        encoder.writeLong(sequence);
+        encoder.writeString(values.get("uuid"));
+        for (int index = 0; index < schema.names.length; index++) {
+            if (index == schema.uuidIndex) {
+                continue;
+            }
+            String value = values.get(schema.names[index]);
+            if (value == null) {
+                encoder.writeByte(NULL_VALUE);
+                continue;
+            }
+            if (schema.numeric[index]) {
+                // numbers as binary, if the text is the same after reading
+                try {
+                    long number = Long.parseLong(value);
+                    if (Long.toString(number).equals(value)) {
+                        encoder.writeByte(INTEGER_VALUE);
+                        encoder.writeLong(number);
+                        continue;
+                    }
+                } catch (NumberFormatException exception) {
+                    // not an integer
+                }
+                try {
+                    double number = Double.parseDouble(value);
+                    if (Double.toString(number).equals(value)) {
+                        encoder.writeByte(REAL_VALUE);
+                        encoder.writeDouble(number);
+                        continue;
+                    }
+                } catch (NumberFormatException exception) {
+                    // text in a numeric column
+                }
+            }
+            encoder.writeByte(TEXT_VALUE);
+            encoder.writeString(value);
+        }
+        return encoder.toByteArray();
+    }
+
+    // the values of a record, the values of removed columns are not read
+    private static @NotNull Map<String, String> decodeRecord(@NotNull Table table, byte[] body) throws SQLException {
+        Decoder decoder = new Decoder(body);
+        decoder.readByte();
+        decoder.readString();
+        Schema schema = table.schemas.get(decoder.readInt());
+        if (schema == null) {
+            throw new SQLException("Unknown schema version of a record in the log.");
+        }
+        Schema actualSchema = table.schema;
+        decoder.readLong();
+        Map<String, String> record = new HashMap<>();
+        record.put("uuid", decoder.readString());
+        for (int index = 0; index < schema.names.length; index++) {
+            if (index == schema.uuidIndex) {
+                continue;
+            }
+            String value;
+            byte type = decoder.readByte();
+            switch (type) {
+                case TEXT_VALUE:
+                    value = decoder.readString();
+                    break;
+                case INTEGER_VALUE:
+                    value = Long.toString(decoder.readLong());
+                    break;
+                case REAL_VALUE:
+                    value = Double.toString(decoder.readDouble());
+                    break;
+                default:
+                    value = null;
+            }
+            if (value != null && (schema == actualSchema || actualSchema.columns.containsKey(schema.names[index]))) {
+                record.put(schema.names[index], value);
+            }
+        }
+        return record;
+    }
+
+    private static byte[] encodeDelete(@NotNull String collection, @NotNull String uuid) {
+        Encoder encoder = new Encoder(DELETE_ENTRY);
+        encoder.writeString(collection);
+        encoder.writeString(uuid);
+        return encoder.toByteArray();
+    }
+
+    private static byte[] encodeRelation(@NotNull String relation, @NotNull String parentUUID,
+                                         @NotNull List<String> childUUIDs) {
+        Encoder encoder = new Encoder(RELATION_ENTRY);
+        encoder.writeString(relation);
+        encoder.writeString(parentUUID);
+        encoder.writeInt(childUUIDs.size());
+        for (String childUUID : childUUIDs) {
+            encoder.writeString(childUUID);
+        }
+        return encoder.toByteArray();
+    }
+
+    // the type is the change: added or removed
+    private static byte[] encodeRelationChange(byte type, @NotNull String relation, @NotNull String parentUUID,
+                                               @NotNull String childUUID) {
+        Encoder encoder = new Encoder(type);
+        encoder.writeString(relation);
+        encoder.writeString(parentUUID);
+        encoder.writeString(childUUID);
+        return encoder.toByteArray();
+    }
+
+    // the operation is written as ordinal + 1
+    private static byte[] encodeJournal(@NotNull KintoChange entry) {
+        Encoder encoder = new Encoder(JOURNAL_ENTRY);
+        encoder.writeString(entry.getCollection());
+        encoder.writeString(entry.getUUID());
+        encoder.writeByte((byte) (entry.getOperation().ordinal() + 1));
+        encoder.writeLong(entry.getSeq());
+        encoder.writeByte((byte) (entry.isRemote() ? 1 : 0));
+        encoder.writeNullableString(entry.getKintoID());
+        encoder.writeLong(entry.getLastModified());
+        return encoder.toByteArray();
+    }
+
+    // the count of entries of the transaction
+    private static byte[] encodeCommit(int count) {
+        Encoder encoder = new Encoder(COMMIT_ENTRY);
+        encoder.writeInt(count);
+        return encoder.toByteArray();
+    }
+
+    private static byte[] encodeMetadata(@NotNull String key, @Nullable String value) {
+        Encoder encoder = new Encoder(METADATA_ENTRY);
+        encoder.writeString(key);
+        encoder.writeNullableString(value);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Building log storage engines.
+     */
+    public static class Builder {
+
+        private final String directory;
+        private int segmentSize;
+        private boolean syncOnCommit;
+        private double compactionThreshold;
+        private long compactionInterval;
+
+        /**
+         * Create a builder for a log in the directory. The directory is created if not exists.
+         *
+         * @param directory for the segment files
+         */
+        public Builder(@NotNull String directory) {
+            this.directory = directory;
+            segmentSize = 64 * 1024 * 1024;
+            syncOnCommit = false;
+            compactionThreshold = 0.5; // half of the segment superseded
+            compactionInterval = 10000;
+        }
+
+        /**
+         * Set the size of a segment file.
+         *
+         * @param bytes size of a segment, at least 4096
+         * @return The builder.
+         */
+        public Builder segmentSize(int bytes) {
+            segmentSize = Math.max(4096, bytes);
+            return this;
+        }
+
+        /**
+         * Sync the log to disk on every commit and every change outside of transactions.
+         *
+         * @param sync true to sync every commit
+         * @return The builder.
+         */
+        public Builder syncOnCommit(boolean sync) {
+            syncOnCommit = sync;
+            return this;
+        }
+
+        /**
+         * Set the part of superseded entries, from which a segment is compacted.
+         *
+         * @param ratio between 0 and 1
+         * @return The builder.
+         */
+        public Builder compactionThreshold(double ratio) {
+            compactionThreshold = Math.min(1.0, Math.max(0.0, ratio));
+            return this;
+        }
+
+        /**
+         * Set the interval of the compaction in background.
+         *
+         * @param milliseconds between two compactions, 0 to disable the compaction in background
+         * @return The builder.
+         */
+        public Builder compactionInterval(long milliseconds) {
+            compactionInterval = Math.max(0, milliseconds);
+            return this;
+        }
+
+        public LogStorageEngine build() {
+            return new LogStorageEngine(this);
+        }
+    }
+
+    // a mapped file of the log
+    private static final class Segment {
+
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final AtomicLong garbage; // bytes of superseded entries
+        private volatile int size; // bytes of written entries
+
+        private Segment(int id, @NotNull File file, @NotNull FileChannel channel,
+                        @NotNull MappedByteBuffer buffer, int capacity) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            garbage = new AtomicLong();
+        }
+    }
+
+    // the position of an entry in the log
+    private static final class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length; // of the body
+        private final long sequence; // of the record
+
+        private Location(@NotNull Segment segment, int offset, int length, long sequence) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.sequence = sequence;
+        }
+
+        private byte[] read() {
+            byte[] body = new byte[length];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(body);
+            return body;
+        }
+
+        private boolean isAt(@NotNull Segment segment, int offset) {
+            return this.segment == segment && this.offset == offset;
+        }
+
+        private void supersede() {
+            segment.garbage.addAndGet(HEADER_SIZE + length);
+        }
+    }
+
+    // the columns of a collection in a version
+    private static final class Schema {
+
+        private final int version;
+        private final LinkedHashMap<String, String> columns;
+        private final String[] names;
+        private final boolean[] numeric;
+        private final Map<String, Boolean> numericColumns;
+        private final int uuidIndex;
+
+        private Schema(int version, @NotNull LinkedHashMap<String, String> columns) {
+            this.version = version;
+            this.columns = columns;
+            names = columns.keySet().toArray(new String[0]);
+            numeric = new boolean[names.length];
+            numericColumns = new HashMap<>();
+            int index = 0;
+            int uuid = -1;
+            for (Map.Entry<String, String> column : columns.entrySet()) {
+                numeric[index] = RecordEvaluator.isNumericType(column.getValue());
+                numericColumns.put(column.getKey(), numeric[index]);
+                if (column.getKey().equals("uuid")) {
+                    uuid = index;
+                }
+                index++;
+            }
+            uuidIndex = uuid;
+        }
+    }
+
+    // the index of a collection
+    private static final class Table {
+
+        private final Map<Integer, Schema> schemas = new ConcurrentHashMap<>(); // version -> columns
+        private final ConcurrentHashMap<String, Location> rows = new ConcurrentHashMap<>(); // uuid -> last version
+        private final ConcurrentSkipListMap<Long, String> order = new ConcurrentSkipListMap<>(); // sequence -> uuid
+        private volatile Schema schema; // the actual columns
+    }
+
+    // the changes of the transaction of a thread, written to the log on commit
+    private static final class Transaction {
+
+        private final List<byte[]> entries = new ArrayList<>();
+        private final Map<String, Map<String, byte[]>> records = new HashMap<>(); // collection -> uuid -> entry
+        private final Map<String, Map<String, RelationChange>> relations = new HashMap<>(); // relation -> parent uuid
+        private final Map<String, String> metadata = new HashMap<>();
+        private final Map<String, KintoChange> changes = new HashMap<>(); // collection and uuid -> journal entry
+        private int depth; // 0 for a single change outside of transactions
+        private boolean locked; // holds the write lock until the end
+
+        // add an entry, the changes are read by the thread before the commit
+        // removed records and metadata are kept as null
+        private void stage(byte[] body) {
+            entries.add(body);
+            Decoder decoder = new Decoder(body);
+            switch (decoder.readByte()) {
+                case PUT_ENTRY: {
+                    Map<String, byte[]> changedRecords = records.computeIfAbsent(decoder.readString(),
+                            name -> new HashMap<>());
+                    decoder.readInt();
+                    decoder.readLong();
+                    changedRecords.put(decoder.readString(), body);
+                    break;
+                }
+                case DELETE_ENTRY: {
+                    Map<String, byte[]> changedRecords = records.computeIfAbsent(decoder.readString(),
+                            name -> new HashMap<>());
+                    changedRecords.put(decoder.readString(), null);
+                    break;
+                }
+                case RELATION_ENTRY: {
+                    RelationChange change = addRelationChange(decoder.readString(), decoder.readString());
+                    change.cleared = true;
+                    change.removed.clear();
+                    change.added.clear();
+                    change.added.addAll(decoder.readStringList());
+                    break;
+                }
+                case RELATION_ADD_ENTRY: {
+                    RelationChange change = addRelationChange(decoder.readString(), decoder.readString());
+                    String childUUID = decoder.readString();
+                    change.removed.remove(childUUID);
+                    change.added.add(childUUID);
+                    break;
+                }
+                case RELATION_REMOVE_ENTRY: {
+                    RelationChange change = addRelationChange(decoder.readString(), decoder.readString());
+                    String childUUID = decoder.readString();
+                    change.added.remove(childUUID);
+                    change.removed.add(childUUID);
+                    break;
+                }
+                case METADATA_ENTRY: {
+                    String key = decoder.readString();
+                    metadata.put(key, decoder.readNullableString());
+                    break;
+                }
+                case JOURNAL_ENTRY: {
+                    String collection = decoder.readString();
+                    String uuid = decoder.readString();
+                    changes.put(collection + "/" + uuid, decoder.readJournalEntry(collection, uuid));
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+
+        private @Nullable RelationChange getRelationChange(@NotNull String relation, @NotNull String parentUUID) {
+            Map<String, RelationChange> changedEntries = relations.get(relation);
+            return changedEntries == null ? null : changedEntries.get(parentUUID);
+        }
+
+        private @NotNull RelationChange addRelationChange(@NotNull String relation, @NotNull String parentUUID) {
+            return relations.computeIfAbsent(relation, name -> new HashMap<>())
+                    .computeIfAbsent(parentUUID, uuid -> new RelationChange());
+        }
+    }
+
+    // the changes of the child uuids of a parent in a transaction
+    private static final class RelationChange {
+
+        private final Set<String> added = new LinkedHashSet<>();
+        private final Set<String> removed = new HashSet<>();
+        private boolean cleared; // the saved child uuids are replaced by the added
+    }
+
+    // writes the body of an entry
+    private static final class Encoder {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        private final DataOutputStream output = new DataOutputStream(bytes);
+
+        private Encoder(byte type) {
+            writeByte(type);
+        }
+
+        private void writeByte(byte value) {
+            bytes.write(value);
+        }
+
+        private void writeInt(int value) {
+            try {
+                output.writeInt(value);
+            } catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        }
+
+        private void writeLong(long value) {
+            try {
+                output.writeLong(value);
+            } catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        }
+
+        private void writeDouble(double value) {
+            try {
+                output.writeDouble(value);
+            } catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        }
+
+        private void writeString(@NotNull String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(utf8.length);
+            bytes.write(utf8, 0, utf8.length);
+        }
+
+        // a null value has the length -1
+        private void writeNullableString(@Nullable String value) {
+            if (value == null) {
+                writeInt(-1);
+            } else {
+                writeString(value);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // reads the body of an entry
+    private static final class Decoder {
+
+        private final ByteBuffer buffer;
+
+        private Decoder(byte[] body) {
+            buffer = ByteBuffer.wrap(body);
+        }
+
+        private byte readByte() {
+            return buffer.get();
+        }
+
+        private int readInt() {
+            return buffer.getInt();
+        }
+
+        private long readLong() {
+            return buffer.getLong();
+        }
+
+        private double readDouble() {
+            return buffer.getDouble();
+        }
+
+        private String readString() {
+            int length = buffer.getInt();
+            String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        private @Nullable String readNullableString() {
+            int length = buffer.getInt(buffer.position());
+            if (length < 0) {
+                buffer.getInt();
+                return null;
+            }
+            return readString();
+        }
+
+        private @NotNull List<String> readStringList() {
+            int count = readInt();
+            List<String> values = new ArrayList<>(count);
+            for (int index = 0; index < count; index++) {
+                values.add(readString());
+            }
+            return values;
+        }
+
+        // the entry after collection and uuid
+        private @NotNull KintoChange readJournalEntry(@NotNull String collection, @NotNull String uuid) {
+            KintoChange.Operation operation = KintoChange.Operation.values()[readByte() - 1];
+            return new KintoChange(readLong(), collection, uuid, operation,
+                    readByte() != 0, readNullableString(), readLong());
+        }
+
+        // the count of entries of a commit entry
+        private int readCommitCount() {
+            readByte();
+            return readInt();
+        }
+
+        // the sequence of a put entry
+        private long readPutSequence() {
+            readByte();
+            readString();
+            readInt();
+            return readLong();
+        }
+    }
+
+    // a cursor for the records of a query
+    private static final class RecordCursor implements Cursor {
+
+        private final Iterator<Map<String, String>> records;
+        private Map<String, String> current;
+
+        private RecordCursor(@NotNull List<Map<String, String>> records) {
+            this.records = records.iterator();
+        }
+
+        @Override
+        public boolean next() {
+            if (records.hasNext()) {
+                current = records.next();
+                return true;
+            }
+            current = null;
+            return false;
+        }
+
+        @Override
+        public KintoRow readRow() throws SQLException {
+            if (current == null) {
+                throw new SQLException("The cursor is not on a record.");
+            }
+            return new KintoRow(current);
+        }
+
+        @Override
+        public void close() {
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Evaluation of queries and field updates on records for the storage engines without sqlite.
+ * The values are compared like in sqlite: numeric columns compare numbers (lower than text),
+ * text columns compare strings and null values fulfill no condition.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+final class RecordEvaluator {
+
+    private RecordEvaluator() {
+    }
+
+    // the columns with numeric values, like the type affinity of sqlite
+    static boolean isNumericType(@NotNull String sqlDataType) {
+        String type = sqlDataType.toUpperCase(Locale.ROOT);
+        return type.contains("INT") || type.contains("REAL") || type.contains("NUM")
+                || type.contains("FLOA") || type.contains("DOUB");
+    }
+
+    static @Nullable Double parseNumber(@Nullable Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+    }
+
+    // compare a value of a record with a value of a query,
+    // on numeric columns numbers are lower than text
+    static int compare(@NotNull String value, @NotNull Object queryValue, boolean numeric) {
+        if (numeric) {
+            Double number = parseNumber(value);
+            Double queryNumber = parseNumber(queryValue);
+            if (number != null && queryNumber != null) {
+                return Double.compare(number, queryNumber);
+            }
+            if (number != null) {
+                return -1;
+            }
+            if (queryNumber != null) {
+                return 1;
+            }
+        }
+        return value.compareTo(String.valueOf(queryValue));
+    }
+
+    // check all conditions of the query, the numeric columns are true in the map
+    static boolean matches(@NotNull Map<String, String> record, @NotNull KintoQuery query,
+                           @NotNull Map<String, Boolean> numericColumns) {
+        for (KintoQuery.Condition condition : query.getConditions()) {
+            String value = record.get(condition.getAttributeName());
+            if (value == null) {
+                // null is not comparable
+                return false;
+            }
+            boolean numeric = numericColumns.getOrDefault(condition.getAttributeName(), false);
+            List<Object> values = new ArrayList<>();
+            for (Object queryValue : condition.getValues()) {
+                values.add(StorageEngine.toColumnValue(queryValue));
+            }
+            boolean fulfilled;
+            switch (condition.getOperator()) {
+                case EQUAL:
+                    fulfilled = compare(value, values.get(0), numeric) == 0;
+                    break;
+                case NOT_EQUAL:
+                    fulfilled = compare(value, values.get(0), numeric) != 0;
+                    break;
+                case GREATER:
+                    fulfilled = compare(value, values.get(0), numeric) > 0;
+                    break;
+                case GREATER_OR_EQUAL:
+                    fulfilled = compare(value, values.get(0), numeric) >= 0;
+                    break;
+                case LESS:
+                    fulfilled = compare(value, values.get(0), numeric) < 0;
+                    break;
+                case LESS_OR_EQUAL:
+                    fulfilled = compare(value, values.get(0), numeric) <= 0;
+                    break;
+                case BETWEEN:
+                    fulfilled = compare(value, values.get(0), numeric) >= 0
+                            && compare(value, values.get(1), numeric) <= 0;
+                    break;
+                case IN:
+                    fulfilled = false;
+                    for (Object queryValue : values) {
+                        if (compare(value, queryValue, numeric) == 0) {
+                            fulfilled = true;
+                            break;
+                        }
+                    }
+                    break;
+                default:
+                    fulfilled = false;
+            }
+            if (!fulfilled) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // apply the changes of a field update to the values of a record and increment the update sequence number
+    static void applyFieldUpdate(@NotNull Map<String, String> record, @NotNull KintoFieldUpdate fieldUpdate) {
+        for (KintoFieldUpdate.Change change : fieldUpdate.getChanges()) {
+            String attributeName = change.getAttributeName();
+            if (change.getOperation() == KintoFieldUpdate.Operation.INCREMENT) {
+                String value = record.get(attributeName);
+                if (value != null) {
+                    record.put(attributeName, increment(value, (Number) change.getValue()));
+                }
+            } else {
+                Object value = StorageEngine.toColumnValue(change.getValue());
+                if (value == null) {
+                    record.remove(attributeName);
+                } else {
+                    record.put(attributeName, String.valueOf(value));
+                }
+            }
+        }
+        String usn = record.get("usn");
+        record.put("usn", String.valueOf((usn == null ? 0 : Long.parseLong(usn)) + 1));
+    }
+
+    // add a delta to a value, as integer if both are integers
+    private static String increment(@NotNull String value, @NotNull Number delta) {
+        boolean integralDelta = delta instanceof Long || delta instanceof Integer
+                || delta instanceof Short || delta instanceof Byte;
+        if (integralDelta) {
+            try {
+                return String.valueOf(Long.parseLong(value) + delta.longValue());
+            } catch (NumberFormatException exception) {
+                // not an integer, add as floating point
+            }
+        }
+        Double number = parseNumber(value);
+        return String.valueOf((number == null ? 0.0 : number) + delta.doubleValue());
+    }
+}
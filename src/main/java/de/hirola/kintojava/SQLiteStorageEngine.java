@@ -0,0 +1,769 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.model.DataSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The storage engine with sqlite, the default engine of kinto.
+ * Every collection is a table, every relation (1:m) a relation table.
+ * The metadata is saved in the table kintometa.
+ * <p>
+ * The changes are journaled in the table kintojournal by triggers of the collection and relation tables,
+ * so changes with sql statements of the app (see {@link Kinto#getLocalDatastoreConnection()}) are journaled too.
+ * The journal has one entry per record, a change replaces the entry with a new sequence number (autoincrement).
+ * <p>
+ * The records of remote kinto are merged with set-based statements: the keys of the records are saved
+ * in a temporary table for the conflicts and removes, the records are saved with batches of upserts
+ * (<code>INSERT ... ON CONFLICT(uuid) DO UPDATE ... WHERE</code>) with the rule of the last write in sql.
+ * <p>
+ * The tables and the metadata are read once on {@link #open()}. The table of a collection is only
+ * checked, if the schema of the collection was changed since the last start (schema fingerprint).
+ * New columns are added in place, removed or changed columns need a copy of the table.
+ * The metadata changed in a transaction is read by other threads after the commit.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+public final class SQLiteStorageEngine implements StorageEngine {
+
+    private static final String TAG = SQLiteStorageEngine.class.getSimpleName();
+    // table for the metadata of the local datastore
+    private static final String METADATA_TABLE = "kintometa";
+    // table for the change journal of the local datastore
+    private static final String JOURNAL_TABLE = "kintojournal";
+    // temporary table for the keys of the remote records of a merge
+    private static final String MERGE_TABLE = "kintomerge";
+    // the key of the schema fingerprint in the metadata of the local datastore
+    private static final String SCHEMA_METADATA_KEY_PREFIX = "schema.";
+    // the maximal count of uuid in a statement (sqlite allows 999 parameters)
+    private static final int MAX_UUIDS_PER_STATEMENT = 500;
+    // the columns of the sync state, changes of these columns only are not journaled
+    private static final Set<String> JOURNAL_SYNC_COLUMNS = Set.of("uuid", "usn", "kintoid", "lastmodified", "syncedusn");
+
+    private final KintoDatabaseAdapter dataBase; // layer for local datastore
+    private final KintoLogger kintoLogger;
+    private final Set<String> localTables; // names of all tables in local datastore
+    private final Set<String> localTriggers; // names of all triggers in local datastore
+    private final Map<String, String> metadata; // key-value pairs of the local datastore
+    // the metadata changed in the transaction of a thread, published on commit
+    private final ThreadLocal<Map<String, String>> changedMetadata;
+
+    /**
+     * Create the engine for a local datastore.
+     *
+     * @param dataBase the opened local datastore
+     */
+    public SQLiteStorageEngine(@NotNull KintoDatabaseAdapter dataBase) {
+        this.dataBase = dataBase;
+        kintoLogger = KintoLogger.getInstance(null);
+        localTables = ConcurrentHashMap.newKeySet();
+        localTriggers = ConcurrentHashMap.newKeySet();
+        metadata = new ConcurrentHashMap<>();
+        changedMetadata = new ThreadLocal<>();
+    }
+
+    /**
+     * Get the local datastore of the engine.
+     *
+     * @return The adapter of the local datastore.
+     */
+    public KintoDatabaseAdapter getDatabaseAdapter() {
+        return dataBase;
+    }
+
+    @Override
+    public void open() throws SQLException {
+        // all tables and triggers of the local datastore with one query
+        String sql = "SELECT type, name FROM sqlite_master WHERE type='table' OR type='trigger';";
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery(sql)) {
+            while (resultSet.next()) {
+                if ("trigger".equals(resultSet.getString("type"))) {
+                    localTriggers.add(resultSet.getString("name"));
+                } else {
+                    localTables.add(resultSet.getString("name"));
+                }
+            }
+        }
+        // the journal of the local datastore, one entry per record
+        if (!localTables.contains(JOURNAL_TABLE)) {
+            dataBase.executeSQL("CREATE TABLE " + JOURNAL_TABLE
+                    + " (seq INTEGER PRIMARY KEY AUTOINCREMENT, collection TEXT NOT NULL, uuid TEXT NOT NULL,"
+                    + " operation TEXT NOT NULL, remote INT NOT NULL, kintoid TEXT, lastmodified INT,"
+                    + " UNIQUE (collection, uuid));");
+            localTables.add(JOURNAL_TABLE);
+        }
+        // metadata of the local datastore, the table is created if not exists
+        if (!localTables.contains(METADATA_TABLE)) {
+            dataBase.executeSQL("CREATE TABLE " + METADATA_TABLE + " (key TEXT PRIMARY KEY, value TEXT);");
+            localTables.add(METADATA_TABLE);
+            return;
+        }
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery("SELECT key, value FROM " + METADATA_TABLE + ";")) {
+            while (resultSet.next()) {
+                metadata.put(resultSet.getString("key"), resultSet.getString("value"));
+            }
+        }
+    }
+
+    @Override
+    public void openCollection(@NotNull CollectionSchema schema) throws SQLException {
+        String name = schema.getName();
+        String fingerprint = buildSchemaFingerprint(schema);
+        String fingerprintKey = SCHEMA_METADATA_KEY_PREFIX + name;
+        boolean isSchemaChanged = !fingerprint.equals(getMetadata(fingerprintKey));
+        boolean isTableExisting = localTables.contains(name);
+        // the tables of the local datastore are read once on start
+        if (isTableExisting) {
+            kintoLogger.log(KintoLogger.DEBUG, TAG, "KintoCollection " + name + " exists in local datastore.", null);
+            // the schema is only checked, if the attributes of the type were changed
+            if (isSchemaChanged) {
+                migrateTable(name, schema.getColumns(), schema.getRelations());
+            }
+        } else {
+            // SQLite store any kind of data you want in any column of any table
+            // id from sqlite, kintoid from kinto, usn = update sequence number
+            String sql = buildCreateTableSQL(name, schema.getColumns());
+            String logMessage = "Create KintoCollection "
+                    + name
+                    + " with sql command: " + sql + ".";
+            kintoLogger.log(KintoLogger.DEBUG, TAG, logMessage, null);
+            dataBase.executeSQL(sql);
+            localTables.add(name);
+        }
+        // the relation tables (1:m)
+        for (Relation relation : schema.getRelations()) {
+            if (localTables.contains(relation.getName())) {
+                kintoLogger.log(KintoLogger.DEBUG, TAG, "Relation table " + relation + " exists in local datastore.", null);
+                if (isSchemaChanged) {
+                    createRelationKey(relation);
+                }
+            } else {
+                // the key of the table avoids duplicate entries
+                String sql = "CREATE TABLE " + relation.getName()
+                        + " (" + relation.getParentColumn() + " TEXT, "
+                        + relation.getChildColumn() + " TEXT, "
+                        + "UNIQUE (" + relation.getParentColumn() + ", " + relation.getChildColumn() + "));";
+                String logMessage = "Create one-to-many relation table "
+                        + relation
+                        + " with sql command: " + sql + ".";
+                kintoLogger.log(KintoLogger.DEBUG, TAG, logMessage, null);
+                dataBase.executeSQL(sql);
+                localTables.add(relation.getName());
+            }
+        }
+        createJournalTriggers(schema, isSchemaChanged, isTableExisting);
+        // the schema of the collection is up-to-date
+        if (isSchemaChanged) {
+            setMetadata(fingerprintKey, fingerprint);
+        }
+    }
+
+    @Override
+    public void beginTransaction() throws SQLException {
+        dataBase.beginTransaction();
+        if (changedMetadata.get() == null) {
+            changedMetadata.set(new HashMap<>());
+        }
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        Map<String, String> changes = changedMetadata.get();
+        changedMetadata.remove();
+        dataBase.commit();
+        // the changes of a failed commit are discarded
+        if (changes != null) {
+            metadata.putAll(changes);
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        changedMetadata.remove();
+        dataBase.rollback();
+    }
+
+    @Override
+    public void insert(@NotNull String collection, @NotNull Map<String, String> values) throws SQLException {
+        // INSERT INTO table (column1, column2, ..) VALUES(?, ?, ...);
+        StringJoiner columns = new StringJoiner(", ");
+        StringJoiner placeholders = new StringJoiner(", ");
+        for (String column : values.keySet()) {
+            columns.add(column);
+            placeholders.add("?");
+        }
+        String sql = "INSERT INTO " + collection + " (" + columns + ") VALUES(" + placeholders + ");";
+        dataBase.executeUpdate(sql, values.values().toArray());
+    }
+
+    @Override
+    public int update(@NotNull String collection, @NotNull String uuid, long expectedUSN,
+                      @NotNull Map<String, String> values) throws SQLException {
+        // UPDATE table SET column1=?, ..., usn=usn+1 WHERE uuid=? AND usn=?;
+        StringBuilder sql = new StringBuilder("UPDATE ");
+        sql.append(collection);
+        sql.append(" SET ");
+        List<Object> parameters = new ArrayList<>(values.size() + 2);
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            sql.append(value.getKey());
+            sql.append("=?, ");
+            parameters.add(value.getValue());
+        }
+        // compare and set the update sequence number
+        sql.append("usn=usn+1 WHERE uuid=?");
+        parameters.add(uuid);
+        if (expectedUSN != ANY_USN) {
+            sql.append(" AND usn=?");
+            parameters.add(expectedUSN);
+        }
+        sql.append(";");
+        return dataBase.executeUpdate(sql.toString(), parameters.toArray());
+    }
+
+    @Override
+    public int updateFields(@NotNull String collection, @NotNull String uuid,
+                            @NotNull KintoFieldUpdate fieldUpdate) throws SQLException {
+        // UPDATE table SET column1 = column1 + ?, column2 = ?, usn=usn+1 WHERE uuid = ? AND [condition];
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("UPDATE ");
+        sql.append(collection);
+        sql.append(" SET ");
+        for (KintoFieldUpdate.Change change : fieldUpdate.getChanges()) {
+            String attributeName = change.getAttributeName();
+            sql.append(attributeName);
+            if (change.getOperation() == KintoFieldUpdate.Operation.INCREMENT) {
+                sql.append("=");
+                sql.append(attributeName);
+                sql.append("+?,");
+            } else {
+                sql.append("=?,");
+            }
+            parameters.add(StorageEngine.toColumnValue(change.getValue()));
+        }
+        // every change increments the update sequence number
+        sql.append("usn=usn+1 WHERE uuid=?");
+        parameters.add(uuid);
+        KintoQuery condition = fieldUpdate.getCondition();
+        if (condition != null && !condition.getConditions().isEmpty()) {
+            sql.append(" AND ");
+            sql.append(buildWhereClause(condition, parameters));
+        }
+        sql.append(";");
+        return dataBase.executeUpdate(sql.toString(), parameters.toArray());
+    }
+
+    @Override
+    public int delete(@NotNull String collection, @NotNull String uuid, long expectedUSN) throws SQLException {
+        if (expectedUSN == ANY_USN) {
+            return dataBase.executeUpdate("DELETE FROM " + collection + " WHERE uuid=?;", uuid);
+        }
+        return dataBase.executeUpdate("DELETE FROM " + collection + " WHERE uuid=? AND usn=?;", uuid, expectedUSN);
+    }
+
+    @Override
+    public Cursor query(@NotNull String collection, @NotNull KintoQuery query) throws SQLException {
+        List<Object> parameters = new ArrayList<>();
+        String sql = "SELECT * FROM " + collection + " WHERE " + buildWhereClause(query, parameters) + ";";
+        return dataBase.executeQuery(sql, parameters.toArray());
+    }
+
+    @Override
+    public int addRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                            @NotNull Collection<String> childUUIDs) throws SQLException {
+        String sql = buildAddRelationSQL(relation);
+        List<Object[]> batch = new ArrayList<>(childUUIDs.size());
+        for (String childUUID : childUUIDs) {
+            batch.add(new Object[] {parentUUID, childUUID});
+        }
+        return sum(dataBase.executeBatch(sql, batch));
+    }
+
+    @Override
+    public int removeRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                               @NotNull Collection<String> childUUIDs) throws SQLException {
+        String sql = "DELETE FROM " + relation.getName()
+                + " WHERE " + relation.getParentColumn() + "=? AND " + relation.getChildColumn() + "=?;";
+        List<Object[]> batch = new ArrayList<>(childUUIDs.size());
+        for (String childUUID : childUUIDs) {
+            batch.add(new Object[] {parentUUID, childUUID});
+        }
+        return sum(dataBase.executeBatch(sql, batch));
+    }
+
+    @Override
+    public int removeAllRelations(@NotNull Relation relation, @NotNull String parentUUID) throws SQLException {
+        String sql = "DELETE FROM " + relation.getName() + " WHERE " + relation.getParentColumn() + "=?;";
+        return dataBase.executeUpdate(sql, parentUUID);
+    }
+
+    @Override
+    public Map<String, List<String>> readRelations(@NotNull Relation relation,
+                                                   @Nullable Collection<String> parentUUIDs) throws SQLException {
+        Map<String, List<String>> childUUIDs = new HashMap<>();
+        String sql = "SELECT " + relation.getParentColumn() + ", " + relation.getChildColumn()
+                + " FROM " + relation.getName();
+        if (parentUUIDs == null) {
+            readRelations(relation, sql + ";", new Object[0], childUUIDs);
+            return childUUIDs;
+        }
+        // one statement for a chunk of uuid
+        List<String> uuidList = new ArrayList<>(parentUUIDs);
+        for (int start = 0; start < uuidList.size(); start += MAX_UUIDS_PER_STATEMENT) {
+            List<String> chunk = uuidList.subList(start, Math.min(uuidList.size(), start + MAX_UUIDS_PER_STATEMENT));
+            StringJoiner placeholders = new StringJoiner(",", " WHERE " + relation.getParentColumn() + " IN (", ");");
+            for (int index = 0; index < chunk.size(); index++) {
+                placeholders.add("?");
+            }
+            readRelations(relation, sql + placeholders, chunk.toArray(), childUUIDs);
+        }
+        return childUUIDs;
+    }
+
+    @Override
+    public List<KintoChange> readChanges(@Nullable String collection, long sinceSeq, int limit) throws SQLException {
+        List<KintoChange> changes = new ArrayList<>();
+        // the kinto record id is empty for objects never synced
+        String sql = "SELECT seq, collection, uuid, operation, remote, NULLIF(kintoid, '') AS kintoid, lastmodified FROM "
+                + JOURNAL_TABLE
+                + " WHERE seq>?" + (collection == null ? "" : " AND collection=?") + " ORDER BY seq LIMIT ?;";
+        Object[] parameters = collection == null
+                ? new Object[] {sinceSeq, limit}
+                : new Object[] {sinceSeq, collection, limit};
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery(sql, parameters)) {
+            while (resultSet.next()) {
+                changes.add(new KintoChange(resultSet.getLong("seq"),
+                        resultSet.getString("collection"),
+                        resultSet.getString("uuid"),
+                        KintoChange.Operation.valueOf(resultSet.getString("operation")),
+                        resultSet.getInt("remote") != 0,
+                        resultSet.getString("kintoid"),
+                        resultSet.getLong("lastmodified")));
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public void markRemoteDeletes(@NotNull String collection, @NotNull Collection<String> uuids) throws SQLException {
+        String sql = "UPDATE " + JOURNAL_TABLE + " SET remote=1 WHERE collection=? AND uuid=? AND operation='DELETE';";
+        List<Object[]> batch = new ArrayList<>(uuids.size());
+        for (String uuid : uuids) {
+            batch.add(new Object[] {collection, uuid});
+        }
+        dataBase.executeBatch(sql, batch);
+    }
+
+    @Override
+    public MergeResult mergeRemoteRecords(@NotNull String collection, @NotNull Collection<Relation> relations,
+                                          @NotNull List<RemoteRecord> records, long journalSeq) throws SQLException {
+        // the keys of the remote records in a temporary table, the rules are applied with one statement per rule
+        dataBase.executeSQL("CREATE TEMP TABLE IF NOT EXISTS " + MERGE_TABLE
+                + " (uuid TEXT PRIMARY KEY, lastmodified INT, deleted INT);");
+        dataBase.executeSQL("DELETE FROM " + MERGE_TABLE + ";");
+        List<Object[]> keys = new ArrayList<>(records.size());
+        for (RemoteRecord record : records) {
+            keys.add(new Object[] {record.getUUID(), record.getLastModified(), record.isDeleted() ? 1 : 0});
+        }
+        dataBase.executeBatch("INSERT OR REPLACE INTO " + MERGE_TABLE + " (uuid, lastmodified, deleted) VALUES(?, ?, ?);",
+                keys);
+        // changed in local datastore since the last sync or removed and not pushed
+        Set<String> conflicts = new LinkedHashSet<>();
+        String sql = "SELECT m.uuid FROM " + MERGE_TABLE + " m JOIN " + collection + " t ON t.uuid=m.uuid"
+                + " WHERE m.lastmodified>IFNULL(t.lastmodified, 0) AND (t.syncedusn IS NULL OR t.syncedusn<>t.usn)"
+                + " UNION ALL SELECT m.uuid FROM " + MERGE_TABLE + " m JOIN " + JOURNAL_TABLE + " j ON j.uuid=m.uuid"
+                + " WHERE j.collection=? AND j.seq>? AND j.operation='DELETE' AND j.remote=0 AND m.deleted=0;";
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery(sql, collection, journalSeq)) {
+            while (resultSet.next()) {
+                conflicts.add(resultSet.getString("uuid"));
+            }
+        }
+        // removed in remote kinto, the synced and older records are removed (last write wins)
+        int deleted = dataBase.executeUpdate("DELETE FROM " + collection + " WHERE syncedusn=usn"
+                + " AND EXISTS (SELECT 1 FROM " + MERGE_TABLE + " m WHERE m.uuid=" + collection + ".uuid"
+                + " AND m.deleted=1 AND m.lastmodified>IFNULL(" + collection + ".lastmodified, 0));");
+        if (deleted > 0) {
+            for (Relation relation : relations) {
+                dataBase.executeUpdate("DELETE FROM " + relation.getName() + " WHERE " + relation.getParentColumn()
+                        + " IN (SELECT uuid FROM " + MERGE_TABLE + " WHERE deleted=1)"
+                        + " AND " + relation.getParentColumn() + " NOT IN (SELECT uuid FROM " + collection + ");");
+            }
+        }
+        // the removes of remote kinto are not pushed, including the removes in local datastore and remote kinto
+        dataBase.executeUpdate("UPDATE " + JOURNAL_TABLE + " SET remote=1 WHERE collection=? AND operation='DELETE'"
+                + " AND remote=0 AND uuid IN (SELECT uuid FROM " + MERGE_TABLE + " WHERE deleted=1);", collection);
+        // insert or update the other records with one statement per set of attributes
+        Map<Set<String>, List<RemoteRecord>> recordsByColumns = new LinkedHashMap<>();
+        for (RemoteRecord record : records) {
+            if (!record.isDeleted() && !conflicts.contains(record.getUUID())) {
+                recordsByColumns.computeIfAbsent(record.getValues().keySet(), columns -> new ArrayList<>()).add(record);
+            }
+        }
+        int saved = 0;
+        List<RemoteRecord> savedRecords = new ArrayList<>();
+        for (Map.Entry<Set<String>, List<RemoteRecord>> entry : recordsByColumns.entrySet()) {
+            List<String> columns = new ArrayList<>(entry.getKey());
+            List<Object[]> batch = new ArrayList<>(entry.getValue().size());
+            for (RemoteRecord record : entry.getValue()) {
+                Object[] parameters = new Object[columns.size() + 3];
+                parameters[0] = record.getUUID();
+                parameters[1] = record.getUUID();
+                parameters[2] = record.getLastModified();
+                for (int index = 0; index < columns.size(); index++) {
+                    parameters[index + 3] = record.getValues().get(columns.get(index));
+                }
+                batch.add(parameters);
+            }
+            int[] updateCounts = dataBase.executeBatch(buildUpsertSQL(collection, columns), batch);
+            for (int index = 0; index < updateCounts.length; index++) {
+                if (updateCounts[index] > 0) {
+                    savedRecords.add(entry.getValue().get(index));
+                    saved++;
+                }
+            }
+        }
+        // the entries of the relations of the saved records are replaced
+        for (Relation relation : relations) {
+            List<Object[]> removedParents = new ArrayList<>();
+            List<Object[]> addedEntries = new ArrayList<>();
+            for (RemoteRecord record : savedRecords) {
+                List<String> childUUIDs = record.getRelations().get(relation);
+                if (childUUIDs != null) {
+                    removedParents.add(new Object[] {record.getUUID()});
+                    for (String childUUID : childUUIDs) {
+                        addedEntries.add(new Object[] {record.getUUID(), childUUID});
+                    }
+                }
+            }
+            dataBase.executeBatch("DELETE FROM " + relation.getName()
+                    + " WHERE " + relation.getParentColumn() + "=?;", removedParents);
+            dataBase.executeBatch(buildAddRelationSQL(relation), addedEntries);
+        }
+        dataBase.executeSQL("DELETE FROM " + MERGE_TABLE + ";");
+        return new MergeResult(saved, deleted, new ArrayList<>(conflicts));
+    }
+
+    @Override
+    public @Nullable String getMetadata(@NotNull String key) {
+        Map<String, String> changes = changedMetadata.get();
+        if (changes != null && changes.containsKey(key)) {
+            return changes.get(key);
+        }
+        return metadata.get(key);
+    }
+
+    @Override
+    public void setMetadata(@NotNull String key, @NotNull String value) throws SQLException {
+        dataBase.executeUpdate("INSERT OR REPLACE INTO " + METADATA_TABLE + " (key, value) VALUES (?, ?);", key, value);
+        Map<String, String> changes = changedMetadata.get();
+        if (changes != null) {
+            // other threads read the value after the commit
+            changes.put(key, value);
+        } else {
+            metadata.put(key, value);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return dataBase.isOpen();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        dataBase.close();
+    }
+
+    // add the entries of the relation table to the map
+    private void readRelations(Relation relation, String sql, Object[] parameters,
+                               Map<String, List<String>> childUUIDs) throws SQLException {
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery(sql, parameters)) {
+            while (resultSet.next()) {
+                childUUIDs.computeIfAbsent(resultSet.getString(relation.getParentColumn()), key -> new ArrayList<>())
+                        .add(resultSet.getString(relation.getChildColumn()));
+            }
+        }
+    }
+
+    // the triggers of the journal for the table of the collection and the relation tables
+    // the condition of the update trigger contains the columns, the triggers are created again on schema changes
+    private void createJournalTriggers(@NotNull CollectionSchema schema, boolean isSchemaChanged,
+                                       boolean isTableExisting) throws SQLException {
+        String name = schema.getName();
+        Map<String, String> triggers = new LinkedHashMap<>();
+        // a record is synced (remote change), if the synced usn is the usn of the record
+        // the entry is replaced without a conflict clause, the clause of an upsert overrides the clause of a trigger
+        String insert = "INSERT INTO " + JOURNAL_TABLE
+                + " (collection, uuid, operation, remote, kintoid, lastmodified) ";
+        String replaceNew = "DELETE FROM " + JOURNAL_TABLE + " WHERE collection='" + name + "' AND uuid=NEW.uuid; "
+                + insert;
+        triggers.put(name + "_journal_insert", "AFTER INSERT ON " + name + " BEGIN " + replaceNew
+                + "VALUES ('" + name + "', NEW.uuid, 'INSERT', "
+                + "NEW.syncedusn IS NOT NULL AND NEW.syncedusn=NEW.usn, NEW.kintoid, NEW.lastmodified); END;");
+        // changes of the sync state only (results of a push) are not journaled
+        StringBuilder condition = new StringBuilder("NEW.syncedusn IS NULL OR NEW.syncedusn<>NEW.usn");
+        for (String column : schema.getColumns().keySet()) {
+            if (!JOURNAL_SYNC_COLUMNS.contains(column)) {
+                condition.append(" OR OLD.").append(column).append(" IS NOT NEW.").append(column);
+            }
+        }
+        triggers.put(name + "_journal_update", "AFTER UPDATE ON " + name + " WHEN " + condition + " BEGIN " + replaceNew
+                + "VALUES ('" + name + "', NEW.uuid, 'UPDATE', "
+                + "NEW.syncedusn IS NOT NULL AND NEW.syncedusn=NEW.usn, NEW.kintoid, NEW.lastmodified); END;");
+        // the tombstone with the last timestamp of remote kinto
+        triggers.put(name + "_journal_delete", "AFTER DELETE ON " + name + " BEGIN "
+                + "DELETE FROM " + JOURNAL_TABLE + " WHERE collection='" + name + "' AND uuid=OLD.uuid; " + insert
+                + "VALUES ('" + name + "', OLD.uuid, 'DELETE', 0, OLD.kintoid, OLD.lastmodified); END;");
+        // a change of a relation is a change of the record with the list, if the record exists
+        for (Relation relation : schema.getRelations()) {
+            for (String event : new String[] {"INSERT", "DELETE"}) {
+                String parentUUID = (event.equals("INSERT") ? "NEW." : "OLD.") + relation.getParentColumn();
+                triggers.put(relation.getName() + "_journal_" + event.toLowerCase(Locale.ROOT),
+                        "AFTER " + event + " ON " + relation.getName()
+                                + " WHEN EXISTS (SELECT 1 FROM " + name + " WHERE uuid=" + parentUUID + ") BEGIN "
+                                + "DELETE FROM " + JOURNAL_TABLE + " WHERE collection='" + name
+                                + "' AND uuid=" + parentUUID + "; "
+                                + insert + "SELECT '" + name + "', uuid, 'UPDATE', "
+                                + "syncedusn IS NOT NULL AND syncedusn=usn, kintoid, lastmodified FROM " + name
+                                + " WHERE uuid=" + parentUUID + "; END;");
+            }
+        }
+        boolean isJournalMissing = false;
+        for (Map.Entry<String, String> trigger : triggers.entrySet()) {
+            if (localTriggers.contains(trigger.getKey())) {
+                if (!isSchemaChanged) {
+                    continue;
+                }
+                dataBase.executeSQL("DROP TRIGGER IF EXISTS " + trigger.getKey() + ";");
+            } else {
+                isJournalMissing = true;
+            }
+            dataBase.executeSQL("CREATE TRIGGER " + trigger.getKey() + " " + trigger.getValue());
+            localTriggers.add(trigger.getKey());
+        }
+        if (isTableExisting && isJournalMissing) {
+            // the records changed before the journal was created
+            dataBase.executeUpdate(insert.replace("INSERT INTO", "INSERT OR IGNORE INTO")
+                    + "SELECT ?, uuid, 'UPDATE', 0, kintoid, lastmodified FROM " + name
+                    + " WHERE syncedusn IS NULL OR syncedusn<>usn;", name);
+        }
+    }
+
+    // build the where clause for the query, the values are added to the parameters
+    private @NotNull String buildWhereClause(@NotNull KintoQuery query, @NotNull List<Object> parameters) {
+        if (query.getConditions().isEmpty()) {
+            return "1=1";
+        }
+        StringBuilder whereClause = new StringBuilder();
+        for (KintoQuery.Condition condition : query.getConditions()) {
+            if (whereClause.length() > 0) {
+                whereClause.append(" AND ");
+            }
+            whereClause.append(condition.getAttributeName());
+            whereClause.append(" ");
+            whereClause.append(condition.getOperator().getSqlOperator());
+            List<Object> values = condition.getValues();
+            switch (condition.getOperator()) {
+                case BETWEEN:
+                    whereClause.append(" ? AND ?");
+                    break;
+                case IN:
+                    whereClause.append(" (");
+                    for (int index = 0; index < values.size(); index++) {
+                        if (index > 0) {
+                            whereClause.append(", ");
+                        }
+                        whereClause.append("?");
+                    }
+                    whereClause.append(")");
+                    break;
+                default:
+                    whereClause.append(" ?");
+            }
+            for (Object value : values) {
+                parameters.add(StorageEngine.toColumnValue(value));
+            }
+        }
+        return whereClause.toString();
+    }
+
+    // CREATE TABLE name(column type, ...);
+    private @NotNull String buildCreateTableSQL(@NotNull String tableName, @NotNull Map<String, String> columns) {
+        StringJoiner sql = new StringJoiner(", ", "CREATE TABLE " + tableName + "(", ");");
+        for (Map.Entry<String, String> column : columns.entrySet()) {
+            sql.add(column.getKey() + " " + column.getValue());
+        }
+        return sql.toString();
+    }
+
+    // a hash of the columns and relation tables, independent of the order of the attributes
+    private @NotNull String buildSchemaFingerprint(@NotNull CollectionSchema schema) throws SQLException {
+        TreeMap<String, String> definitions = new TreeMap<>(schema.getColumns());
+        for (Relation relation : schema.getRelations()) {
+            // the relation tables have a key since this version
+            definitions.put(relation.getName(), DataSet.RELATION_DATA_MAPPING_STRING + " UNIQUE");
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(definitions.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder fingerprint = new StringBuilder(hash.length * 2);
+            for (byte value : hash) {
+                fingerprint.append(String.format("%02x", value));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException exception) {
+            throw new SQLException("Can't build the schema fingerprint: " + exception.getMessage());
+        }
+    }
+
+    // INSERT INTO table (uuid, kintoid, lastmodified, usn, syncedusn, column1, ...) VALUES(?, ?, ?, 0, 0, ?, ...)
+    // ON CONFLICT(uuid) DO UPDATE SET column1=excluded.column1, ..., usn=usn+1, syncedusn=usn+1 WHERE [newer and synced];
+    // a new record is synced with usn 0, an update of a synced and older record increments the usn
+    private @NotNull String buildUpsertSQL(@NotNull String collection, @NotNull List<String> columns) {
+        StringJoiner insertColumns = new StringJoiner(", ", "(", ")");
+        StringJoiner placeholders = new StringJoiner(", ", "(", ")");
+        StringJoiner assignments = new StringJoiner(", ");
+        for (String column : List.of("uuid", "kintoid", "lastmodified")) {
+            insertColumns.add(column);
+            placeholders.add("?");
+        }
+        insertColumns.add("usn").add("syncedusn");
+        placeholders.add("0").add("0");
+        for (String column : columns) {
+            insertColumns.add(column);
+            placeholders.add("?");
+            assignments.add(column + "=excluded." + column);
+        }
+        assignments.add("kintoid=excluded.kintoid");
+        assignments.add("lastmodified=excluded.lastmodified");
+        assignments.add("usn=" + collection + ".usn+1");
+        assignments.add("syncedusn=" + collection + ".usn+1");
+        return "INSERT INTO " + collection + " " + insertColumns + " VALUES" + placeholders
+                + " ON CONFLICT(uuid) DO UPDATE SET " + assignments
+                + " WHERE excluded.lastmodified>IFNULL(" + collection + ".lastmodified, 0)"
+                + " AND " + collection + ".syncedusn=" + collection + ".usn;";
+    }
+
+    // an existing entry is not inserted again, the key of the relation table is used
+    // parameters: parent uuid, child uuid
+    private @NotNull String buildAddRelationSQL(@NotNull Relation relation) {
+        return "INSERT OR IGNORE INTO " + relation.getName()
+                + " (" + relation.getParentColumn() + ", " + relation.getChildColumn() + ") VALUES (?, ?);";
+    }
+
+    // relation tables of older versions have no key, duplicate entries are removed before the key is created
+    private void createRelationKey(@NotNull Relation relation) throws SQLException {
+        String name = relation.getName();
+        String columns = relation.getParentColumn() + ", " + relation.getChildColumn();
+        dataBase.beginTransaction();
+        try {
+            dataBase.executeSQL("DELETE FROM " + name + " WHERE rowid NOT IN (SELECT MIN(rowid) FROM "
+                    + name + " GROUP BY " + columns + ");");
+            dataBase.executeSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + name + "_key ON " + name + " (" + columns + ");");
+            dataBase.commit();
+        } catch (SQLException exception) {
+            dataBase.rollback();
+            throw exception;
+        }
+    }
+
+    // change the table to the expected columns, the values of existing columns are kept
+    // new columns are added in place, removed or changed columns need a copy of the table
+    private void migrateTable(@NotNull String name, @NotNull LinkedHashMap<String, String> columns,
+                              @NotNull Collection<Relation> relations) throws SQLException {
+        long start = System.nanoTime();
+        // the actual columns in local datastore
+        LinkedHashMap<String, String> actualColumns = new LinkedHashMap<>();
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery("PRAGMA table_info(" + name + ");")) {
+            while (resultSet.next()) {
+                String columnType = resultSet.getString("type");
+                if (resultSet.getInt("pk") > 0) {
+                    columnType += " PRIMARY KEY";
+                }
+                actualColumns.put(resultSet.getString("name"), columnType);
+            }
+        }
+        List<String> addedColumns = new ArrayList<>();
+        boolean isCopyNeeded = false;
+        for (Map.Entry<String, String> column : columns.entrySet()) {
+            String actualType = actualColumns.get(column.getKey());
+            if (actualType == null) {
+                addedColumns.add(column.getKey());
+            } else if (!actualType.equalsIgnoreCase(column.getValue())) {
+                isCopyNeeded = true;
+            }
+        }
+        for (String actualColumn : actualColumns.keySet()) {
+            if (!columns.containsKey(actualColumn)) {
+                isCopyNeeded = true;
+            }
+        }
+        if (!isCopyNeeded && addedColumns.isEmpty()) {
+            // only the fingerprint is missing
+            return;
+        }
+        dataBase.beginTransaction();
+        try {
+            if (isCopyNeeded) {
+                // copy and swap, the values of the common columns are copied with one statement
+                String newTableName = name + "_migration";
+                dataBase.executeSQL("DROP TABLE IF EXISTS " + newTableName + ";");
+                dataBase.executeSQL(buildCreateTableSQL(newTableName, columns));
+                StringJoiner commonColumns = new StringJoiner(", ");
+                for (String columnName : columns.keySet()) {
+                    if (actualColumns.containsKey(columnName)) {
+                        commonColumns.add(columnName);
+                    }
+                }
+                dataBase.executeSQL("INSERT INTO " + newTableName + " (" + commonColumns + ") SELECT "
+                        + commonColumns + " FROM " + name + ";");
+                // the journal triggers of the relation tables refer to the table and would fail the rename,
+                // they are created again with the triggers of the table
+                for (Relation relation : relations) {
+                    dataBase.executeSQL("DROP TRIGGER IF EXISTS " + relation.getName() + "_journal_insert;");
+                    dataBase.executeSQL("DROP TRIGGER IF EXISTS " + relation.getName() + "_journal_delete;");
+                }
+                dataBase.executeSQL("DROP TABLE " + name + ";");
+                dataBase.executeSQL("ALTER TABLE " + newTableName + " RENAME TO " + name + ";");
+            } else {
+                // add the new columns in place
+                for (String columnName : addedColumns) {
+                    dataBase.executeSQL("ALTER TABLE " + name + " ADD COLUMN "
+                            + columnName + " " + columns.get(columnName) + ";");
+                }
+            }
+            dataBase.commit();
+        } catch (SQLException exception) {
+            dataBase.rollback();
+            throw exception;
+        }
+        String logMessage = "Migrated the table of the collection "
+                + name
+                + (isCopyNeeded ? " (copy)" : " (added columns " + addedColumns + ")")
+                + " in "
+                + (System.nanoTime() - start) / 1000000
+                + " ms.";
+        kintoLogger.log(KintoLogger.INFO, TAG, logMessage, null);
+    }
+
+    // the count of changed rows of a batch
+    private static int sum(int[] updateCounts) {
+        int count = 0;
+        for (int updateCount : updateCounts) {
+            if (updateCount > 0) {
+                count += updateCount;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,341 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A storage engine with the collections in several sqlite databases (shards).
+ * Sqlite allows one writer per database, with shards the writes to collections
+ * in different shards run in parallel, e.g. logs and the catalog.
+ * <p>
+ * The collections are placed with {@link KintoConfiguration.Builder#shard(String, Class[])},
+ * all other collections and the metadata are in the {@link #DEFAULT_SHARD}.
+ * The relations (1:m) are in the shard of the collection with the list, so a record and
+ * its relations are written in one transaction of one shard. The lists can contain
+ * objects of collections in other shards.
+ * <p>
+ * A transaction begins a transaction in a shard on the first write to the shard.
+ * The transactions of the shards are committed one by one, a transaction with writes
+ * to several shards is not atomic. The shards are attached to each other with the shard name,
+ * so sql statements can use the tables of all shards, e.g. with
+ * {@link Kinto#getLocalDatastoreConnection()}: <code>SELECT * FROM logs.Telemetry;</code>.
+ * <p>
+ * Every shard has a change journal with its own sequence numbers, the changes of a collection
+ * are read from the shard of the collection. The changes of all collections can only be read with one shard.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+public final class ShardedStorageEngine implements StorageEngine {
+
+    /**
+     * The name of the shard for the collections without placement and the metadata,
+     * the database of the app (main is reserved in sqlite).
+     */
+    public static final String DEFAULT_SHARD = "app";
+
+    private final Map<String, SQLiteStorageEngine> shards; // shard name -> engine
+    private final Map<String, String> placement; // collection name -> shard name
+    private final Map<String, SQLiteStorageEngine> relationShards; // relation name -> engine
+    private final SQLiteStorageEngine defaultShard;
+    private final ThreadLocal<Transaction> transaction;
+
+    /**
+     * Create an engine with the given shards.
+     *
+     * @param shards the engine of every shard by shard name, including the {@link #DEFAULT_SHARD}
+     * @param placement the shard name by collection name
+     * @throws IllegalArgumentException if the default shard is missing or a shard of the placement not exists
+     */
+    public ShardedStorageEngine(@NotNull Map<String, SQLiteStorageEngine> shards,
+                                @NotNull Map<String, String> placement) {
+        if (!shards.containsKey(DEFAULT_SHARD)) {
+            throw new IllegalArgumentException("The default shard is missing.");
+        }
+        for (String shardName : placement.values()) {
+            if (!shards.containsKey(shardName)) {
+                throw new IllegalArgumentException("The shard " + shardName + " not exists.");
+            }
+        }
+        this.shards = new LinkedHashMap<>(shards);
+        this.placement = new HashMap<>(placement);
+        relationShards = new ConcurrentHashMap<>();
+        defaultShard = shards.get(DEFAULT_SHARD);
+        transaction = new ThreadLocal<>();
+    }
+
+    /**
+     * Create the engine for the shards of a configuration.
+     *
+     * @param configuration with the shard placement, the storage profile and mode
+     * @return The engine with a sqlite database per shard.
+     * @throws KintoException if a database can't be created
+     */
+    public static ShardedStorageEngine create(@NotNull KintoConfiguration configuration) throws KintoException {
+        Map<String, SQLiteStorageEngine> shards = new LinkedHashMap<>();
+        shards.put(DEFAULT_SHARD, new SQLiteStorageEngine(new KintoDatabaseAdapter(configuration.getAppPackageName(),
+                configuration.getStorageProfile(), configuration.getStorageMode())));
+        for (String shardName : new TreeSet<>(configuration.getShardPlacement().values())) {
+            if (shardName.equals(DEFAULT_SHARD)) {
+                continue;
+            }
+            shards.put(shardName, new SQLiteStorageEngine(new KintoDatabaseAdapter(configuration.getAppPackageName(),
+                    configuration.getStorageProfile(), configuration.getStorageMode(), shardName)));
+        }
+        return new ShardedStorageEngine(shards, configuration.getShardPlacement());
+    }
+
+    /**
+     * Get the engine of a shard.
+     *
+     * @param shardName name of the shard
+     * @return The engine or null, if the shard not exists.
+     */
+    public @Nullable SQLiteStorageEngine getShard(@NotNull String shardName) {
+        return shards.get(shardName);
+    }
+
+    /**
+     * Get the names of all shards.
+     *
+     * @return The names of the shards, the default shard first.
+     */
+    public Set<String> getShardNames() {
+        return Collections.unmodifiableSet(shards.keySet());
+    }
+
+    @Override
+    public void open() throws SQLException {
+        for (SQLiteStorageEngine shard : shards.values()) {
+            shard.open();
+        }
+        // every shard can be used in the statements of all shards
+        for (Map.Entry<String, SQLiteStorageEngine> shard : shards.entrySet()) {
+            for (Map.Entry<String, SQLiteStorageEngine> otherShard : shards.entrySet()) {
+                if (shard != otherShard) {
+                    shard.getValue().getDatabaseAdapter().attach(otherShard.getKey(),
+                            otherShard.getValue().getDatabaseAdapter().getDatabasePath());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void openCollection(@NotNull CollectionSchema schema) throws SQLException {
+        SQLiteStorageEngine shard = shardOf(schema);
+        for (Relation relation : schema.getRelations()) {
+            relationShards.put(relation.getName(), shard);
+        }
+        shard.openCollection(schema);
+    }
+
+    @Override
+    public void beginTransaction() {
+        Transaction current = transaction.get();
+        if (current == null) {
+            current = new Transaction();
+            transaction.set(current);
+        }
+        current.depth++;
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        Transaction current = transaction.get();
+        if (current == null) {
+            throw new SQLException("There is no transaction of this thread.");
+        }
+        if (--current.depth > 0) {
+            return;
+        }
+        transaction.remove();
+        Iterator<SQLiteStorageEngine> iterator = current.shards.iterator();
+        try {
+            while (iterator.hasNext()) {
+                iterator.next().commit();
+            }
+        } catch (SQLException exception) {
+            // the transactions of the other shards are rolled back
+            while (iterator.hasNext()) {
+                try {
+                    iterator.next().rollback();
+                } catch (SQLException rollbackException) {
+                    exception.addSuppressed(rollbackException);
+                }
+            }
+            throw exception;
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        Transaction current = transaction.get();
+        if (current == null) {
+            return;
+        }
+        transaction.remove();
+        SQLException rollbackException = null;
+        for (SQLiteStorageEngine shard : current.shards) {
+            try {
+                shard.rollback();
+            } catch (SQLException exception) {
+                if (rollbackException == null) {
+                    rollbackException = exception;
+                } else {
+                    rollbackException.addSuppressed(exception);
+                }
+            }
+        }
+        if (rollbackException != null) {
+            throw rollbackException;
+        }
+    }
+
+    @Override
+    public void insert(@NotNull String collection, @NotNull Map<String, String> values) throws SQLException {
+        writeShard(shardOf(collection)).insert(collection, values);
+    }
+
+    @Override
+    public int update(@NotNull String collection, @NotNull String uuid, long expectedUSN,
+                      @NotNull Map<String, String> values) throws SQLException {
+        return writeShard(shardOf(collection)).update(collection, uuid, expectedUSN, values);
+    }
+
+    @Override
+    public int updateFields(@NotNull String collection, @NotNull String uuid,
+                            @NotNull KintoFieldUpdate fieldUpdate) throws SQLException {
+        return writeShard(shardOf(collection)).updateFields(collection, uuid, fieldUpdate);
+    }
+
+    @Override
+    public int delete(@NotNull String collection, @NotNull String uuid, long expectedUSN) throws SQLException {
+        return writeShard(shardOf(collection)).delete(collection, uuid, expectedUSN);
+    }
+
+    @Override
+    public Cursor query(@NotNull String collection, @NotNull KintoQuery query) throws SQLException {
+        return shardOf(collection).query(collection, query);
+    }
+
+    @Override
+    public int addRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                            @NotNull Collection<String> childUUIDs) throws SQLException {
+        return writeShard(shardOf(relation)).addRelations(relation, parentUUID, childUUIDs);
+    }
+
+    @Override
+    public int removeRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                               @NotNull Collection<String> childUUIDs) throws SQLException {
+        return writeShard(shardOf(relation)).removeRelations(relation, parentUUID, childUUIDs);
+    }
+
+    @Override
+    public int removeAllRelations(@NotNull Relation relation, @NotNull String parentUUID) throws SQLException {
+        return writeShard(shardOf(relation)).removeAllRelations(relation, parentUUID);
+    }
+
+    @Override
+    public Map<String, List<String>> readRelations(@NotNull Relation relation,
+                                                   @Nullable Collection<String> parentUUIDs) throws SQLException {
+        return shardOf(relation).readRelations(relation, parentUUIDs);
+    }
+
+    @Override
+    public List<KintoChange> readChanges(@Nullable String collection, long sinceSeq, int limit) throws SQLException {
+        if (collection != null) {
+            return shardOf(collection).readChanges(collection, sinceSeq, limit);
+        }
+        if (shards.size() > 1) {
+            // the sequence numbers of the shards are not comparable
+            throw new SQLException("The changes of several shards can only be read by collection.");
+        }
+        return defaultShard.readChanges(null, sinceSeq, limit);
+    }
+
+    @Override
+    public void markRemoteDeletes(@NotNull String collection, @NotNull Collection<String> uuids) throws SQLException {
+        writeShard(shardOf(collection)).markRemoteDeletes(collection, uuids);
+    }
+
+    @Override
+    public MergeResult mergeRemoteRecords(@NotNull String collection, @NotNull Collection<Relation> relations,
+                                          @NotNull List<RemoteRecord> records, long journalSeq) throws SQLException {
+        // the relations are in the shard of the collection
+        return writeShard(shardOf(collection)).mergeRemoteRecords(collection, relations, records, journalSeq);
+    }
+
+    @Override
+    public @Nullable String getMetadata(@NotNull String key) {
+        return defaultShard.getMetadata(key);
+    }
+
+    @Override
+    public void setMetadata(@NotNull String key, @NotNull String value) throws SQLException {
+        writeShard(defaultShard).setMetadata(key, value);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return defaultShard.isOpen();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException closeException = null;
+        for (SQLiteStorageEngine shard : shards.values()) {
+            try {
+                shard.close();
+            } catch (SQLException exception) {
+                if (closeException == null) {
+                    closeException = exception;
+                } else {
+                    closeException.addSuppressed(exception);
+                }
+            }
+        }
+        if (closeException != null) {
+            throw closeException;
+        }
+    }
+
+    private @NotNull SQLiteStorageEngine shardOf(@NotNull CollectionSchema schema) {
+        return shards.get(placement.getOrDefault(schema.getName(), DEFAULT_SHARD));
+    }
+
+    private @NotNull SQLiteStorageEngine shardOf(@NotNull String collection) {
+        return shards.get(placement.getOrDefault(collection, DEFAULT_SHARD));
+    }
+
+    private @NotNull SQLiteStorageEngine shardOf(@NotNull Relation relation) throws SQLException {
+        SQLiteStorageEngine shard = relationShards.get(relation.getName());
+        if (shard == null) {
+            throw new SQLException("no such table: " + relation.getName());
+        }
+        return shard;
+    }
+
+    // begin the transaction of the shard, if the calling thread has a transaction
+    private @NotNull SQLiteStorageEngine writeShard(@NotNull SQLiteStorageEngine shard) throws SQLException {
+        Transaction current = transaction.get();
+        if (current != null && !current.shards.contains(shard)) {
+            shard.beginTransaction();
+            current.shards.add(shard);
+        }
+        return shard;
+    }
+
+    // the shards with a transaction of a thread
+    private static final class Transaction {
+
+        private final List<SQLiteStorageEngine> shards = new ArrayList<>(2);
+        private int depth;
+    }
+}
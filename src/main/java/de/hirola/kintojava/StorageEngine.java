@@ -0,0 +1,649 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.model.KintoObject;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The storage of the local datastore. The collections convert the objects to records
+ * and use the engine to save, find and remove the records, to manage the relations (1:m) and the transactions.
+ * <p>
+ * A record is a map of column name and value. The values are the strings of
+ * {@link de.hirola.kintojava.model.DataSet#getValueAsString(KintoObject)}, the columns uuid, kintoid
+ * and usn (update sequence number) exist in every collection. The values of queries and field updates
+ * are converted with {@link #toColumnValue(Object)}.
+ * <p>
+ * Every change of a record or of the relations of a record is written to a change journal
+ * (see {@link KintoChange}), the sync reads the local changes from the journal.
+ * <p>
+ * The engine is used from many threads. The collections serialize the writes of a collection,
+ * reads are not serialized. Errors are reported with {@link SQLException} like in {@link KintoDatabaseAdapter}.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ * @see SQLiteStorageEngine
+ * @see InMemoryStorageEngine
+ */
+public interface StorageEngine {
+
+    /**
+     * The expected update sequence number for unconditional updates and removes.
+     */
+    long ANY_USN = -1;
+
+    /**
+     * The count of records in one query of the merge of remote records.
+     */
+    int MERGE_CHUNK_SIZE = 500;
+
+    /**
+     * Get the name of the engine, e.g. for logging.
+     *
+     * @return The name of the engine.
+     */
+    default String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Prepare the engine before the first collection is opened, e.g. read the schema.
+     *
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    default void open() throws SQLException {
+    }
+
+    /**
+     * Create the storage of a collection and the relations of the collection, if not exists.
+     * An existing storage is changed to the columns of the schema.
+     * The values of removed columns are deleted.
+     *
+     * @param schema of the collection
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    void openCollection(@NotNull CollectionSchema schema) throws SQLException;
+
+    /**
+     * Begin a transaction of the calling thread. Every transaction must be completed with commit or rollback.
+     *
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    void beginTransaction() throws SQLException;
+
+    /**
+     * Commit the transaction of the calling thread.
+     *
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    void commit() throws SQLException;
+
+    /**
+     * Roll back the transaction of the calling thread. Without a transaction nothing happens.
+     *
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    void rollback() throws SQLException;
+
+    /**
+     * Add a record to a collection.
+     *
+     * @param collection name of the collection
+     * @param values of the record, including uuid, kintoid and usn
+     * @throws SQLException if a record with the uuid exists or an error occurred while accessing the datastore
+     */
+    void insert(@NotNull String collection, @NotNull Map<String, String> values) throws SQLException;
+
+    /**
+     * Change the values of a record and increment the update sequence number of the record.
+     *
+     * @param collection name of the collection
+     * @param uuid of the record
+     * @param expectedUSN the update sequence number of the record, {@link #ANY_USN} for an unconditional update
+     * @param values the changed values, can be empty
+     * @return The count of changed records, 0 if the record not exists or the number differs.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    int update(@NotNull String collection, @NotNull String uuid, long expectedUSN,
+               @NotNull Map<String, String> values) throws SQLException;
+
+    /**
+     * Change single values of a record and increment the update sequence number of the record.
+     * The attributes of the changes and the condition are checked by the collection.
+     *
+     * @param collection name of the collection
+     * @param uuid of the record
+     * @param fieldUpdate the changes and an optional condition
+     * @return The count of changed records, 0 if the record not exists or the condition is not fulfilled.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    int updateFields(@NotNull String collection, @NotNull String uuid,
+                     @NotNull KintoFieldUpdate fieldUpdate) throws SQLException;
+
+    /**
+     * Remove a record from a collection. The relations of the record are not removed.
+     *
+     * @param collection name of the collection
+     * @param uuid of the record
+     * @param expectedUSN the update sequence number of the record, {@link #ANY_USN} for an unconditional remove
+     * @return The count of removed records, 0 if the record not exists or the number differs.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    int delete(@NotNull String collection, @NotNull String uuid, long expectedUSN) throws SQLException;
+
+    /**
+     * Open a cursor for all records fulfilling the query, in the order of insertion.
+     * The attributes of the query are checked by the collection. The cursor must be closed after use.
+     *
+     * @param collection name of the collection
+     * @param query the conditions, all records for an empty query
+     * @return The cursor with the records.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    Cursor query(@NotNull String collection, @NotNull KintoQuery query) throws SQLException;
+
+    /**
+     * Get all records fulfilling the query.
+     *
+     * @param collection name of the collection
+     * @param query the conditions, all records for an empty query
+     * @return The list of records. The list can be empty.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    default List<KintoRow> find(@NotNull String collection, @NotNull KintoQuery query) throws SQLException {
+        List<KintoRow> rows = new ArrayList<>();
+        try (Cursor cursor = query(collection, query)) {
+            while (cursor.next()) {
+                rows.add(cursor.readRow());
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Get the record with the uuid.
+     *
+     * @param collection name of the collection
+     * @param uuid of the record
+     * @return The record or null, if the record not exists.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    default @Nullable KintoRow findByUUID(@NotNull String collection, @NotNull String uuid) throws SQLException {
+        List<KintoRow> rows = find(collection, new KintoQuery().equalTo("uuid", uuid));
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /**
+     * Add entries to a relation, existing entries are not added again.
+     *
+     * @param relation the relation (1:m)
+     * @param parentUUID uuid of the record with the list
+     * @param childUUIDs uuid of the records in the list
+     * @return The count of added entries.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    int addRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                     @NotNull Collection<String> childUUIDs) throws SQLException;
+
+    /**
+     * Add an entry to a relation, an existing entry is not added again.
+     *
+     * @param relation the relation (1:m)
+     * @param parentUUID uuid of the record with the list
+     * @param childUUID uuid of the record in the list
+     * @return The count of added entries.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    default int addRelation(@NotNull Relation relation, @NotNull String parentUUID,
+                            @NotNull String childUUID) throws SQLException {
+        return addRelations(relation, parentUUID, Collections.singletonList(childUUID));
+    }
+
+    /**
+     * Remove entries from a relation.
+     *
+     * @param relation the relation (1:m)
+     * @param parentUUID uuid of the record with the list
+     * @param childUUIDs uuid of the records in the list
+     * @return The count of removed entries.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    int removeRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                        @NotNull Collection<String> childUUIDs) throws SQLException;
+
+    /**
+     * Remove an entry from a relation.
+     *
+     * @param relation the relation (1:m)
+     * @param parentUUID uuid of the record with the list
+     * @param childUUID uuid of the record in the list
+     * @return The count of removed entries.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    default int removeRelation(@NotNull Relation relation, @NotNull String parentUUID,
+                               @NotNull String childUUID) throws SQLException {
+        return removeRelations(relation, parentUUID, Collections.singletonList(childUUID));
+    }
+
+    /**
+     * Remove all entries of a record from a relation.
+     *
+     * @param relation the relation (1:m)
+     * @param parentUUID uuid of the record with the list
+     * @return The count of removed entries.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    int removeAllRelations(@NotNull Relation relation, @NotNull String parentUUID) throws SQLException;
+
+    /**
+     * Get the entries of records from a relation.
+     *
+     * @param relation the relation (1:m)
+     * @param parentUUIDs uuid of the records with the list, null for all entries of the relation
+     * @return The uuid of the records in the lists in the order of insertion, by uuid of the record with the list.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    Map<String, List<String>> readRelations(@NotNull Relation relation,
+                                            @Nullable Collection<String> parentUUIDs) throws SQLException;
+
+    /**
+     * Get the entries of a record from a relation.
+     *
+     * @param relation the relation (1:m)
+     * @param parentUUID uuid of the record with the list
+     * @return The uuid of the records in the list in the order of insertion. The list can be empty.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    default List<String> readRelation(@NotNull Relation relation, @NotNull String parentUUID) throws SQLException {
+        List<String> childUUIDs = readRelations(relation, Collections.singletonList(parentUUID)).get(parentUUID);
+        return childUUIDs == null ? Collections.emptyList() : childUUIDs;
+    }
+
+    /**
+     * Get the entries of the change journal after a sequence number, in the order of the sequence numbers.
+     * The journal contains one entry per record with the last change (insert, update or remove) of the record
+     * and of the relations of the record. Changes of the sync state only are not journaled.
+     *
+     * @param collection name of the collection, null for the entries of all collections
+     * @param sinceSeq the sequence number of the last read entry, 0 for all entries
+     * @param limit the max count of entries
+     * @return The entries, the list can be empty.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    List<KintoChange> readChanges(@Nullable String collection, long sinceSeq, int limit) throws SQLException;
+
+    /**
+     * Mark the journal entries of removed records as remote, e.g. for records removed in remote kinto.
+     * The entries keep the sequence numbers, entries of other changes are not changed.
+     *
+     * @param collection name of the collection
+     * @param uuids of the removed records
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    void markRemoteDeletes(@NotNull String collection, @NotNull Collection<String> uuids) throws SQLException;
+
+    /**
+     * Merge the records of remote kinto into a collection, e.g. the records of a pull.
+     * The rules of the sync are applied for all records of the list:
+     * <ul>
+     *     <li>a record is saved or removed, if the record in local datastore is synced and older
+     *     (last write wins by the timestamp of remote kinto), a new record is inserted</li>
+     *     <li>a record changed in local datastore since the last sync is not changed (conflict)</li>
+     *     <li>a record removed in local datastore and not pushed since the journal sequence number
+     *     is not inserted again (conflict), the remove is marked as remote, if the record was removed
+     *     in remote kinto too</li>
+     * </ul>
+     * The entries of the relations of a saved record are replaced, the relations of a removed record are removed.
+     * The changes are journaled as remote changes. The engine uses the transaction of the caller.
+     * The caller saves the conflicts in the same transaction, the local changes of the conflicts
+     * are pushed with the timestamp of the remote records (see {@link KintoSync}).
+     *
+     * @param collection name of the collection
+     * @param relations the relations (1:m) of the collection
+     * @param records the records of remote kinto, one record per uuid
+     * @param journalSeq the sequence number of the journal of the last push
+     * @return The counts of the saved and removed records and the uuid of the conflicts.
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    default MergeResult mergeRemoteRecords(@NotNull String collection, @NotNull Collection<Relation> relations,
+                                           @NotNull List<RemoteRecord> records, long journalSeq) throws SQLException {
+        // the records in local datastore, queried in chunks
+        Map<String, KintoRow> localRows = new HashMap<>(records.size() * 2);
+        for (int from = 0; from < records.size(); from += MERGE_CHUNK_SIZE) {
+            List<RemoteRecord> chunk = records.subList(from, Math.min(records.size(), from + MERGE_CHUNK_SIZE));
+            Object[] uuids = new Object[chunk.size()];
+            for (int index = 0; index < chunk.size(); index++) {
+                uuids[index] = chunk.get(index).getUUID();
+            }
+            for (KintoRow row : find(collection, new KintoQuery().in("uuid", uuids))) {
+                localRows.put(row.getString("uuid"), row);
+            }
+        }
+        // the local removes after the journal sequence number
+        Set<String> localDeletes = new HashSet<>();
+        List<KintoChange> changes;
+        do {
+            changes = readChanges(collection, journalSeq, MERGE_CHUNK_SIZE);
+            for (KintoChange change : changes) {
+                if (change.getOperation() == KintoChange.Operation.DELETE && !change.isRemote()) {
+                    localDeletes.add(change.getUUID());
+                }
+                journalSeq = change.getSeq();
+            }
+        } while (changes.size() == MERGE_CHUNK_SIZE);
+        List<String> remoteDeletes = new ArrayList<>();
+        List<String> conflicts = new ArrayList<>();
+        int saved = 0;
+        int deleted = 0;
+        for (RemoteRecord record : records) {
+            String uuid = record.getUUID();
+            KintoRow localRow = localRows.get(uuid);
+            if (localRow == null) {
+                if (localDeletes.contains(uuid)) {
+                    if (record.isDeleted()) {
+                        remoteDeletes.add(uuid);
+                    } else {
+                        conflicts.add(uuid);
+                    }
+                    continue;
+                }
+                if (record.isDeleted()) {
+                    continue;
+                }
+            } else {
+                if (record.getLastModified() <= localRow.getLong("lastmodified")) {
+                    // the local record is up-to-date, e.g. pushed with the last sync
+                    continue;
+                }
+                String syncedUSN = localRow.getString("syncedusn");
+                if (syncedUSN == null || syncedUSN.isEmpty() || localRow.getLong("syncedusn") != localRow.getLong("usn")) {
+                    conflicts.add(uuid);
+                    continue;
+                }
+                if (record.isDeleted()) {
+                    delete(collection, uuid, ANY_USN);
+                    for (Relation relation : relations) {
+                        removeAllRelations(relation, uuid);
+                    }
+                    remoteDeletes.add(uuid);
+                    deleted++;
+                    continue;
+                }
+            }
+            Map<String, String> values = new LinkedHashMap<>(record.getValues());
+            values.put("kintoid", uuid);
+            values.put("lastmodified", String.valueOf(record.getLastModified()));
+            if (localRow == null) {
+                values.put("uuid", uuid);
+                values.put("usn", "0");
+                values.put("syncedusn", "0");
+                insert(collection, values);
+            } else {
+                // the update increments the usn
+                long usn = localRow.getLong("usn");
+                values.put("syncedusn", String.valueOf(usn + 1));
+                if (update(collection, uuid, usn, values) == 0) {
+                    throw new SQLException("The record " + uuid + " was changed while merging.");
+                }
+            }
+            for (Map.Entry<Relation, List<String>> relationEntry : record.getRelations().entrySet()) {
+                removeAllRelations(relationEntry.getKey(), uuid);
+                addRelations(relationEntry.getKey(), uuid, relationEntry.getValue());
+            }
+            saved++;
+        }
+        if (!remoteDeletes.isEmpty()) {
+            markRemoteDeletes(collection, remoteDeletes);
+        }
+        return new MergeResult(saved, deleted, conflicts);
+    }
+
+    /**
+     * Get a value of the metadata of the datastore, e.g. the schema of the collections.
+     *
+     * @param key of the value
+     * @return The value or null, if the key not exists.
+     */
+    @Nullable String getMetadata(@NotNull String key);
+
+    /**
+     * Save a value in the metadata of the datastore.
+     *
+     * @param key of the value
+     * @param value to save
+     * @throws SQLException if an error occurred while accessing the datastore
+     */
+    void setMetadata(@NotNull String key, @NotNull String value) throws SQLException;
+
+    /**
+     * Get the access state of the datastore.
+     *
+     * @return A flag to determine if the datastore is open.
+     */
+    boolean isOpen();
+
+    /**
+     * Close the datastore.
+     *
+     * @throws SQLException if an error occurred while closing the datastore
+     */
+    void close() throws SQLException;
+
+    /**
+     * Convert a value of a query or a field update to the format in the datastore.
+     *
+     * @param value of the query or field update
+     * @return The value in the format of the datastore.
+     */
+    static Object toColumnValue(Object value) {
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        }
+        if (value instanceof LocalDate) {
+            return ((LocalDate) value).format(DateTimeFormatter.ISO_DATE);
+        }
+        if (value instanceof LocalDateTime) {
+            return ((LocalDateTime) value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        if (value instanceof KintoObject) {
+            return ((KintoObject) value).getUUID();
+        }
+        return value;
+    }
+
+    /**
+     * A cursor for the records of a query. The cursor must be closed after use.
+     */
+    interface Cursor extends AutoCloseable {
+
+        /**
+         * Move the cursor to the next record.
+         *
+         * @return False, if there is no more record.
+         * @throws SQLException if an error occurred while accessing the datastore
+         */
+        boolean next() throws SQLException;
+
+        /**
+         * Read the record at the cursor.
+         *
+         * @return The record, detached from the cursor.
+         * @throws SQLException if an error occurred while accessing the datastore
+         */
+        KintoRow readRow() throws SQLException;
+
+        @Override
+        void close() throws SQLException;
+    }
+
+    /**
+     * The columns and the relations of a collection.
+     */
+    final class CollectionSchema {
+
+        private final String name;
+        private final LinkedHashMap<String, String> columns;
+        private final List<Relation> relations;
+
+        /**
+         * Create the schema of a collection.
+         *
+         * @param name of the collection
+         * @param columns column name and sql data type, in the order of creation
+         * @param relations the relations (1:m) of the collection
+         */
+        public CollectionSchema(@NotNull String name,
+                                @NotNull LinkedHashMap<String, String> columns,
+                                @NotNull List<Relation> relations) {
+            this.name = name;
+            this.columns = columns;
+            this.relations = relations;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LinkedHashMap<String, String> getColumns() {
+            return columns;
+        }
+
+        public List<Relation> getRelations() {
+            return relations;
+        }
+    }
+
+    /**
+     * A relation (1:m) between the records of a collection and the records in a list attribute.
+     */
+    final class Relation {
+
+        private final String name;
+        private final String parentColumn;
+        private final String childColumn;
+
+        /**
+         * Create a relation.
+         *
+         * @param name of the relation, e.g. the name of the relation table
+         * @param parentColumn name of the column with the uuid of the record with the list
+         * @param childColumn name of the column with the uuid of the record in the list
+         */
+        public Relation(@NotNull String name, @NotNull String parentColumn, @NotNull String childColumn) {
+            this.name = name;
+            this.parentColumn = parentColumn;
+            this.childColumn = childColumn;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getParentColumn() {
+            return parentColumn;
+        }
+
+        public String getChildColumn() {
+            return childColumn;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A record of remote kinto for the merge into a collection.
+     */
+    final class RemoteRecord {
+
+        private final String uuid;
+        private final long lastModified;
+        private final boolean deleted;
+        private final Map<String, String> values;
+        private final Map<Relation, List<String>> relations;
+
+        /**
+         * Create a record of remote kinto.
+         *
+         * @param uuid of the record, the record id in remote kinto
+         * @param lastModified the timestamp of the record in remote kinto
+         * @param deleted flag, if the record was removed in remote kinto (tombstone)
+         * @param values column name and value of the attributes in the record, missing attributes are not changed
+         * @param relations the uuid of the records in the lists of the record, missing lists are not changed
+         */
+        public RemoteRecord(@NotNull String uuid, long lastModified, boolean deleted,
+                            @NotNull Map<String, String> values, @NotNull Map<Relation, List<String>> relations) {
+            this.uuid = uuid;
+            this.lastModified = lastModified;
+            this.deleted = deleted;
+            this.values = values;
+            this.relations = relations;
+        }
+
+        public String getUUID() {
+            return uuid;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public Map<String, String> getValues() {
+            return values;
+        }
+
+        public Map<Relation, List<String>> getRelations() {
+            return relations;
+        }
+    }
+
+    /**
+     * The result of a merge of remote records into a collection.
+     */
+    final class MergeResult {
+
+        private final int saved;
+        private final int deleted;
+        private final List<String> conflicts;
+
+        /**
+         * Create the result of a merge.
+         *
+         * @param saved count of inserted or updated records
+         * @param deleted count of removed records
+         * @param conflicts uuid of the records changed in local datastore and remote kinto
+         */
+        public MergeResult(int saved, int deleted, @NotNull List<String> conflicts) {
+            this.saved = saved;
+            this.deleted = deleted;
+            this.conflicts = conflicts;
+        }
+
+        public int getSaved() {
+            return saved;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public List<String> getConflicts() {
+            return conflicts;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The settings of the local datastore (sqlite), applied when the datastore is opened.
+ * There are profiles for common trade-offs between durability and speed:
+ *
+ * <ul>
+ *     <li>{@link #DURABLE}: every commit is written to disk (default)</li>
+ *     <li>{@link #BALANCED}: commits survive a crash of the app, the last commits can be lost on power failure</li>
+ *     <li>{@link #BULK_LOAD}: for imports, the datastore can be corrupted on a crash of the app or the system</li>
+ * </ul>
+ *
+ * A profile can be changed with the builder:
+ * <pre>
+ *     StorageProfile profile = new StorageProfile.Builder(StorageProfile.BALANCED)
+ *             .location("/srv/app/data")
+ *             .cacheSize(64 * 1024)
+ *             .build();
+ * </pre>
+ *
+ * The page size is only used for new datastores. With a journal mode other than WAL,
+ * reads wait for writes of other threads.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since 1.1.1
+ */
+public final class StorageProfile {
+
+    /**
+     * Storage of temporary tables and indices.
+     */
+    public enum TempStore {DEFAULT, FILE, MEMORY}
+
+    /**
+     * The journal mode for transactions.
+     */
+    public enum JournalMode {DELETE, TRUNCATE, PERSIST, MEMORY, WAL, OFF}
+
+    /**
+     * The level of syncing the data to disk.
+     */
+    public enum Synchronous {OFF, NORMAL, FULL, EXTRA}
+
+    /**
+     * Every commit is synced to disk, write-ahead logging for concurrent reads.
+     */
+    public static final StorageProfile DURABLE = new Builder()
+            .journalMode(JournalMode.WAL)
+            .synchronous(Synchronous.FULL)
+            .build();
+
+    /**
+     * Commits are synced at checkpoints, with a larger cache and memory mapped reads.
+     */
+    public static final StorageProfile BALANCED = new Builder()
+            .journalMode(JournalMode.WAL)
+            .synchronous(Synchronous.NORMAL)
+            .cacheSize(16 * 1024)
+            .mmapSize(64L * 1024 * 1024)
+            .tempStore(TempStore.MEMORY)
+            .build();
+
+    /**
+     * No syncing to disk and the journal in memory, for imports of large data sets.
+     */
+    public static final StorageProfile BULK_LOAD = new Builder()
+            .journalMode(JournalMode.MEMORY)
+            .synchronous(Synchronous.OFF)
+            .pageSize(8192)
+            .cacheSize(64 * 1024)
+            .mmapSize(256L * 1024 * 1024)
+            .tempStore(TempStore.MEMORY)
+            .build();
+
+    private final String location;
+    private final int pageSize;
+    private final int cacheSize;
+    private final long mmapSize;
+    private final TempStore tempStore;
+    private final JournalMode journalMode;
+    private final Synchronous synchronous;
+
+    /**
+     * Create a profile with the given builder.
+     *
+     * @param builder with the settings
+     */
+    public StorageProfile(@NotNull Builder builder) {
+        location = builder.location;
+        pageSize = builder.pageSize;
+        cacheSize = builder.cacheSize;
+        mmapSize = builder.mmapSize;
+        tempStore = builder.tempStore;
+        journalMode = builder.journalMode;
+        synchronous = builder.synchronous;
+    }
+
+    /**
+     * Get the directory of the local datastore.
+     *
+     * @return The directory or null for the default directory.
+     */
+    public @Nullable String getLocation() {
+        return location;
+    }
+
+    /**
+     * Get the size of a database page in bytes.
+     *
+     * @return The page size, 0 for the default of sqlite.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Get the size of the page cache in KiB (per connection).
+     *
+     * @return The size of the cache, 0 for the default of sqlite.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Get the maximal size of the memory mapped part of the datastore in bytes.
+     *
+     * @return The size of memory mapped I/O, 0 if disabled.
+     */
+    public long getMmapSize() {
+        return mmapSize;
+    }
+
+    /**
+     * Get the storage of temporary tables and indices.
+     *
+     * @return The temp store.
+     */
+    public TempStore getTempStore() {
+        return tempStore;
+    }
+
+    /**
+     * Get the journal mode for transactions.
+     *
+     * @return The journal mode.
+     */
+    public JournalMode getJournalMode() {
+        return journalMode;
+    }
+
+    /**
+     * Get the level of syncing the data to disk.
+     *
+     * @return The synchronous level.
+     */
+    public Synchronous getSynchronous() {
+        return synchronous;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageProfile{" +
+                "location='" + location + '\'' +
+                ", pageSize=" + pageSize +
+                ", cacheSize=" + cacheSize +
+                ", mmapSize=" + mmapSize +
+                ", tempStore=" + tempStore +
+                ", journalMode=" + journalMode +
+                ", synchronous=" + synchronous +
+                '}';
+    }
+
+    /**
+     * Building storage profiles.
+     */
+    public static class Builder {
+
+        private String location;
+        private int pageSize;
+        private int cacheSize;
+        private long mmapSize;
+        private TempStore tempStore;
+        private JournalMode journalMode;
+        private Synchronous synchronous;
+
+        public Builder() {
+            location = null; // default directory
+            pageSize = 0; // default of sqlite
+            cacheSize = 0; // default of sqlite
+            mmapSize = 0; // disabled
+            tempStore = TempStore.DEFAULT;
+            journalMode = JournalMode.WAL;
+            synchronous = Synchronous.FULL;
+        }
+
+        /**
+         * Create a builder with the settings of a profile.
+         *
+         * @param profile with the initial settings
+         */
+        public Builder(@NotNull StorageProfile profile) {
+            location = profile.location;
+            pageSize = profile.pageSize;
+            cacheSize = profile.cacheSize;
+            mmapSize = profile.mmapSize;
+            tempStore = profile.tempStore;
+            journalMode = profile.journalMode;
+            synchronous = profile.synchronous;
+        }
+
+        /**
+         * Set the directory for the local datastore. The directory is created if not exists.
+         *
+         * @param directory for the datastore, null for the default directory
+         * @return The builder.
+         */
+        public Builder location(@Nullable String directory) {
+            location = directory;
+            return this;
+        }
+
+        /**
+         * Set the size of a database page, only used for new datastores.
+         *
+         * @param bytes power of two between 512 and 65536, 0 for the default
+         * @return The builder.
+         */
+        public Builder pageSize(int bytes) {
+            pageSize = Math.max(0, bytes);
+            return this;
+        }
+
+        /**
+         * Set the size of the page cache of every connection.
+         *
+         * @param kibibytes size of the cache, 0 for the default
+         * @return The builder.
+         */
+        public Builder cacheSize(int kibibytes) {
+            cacheSize = Math.max(0, kibibytes);
+            return this;
+        }
+
+        /**
+         * Set the maximal size for memory mapped reads.
+         *
+         * @param bytes size of the mapped part of the datastore, 0 to disable
+         * @return The builder.
+         */
+        public Builder mmapSize(long bytes) {
+            mmapSize = Math.max(0, bytes);
+            return this;
+        }
+
+        public Builder tempStore(@NotNull TempStore tempStore) {
+            this.tempStore = tempStore;
+            return this;
+        }
+
+        public Builder journalMode(@NotNull JournalMode journalMode) {
+            this.journalMode = journalMode;
+            return this;
+        }
+
+        public Builder synchronous(@NotNull Synchronous synchronous) {
+            this.synchronous = synchronous;
+            return this;
+        }
+
+        public StorageProfile build() {
+            return new StorageProfile(this);
+        }
+    }
+}
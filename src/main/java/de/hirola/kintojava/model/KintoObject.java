@@ -2,6 +2,8 @@ package de.hirola.kintojava.model;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -28,7 +30,12 @@ public abstract class KintoObject implements KintoModel {
     private final boolean isPersistent;
     // synced to remote kinto?
     private final boolean isSynced;
+    // timestamp of the record in remote kinto
     private final long lastModified;
+    // update sequence number, the version of the object in local datastore
+    private final long usn;
+    // values of the attributes like saved in local datastore, used to update only changed attributes
+    private final transient Map<String, String> persistedValues;
 
     /**
      * All objects must derive from this class to handle with local and remote datastore.
@@ -40,6 +47,8 @@ public abstract class KintoObject implements KintoModel {
         isPersistent = false;
         isSynced = false;
         lastModified = 0;
+        usn = 0;
+        persistedValues = new HashMap<>();
     }
 
     /**
@@ -87,6 +96,25 @@ public abstract class KintoObject implements KintoModel {
         return isSynced;
     }
 
+    /**
+     * Get the timestamp of the object in the remote kinto.
+     *
+     * @return The last modification of the record in remote kinto, 0 if the object was never synced.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Get the update sequence number of the object. The number is incremented
+     * with every change in local datastore and is used to detect concurrent changes.
+     *
+     * @return The version of the object in local datastore.
+     */
+    public long getUSN() {
+        return usn;
+    }
+
     @Override
     public String toString() {
         return uuid + "@" + getClass().toString();
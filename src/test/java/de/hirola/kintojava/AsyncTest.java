@@ -0,0 +1,169 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncTest {
+
+    private RecordingStorageEngine storageEngine;
+    private Kinto kinto;
+    private KintoAsync kintoAsync;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        storageEngine = new RecordingStorageEngine();
+        KintoConfiguration configuration = new KintoConfiguration.Builder("AsyncTest")
+                .objectTypes(typeList)
+                .storageEngine(storageEngine)
+                .build();
+        kinto = new Kinto(configuration);
+        kinto.add(new Author("Jane", "Doe", LocalDate.of(1970, 1, 1)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (kintoAsync != null) {
+            kintoAsync.close();
+        }
+        kinto.close();
+    }
+
+    @Test
+    void concurrentDatastoreCallsAreLimited() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            kintoAsync = new KintoAsync.Builder(kinto)
+                    .executor(executor)
+                    .maxConcurrentDatastoreCalls(2)
+                    .build();
+            AtomicInteger activeCalls = new AtomicInteger();
+            AtomicInteger maxActiveCalls = new AtomicInteger();
+            storageEngine.beforeQuery = () -> {
+                maxActiveCalls.accumulateAndGet(activeCalls.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+                activeCalls.decrementAndGet();
+            };
+            List<CompletableFuture<List<? extends KintoObject>>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(kintoAsync.findAll(Author.class));
+            }
+            for (CompletableFuture<List<? extends KintoObject>> future : futures) {
+                assertEquals(1, future.get(10, TimeUnit.SECONDS).size());
+            }
+            // the readers of a collection run in parallel, but not more than the permits
+            assertEquals(2, maxActiveCalls.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void operationsRunWithTheExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "test-executor"));
+        try {
+            kintoAsync = new KintoAsync.Builder(kinto).executor(executor).build();
+            List<String> threadNames = new CopyOnWriteArrayList<>();
+            storageEngine.beforeQuery = () -> threadNames.add(Thread.currentThread().getName());
+            kintoAsync.findAll(Author.class).get(10, TimeUnit.SECONDS);
+            assertEquals(List.of("test-executor"), threadNames);
+            // a given executor is not shutdown
+            kintoAsync.close();
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void defaultExecutorIsUsedWithoutExecutor() throws Exception {
+        kintoAsync = new KintoAsync.Builder(kinto).build();
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        storageEngine.beforeQuery = () -> threads.add(Thread.currentThread());
+        Author author = new Author("John", "Roe", LocalDate.of(1980, 1, 1));
+        kintoAsync.add(author).get(10, TimeUnit.SECONDS);
+        assertTrue(author.isPersistent());
+        assertEquals(2, kintoAsync.findAll(Author.class).get(10, TimeUnit.SECONDS).size());
+        assertEquals(author.getUUID(),
+                kintoAsync.findByUUID(Author.class, author.getUUID()).get(10, TimeUnit.SECONDS).getUUID());
+        assertFalse(threads.isEmpty());
+        for (Thread thread : threads) {
+            assertNotEquals(Thread.currentThread(), thread);
+            // the datastore is accessed by platform threads, never by the carrier of a virtual thread
+            assertTrue(thread.getName().startsWith("kinto-datastore-"), thread.getName());
+            // the app can exit without close
+            assertTrue(thread.isDaemon());
+        }
+        // the own executor is shutdown on close
+        kintoAsync.close();
+        ExecutionException exception = assertThrows(ExecutionException.class,
+                () -> kintoAsync.findAll(Author.class).get(10, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof KintoException);
+    }
+
+    @Test
+    void defaultExecutorLimitsTheDatastoreThreads() throws Exception {
+        kintoAsync = new KintoAsync.Builder(kinto).maxConcurrentDatastoreCalls(2).build();
+        Set<String> threadNames = ConcurrentHashMap.newKeySet();
+        AtomicInteger activeCalls = new AtomicInteger();
+        AtomicInteger maxActiveCalls = new AtomicInteger();
+        storageEngine.beforeQuery = () -> {
+            threadNames.add(Thread.currentThread().getName());
+            maxActiveCalls.accumulateAndGet(activeCalls.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            activeCalls.decrementAndGet();
+        };
+        List<CompletableFuture<List<? extends KintoObject>>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(kintoAsync.findAll(Author.class));
+        }
+        for (CompletableFuture<List<? extends KintoObject>> future : futures) {
+            assertEquals(1, future.get(10, TimeUnit.SECONDS).size());
+        }
+        assertEquals(2, maxActiveCalls.get());
+        // the waiting operations don't need more platform threads
+        assertTrue(threadNames.size() <= 2, threadNames.toString());
+    }
+
+    @Test
+    void failedOperationCompletesExceptionally() throws Exception {
+        kintoAsync = new KintoAsync.Builder(kinto).maxConcurrentDatastoreCalls(1).build();
+        // the object does not exist in local datastore
+        Author author = new Author("John", "Roe", LocalDate.of(1980, 1, 1));
+        CompletableFuture<Void> future = kintoAsync.update(author);
+        ExecutionException exception = assertThrows(ExecutionException.class,
+                () -> future.get(10, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof KintoException);
+        assertTrue(future.isCompletedExceptionally());
+        // the permit of the failed operation is released
+        Book book = new Book("ISBN-1", "Title", (Author) kinto.findAll(Author.class).get(0), 10.0, 1);
+        kintoAsync.add(book).get(10, TimeUnit.SECONDS);
+        book.setTitle("Second Title");
+        kintoAsync.update(book).get(10, TimeUnit.SECONDS);
+        kintoAsync.remove(book).get(10, TimeUnit.SECONDS);
+        assertNull(kinto.findByUUID(Book.class, book.getUUID()));
+    }
+}
@@ -0,0 +1,87 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Address;
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CollectionTest {
+
+    private Kinto kinto;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        KintoConfiguration configuration = new KintoConfiguration.Builder("CollectionTest")
+                .objectTypes(typeList)
+                .storageMode(KintoConfiguration.StorageMode.MEMORY)
+                .build();
+        kinto = new Kinto(configuration);
+    }
+
+    @AfterEach
+    void tearDown() {
+        kinto.close();
+    }
+
+    @Test
+    void typedHandleIsKept() throws Exception {
+        KintoCollection<Book> books = kinto.collection(Book.class);
+        assertEquals(Book.class, books.getType());
+        assertEquals("Book", books.getName());
+        // the same handle for every lookup
+        assertSame(books, kinto.collection(Book.class));
+        assertNotEquals(kinto.collection(Author.class), books);
+    }
+
+    @Test
+    void typedHandleReadsTheObjectsOfTheType() throws Exception {
+        Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        Book book = new Book("ISBN-1", "First Title", author, 10.99, 1);
+        KintoCollection<Book> books = kinto.collection(Book.class);
+        books.addRecord(book);
+        // no casts of the results
+        List<Book> found = books.findAll();
+        assertEquals(1, found.size());
+        assertEquals("First Title", found.get(0).getTitle());
+        Book loaded = books.findByUUID(book.getUUID());
+        assertNotNull(loaded);
+        assertEquals("ISBN-1", loaded.getISBN());
+        assertEquals(1, books.findByQuery(new KintoQuery().equalTo("title", "First Title")).size());
+        // the objects saved with the handle are found with the kinto object and vice versa
+        assertNotNull(kinto.findByUUID(Book.class, book.getUUID()));
+        assertEquals(1, kinto.collection(Author.class).findAll().size());
+    }
+
+    @Test
+    void unknownTypeThrows() {
+        assertThrows(KintoException.class, () -> kinto.collection(Address.class));
+        // only the managed type, not the subclasses of the type
+        assertThrows(KintoException.class, () -> kinto.collection(SpecialBook.class));
+        assertThrows(KintoException.class, () -> kinto.findAll(Address.class));
+        // an object of an unknown type is not saved
+        Address address = new Address("Street", 1, "Berlin", "10115");
+        assertDoesNotThrow(() -> kinto.add(address));
+        assertFalse(address.isPersistent());
+    }
+
+    // a subclass of a managed type
+    public static class SpecialBook extends Book {
+
+        public SpecialBook() {
+            super();
+        }
+    }
+}
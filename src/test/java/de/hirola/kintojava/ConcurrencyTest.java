@@ -0,0 +1,142 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Address;
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.bookstore.Customer;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 25;
+
+    private Kinto kinto;
+
+    @AfterEach
+    void tearDown() {
+        if (kinto != null) {
+            kinto.close();
+        }
+    }
+
+    @Test
+    void relatedCollectionsAreUsedConcurrently() throws Exception {
+        open(null);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                int threadNumber = thread;
+                futures.add(executor.submit(() -> {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        Author author = new Author("First" + threadNumber, "Last" + round, LocalDate.of(1970, 1, 1));
+                        kinto.add(author);
+                        Book book = new Book("ISBN-" + threadNumber + "-" + round, "Title", author, 10.0, 1);
+                        kinto.add(book);
+                        Address address = new Address("Street", round, "Berlin", "10115");
+                        kinto.add(address);
+                        Customer customer = new Customer("First" + threadNumber, "Last" + round, false, address);
+                        customer.setFavoriteAuthor(author);
+                        kinto.add(customer);
+                        book.setTitle("Changed Title");
+                        kinto.update(book);
+                        customer.setHasBonus(true);
+                        kinto.update(customer);
+                        // the readers see only complete objects
+                        for (KintoObject kintoObject : kinto.findAll(Book.class)) {
+                            assertNotNull(((Book) kintoObject).getAuthor());
+                        }
+                        for (KintoObject kintoObject : kinto.findAll(Customer.class)) {
+                            assertEquals(1, ((Customer) kintoObject).getAddressList().size());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(THREADS * ROUNDS, kinto.findAll(Author.class).size());
+        assertEquals(THREADS * ROUNDS, kinto.findAll(Book.class).size());
+        assertEquals(THREADS * ROUNDS, kinto.findAll(Customer.class).size());
+        for (KintoObject kintoObject : kinto.findAll(Book.class)) {
+            assertEquals("Changed Title", ((Book) kintoObject).getTitle());
+        }
+        for (KintoObject kintoObject : kinto.findAll(Customer.class)) {
+            Customer customer = (Customer) kintoObject;
+            assertTrue(customer.isHasBonus());
+            assertNotNull(customer.getFavoriteAuthor());
+        }
+    }
+
+    @Test
+    void closeWaitsForRunningOperations() throws Exception {
+        RecordingStorageEngine storageEngine = new RecordingStorageEngine();
+        open(storageEngine);
+        Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        Book book = new Book("ISBN-1", "First Title", author, 10.0, 1);
+        kinto.add(book);
+
+        CountDownLatch updateStarted = new CountDownLatch(1);
+        CountDownLatch releaseUpdate = new CountDownLatch(1);
+        storageEngine.beforeUpdate = () -> {
+            updateStarted.countDown();
+            try {
+                releaseUpdate.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            book.setTitle("Second Title");
+            Future<?> update = executor.submit(() -> {
+                kinto.update(book);
+                return null;
+            });
+            assertTrue(updateStarted.await(10, TimeUnit.SECONDS));
+            Future<?> close = executor.submit(() -> kinto.close());
+            // the update is still running, the datastore is not closed
+            assertThrows(TimeoutException.class, () -> close.get(200, TimeUnit.MILLISECONDS));
+            assertTrue(kinto.isOpen());
+            releaseUpdate.countDown();
+            update.get(10, TimeUnit.SECONDS);
+            close.get(10, TimeUnit.SECONDS);
+            assertFalse(kinto.isOpen());
+            assertEquals(1, storageEngine.updates.size());
+        } finally {
+            releaseUpdate.countDown();
+            executor.shutdown();
+        }
+        // operations after close fail
+        assertThrows(KintoException.class, () -> kinto.findAll(Book.class));
+    }
+
+    private void open(StorageEngine storageEngine) throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        typeList.add(Address.class);
+        typeList.add(Customer.class);
+        KintoConfiguration configuration = new KintoConfiguration.Builder("ConcurrencyTest")
+                .objectTypes(typeList)
+                .storageMode(KintoConfiguration.StorageMode.MEMORY)
+                .storageEngine(storageEngine)
+                .build();
+        kinto = new Kinto(configuration);
+    }
+}
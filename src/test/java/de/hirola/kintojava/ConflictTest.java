@@ -0,0 +1,103 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConflictTest {
+
+    private Kinto kinto;
+    private Book book;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        KintoConfiguration configuration = new KintoConfiguration.Builder("ConflictTest")
+                .objectTypes(typeList)
+                .storageMode(KintoConfiguration.StorageMode.MEMORY)
+                .build();
+        kinto = new Kinto(configuration);
+        Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        book = new Book("ISBN-1", "First Title", author, 10.99, 1);
+        kinto.add(book);
+    }
+
+    @AfterEach
+    void tearDown() {
+        kinto.close();
+    }
+
+    @Test
+    void freshUpdateIncrementsUSN() throws Exception {
+        long usn = book.getUSN();
+        book.setTitle("Second Title");
+        kinto.update(book);
+        assertEquals(usn + 1, book.getUSN());
+        book.setTitle("Third Title");
+        kinto.update(book);
+        assertEquals(usn + 2, book.getUSN());
+        Book loaded = load();
+        assertEquals(usn + 2, loaded.getUSN());
+        assertEquals("Third Title", loaded.getTitle());
+    }
+
+    @Test
+    void staleUpdateThrows() throws Exception {
+        Book stale = load();
+        long staleUSN = stale.getUSN();
+        book.setTitle("Second Title");
+        kinto.update(book);
+
+        stale.setTitle("Stale Title");
+        KintoConflictException exception = assertThrows(KintoConflictException.class, () -> kinto.update(stale));
+        assertEquals(book.getUUID(), exception.getUUID());
+        assertEquals(staleUSN, exception.getExpectedUSN());
+        // the stale object is unchanged, the saved value is kept
+        assertEquals(staleUSN, stale.getUSN());
+        assertEquals("Second Title", load().getTitle());
+
+        // the object loaded again can be saved
+        Book fresh = load();
+        fresh.setTitle("Stale Title");
+        kinto.update(fresh);
+        assertEquals(book.getUSN() + 1, fresh.getUSN());
+        assertEquals("Stale Title", load().getTitle());
+    }
+
+    @Test
+    void staleRemoveThrows() throws Exception {
+        Book stale = load();
+        book.setPrice(12.99);
+        kinto.update(book);
+        assertThrows(KintoConflictException.class, () -> kinto.remove(stale));
+        assertNotNull(kinto.findByUUID(Book.class, book.getUUID()));
+        // the up-to-date object can be removed
+        kinto.remove(book);
+        assertNull(kinto.findByUUID(Book.class, book.getUUID()));
+    }
+
+    @Test
+    void updateOfRemovedObjectThrows() throws Exception {
+        Book stale = load();
+        kinto.remove(book);
+        stale.setTitle("Second Title");
+        assertThrows(KintoConflictException.class, () -> kinto.update(stale));
+    }
+
+    private Book load() throws Exception {
+        Book loaded = (Book) kinto.findByUUID(Book.class, book.getUUID());
+        assertNotNull(loaded);
+        return loaded;
+    }
+}
@@ -0,0 +1,211 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Address;
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.bookstore.Customer;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the same operations with the engine in memory and the engine with sqlite
+public class EngineParityTest {
+
+    private interface Scenario {
+        void run(Kinto kinto, List<String> results) throws Exception;
+    }
+
+    @Test
+    void insertAndUpdate() throws Exception {
+        assertSameResults((kinto, results) -> {
+            Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+            kinto.add(author);
+            Book book = new Book("ISBN-1", "First Title", author, 10.5, 1);
+            kinto.add(book);
+            results.add("usn after insert " + book.getUSN());
+            Book stale = (Book) kinto.findByUUID(Book.class, book.getUUID());
+            book.setTitle("Second Title");
+            kinto.update(book);
+            results.add("usn after update " + book.getUSN());
+            // the update sequence number is checked
+            stale.setPrice(1.0);
+            try {
+                kinto.update(stale);
+                results.add("stale update saved");
+            } catch (KintoConflictException exception) {
+                results.add("stale update rejected, expected usn " + exception.getExpectedUSN());
+            }
+            try {
+                kinto.remove(stale);
+                results.add("stale remove saved");
+            } catch (KintoConflictException exception) {
+                results.add("stale remove rejected");
+            }
+            Book loaded = (Book) kinto.findByUUID(Book.class, book.getUUID());
+            results.add("loaded " + loaded.getTitle() + " " + loaded.getPrice() + " " + loaded.getUSN()
+                    + " " + loaded.getAuthor().getLastName());
+            results.add("field update " + kinto.update(Book.class, book.getUUID(),
+                    new KintoFieldUpdate().increment("price", 2).onlyIf(new KintoQuery().lessThan("price", 20))));
+            results.add("field update " + kinto.update(Book.class, book.getUUID(),
+                    new KintoFieldUpdate().increment("price", 2).onlyIf(new KintoQuery().greaterThan("price", 20))));
+            // the object is changed by the field updates
+            kinto.remove(kinto.findByUUID(Book.class, book.getUUID()));
+            results.add("found after remove " + kinto.findByUUID(Book.class, book.getUUID()));
+        });
+    }
+
+    @Test
+    void queries() throws Exception {
+        assertSameResults((kinto, results) -> {
+            Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+            kinto.add(author);
+            for (int i = 0; i < 10; i++) {
+                kinto.add(new Book("ISBN-" + i, "Title " + (i % 3), author, i, 0));
+            }
+            List<KintoQuery> queries = List.of(
+                    new KintoQuery(),
+                    new KintoQuery().equalTo("title", "Title 1"),
+                    new KintoQuery().notEqualTo("title", "Title 1"),
+                    new KintoQuery().greaterThan("price", 6),
+                    new KintoQuery().greaterThanOrEqualTo("price", 6),
+                    new KintoQuery().lessThan("price", 2),
+                    new KintoQuery().lessThanOrEqualTo("price", 2),
+                    new KintoQuery().between("price", 3, 5),
+                    new KintoQuery().in("isbn", "ISBN-2", "ISBN-7", "ISBN-99"),
+                    new KintoQuery().equalTo("title", "Title 0").greaterThan("price", 2),
+                    new KintoQuery().equalTo("author", author.getUUID()));
+            for (int index = 0; index < queries.size(); index++) {
+                List<String> isbns = new ArrayList<>();
+                for (Book book : kinto.collection(Book.class).findByQuery(queries.get(index))) {
+                    isbns.add(book.getISBN());
+                }
+                Collections.sort(isbns);
+                results.add("query " + index + " " + isbns);
+            }
+        });
+    }
+
+    @Test
+    void relations() throws Exception {
+        assertSameResults((kinto, results) -> {
+            Address home = new Address("Home Street", 1, "Berlin", "10115");
+            Address office = new Address("Office Street", 2, "Berlin", "10117");
+            Address holiday = new Address("Beach Road", 3, "Kiel", "24103");
+            kinto.add(home);
+            kinto.add(office);
+            kinto.add(holiday);
+            Customer customer = new Customer("Jane", "Doe", false, home);
+            customer.addAddress(office);
+            kinto.add(customer);
+            results.add("after insert " + streets(kinto, customer));
+            customer.getAddressList().remove(home);
+            customer.addAddress(holiday);
+            kinto.update(customer);
+            results.add("after update " + streets(kinto, customer) + " usn " + customer.getUSN());
+            kinto.addToRelation(customer, "addressList", home);
+            kinto.addToRelation(customer, "addressList", home);
+            results.add("after add " + streets(kinto, customer) + " usn " + customer.getUSN());
+            kinto.removeFromRelation(customer, "addressList", office);
+            kinto.removeFromRelation(customer, "addressList", office);
+            results.add("after remove " + streets(kinto, customer) + " usn " + customer.getUSN());
+            results.add("home in relation " + home.isUseInRelation());
+        });
+    }
+
+    @Test
+    void metadataAndJournal() throws Exception {
+        assertSameResults((kinto, results) -> {
+            results.add("missing metadata " + kinto.getMetadata("test.key"));
+            kinto.setMetadata("test.key", "first");
+            kinto.setMetadata("test.key", "second");
+            results.add("metadata " + kinto.getMetadata("test.key"));
+            Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+            kinto.add(author);
+            Book book = new Book("ISBN-1", "First Title", author, 10.5, 1);
+            kinto.add(book);
+            book.setTitle("Second Title");
+            kinto.update(book);
+            Author otherAuthor = new Author("John", "Roe", LocalDate.of(1980, 1, 1));
+            kinto.add(otherAuthor);
+            kinto.remove(otherAuthor);
+            // one entry per record in order of the last change
+            for (KintoChange change : kinto.changesSince(0)) {
+                results.add(change.getCollection() + " " + change.getOperation() + " " + change.isRemote());
+            }
+            List<KintoChange> changes = kinto.changesSince(0);
+            results.add("changes after first " + kinto.changesSince(changes.get(0).getSeq()).size());
+            results.add("changes of books " + kinto.changesSince(Book.class, 0, 10).size());
+        });
+    }
+
+    @Test
+    void metadataOfRollback() throws Exception {
+        assertSameResults((kinto, results) -> {
+            StorageEngine storageEngine = kinto.getStorageEngine();
+            storageEngine.setMetadata("test.key", "first");
+            storageEngine.beginTransaction();
+            storageEngine.setMetadata("test.key", "second");
+            results.add("metadata in transaction " + storageEngine.getMetadata("test.key"));
+            storageEngine.rollback();
+            results.add("metadata after rollback " + storageEngine.getMetadata("test.key"));
+            storageEngine.beginTransaction();
+            storageEngine.setMetadata("test.key", "third");
+            storageEngine.commit();
+            results.add("metadata after commit " + storageEngine.getMetadata("test.key"));
+        });
+    }
+
+    // run the scenario with both engines and compare the results
+    private void assertSameResults(Scenario scenario) throws Exception {
+        List<String> inMemoryResults = run(scenario, new InMemoryStorageEngine());
+        List<String> sqliteResults = run(scenario, null);
+        assertFalse(sqliteResults.isEmpty());
+        assertEquals(sqliteResults.size(), inMemoryResults.size());
+        for (int i = 0; i < sqliteResults.size(); i++) {
+            assertEquals(sqliteResults.get(i), inMemoryResults.get(i));
+        }
+    }
+
+    private List<String> run(Scenario scenario, StorageEngine storageEngine) throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        typeList.add(Address.class);
+        typeList.add(Customer.class);
+        KintoConfiguration configuration = new KintoConfiguration.Builder("EngineParityTest")
+                .objectTypes(typeList)
+                .storageMode(KintoConfiguration.StorageMode.MEMORY)
+                .storageEngine(storageEngine)
+                .build();
+        Kinto kinto = new Kinto(configuration);
+        List<String> results = new ArrayList<>();
+        try {
+            scenario.run(kinto, results);
+        } finally {
+            kinto.close();
+        }
+        return results;
+    }
+
+    // the streets of the addresses of the customer, saved and in the object
+    private static String streets(Kinto kinto, Customer customer) throws Exception {
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        List<String> savedStreets = new ArrayList<>();
+        for (Address address : loaded.getAddressList()) {
+            savedStreets.add(address.getStreet());
+        }
+        Collections.sort(savedStreets);
+        List<String> streets = new ArrayList<>();
+        for (Address address : customer.getAddressList()) {
+            streets.add(address.getStreet());
+        }
+        Collections.sort(streets);
+        return savedStreets + " " + streets;
+    }
+}
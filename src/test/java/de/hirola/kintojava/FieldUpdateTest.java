@@ -0,0 +1,142 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FieldUpdateTest {
+
+    private static final int THREADS = 8;
+    private static final int INCREMENTS = 50;
+
+    private Kinto kinto;
+
+    @AfterEach
+    void tearDown() {
+        if (kinto != null) {
+            kinto.close();
+        }
+    }
+
+    @Test
+    void concurrentIncrementsAreNotLost() throws Exception {
+        concurrentIncrementsAreNotLost(open(null));
+        kinto.close();
+        concurrentIncrementsAreNotLost(open(new InMemoryStorageEngine()));
+    }
+
+    @Test
+    void setAndIncrementLoadTheChangedValues() throws Exception {
+        open(null);
+        Book book = addBook(10.0);
+        long usn = book.getUSN();
+        KintoFieldUpdate fieldUpdate = new KintoFieldUpdate()
+                .set("title", "Second Title")
+                .increment("price", 2.5);
+        assertEquals(1, kinto.update(book, fieldUpdate));
+        assertEquals("Second Title", book.getTitle());
+        assertEquals(12.5, book.getPrice());
+        assertEquals(usn + 1, book.getUSN());
+        // the loaded values are the saved values, the update of the object writes nothing
+        kinto.update(book);
+        assertEquals(usn + 1, book.getUSN());
+        Book loaded = (Book) kinto.findByUUID(Book.class, book.getUUID());
+        assertNotNull(loaded);
+        assertEquals("Second Title", loaded.getTitle());
+        assertEquals(12.5, loaded.getPrice());
+    }
+
+    @Test
+    void conditionIsChecked() throws Exception {
+        open(null);
+        Book book = addBook(1.0);
+        KintoFieldUpdate sell = new KintoFieldUpdate()
+                .decrement("price", 1)
+                .onlyIf(new KintoQuery().greaterThan("price", 0));
+        assertEquals(1, kinto.update(Book.class, book.getUUID(), sell));
+        // the condition is not fulfilled anymore
+        assertEquals(0, kinto.update(Book.class, book.getUUID(), sell));
+        Book loaded = (Book) kinto.findByUUID(Book.class, book.getUUID());
+        assertNotNull(loaded);
+        assertEquals(0.0, loaded.getPrice());
+    }
+
+    @Test
+    void missingObjectIsNotChanged() throws Exception {
+        open(null);
+        KintoFieldUpdate fieldUpdate = new KintoFieldUpdate().increment("price", 1);
+        assertEquals(0, kinto.update(Book.class, "not-existing-uuid", fieldUpdate));
+    }
+
+    @Test
+    void invalidAttributesThrow() throws Exception {
+        open(null);
+        Book book = addBook(1.0);
+        // not an attribute of the type
+        assertThrows(KintoException.class,
+                () -> kinto.update(book, new KintoFieldUpdate().set("numberInStock", 1)));
+        // an embedded object
+        assertThrows(KintoException.class,
+                () -> kinto.update(book, new KintoFieldUpdate().set("author", "uuid")));
+        // not numeric
+        assertThrows(KintoException.class,
+                () -> kinto.update(book, new KintoFieldUpdate().increment("title", 1)));
+    }
+
+    private void concurrentIncrementsAreNotLost(Kinto kinto) throws Exception {
+        Book book = addBook(0.0);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < INCREMENTS; i++) {
+                        kinto.update(Book.class, book.getUUID(), new KintoFieldUpdate().increment("price", 1));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Book loaded = (Book) kinto.findByUUID(Book.class, book.getUUID());
+        assertNotNull(loaded);
+        assertEquals((double) THREADS * INCREMENTS, loaded.getPrice());
+        assertEquals(book.getUSN() + THREADS * INCREMENTS, loaded.getUSN());
+    }
+
+    private Kinto open(StorageEngine storageEngine) throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        KintoConfiguration configuration = new KintoConfiguration.Builder("FieldUpdateTest")
+                .objectTypes(typeList)
+                .storageMode(KintoConfiguration.StorageMode.MEMORY)
+                .storageEngine(storageEngine)
+                .build();
+        kinto = new Kinto(configuration);
+        return kinto;
+    }
+
+    private Book addBook(double price) throws Exception {
+        Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        Book book = new Book("ISBN-1", "First Title", author, price, 0);
+        kinto.add(book);
+        return book;
+    }
+}
@@ -0,0 +1,110 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.model.KintoObject;
+import de.hirola.kintojava.model.Persisted;
+import de.hirola.kintojava.model.PersistentObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HydrationTest {
+
+    // more than the threshold for parallel hydration
+    private static final int COUNT = 600;
+
+    private Kinto kinto;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Note.class);
+        KintoConfiguration configuration = new KintoConfiguration.Builder("HydrationTest")
+                .objectTypes(typeList)
+                .storageMode(KintoConfiguration.StorageMode.MEMORY)
+                .parallelHydration(4)
+                .build();
+        kinto = new Kinto(configuration);
+        Note.failOnCreate = false;
+    }
+
+    @AfterEach
+    void tearDown() {
+        Note.failOnCreate = false;
+        kinto.close();
+    }
+
+    @Test
+    void parallelHydrationKeepsOrder() throws Exception {
+        List<String> uuids = new ArrayList<>();
+        for (int i = 0; i < COUNT; i++) {
+            Author author = new Author("First" + i, "Last" + i, LocalDate.of(2000, 1, 1).plusDays(i));
+            kinto.add(author);
+            uuids.add(author.getUUID());
+        }
+        List<Author> authors = kinto.collection(Author.class).findAll();
+        assertEquals(COUNT, authors.size());
+        for (int i = 0; i < COUNT; i++) {
+            // the order of the rows in local datastore
+            assertEquals(uuids.get(i), authors.get(i).getUUID());
+            assertEquals("Last" + i, authors.get(i).getLastName());
+        }
+    }
+
+    @Test
+    void errorOnWorkerReachesCaller() throws Exception {
+        for (int i = 0; i < COUNT; i++) {
+            kinto.add(new Note("Note " + i));
+        }
+        Note.failOnCreate = true;
+        KintoException exception = assertThrows(KintoException.class, () -> kinto.collection(Note.class).findAll());
+        // the exception of the worker, not a wrapper of the pool
+        assertTrue(exception.getMessage().startsWith("Can not invoke."), exception.getMessage());
+        Note.failOnCreate = false;
+        assertEquals(COUNT, kinto.collection(Note.class).findAll().size());
+    }
+
+    @Test
+    void searchAfterShutdownOfThePool() throws Exception {
+        for (int i = 0; i < COUNT; i++) {
+            kinto.add(new Note("Note " + i));
+        }
+        // the pool is shut down by closing kinto, while the rows of a search are read
+        assertNotNull(kinto.getHydrationPool());
+        kinto.getHydrationPool().shutdown();
+        List<Note> notes = kinto.collection(Note.class).findAll();
+        assertEquals(COUNT, notes.size());
+        assertEquals("Note 0", notes.get(0).getText());
+    }
+
+    // a type which can't be created from local datastore on demand
+    public static class Note extends PersistentObject {
+
+        private static volatile boolean failOnCreate;
+
+        @Persisted
+        private final String text;
+
+        public Note() {
+            if (failOnCreate) {
+                throw new IllegalStateException("The note can't be created.");
+            }
+            text = "";
+        }
+
+        public Note(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package de.hirola.kintojava;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogStorageEngineTest {
+
+    private static final String COLLECTION = "Item";
+    private static final StorageEngine.Relation TAGS = new StorageEngine.Relation("Item_tags", "item", "tag");
+    // the types of the entries in the log
+    private static final byte PUT_ENTRY = 2;
+    private static final byte COMMIT_ENTRY = 7;
+
+    private File directory;
+    private LogStorageEngine storageEngine;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("kinto-log").toFile();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (storageEngine != null && storageEngine.isOpen()) {
+            storageEngine.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    void changesAreReadAfterReopen() throws Exception {
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        insert("2", "Second", "12.5");
+        assertEquals(1, storageEngine.update(COLLECTION, "1", 0, Map.of("title", "Changed")));
+        assertEquals(1, storageEngine.delete(COLLECTION, "2", StorageEngine.ANY_USN));
+        assertEquals(2, storageEngine.addRelations(TAGS, "1", List.of("a", "b")));
+        storageEngine.setMetadata("key", "value");
+        String changes = readChanges();
+        reopen(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+
+        assertEquals("Changed", readValue("1", "title"));
+        assertEquals("10.5", readValue("1", "price"));
+        assertEquals("1", readValue("1", "usn"));
+        assertNull(storageEngine.findByUUID(COLLECTION, "2"));
+        assertEquals(List.of("a", "b"), storageEngine.readRelation(TAGS, "1"));
+        assertEquals("value", storageEngine.getMetadata("key"));
+        assertEquals(changes, readChanges());
+        // new records after the records of the log
+        insert("3", "Third", null);
+        assertEquals(List.of("1", "3"), queryUUIDs());
+    }
+
+    @Test
+    void transactionWithoutCommitEntryIsDiscarded() throws Exception {
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        writeTransaction();
+        storageEngine.close();
+        // crash before the commit entry is written
+        File segment = lastSegment();
+        List<int[]> entries = readEntries(segment);
+        int[] commit = entries.get(entries.size() - 1);
+        assertEquals(COMMIT_ENTRY, commit[2]);
+        writeInt(segment, commit[0], 0);
+
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        assertCommittedBeforeTransaction();
+        // the entries of the transaction are overwritten
+        insert("3", "Third", null);
+        reopen(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        assertEquals("First", readValue("1", "title"));
+        assertNull(storageEngine.getMetadata("key"));
+        assertEquals(List.of("1", "3"), queryUUIDs());
+    }
+
+    @Test
+    void corruptEntryDiscardsItsTransaction() throws Exception {
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        writeTransaction();
+        storageEngine.close();
+        // the checksum of the first entry of the transaction fails
+        File segment = lastSegment();
+        List<int[]> entries = readEntries(segment);
+        int first = -1;
+        for (int index = entries.size() - 2; index >= 0 && first < 0; index--) {
+            if (entries.get(index)[2] == COMMIT_ENTRY) {
+                first = index + 1;
+            }
+        }
+        int[] entry = entries.get(first);
+        assertEquals(PUT_ENTRY, entry[2]);
+        writeInt(segment, entry[0] + 8 + entry[1] - 4, 0x5a5a5a5a);
+
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        assertCommittedBeforeTransaction();
+        insert("3", "Third", null);
+        reopen(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        assertEquals(List.of("1", "3"), queryUUIDs());
+    }
+
+    @Test
+    void rollbackDiscardsTheChanges() throws Exception {
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        String changes = readChanges();
+        storageEngine.beginTransaction();
+        insert("2", "Second", "12.5");
+        assertEquals(1, storageEngine.update(COLLECTION, "1", 0, Map.of("title", "Changed")));
+        assertEquals(1, storageEngine.addRelations(TAGS, "1", List.of("a")));
+        storageEngine.setMetadata("key", "value");
+        // the thread reads the changes of its transaction
+        assertEquals("Changed", readValue("1", "title"));
+        assertEquals(List.of("1", "2"), queryUUIDs());
+        assertEquals(List.of("a"), storageEngine.readRelation(TAGS, "1"));
+        assertEquals("value", storageEngine.getMetadata("key"));
+        assertEquals(2, storageEngine.readChanges(COLLECTION, 0, 10).size());
+        storageEngine.rollback();
+
+        assertCommitted(changes);
+        reopen(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        assertCommitted(changes);
+    }
+
+    @Test
+    void otherThreadsReadTheCommittedChanges() throws Exception {
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            storageEngine.beginTransaction();
+            insert("2", "Second", "12.5");
+            assertEquals(1, storageEngine.update(COLLECTION, "1", 0, Map.of("title", "Changed")));
+            storageEngine.setMetadata("key", "value");
+            assertEquals("First", executor.submit(() -> readValue("1", "title")).get());
+            assertNull(executor.submit(() -> storageEngine.findByUUID(COLLECTION, "2")).get());
+            assertEquals(List.of("1"), executor.submit(this::queryUUIDs).get());
+            assertNull(executor.submit(() -> storageEngine.getMetadata("key")).get());
+            assertEquals(1, (int) executor.submit(() -> storageEngine.readChanges(COLLECTION, 0, 10).size()).get());
+            // a writer waits for the end of the transaction
+            Future<?> writer = executor.submit(() -> {
+                insert("3", "Third", null);
+                return null;
+            });
+            assertThrows(TimeoutException.class, () -> writer.get(200, TimeUnit.MILLISECONDS));
+            storageEngine.commit();
+            writer.get();
+            assertEquals("Changed", executor.submit(() -> readValue("1", "title")).get());
+            assertEquals(List.of("1", "2", "3"), executor.submit(this::queryUUIDs).get());
+            assertEquals("value", executor.submit(() -> storageEngine.getMetadata("key")).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void compactionKeepsTheCurrentEntries() throws Exception {
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        insert("2", "Second", "12.5");
+        storageEngine.addRelations(TAGS, "2", List.of("a"));
+        for (int i = 0; i < 200; i++) {
+            assertEquals(1, storageEngine.update(COLLECTION, "1", StorageEngine.ANY_USN,
+                    Map.of("title", "Title " + i)));
+            storageEngine.setMetadata("key", "value " + i);
+        }
+        storageEngine.removeAllRelations(TAGS, "2");
+        storageEngine.delete(COLLECTION, "2", StorageEngine.ANY_USN);
+        String changes = readChanges();
+        int segmentCount = storageEngine.getSegmentCount();
+        int entryCount = countEntries();
+        assertTrue(segmentCount > 3);
+
+        assertTrue(storageEngine.compact() > 0);
+        // the compacted segments are deleted
+        assertTrue(storageEngine.getSegmentCount() < segmentCount);
+        assertEquals(storageEngine.getSegmentCount(), segmentFiles().length);
+        assertTrue(countEntries() < entryCount / 4);
+        assertCompacted(changes);
+        reopen(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        assertCompacted(changes);
+    }
+
+    @Test
+    void relationChangesAreWrittenAsChanges() throws Exception {
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        List<String> childUUIDs = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            assertEquals(1, storageEngine.addRelations(TAGS, "1", List.of("tag-" + i)));
+            childUUIDs.add("tag-" + i);
+            if (i % 3 == 0) {
+                assertEquals(1, storageEngine.removeRelations(TAGS, "1", List.of("tag-" + (i / 3))));
+                childUUIDs.remove("tag-" + (i / 3));
+            }
+        }
+        assertEquals(0, storageEngine.addRelations(TAGS, "1", List.of("tag-299")));
+        assertEquals(childUUIDs, storageEngine.readRelation(TAGS, "1"));
+        // the entries don't grow with the count of child uuids, a list of all would be more than 500 kB
+        int size = 0;
+        for (File file : segmentFiles()) {
+            for (int[] entry : readEntries(file)) {
+                size += entry[1];
+            }
+        }
+        assertTrue(size < 100_000, "The log has " + size + " bytes.");
+
+        reopen(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        assertEquals(childUUIDs, storageEngine.readRelation(TAGS, "1"));
+        assertTrue(storageEngine.compact() > 0);
+        reopen(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        assertEquals(childUUIDs, storageEngine.readRelation(TAGS, "1"));
+    }
+
+    @Test
+    void recordsOfOldSchemaVersionsAreRead() throws Exception {
+        open(4096, schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        // price removed, pages added
+        LinkedHashMap<String, String> columns = schema(Map.of("title", "TEXT", "pages", "INT"));
+        storageEngine.openCollection(new StorageEngine.CollectionSchema(COLLECTION, columns, List.of(TAGS)));
+        Map<String, String> values = new HashMap<>(Map.of("uuid", "2", "kintoid", "", "usn", "0",
+                "title", "Second", "pages", "300"));
+        storageEngine.insert(COLLECTION, values);
+        assertThrows(SQLException.class, () -> insert("3", "Third", "1.5"));
+        assertOldVersionRead();
+        reopen(4096, columns);
+        assertOldVersionRead();
+        // the new version of the record is written with the actual columns
+        assertEquals(1, storageEngine.update(COLLECTION, "1", 0, Map.of("pages", "100")));
+        reopen(4096, columns);
+        assertEquals("100", readValue("1", "pages"));
+        assertEquals("First", readValue("1", "title"));
+    }
+
+    private void assertOldVersionRead() throws Exception {
+        assertEquals("First", readValue("1", "title"));
+        assertNull(readValue("1", "price"));
+        assertNull(readValue("1", "pages"));
+        assertEquals("300", readValue("2", "pages"));
+        assertEquals(1, queryCount(new KintoQuery().greaterThan("pages", 200)));
+        assertEquals(List.of("1", "2"), queryUUIDs());
+    }
+
+    // a transaction with the changes of an insert, an update and metadata
+    private void writeTransaction() throws Exception {
+        storageEngine.beginTransaction();
+        insert("2", "Second", "12.5");
+        assertEquals(1, storageEngine.update(COLLECTION, "1", 0, Map.of("title", "Changed")));
+        storageEngine.setMetadata("key", "value");
+        storageEngine.commit();
+        assertEquals("Changed", readValue("1", "title"));
+    }
+
+    private void assertCommittedBeforeTransaction() throws Exception {
+        assertEquals("First", readValue("1", "title"));
+        assertEquals("0", readValue("1", "usn"));
+        assertNull(storageEngine.findByUUID(COLLECTION, "2"));
+        assertNull(storageEngine.getMetadata("key"));
+        assertEquals(1, storageEngine.readChanges(COLLECTION, 0, 10).size());
+    }
+
+    private void assertCommitted(String changes) throws Exception {
+        assertEquals("First", readValue("1", "title"));
+        assertEquals("0", readValue("1", "usn"));
+        assertNull(storageEngine.findByUUID(COLLECTION, "2"));
+        assertEquals(List.of("1"), queryUUIDs());
+        assertTrue(storageEngine.readRelation(TAGS, "1").isEmpty());
+        assertNull(storageEngine.getMetadata("key"));
+        assertEquals(changes, readChanges());
+    }
+
+    private void assertCompacted(String changes) throws Exception {
+        assertEquals("Title 199", readValue("1", "title"));
+        assertEquals("200", readValue("1", "usn"));
+        assertNull(storageEngine.findByUUID(COLLECTION, "2"));
+        assertTrue(storageEngine.readRelation(TAGS, "2").isEmpty());
+        assertEquals("value 199", storageEngine.getMetadata("key"));
+        assertEquals(List.of("1"), queryUUIDs());
+        assertEquals(changes, readChanges());
+    }
+
+    private void open(int segmentSize, LinkedHashMap<String, String> columns) throws Exception {
+        storageEngine = new LogStorageEngine.Builder(directory.getAbsolutePath())
+                .segmentSize(segmentSize)
+                .compactionInterval(0)
+                .build();
+        storageEngine.open();
+        storageEngine.openCollection(new StorageEngine.CollectionSchema(COLLECTION, columns, List.of(TAGS)));
+    }
+
+    private void reopen(int segmentSize, LinkedHashMap<String, String> columns) throws Exception {
+        storageEngine.close();
+        open(segmentSize, columns);
+    }
+
+    // the columns of a collection like built by KintoCollection
+    private LinkedHashMap<String, String> schema(Map<String, String> attributes) {
+        LinkedHashMap<String, String> columns = new LinkedHashMap<>();
+        columns.put("uuid", "TEXT PRIMARY KEY");
+        columns.put("kintoid", "TEXT");
+        columns.put("usn", "INT");
+        columns.put("lastmodified", "INT");
+        columns.put("syncedusn", "INT");
+        columns.putAll(new TreeMap<>(attributes));
+        return columns;
+    }
+
+    private void insert(String uuid, String title, String price) throws Exception {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("uuid", uuid);
+        values.put("kintoid", "");
+        values.put("usn", "0");
+        values.put("title", title);
+        if (price != null) {
+            values.put("price", price);
+        }
+        storageEngine.insert(COLLECTION, values);
+    }
+
+    private String readValue(String uuid, String column) throws Exception {
+        KintoRow row = storageEngine.findByUUID(COLLECTION, uuid);
+        assertNotNull(row);
+        return row.getString(column);
+    }
+
+    private List<String> queryUUIDs() throws Exception {
+        List<String> uuids = new ArrayList<>();
+        try (StorageEngine.Cursor cursor = storageEngine.query(COLLECTION, new KintoQuery())) {
+            while (cursor.next()) {
+                uuids.add(cursor.readRow().getString("uuid"));
+            }
+        }
+        return uuids;
+    }
+
+    private int queryCount(KintoQuery query) throws Exception {
+        int count = 0;
+        try (StorageEngine.Cursor cursor = storageEngine.query(COLLECTION, query)) {
+            while (cursor.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private String readChanges() throws Exception {
+        StringBuilder changes = new StringBuilder();
+        for (KintoChange change : storageEngine.readChanges(null, 0, Integer.MAX_VALUE)) {
+            changes.append(change.getSeq()).append(' ').append(change.getUUID()).append(' ')
+                    .append(change.getOperation()).append('\n');
+        }
+        return changes.toString();
+    }
+
+    private File[] segmentFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-"));
+        assertNotNull(files);
+        Arrays.sort(files);
+        return files;
+    }
+
+    private File lastSegment() {
+        File[] files = segmentFiles();
+        return files[files.length - 1];
+    }
+
+    private int countEntries() throws Exception {
+        int count = 0;
+        for (File file : segmentFiles()) {
+            count += readEntries(file).size();
+        }
+        return count;
+    }
+
+    // offset, length and type of the entries of a segment: length, checksum and body
+    private static List<int[]> readEntries(File segment) throws Exception {
+        List<int[]> entries = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            long offset = 0;
+            while (offset + 8 <= file.length()) {
+                file.seek(offset);
+                int length = file.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                file.seek(offset + 8);
+                entries.add(new int[]{(int) offset, length, file.readByte()});
+                offset += 8 + length;
+            }
+        }
+        return entries;
+    }
+
+    private static void writeInt(File segment, int offset, int value) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(offset);
+            file.writeInt(value);
+        }
+    }
+}
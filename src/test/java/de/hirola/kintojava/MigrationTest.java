@@ -0,0 +1,222 @@
+package de.hirola.kintojava;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MigrationTest {
+
+    private static final String COLLECTION = "Item";
+    private static final StorageEngine.Relation TAGS = new StorageEngine.Relation("ItemToTag", "item", "tag");
+
+    private File directory;
+    private SQLiteStorageEngine storageEngine;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("kinto-migration").toFile();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (storageEngine != null && storageEngine.isOpen()) {
+            storageEngine.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    void addedFieldIsAddedInPlace() throws Exception {
+        open(schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        insert("2", "Second", "12.5");
+        // an index of the app is kept only, if the table is not copied
+        execute("CREATE INDEX item_title ON Item (title);");
+        storageEngine.close();
+
+        open(schema(Map.of("title", "TEXT", "price", "REAL", "pages", "INT")));
+        assertEquals("INT", readColumns().get("pages"));
+        assertTrue(isIndexExisting("item_title"));
+        assertEquals("First", readValue("1", "title"));
+        assertEquals("12.5", readValue("2", "price"));
+        assertNull(readValue("1", "pages"));
+    }
+
+    @Test
+    void removedFieldIsCopied() throws Exception {
+        open(schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        execute("CREATE INDEX item_title ON Item (title);");
+        storageEngine.close();
+
+        open(schema(Map.of("title", "TEXT")));
+        Map<String, String> columns = readColumns();
+        assertFalse(columns.containsKey("price"));
+        assertEquals("TEXT PRIMARY KEY", columns.get("uuid"));
+        // copy and swap, the common columns are kept
+        assertFalse(isIndexExisting("item_title"));
+        assertEquals("First", readValue("1", "title"));
+        assertEquals("0", readValue("1", "usn"));
+    }
+
+    @Test
+    void retypedFieldIsCopied() throws Exception {
+        open(schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        storageEngine.close();
+
+        open(schema(Map.of("title", "TEXT", "price", "TEXT")));
+        assertEquals("TEXT", readColumns().get("price"));
+        assertEquals("First", readValue("1", "title"));
+        assertEquals("10.5", readValue("1", "price"));
+    }
+
+    @Test
+    void journalTriggersAreRecreated() throws Exception {
+        open(schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        storageEngine.close();
+
+        open(schema(Map.of("title", "TEXT")));
+        long seq = lastChange().getSeq();
+        assertEquals(1, storageEngine.update(COLLECTION, "1", 0, Map.of("title", "Changed")));
+        KintoChange change = lastChange();
+        assertTrue(change.getSeq() > seq);
+        assertEquals("1", change.getUUID());
+        assertEquals(KintoChange.Operation.UPDATE, change.getOperation());
+
+        insert("2", "Second", null);
+        change = lastChange();
+        assertEquals("2", change.getUUID());
+        assertEquals(KintoChange.Operation.INSERT, change.getOperation());
+        // the trigger of the table before the migration is replaced, not added
+        assertEquals(1, countTriggers("Item_journal_update"));
+    }
+
+    @Test
+    void relationsAreKeptByTheCopy() throws Exception {
+        open(schema(Map.of("title", "TEXT", "price", "REAL")));
+        insert("1", "First", "10.5");
+        assertEquals(2, storageEngine.addRelations(TAGS, "1", List.of("a", "b")));
+        storageEngine.close();
+
+        // the triggers of the relation table refer to the copied table
+        open(schema(Map.of("title", "TEXT")));
+        assertEquals(List.of("a", "b"), storageEngine.readRelation(TAGS, "1"));
+        long seq = lastChange().getSeq();
+        assertEquals(1, storageEngine.addRelations(TAGS, "1", List.of("c")));
+        KintoChange change = lastChange();
+        assertTrue(change.getSeq() > seq);
+        assertEquals("1", change.getUUID());
+        assertEquals(KintoChange.Operation.UPDATE, change.getOperation());
+        assertEquals(1, countTriggers("ItemToTag_journal_insert"));
+        assertEquals(1, countTriggers("ItemToTag_journal_delete"));
+    }
+
+    @Test
+    void unchangedSchemaIsNotMigrated() throws Exception {
+        LinkedHashMap<String, String> columns = schema(Map.of("title", "TEXT", "price", "REAL"));
+        open(columns);
+        insert("1", "First", "10.5");
+        // a column unknown to the schema would be removed by a migration
+        execute("ALTER TABLE Item ADD COLUMN extra TEXT;");
+        storageEngine.close();
+
+        open(columns);
+        assertTrue(readColumns().containsKey("extra"));
+        assertEquals("First", readValue("1", "title"));
+    }
+
+    // open the local datastore in the directory with the columns of the collection
+    private void open(LinkedHashMap<String, String> columns) throws Exception {
+        StorageProfile storageProfile = new StorageProfile.Builder(StorageProfile.DURABLE)
+                .location(directory.getAbsolutePath())
+                .build();
+        storageEngine = new SQLiteStorageEngine(new KintoDatabaseAdapter("MigrationTest", storageProfile,
+                KintoConfiguration.StorageMode.FILE));
+        storageEngine.open();
+        storageEngine.openCollection(new StorageEngine.CollectionSchema(COLLECTION, columns, List.of(TAGS)));
+    }
+
+    // the columns of a collection like built by KintoCollection
+    private LinkedHashMap<String, String> schema(Map<String, String> attributes) {
+        LinkedHashMap<String, String> columns = new LinkedHashMap<>();
+        columns.put("uuid", "TEXT PRIMARY KEY");
+        columns.put("kintoid", "TEXT");
+        columns.put("usn", "INT");
+        columns.put("lastmodified", "INT");
+        columns.put("syncedusn", "INT");
+        columns.putAll(new TreeMap<>(attributes));
+        return columns;
+    }
+
+    private void insert(String uuid, String title, String price) throws Exception {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("uuid", uuid);
+        values.put("kintoid", "");
+        values.put("usn", "0");
+        values.put("title", title);
+        if (price != null) {
+            values.put("price", price);
+        }
+        storageEngine.insert(COLLECTION, values);
+    }
+
+    private void execute(String sql) throws Exception {
+        storageEngine.getDatabaseAdapter().executeSQL(sql);
+    }
+
+    private Map<String, String> readColumns() throws Exception {
+        Map<String, String> columns = new HashMap<>();
+        try (KintoQueryResultSet resultSet = storageEngine.getDatabaseAdapter()
+                .executeQuery("PRAGMA table_info(" + COLLECTION + ");")) {
+            while (resultSet.next()) {
+                String type = resultSet.getString("type");
+                if (resultSet.getInt("pk") > 0) {
+                    type += " PRIMARY KEY";
+                }
+                columns.put(resultSet.getString("name"), type);
+            }
+        }
+        return columns;
+    }
+
+    private String readValue(String uuid, String column) throws Exception {
+        KintoRow row = storageEngine.findByUUID(COLLECTION, uuid);
+        assertNotNull(row);
+        return row.getString(column);
+    }
+
+    private boolean isIndexExisting(String name) throws Exception {
+        String sql = "SELECT name FROM sqlite_master WHERE type='index' AND name=?;";
+        try (KintoQueryResultSet resultSet = storageEngine.getDatabaseAdapter().executeQuery(sql, name)) {
+            return resultSet.next();
+        }
+    }
+
+    private int countTriggers(String name) throws Exception {
+        String sql = "SELECT COUNT(*) AS count FROM sqlite_master WHERE type='trigger' AND name=?;";
+        try (KintoQueryResultSet resultSet = storageEngine.getDatabaseAdapter().executeQuery(sql, name)) {
+            assertTrue(resultSet.next());
+            return resultSet.getInt("count");
+        }
+    }
+
+    private KintoChange lastChange() throws Exception {
+        List<KintoChange> changes = storageEngine.readChanges(COLLECTION, 0, Integer.MAX_VALUE);
+        assertFalse(changes.isEmpty());
+        return changes.get(changes.size() - 1);
+    }
+}
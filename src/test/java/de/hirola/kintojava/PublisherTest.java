@@ -0,0 +1,188 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PublisherTest {
+
+    // more than one chunk of the publisher
+    private static final int COUNT = 150;
+
+    private RecordingStorageEngine storageEngine;
+    private Kinto kinto;
+    private final List<String> uuids = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        storageEngine = new RecordingStorageEngine();
+        KintoConfiguration configuration = new KintoConfiguration.Builder("PublisherTest")
+                .objectTypes(typeList)
+                .storageEngine(storageEngine)
+                .build();
+        kinto = new Kinto(configuration);
+        uuids.clear();
+        for (int i = 0; i < COUNT; i++) {
+            Author author = new Author("First" + i, "Last" + i, LocalDate.of(1970, 1, 1).plusDays(i));
+            kinto.add(author);
+            uuids.add(author.getUUID());
+        }
+        storageEngine.readRows.set(0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        kinto.close();
+    }
+
+    @Test
+    void subscriberRequestsOneAtATime() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber(1) {
+            @Override
+            public void onNext(Author item) {
+                super.onNext(item);
+                // not more rows read than requested
+                assertEquals(received.size(), storageEngine.readRows.get());
+                subscription.request(1);
+            }
+        };
+        kinto.publish(Author.class, new KintoQuery()).subscribe(subscriber);
+        assertEquals(uuids, subscriber.receivedUUIDs());
+        assertEquals(1, subscriber.completions);
+        assertNull(subscriber.error);
+        assertEquals(0, storageEngine.openCursors.get());
+    }
+
+    @Test
+    void onlyRequestedObjectsAreRead() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber(0);
+        kinto.publish(Author.class, new KintoQuery()).subscribe(subscriber);
+        // nothing requested, the cursor is not opened
+        assertTrue(subscriber.received.isEmpty());
+        assertEquals(0, storageEngine.openCursors.get());
+
+        subscriber.subscription.request(3);
+        assertEquals(uuids.subList(0, 3), subscriber.receivedUUIDs());
+        assertEquals(3, storageEngine.readRows.get());
+        assertEquals(1, storageEngine.openCursors.get());
+
+        subscriber.subscription.request(100);
+        assertEquals(uuids.subList(0, 103), subscriber.receivedUUIDs());
+        assertEquals(103, storageEngine.readRows.get());
+        assertEquals(0, subscriber.completions);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(uuids, subscriber.receivedUUIDs());
+        assertEquals(1, subscriber.completions);
+        assertEquals(0, storageEngine.openCursors.get());
+    }
+
+    @Test
+    void queryFiltersPublishedObjects() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE);
+        KintoQuery query = new KintoQuery().equalTo("lastName", "Last7");
+        kinto.publish(Author.class, query).subscribe(subscriber);
+        assertEquals(List.of(uuids.get(7)), subscriber.receivedUUIDs());
+        assertEquals(1, subscriber.completions);
+    }
+
+    @Test
+    void cancelStopsTheDelivery() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber(10) {
+            @Override
+            public void onNext(Author item) {
+                super.onNext(item);
+                if (received.size() == 2) {
+                    subscription.cancel();
+                }
+            }
+        };
+        kinto.publish(Author.class, new KintoQuery()).subscribe(subscriber);
+        assertEquals(uuids.subList(0, 2), subscriber.receivedUUIDs());
+        // no terminal signal after cancel, the cursor is closed
+        assertEquals(0, subscriber.completions);
+        assertNull(subscriber.error);
+        assertEquals(0, storageEngine.openCursors.get());
+        subscriber.subscription.request(10);
+        assertEquals(2, subscriber.received.size());
+    }
+
+    @Test
+    void invalidRequestSignalsError() throws Exception {
+        TestSubscriber subscriber = new TestSubscriber(2);
+        kinto.publish(Author.class, new KintoQuery()).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, subscriber.completions);
+        assertEquals(0, storageEngine.openCursors.get());
+        // no more objects after the error
+        subscriber.subscription.request(10);
+        assertEquals(2, subscriber.received.size());
+    }
+
+    @Test
+    void datastoreErrorSignalsError() throws Exception {
+        storageEngine.failQuery = true;
+        TestSubscriber subscriber = new TestSubscriber(5);
+        kinto.publish(Author.class, new KintoQuery()).subscribe(subscriber);
+        assertTrue(subscriber.error instanceof KintoException);
+        assertTrue(subscriber.received.isEmpty());
+        assertEquals(0, subscriber.completions);
+    }
+
+    // records the signals, requests the initial count on subscribe
+    private static class TestSubscriber implements Flow.Subscriber<Author> {
+
+        private final long initialRequest;
+        final List<Author> received = new ArrayList<>();
+        Flow.Subscription subscription;
+        Throwable error;
+        int completions;
+
+        TestSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(Author item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completions++;
+        }
+
+        List<String> receivedUUIDs() {
+            List<String> receivedUUIDs = new ArrayList<>();
+            for (Author author : received) {
+                receivedUUIDs.add(author.getUUID());
+            }
+            return receivedUUIDs;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package de.hirola.kintojava;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A storage engine for tests, the writes of the collections are recorded
+ * and executed by another engine.
+ */
+class RecordingStorageEngine implements StorageEngine {
+
+    private final StorageEngine engine;
+    // the changed values of every update
+    final List<Map<String, String>> updates;
+    // the writes of relation entries, e.g. "add [uuid]", "remove [uuid]", "removeAll"
+    final List<String> relationWrites;
+    // called before every update, e.g. to block a running operation
+    volatile Runnable beforeUpdate;
+    // called before every query
+    volatile Runnable beforeQuery;
+    // the rows read from all cursors and the cursors not closed
+    final AtomicInteger readRows;
+    final AtomicInteger openCursors;
+    // the queries fail, e.g. to test the handling of errors
+    volatile boolean failQuery;
+    // the commits fail without saving the changes of the transaction
+    volatile boolean failCommit;
+
+    RecordingStorageEngine() {
+        this(new InMemoryStorageEngine());
+    }
+
+    RecordingStorageEngine(@NotNull StorageEngine engine) {
+        this.engine = engine;
+        updates = Collections.synchronizedList(new ArrayList<>());
+        relationWrites = Collections.synchronizedList(new ArrayList<>());
+        readRows = new AtomicInteger();
+        openCursors = new AtomicInteger();
+    }
+
+    void clear() {
+        updates.clear();
+        relationWrites.clear();
+    }
+
+    @Override
+    public String getName() {
+        return engine.getName();
+    }
+
+    @Override
+    public void open() throws SQLException {
+        engine.open();
+    }
+
+    @Override
+    public void openCollection(@NotNull CollectionSchema schema) throws SQLException {
+        engine.openCollection(schema);
+    }
+
+    @Override
+    public void beginTransaction() throws SQLException {
+        engine.beginTransaction();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        if (failCommit) {
+            throw new SQLException("The commit failed.");
+        }
+        engine.commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        engine.rollback();
+    }
+
+    @Override
+    public void insert(@NotNull String collection, @NotNull Map<String, String> values) throws SQLException {
+        engine.insert(collection, values);
+    }
+
+    @Override
+    public int update(@NotNull String collection, @NotNull String uuid, long expectedUSN,
+                      @NotNull Map<String, String> values) throws SQLException {
+        Runnable hook = beforeUpdate;
+        if (hook != null) {
+            hook.run();
+        }
+        updates.add(new LinkedHashMap<>(values));
+        return engine.update(collection, uuid, expectedUSN, values);
+    }
+
+    @Override
+    public int updateFields(@NotNull String collection, @NotNull String uuid,
+                            @NotNull KintoFieldUpdate fieldUpdate) throws SQLException {
+        return engine.updateFields(collection, uuid, fieldUpdate);
+    }
+
+    @Override
+    public int delete(@NotNull String collection, @NotNull String uuid, long expectedUSN) throws SQLException {
+        return engine.delete(collection, uuid, expectedUSN);
+    }
+
+    @Override
+    public Cursor query(@NotNull String collection, @NotNull KintoQuery query) throws SQLException {
+        Runnable hook = beforeQuery;
+        if (hook != null) {
+            hook.run();
+        }
+        if (failQuery) {
+            throw new SQLException("The query failed.");
+        }
+        Cursor cursor = engine.query(collection, query);
+        openCursors.incrementAndGet();
+        return new Cursor() {
+
+            @Override
+            public boolean next() throws SQLException {
+                return cursor.next();
+            }
+
+            @Override
+            public KintoRow readRow() throws SQLException {
+                readRows.incrementAndGet();
+                return cursor.readRow();
+            }
+
+            @Override
+            public void close() throws SQLException {
+                openCursors.decrementAndGet();
+                cursor.close();
+            }
+        };
+    }
+
+    @Override
+    public int addRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                            @NotNull Collection<String> childUUIDs) throws SQLException {
+        relationWrites.add("add " + childUUIDs);
+        return engine.addRelations(relation, parentUUID, childUUIDs);
+    }
+
+    @Override
+    public int removeRelations(@NotNull Relation relation, @NotNull String parentUUID,
+                               @NotNull Collection<String> childUUIDs) throws SQLException {
+        relationWrites.add("remove " + childUUIDs);
+        return engine.removeRelations(relation, parentUUID, childUUIDs);
+    }
+
+    @Override
+    public int removeAllRelations(@NotNull Relation relation, @NotNull String parentUUID) throws SQLException {
+        relationWrites.add("removeAll");
+        return engine.removeAllRelations(relation, parentUUID);
+    }
+
+    @Override
+    public Map<String, List<String>> readRelations(@NotNull Relation relation,
+                                                   @Nullable Collection<String> parentUUIDs) throws SQLException {
+        return engine.readRelations(relation, parentUUIDs);
+    }
+
+    @Override
+    public List<KintoChange> readChanges(@Nullable String collection, long sinceSeq, int limit) throws SQLException {
+        return engine.readChanges(collection, sinceSeq, limit);
+    }
+
+    @Override
+    public void markRemoteDeletes(@NotNull String collection, @NotNull Collection<String> uuids) throws SQLException {
+        engine.markRemoteDeletes(collection, uuids);
+    }
+
+    @Override
+    public MergeResult mergeRemoteRecords(@NotNull String collection, @NotNull Collection<Relation> relations,
+                                          @NotNull List<RemoteRecord> records, long journalSeq) throws SQLException {
+        return engine.mergeRemoteRecords(collection, relations, records, journalSeq);
+    }
+
+    @Override
+    public @Nullable String getMetadata(@NotNull String key) {
+        return engine.getMetadata(key);
+    }
+
+    @Override
+    public void setMetadata(@NotNull String key, @NotNull String value) throws SQLException {
+        engine.setMetadata(key, value);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return engine.isOpen();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        engine.close();
+    }
+}
@@ -0,0 +1,133 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Address;
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Customer;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RelationTest {
+
+    private Kinto kinto;
+    private Address home;
+    private Address office;
+    private Customer customer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Address.class);
+        typeList.add(Customer.class);
+        KintoConfiguration configuration = new KintoConfiguration.Builder("RelationTest")
+                .objectTypes(typeList)
+                .storageMode(KintoConfiguration.StorageMode.MEMORY)
+                .build();
+        kinto = new Kinto(configuration);
+        home = new Address("Home Street", 1, "Berlin", "10115");
+        office = new Address("Office Street", 2, "Berlin", "10117");
+        kinto.add(home);
+        kinto.add(office);
+        customer = new Customer("Jane", "Doe", false, home);
+        kinto.add(customer);
+    }
+
+    @AfterEach
+    void tearDown() {
+        kinto.close();
+    }
+
+    @Test
+    void addSingleMember() throws Exception {
+        long usn = customer.getUSN();
+        kinto.addToRelation(customer, "addressList", office);
+        assertEquals(2, customer.getAddressList().size());
+        assertEquals(office.getUUID(), customer.getAddressList().get(1).getUUID());
+        assertEquals(usn + 1, customer.getUSN());
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        assertNotNull(loaded);
+        assertEquals(2, loaded.getAddressList().size());
+        // the saved values of the list are up-to-date, the update writes nothing
+        kinto.update(customer);
+        assertEquals(usn + 1, customer.getUSN());
+    }
+
+    @Test
+    void addExistingMemberIsIgnored() throws Exception {
+        long usn = customer.getUSN();
+        kinto.addToRelation(customer, "addressList", home);
+        assertEquals(1, customer.getAddressList().size());
+        assertEquals(usn, customer.getUSN());
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        assertNotNull(loaded);
+        assertEquals(1, loaded.getAddressList().size());
+    }
+
+    @Test
+    void removeSingleMember() throws Exception {
+        kinto.addToRelation(customer, "addressList", office);
+        long usn = customer.getUSN();
+        kinto.removeFromRelation(customer, "addressList", home);
+        assertEquals(1, customer.getAddressList().size());
+        assertEquals(office.getUUID(), customer.getAddressList().get(0).getUUID());
+        assertEquals(usn + 1, customer.getUSN());
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        assertNotNull(loaded);
+        assertEquals(1, loaded.getAddressList().size());
+        assertEquals(office.getUUID(), loaded.getAddressList().get(0).getUUID());
+        kinto.update(customer);
+        assertEquals(usn + 1, customer.getUSN());
+        // the address itself is not removed
+        assertNotNull(kinto.findByUUID(Address.class, home.getUUID()));
+    }
+
+    @Test
+    void removeMissingMemberIsIgnored() throws Exception {
+        long usn = customer.getUSN();
+        kinto.removeFromRelation(customer, "addressList", office);
+        assertEquals(1, customer.getAddressList().size());
+        assertEquals(usn, customer.getUSN());
+    }
+
+    @Test
+    void removeLastMemberAndAddAgain() throws Exception {
+        kinto.removeFromRelation(customer, "addressList", home);
+        assertTrue(customer.getAddressList().isEmpty());
+        kinto.addToRelation(customer, "addressList", office);
+        long usn = customer.getUSN();
+        kinto.update(customer);
+        assertEquals(usn, customer.getUSN());
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        assertNotNull(loaded);
+        assertEquals(1, loaded.getAddressList().size());
+        assertEquals(office.getUUID(), loaded.getAddressList().get(0).getUUID());
+    }
+
+    @Test
+    void staleObjectIsRejected() throws Exception {
+        Customer stale = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        assertNotNull(stale);
+        kinto.addToRelation(customer, "addressList", office);
+        // the relation is not changed with an outdated object
+        KintoConflictException exception = assertThrows(KintoConflictException.class,
+                () -> kinto.removeFromRelation(stale, "addressList", home));
+        assertEquals(stale.getUSN(), exception.getExpectedUSN());
+        assertEquals(1, stale.getAddressList().size());
+        Address holiday = new Address("Beach Road", 3, "Kiel", "24103");
+        kinto.add(holiday);
+        assertThrows(KintoConflictException.class, () -> kinto.addToRelation(stale, "addressList", holiday));
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        assertNotNull(loaded);
+        assertEquals(2, loaded.getAddressList().size());
+        assertEquals(customer.getUSN(), loaded.getUSN());
+        // the other object is still up-to-date
+        kinto.removeFromRelation(customer, "addressList", home);
+        assertEquals(1, customer.getAddressList().size());
+    }
+}
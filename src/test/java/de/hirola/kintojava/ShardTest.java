@@ -0,0 +1,275 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Address;
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.bookstore.Customer;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the books in the shard logs, the customers with their address lists in the shard crm
+public class ShardTest {
+
+    private File directory;
+    private Kinto kinto;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("kinto-shard").toFile();
+        kinto = open();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (kinto != null) {
+            kinto.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    void collectionsArePlacedInTheShards() throws Exception {
+        Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        kinto.add(new Book("ISBN-1", "First Title", author, 10.5, 1));
+        kinto.add(new Customer("John", "Roe", false, addAddress("Home Street")));
+        kinto.setMetadata("test.key", "value");
+
+        ShardedStorageEngine storageEngine = getStorageEngine();
+        assertEquals(Set.of("app", "logs", "crm"), storageEngine.getShardNames());
+        assertTrue(new File(directory, "ShardTest.db").exists());
+        assertTrue(new File(directory, "ShardTest-logs.db").exists());
+        assertTrue(new File(directory, "ShardTest-crm.db").exists());
+        SQLiteStorageEngine app = getShard("app");
+        SQLiteStorageEngine logs = getShard("logs");
+        SQLiteStorageEngine crm = getShard("crm");
+        assertTrue(isTableExisting(app, "Author"));
+        assertTrue(isTableExisting(app, "Address"));
+        assertFalse(isTableExisting(app, "Book"));
+        assertFalse(isTableExisting(app, "Customer"));
+        assertTrue(isTableExisting(logs, "Book"));
+        assertFalse(isTableExisting(logs, "Author"));
+        assertTrue(isTableExisting(crm, "Customer"));
+        // the relations in the shard of the collection with the list
+        assertTrue(isTableExisting(crm, "CustomerToAddress"));
+        assertFalse(isTableExisting(app, "CustomerToAddress"));
+        assertEquals(1, count(logs, "SELECT COUNT(*) AS count FROM Book;"));
+        // the metadata in the default shard
+        assertEquals("value", app.getMetadata("test.key"));
+        assertNull(logs.getMetadata("test.key"));
+    }
+
+    @Test
+    void attachedShardsAreQueried() throws Exception {
+        Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        for (int i = 0; i < 3; i++) {
+            kinto.add(new Book("ISBN-" + i, "Title " + i, author, 10.0 + i, i));
+        }
+        KintoDatabaseAdapter dataBase = kinto.getLocalDatastoreConnection();
+        assertNotNull(dataBase);
+        assertEquals(getShard("app").getDatabaseAdapter(), dataBase);
+        assertEquals(3, count(dataBase, "SELECT COUNT(*) AS count FROM logs.Book;"));
+        // tables of two shards in one statement
+        String sql = "SELECT Book.title AS title, Author.lastName AS lastName FROM logs.Book"
+                + " JOIN Author ON Book.author = Author.uuid WHERE Book.isbn = ?;";
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery(sql, "ISBN-1")) {
+            assertTrue(resultSet.next());
+            assertEquals("Title 1", resultSet.getString("title"));
+            assertEquals("Doe", resultSet.getString("lastName"));
+            assertFalse(resultSet.next());
+        }
+        // every shard attaches the other shards
+        assertEquals(1, count(getShard("logs").getDatabaseAdapter(), "SELECT COUNT(*) AS count FROM app.Author;"));
+        assertEquals(0, count(getShard("crm").getDatabaseAdapter(), "SELECT COUNT(*) AS count FROM logs.Book"
+                + " WHERE price > 20;"));
+    }
+
+    @Test
+    void relationsSpanTheShards() throws Exception {
+        Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        Address home = addAddress("Home Street");
+        Address office = addAddress("Office Street");
+        Customer customer = new Customer("John", "Roe", false, home);
+        customer.addAddress(office);
+        customer.setFavoriteAuthor(author);
+        kinto.add(customer);
+        assertEquals(List.of("Home Street", "Office Street"), streets(customer));
+        assertEquals(2, count(getShard("crm"), "SELECT COUNT(*) AS count FROM CustomerToAddress;"));
+
+        kinto.removeFromRelation(customer, "addressList", office);
+        kinto.addToRelation(customer, "addressList", addAddress("Beach Road"));
+        assertEquals(List.of("Beach Road", "Home Street"), streets(customer));
+        kinto.close();
+
+        kinto = open();
+        assertEquals(List.of("Beach Road", "Home Street"), streets(customer));
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        assertNotNull(loaded.getFavoriteAuthor());
+        assertEquals("Doe", loaded.getFavoriteAuthor().getLastName());
+        // only the entry of the relation is removed, not the address
+        assertEquals(3, kinto.findAll(Address.class).size());
+    }
+
+    @Test
+    void shardsAreWrittenInParallel() throws Exception {
+        // the tables are created on the first use of the collections
+        assertEquals(0, kinto.findAll(Author.class).size());
+        assertEquals(0, kinto.findAll(Book.class).size());
+        ShardedStorageEngine storageEngine = getStorageEngine();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            // a transaction of the shard logs is open
+            Future<?> logWriter = executor.submit(() -> {
+                storageEngine.beginTransaction();
+                try {
+                    storageEngine.insert("Book", row("book-1"));
+                    started.countDown();
+                    assertTrue(release.await(10, TimeUnit.SECONDS));
+                    storageEngine.commit();
+                } catch (Exception exception) {
+                    storageEngine.rollback();
+                    throw exception;
+                }
+                return null;
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // the default shard has its own writer
+            executor.submit(() -> {
+                storageEngine.insert("Author", row("author-1"));
+                return null;
+            }).get(10, TimeUnit.SECONDS);
+            assertNotNull(storageEngine.findByUUID("Author", "author-1"));
+            assertNull(storageEngine.findByUUID("Book", "book-1"));
+            // the next writer of the shard logs waits for the transaction
+            Future<?> otherLogWriter = executor.submit(() -> {
+                storageEngine.insert("Book", row("book-2"));
+                return null;
+            });
+            assertThrows(TimeoutException.class, () -> otherLogWriter.get(200, TimeUnit.MILLISECONDS));
+            release.countDown();
+            logWriter.get(10, TimeUnit.SECONDS);
+            otherLogWriter.get(10, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertNotNull(storageEngine.findByUUID("Book", "book-1"));
+        assertNotNull(storageEngine.findByUUID("Book", "book-2"));
+    }
+
+    @Test
+    void changesAreReadByCollection() throws Exception {
+        Author author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        kinto.add(new Book("ISBN-1", "First Title", author, 10.5, 1));
+        kinto.add(new Book("ISBN-2", "Second Title", author, 12.5, 1));
+        // the sequence numbers of the shards are not comparable
+        assertThrows(SQLException.class, () -> getStorageEngine().readChanges(null, 0, 10));
+        assertThrows(KintoException.class, () -> kinto.changesSince(0));
+        List<KintoChange> bookChanges = kinto.changesSince(Book.class, 0, 10);
+        assertEquals(2, bookChanges.size());
+        assertEquals("Book", bookChanges.get(0).getCollection());
+        assertEquals(1, kinto.changesSince(Author.class, 0, 10).size());
+        assertEquals(1, kinto.changesSince(Book.class, bookChanges.get(0).getSeq(), 10).size());
+    }
+
+    private Kinto open() throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        typeList.add(Address.class);
+        typeList.add(Customer.class);
+        StorageProfile storageProfile = new StorageProfile.Builder(StorageProfile.BALANCED)
+                .location(directory.getAbsolutePath())
+                .build();
+        KintoConfiguration configuration = new KintoConfiguration.Builder("ShardTest")
+                .objectTypes(typeList)
+                .storageProfile(storageProfile)
+                .shard("logs", Book.class)
+                .shard("crm", Customer.class)
+                .build();
+        return new Kinto(configuration);
+    }
+
+    private ShardedStorageEngine getStorageEngine() {
+        StorageEngine storageEngine = kinto.getStorageEngine();
+        assertTrue(storageEngine instanceof ShardedStorageEngine);
+        return (ShardedStorageEngine) storageEngine;
+    }
+
+    private SQLiteStorageEngine getShard(String shardName) {
+        SQLiteStorageEngine shard = getStorageEngine().getShard(shardName);
+        assertNotNull(shard);
+        return shard;
+    }
+
+    private Address addAddress(String street) throws Exception {
+        Address address = new Address(street, 1, "Berlin", "10115");
+        kinto.add(address);
+        return address;
+    }
+
+    // the saved streets of the addresses of the customer
+    private List<String> streets(Customer customer) throws Exception {
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        List<String> streets = new ArrayList<>();
+        for (Address address : loaded.getAddressList()) {
+            streets.add(address.getStreet());
+        }
+        Collections.sort(streets);
+        return streets;
+    }
+
+    // a record with the columns of the sync state only
+    private static Map<String, String> row(String uuid) {
+        Map<String, String> values = new HashMap<>();
+        values.put("uuid", uuid);
+        values.put("kintoid", "");
+        values.put("usn", "0");
+        return values;
+    }
+
+    private static boolean isTableExisting(SQLiteStorageEngine shard, String name) throws Exception {
+        String sql = "SELECT name FROM main.sqlite_master WHERE type='table' AND name=?;";
+        try (KintoQueryResultSet resultSet = shard.getDatabaseAdapter().executeQuery(sql, name)) {
+            return resultSet.next();
+        }
+    }
+
+    private static int count(SQLiteStorageEngine shard, String sql) throws Exception {
+        return count(shard.getDatabaseAdapter(), sql);
+    }
+
+    private static int count(KintoDatabaseAdapter dataBase, String sql) throws Exception {
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery(sql)) {
+            assertTrue(resultSet.next());
+            return resultSet.getInt("count");
+        }
+    }
+}
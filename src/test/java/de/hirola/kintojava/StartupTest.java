@@ -0,0 +1,119 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.*;
+import de.hirola.kintojava.model.KintoObject;
+import de.hirola.kintojava.model.PersistentObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StartupTest {
+
+    private Kinto kinto;
+
+    @AfterEach
+    void tearDown() {
+        if (kinto != null) {
+            kinto.close();
+        }
+    }
+
+    @Test
+    void tablesAreCreatedOnFirstUse() throws Exception {
+        kinto = new Kinto(newConfiguration(bookstoreTypes()));
+        KintoDatabaseAdapter dataBase = kinto.getLocalDatastoreConnection();
+        assertNotNull(dataBase);
+        assertFalse(isTableExisting(dataBase, "Author"));
+        assertFalse(isTableExisting(dataBase, "Book"));
+
+        kinto.add(new Author("Jane", "Doe", LocalDate.of(1970, 1, 1)));
+        assertTrue(isTableExisting(dataBase, "Author"));
+        // only the tables of the used collection
+        assertFalse(isTableExisting(dataBase, "Book"));
+        assertFalse(isTableExisting(dataBase, "Store"));
+
+        assertEquals(0, kinto.findAll(Book.class).size());
+        assertTrue(isTableExisting(dataBase, "Book"));
+    }
+
+    @Test
+    void startupTimingsAreRecorded() throws Exception {
+        kinto = new Kinto(newConfiguration(bookstoreTypes()));
+        Map<String, Duration> timings = kinto.getStartupTimings();
+        // in order of execution
+        assertEquals(List.of("openDatastore", "readSchema", "buildCollections", "total"),
+                new ArrayList<>(timings.keySet()));
+        Duration steps = Duration.ZERO;
+        for (Map.Entry<String, Duration> timing : timings.entrySet()) {
+            assertFalse(timing.getValue().isNegative(), timing.getKey());
+            if (!timing.getKey().equals("total")) {
+                steps = steps.plus(timing.getValue());
+            }
+        }
+        assertTrue(timings.get("total").compareTo(steps) >= 0);
+        assertThrows(UnsupportedOperationException.class, () -> timings.put("other", Duration.ZERO));
+    }
+
+    @Test
+    void collectionsKeepTheOrderOfTheConfiguration() throws Exception {
+        List<Class<? extends KintoObject>> types = bookstoreTypes();
+        kinto = new Kinto(newConfiguration(types));
+        for (Class<? extends KintoObject> type : types) {
+            assertEquals(type, kinto.collection(type).getType());
+        }
+    }
+
+    @Test
+    void badModelTypeThrowsItsOwnException() {
+        List<Class<? extends KintoObject>> types = bookstoreTypes();
+        types.add(Unannotated.class);
+        KintoException exception = assertThrows(KintoException.class,
+                () -> kinto = new Kinto(newConfiguration(types)));
+        // the exception of the collection, not a wrapper of the parallel creation
+        assertEquals("Reflection of " + Unannotated.class.getName() + " failed, can't create table for collection.",
+                exception.getMessage());
+        assertNull(kinto);
+    }
+
+    private KintoConfiguration newConfiguration(List<Class<? extends KintoObject>> types) throws Exception {
+        return new KintoConfiguration.Builder("StartupTest")
+                .objectTypes(new ArrayList<>(types))
+                .storageMode(KintoConfiguration.StorageMode.MEMORY)
+                .build();
+    }
+
+    private List<Class<? extends KintoObject>> bookstoreTypes() {
+        List<Class<? extends KintoObject>> types = new ArrayList<>();
+        types.add(Author.class);
+        types.add(Book.class);
+        types.add(Address.class);
+        types.add(Customer.class);
+        types.add(Store.class);
+        return types;
+    }
+
+    private boolean isTableExisting(KintoDatabaseAdapter dataBase, String name) throws Exception {
+        String sql = "SELECT name FROM sqlite_master WHERE type='table' AND name=?;";
+        try (KintoQueryResultSet resultSet = dataBase.executeQuery(sql, name)) {
+            return resultSet.next();
+        }
+    }
+
+    // a type without persistent attributes
+    public static class Unannotated extends PersistentObject {
+
+        @SuppressWarnings("unused")
+        private String text;
+
+        public Unannotated() {
+            text = "";
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StorageModeTest {
+
+    // the datastore in files is never used by this test
+    private static final File DEFAULT_DATABASE_FILE = new File(System.getProperty("user.home")
+            + File.separator + ".kinto-java" + File.separator + "StorageModeTest.db");
+
+    @Test
+    void memoryDatastoreIsSharedByTheConnections() throws Exception {
+        Kinto kinto = new Kinto(newConfiguration(KintoConfiguration.StorageMode.MEMORY));
+        try {
+            KintoDatabaseAdapter dataBase = kinto.getLocalDatastoreConnection();
+            assertNotNull(dataBase);
+            assertEquals(KintoConfiguration.StorageMode.MEMORY, dataBase.getStorageMode());
+            assertTrue(dataBase.getDatabasePath().contains("mode=memory"));
+            addAuthorsAndBooks(kinto);
+            // the readers on other connections see the objects of the writer
+            assertReadInParallel(kinto);
+        } finally {
+            kinto.close();
+        }
+        assertFalse(kinto.isOpen());
+        assertFalse(DEFAULT_DATABASE_FILE.exists());
+    }
+
+    @Test
+    void memoryDatastoresAreIndependent() throws Exception {
+        Kinto first = new Kinto(newConfiguration(KintoConfiguration.StorageMode.MEMORY));
+        Kinto second = new Kinto(newConfiguration(KintoConfiguration.StorageMode.MEMORY));
+        try {
+            first.add(new Author("Jane", "Doe", LocalDate.of(1970, 1, 1)));
+            assertEquals(1, first.findAll(Author.class).size());
+            // the same name of the app, but not the same datastore
+            assertEquals(0, second.findAll(Author.class).size());
+        } finally {
+            first.close();
+            second.close();
+        }
+        // a new datastore after close
+        Kinto kinto = new Kinto(newConfiguration(KintoConfiguration.StorageMode.MEMORY));
+        try {
+            assertEquals(0, kinto.findAll(Author.class).size());
+        } finally {
+            kinto.close();
+        }
+    }
+
+    @Test
+    void temporaryFileIsDeletedOnClose() throws Exception {
+        Kinto kinto = new Kinto(newConfiguration(KintoConfiguration.StorageMode.TEMPORARY_FILE));
+        File databaseFile;
+        try {
+            KintoDatabaseAdapter dataBase = kinto.getLocalDatastoreConnection();
+            assertNotNull(dataBase);
+            assertEquals(KintoConfiguration.StorageMode.TEMPORARY_FILE, dataBase.getStorageMode());
+            databaseFile = new File(dataBase.getDatabasePath());
+            assertTrue(databaseFile.getName().startsWith("kinto-StorageModeTest-"));
+            assertTrue(databaseFile.exists());
+            addAuthorsAndBooks(kinto);
+            assertReadInParallel(kinto);
+        } finally {
+            kinto.close();
+        }
+        // the file and the files of the journal
+        assertFalse(databaseFile.exists());
+        assertFalse(new File(databaseFile.getPath() + "-wal").exists());
+        assertFalse(new File(databaseFile.getPath() + "-shm").exists());
+        assertFalse(DEFAULT_DATABASE_FILE.exists());
+    }
+
+    @Test
+    void temporaryFilesAreIndependent() throws Exception {
+        Kinto first = new Kinto(newConfiguration(KintoConfiguration.StorageMode.TEMPORARY_FILE));
+        Kinto second = new Kinto(newConfiguration(KintoConfiguration.StorageMode.TEMPORARY_FILE));
+        try {
+            KintoDatabaseAdapter firstDataBase = first.getLocalDatastoreConnection();
+            KintoDatabaseAdapter secondDataBase = second.getLocalDatastoreConnection();
+            assertNotNull(firstDataBase);
+            assertNotNull(secondDataBase);
+            assertNotEquals(firstDataBase.getDatabasePath(), secondDataBase.getDatabasePath());
+            first.add(new Author("Jane", "Doe", LocalDate.of(1970, 1, 1)));
+            assertEquals(0, second.findAll(Author.class).size());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    private KintoConfiguration newConfiguration(KintoConfiguration.StorageMode storageMode) throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        return new KintoConfiguration.Builder("StorageModeTest")
+                .objectTypes(typeList)
+                .storageMode(storageMode)
+                .build();
+    }
+
+    private void addAuthorsAndBooks(Kinto kinto) throws Exception {
+        for (int i = 0; i < 20; i++) {
+            Author author = new Author("First" + i, "Last" + i, LocalDate.of(1970, 1, 1).plusDays(i));
+            kinto.add(author);
+            kinto.add(new Book("ISBN-" + i, "Title " + i, author, 10.0 + i, i));
+        }
+    }
+
+    private void assertReadInParallel(Kinto kinto) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> kinto.findAll(Book.class).size()));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(20, (int) future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StorageProfileTest {
+
+    private File directory;
+    private KintoDatabaseAdapter dataBase;
+    private Kinto kinto;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("kinto-profile").toFile();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (kinto != null) {
+            kinto.close();
+        }
+        if (dataBase != null) {
+            dataBase.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    void durableProfileSyncsEveryCommit() throws Exception {
+        dataBase = open(StorageProfile.DURABLE);
+        Map<String, String> settings = dataBase.readStorageSettings();
+        assertEquals("wal", settings.get("journal_mode"));
+        // FULL
+        assertEquals("2", settings.get("synchronous"));
+    }
+
+    @Test
+    void bulkLoadProfileIsApplied() throws Exception {
+        dataBase = open(StorageProfile.BULK_LOAD);
+        Map<String, String> settings = dataBase.readStorageSettings();
+        assertEquals("memory", settings.get("journal_mode"));
+        // OFF
+        assertEquals("0", settings.get("synchronous"));
+        assertEquals("8192", settings.get("page_size"));
+        // a negative size is in kibibytes
+        assertEquals("-65536", settings.get("cache_size"));
+        assertEquals(String.valueOf(256L * 1024 * 1024), settings.get("mmap_size"));
+        // MEMORY
+        assertEquals("2", settings.get("temp_store"));
+    }
+
+    @Test
+    void builderChangesSingleSettings() throws Exception {
+        StorageProfile storageProfile = new StorageProfile.Builder(StorageProfile.BALANCED)
+                .location(directory.getAbsolutePath())
+                .synchronous(StorageProfile.Synchronous.EXTRA)
+                .build();
+        // the settings of the profile are kept
+        assertEquals(StorageProfile.JournalMode.WAL, storageProfile.getJournalMode());
+        assertEquals(StorageProfile.BALANCED.getCacheSize(), storageProfile.getCacheSize());
+        assertEquals(StorageProfile.Synchronous.EXTRA, storageProfile.getSynchronous());
+        dataBase = new KintoDatabaseAdapter("StorageProfileTest", storageProfile);
+        Map<String, String> settings = dataBase.readStorageSettings();
+        assertEquals("wal", settings.get("journal_mode"));
+        // EXTRA
+        assertEquals("3", settings.get("synchronous"));
+        assertEquals("-" + StorageProfile.BALANCED.getCacheSize(), settings.get("cache_size"));
+    }
+
+    @Test
+    void datastoreIsCreatedInTheLocation() throws Exception {
+        StorageProfile storageProfile = new StorageProfile.Builder(StorageProfile.BALANCED)
+                .location(directory.getAbsolutePath())
+                .build();
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        KintoConfiguration configuration = new KintoConfiguration.Builder("de.hirola.StorageProfileTest")
+                .objectTypes(typeList)
+                .storageProfile(storageProfile)
+                .build();
+        kinto = new Kinto(configuration);
+        kinto.add(new Author("Jane", "Doe", LocalDate.of(1970, 1, 1)));
+        KintoDatabaseAdapter localDatastore = kinto.getLocalDatastoreConnection();
+        assertNotNull(localDatastore);
+        assertSame(storageProfile, localDatastore.getStorageProfile());
+        File databaseFile = new File(directory, "StorageProfileTest.db");
+        assertEquals(databaseFile.getAbsolutePath(), localDatastore.getDatabasePath());
+        assertTrue(databaseFile.exists());
+        assertEquals("1", localDatastore.readStorageSettings().get("synchronous"));
+    }
+
+    private KintoDatabaseAdapter open(StorageProfile profile) throws Exception {
+        StorageProfile storageProfile = new StorageProfile.Builder(profile)
+                .location(directory.getAbsolutePath())
+                .build();
+        return new KintoDatabaseAdapter("StorageProfileTest", storageProfile);
+    }
+}
@@ -0,0 +1,852 @@
+package de.hirola.kintojava;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.hirola.kintojava.bookstore.*;
+import de.hirola.kintojava.model.KintoObject;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SyncTest {
+
+    private static final String BUCKET = "SyncTest";
+
+    private MockKinto mockKinto;
+    private Kinto kinto;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        mockKinto = new MockKinto(2, 3);
+        kinto = new Kinto(newConfiguration().build());
+    }
+
+    private KintoConfiguration.Builder newConfiguration() {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        typeList.add(Address.class);
+        typeList.add(Customer.class);
+        typeList.add(Store.class);
+        return new KintoConfiguration.Builder("de.hirola." + BUCKET)
+                .objectTypes(typeList)
+                .kintoProtocol("http")
+                .kintoServer("localhost")
+                .kintoPort(mockKinto.getPort())
+                .storageMode(KintoConfiguration.StorageMode.MEMORY);
+    }
+
+    @AfterEach
+    void tearDown() {
+        kinto.close();
+        mockKinto.stop();
+    }
+
+    @Test
+    void syncNeedsLogin() throws Exception {
+        assertFalse(kinto.syncEnabled());
+        assertThrows(KintoException.class, () -> kinto.sync());
+        mockKinto.acceptLogin = false;
+        assertThrows(KintoException.class, () -> kinto.login(Credentials.basicAuth("test", "secret")));
+        assertFalse(kinto.syncEnabled());
+        mockKinto.acceptLogin = true;
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        assertTrue(kinto.syncEnabled());
+    }
+
+    @Test
+    void pullOnlyChangedRecords() throws Exception {
+        mockKinto.putAuthor("A1", "Anne", "Welcome");
+        mockKinto.putAuthor("A2", "Mike", "Land");
+        mockKinto.putAuthor("A3", "Ben", "Alone");
+        Map<String, Object> book = new LinkedHashMap<>();
+        book.put("isbn", "4711");
+        book.put("title", "Test Book");
+        book.put("author", "A1");
+        book.put("price", 10.99);
+        mockKinto.put("Book", "B1", book);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+
+        KintoSyncResult result = kinto.sync();
+        assertEquals(3, result.getPulled("Author"));
+        assertEquals(1, result.getPulled("Book"));
+        assertEquals(0, result.getConflicts());
+        // 3 authors with a page size of 2
+        assertEquals(2, mockKinto.countRequests("Author"));
+        Author author = (Author) kinto.findByUUID(Author.class, "A1");
+        assertNotNull(author);
+        assertEquals("Anne", author.getFirstName());
+        assertEquals("A1", author.getKintoID());
+        assertTrue(author.isSynced());
+        assertEquals(mockKinto.lastModified("Author", "A1"), author.getLastModified());
+        Book syncedBook = (Book) kinto.findByUUID(Book.class, "B1");
+        assertNotNull(syncedBook);
+        assertEquals(10.99, syncedBook.getPrice());
+        assertEquals("Welcome", syncedBook.getAuthor().getLastName());
+
+        // no changes, the checkpoint is used
+        mockKinto.requests.clear();
+        result = kinto.sync();
+        assertEquals(0, result.getPulled());
+        // the collections are pulled in parallel
+        String authorRequest = mockKinto.requests.get(firstRequest("Author"));
+        assertTrue(authorRequest.contains("_since="), authorRequest);
+
+        // one change and one remove in remote kinto
+        mockKinto.putAuthor("A2", "Mike", "Sea");
+        mockKinto.delete("Author", "A3");
+        result = kinto.sync();
+        assertEquals(1, result.getPulled("Author"));
+        assertEquals(1, result.getDeleted("Author"));
+        assertEquals("Sea", ((Author) kinto.findByUUID(Author.class, "A2")).getLastName());
+        assertNull(kinto.findByUUID(Author.class, "A3"));
+        assertEquals(2, kinto.findAll(Author.class).size());
+    }
+
+    @Test
+    void pullPrefetchesPages() throws Exception {
+        kinto.close();
+        kinto = new Kinto(newConfiguration().syncPageSize(1).syncPrefetchDepth(3).build());
+        for (int i = 1; i <= 7; i++) {
+            mockKinto.putAuthor("A" + i, "Author", "No. " + i);
+        }
+        kinto.login(Credentials.basicAuth("test", "secret"));
+
+        KintoSyncResult result = kinto.sync();
+        assertEquals(7, result.getPulled("Author"));
+        // one record per page, the pages are saved in order
+        assertEquals(7, mockKinto.countRequests("Author"));
+        for (String request : mockKinto.requests) {
+            if (request.contains("/collections/Author/")) {
+                assertTrue(request.contains("_limit=1"), request);
+            }
+        }
+        assertEquals(7, kinto.findAll(Author.class).size());
+        assertEquals("No. 7", ((Author) kinto.findByUUID(Author.class, "A7")).getLastName());
+
+        // the checkpoint is the last page
+        mockKinto.requests.clear();
+        mockKinto.putAuthor("A8", "Author", "No. 8");
+        result = kinto.sync();
+        assertEquals(1, result.getPulled("Author"));
+        assertEquals(1, mockKinto.countRequests("Author"));
+    }
+
+    @Test
+    void pullCollectionsAfterDependencies() throws Exception {
+        // the types in reverse order of the relations
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Store.class);
+        typeList.add(Customer.class);
+        typeList.add(Book.class);
+        typeList.add(Address.class);
+        typeList.add(Author.class);
+        kinto.close();
+        kinto = new Kinto(newConfiguration().objectTypes(typeList).syncParallelism(3).build());
+        for (int i = 1; i <= 3; i++) {
+            mockKinto.putAuthor("A" + i, "Author", "No. " + i);
+            Map<String, Object> book = new LinkedHashMap<>();
+            book.put("isbn", "471" + i);
+            book.put("title", "Book " + i);
+            book.put("author", "A" + i);
+            book.put("price", 10.0 + i);
+            mockKinto.put("Book", "B" + i, book);
+        }
+        Map<String, Object> address = new LinkedHashMap<>();
+        address.put("street", "Main Street");
+        address.put("number", 1);
+        address.put("place", "Town");
+        address.put("postalCode", "12345");
+        mockKinto.put("Address", "D1", address);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+
+        KintoSyncResult result = kinto.sync();
+        assertEquals(3, result.getPulled("Author"));
+        assertEquals(3, result.getPulled("Book"));
+        assertEquals(1, result.getPulled("Address"));
+        assertEquals("No. 2", ((Book) kinto.findByUUID(Book.class, "B2")).getAuthor().getLastName());
+        // a collection is pulled after the collections of the embedded objects and lists
+        assertTrue(lastRequest("Author") < firstRequest("Book"), mockKinto.requests.toString());
+        assertTrue(lastRequest("Author") < firstRequest("Customer"), mockKinto.requests.toString());
+        assertTrue(lastRequest("Address") < firstRequest("Customer"), mockKinto.requests.toString());
+        assertTrue(lastRequest("Customer") < firstRequest("Store"), mockKinto.requests.toString());
+        assertTrue(lastRequest("Book") < firstRequest("Store"), mockKinto.requests.toString());
+    }
+
+    private int firstRequest(String collection) {
+        List<String> requests = new ArrayList<>(mockKinto.requests);
+        for (int i = 0; i < requests.size(); i++) {
+            if (requests.get(i).contains("/collections/" + collection + "/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int lastRequest(String collection) {
+        List<String> requests = new ArrayList<>(mockKinto.requests);
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            if (requests.get(i).contains("/collections/" + collection + "/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    void pullKeepsLocalChanges() throws Exception {
+        mockKinto.putAuthor("A1", "Anne", "Welcome");
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        // changed in local datastore and remote kinto
+        kinto.update(Author.class, "A1", new KintoFieldUpdate().set("lastName", "Local"));
+        assertFalse(kinto.findByUUID(Author.class, "A1").isSynced());
+        mockKinto.putAuthor("A1", "Anne", "Remote");
+        KintoSyncResult result = kinto.sync();
+        assertEquals(1, result.getConflicts("Author"));
+        assertEquals("Local", ((Author) kinto.findByUUID(Author.class, "A1")).getLastName());
+        // objects only in local datastore are not synced
+        Author author = new Author("Eva", "New", LocalDate.now());
+        kinto.add(author);
+        assertFalse(kinto.findByUUID(Author.class, author.getUUID()).isSynced());
+    }
+
+    @Test
+    void pullSavesConflictsForTheNextSync() throws Exception {
+        mockKinto.putAuthor("A1", "Anne", "Welcome");
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        kinto.update(Author.class, "A1", new KintoFieldUpdate().set("lastName", "Local"));
+        mockKinto.putAuthor("A1", "Anne", "Remote");
+        long remoteLastModified = ((Number) mockKinto.get("Author", "A1").get("last_modified")).longValue();
+        KintoSyncResult result = kinto.sync();
+        // the conflict is saved with the checkpoint, the remote change is not overwritten by the same sync
+        assertEquals(Collections.singleton("A1"), result.getConflictUUIDs("Author"));
+        assertEquals("A1=" + remoteLastModified, kinto.getMetadata("sync.conflicts.Author"));
+        assertEquals("Remote", mockKinto.get("Author", "A1").get("lastName"));
+        // the next sync saves the local change
+        result = kinto.sync();
+        assertEquals(1, result.getPushed("Author"));
+        assertEquals(0, result.getConflicts());
+        assertEquals("Local", mockKinto.get("Author", "A1").get("lastName"));
+        Author synced = (Author) kinto.findByUUID(Author.class, "A1");
+        assertEquals("Local", synced.getLastName());
+        assertTrue(synced.isSynced());
+        assertEquals("", kinto.getMetadata("sync.conflicts.Author"));
+        // both sides are synced
+        result = kinto.sync();
+        assertEquals(0, result.getPulled());
+        assertEquals(0, result.getPushed());
+        assertEquals("Local", ((Author) kinto.findByUUID(Author.class, "A1")).getLastName());
+    }
+
+    @Test
+    void pullKeepsTheCheckpointOfAFailedCommit() throws Exception {
+        kinto.close();
+        RecordingStorageEngine storageEngine = new RecordingStorageEngine(new SQLiteStorageEngine(
+                new KintoDatabaseAdapter("de.hirola." + BUCKET, StorageProfile.BALANCED,
+                        KintoConfiguration.StorageMode.MEMORY)));
+        kinto = new Kinto(newConfiguration().storageEngine(storageEngine).build());
+        mockKinto.putAuthor("A1", "Anne", "Welcome");
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        String checkpoint = kinto.getMetadata("sync.since.Author");
+        assertNotNull(checkpoint);
+
+        // the records and the checkpoint are saved with one commit
+        mockKinto.putAuthor("A2", "Mike", "Land");
+        storageEngine.failCommit = true;
+        assertThrows(KintoException.class, () -> kinto.sync());
+        assertEquals(checkpoint, kinto.getMetadata("sync.since.Author"));
+        assertNull(kinto.findByUUID(Author.class, "A2"));
+        // the next sync pulls the record again
+        storageEngine.failCommit = false;
+        KintoSyncResult result = kinto.sync();
+        assertEquals(1, result.getPulled("Author"));
+        assertNotNull(kinto.findByUUID(Author.class, "A2"));
+    }
+
+    @Test
+    void pullRelations() throws Exception {
+        mockKinto.putAuthor("A1", "Anne", "Welcome");
+        Map<String, Object> book = new LinkedHashMap<>();
+        book.put("isbn", "4711");
+        book.put("title", "Test Book");
+        book.put("author", "A1");
+        book.put("price", 10);
+        mockKinto.put("Book", "B1", book);
+        Map<String, Object> store = new LinkedHashMap<>();
+        store.put("name", "My book store");
+        store.put("customers", Collections.emptyList());
+        store.put("books", Collections.singletonList("B1"));
+        mockKinto.put("Store", "S1", store);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        Store syncedStore = (Store) kinto.findByUUID(Store.class, "S1");
+        assertNotNull(syncedStore);
+        assertEquals(1, syncedStore.getBooks().size());
+        assertEquals("Test Book", syncedStore.getBooks().get(0).getTitle());
+
+        store.put("books", Collections.emptyList());
+        mockKinto.put("Store", "S1", store);
+        kinto.sync();
+        assertEquals(0, ((Store) kinto.findByUUID(Store.class, "S1")).getBooks().size());
+    }
+
+    @Test
+    void pullMergesRemoteChanges() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            mockKinto.putAuthor("A" + i, "Anne", "Welcome " + i);
+        }
+        Map<String, Object> store = new LinkedHashMap<>();
+        store.put("name", "My book store");
+        store.put("customers", Collections.emptyList());
+        store.put("books", Collections.emptyList());
+        mockKinto.put("Store", "S1", store);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        KintoSyncResult result = kinto.sync();
+        // 3 pages, saved in one transaction
+        assertEquals(5, result.getPulled("Author"));
+        assertEquals(3, mockKinto.countRequests("Author"));
+        assertEquals(5, kinto.findAll(Author.class).size());
+
+        // the changes of remote kinto are remote changes in the journal and not pushed again
+        mockKinto.putAuthor("A1", "Anne", "Changed");
+        mockKinto.delete("Author", "A2");
+        mockKinto.delete("Store", "S1");
+        mockKinto.batchSizes.clear();
+        result = kinto.sync();
+        assertEquals(1, result.getPulled("Author"));
+        assertEquals(1, result.getDeleted("Author"));
+        assertEquals(1, result.getDeleted("Store"));
+        assertTrue(mockKinto.batchSizes.isEmpty());
+        assertEquals("Changed", ((Author) kinto.findByUUID(Author.class, "A1")).getLastName());
+        assertNull(kinto.findByUUID(Store.class, "S1"));
+        for (KintoChange change : kinto.changesSince(0)) {
+            assertTrue(change.isRemote(), change.toString());
+        }
+    }
+
+    @Test
+    void pullReadsRecordsFromStream() throws Exception {
+        // a value larger than the read buffer, with escapes and members of other clients
+        StringBuilder lastName = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            lastName.append("W\u00e4lc\"o\\m\ne ");
+        }
+        Map<String, Object> author = new LinkedHashMap<>();
+        author.put("firstName", "Anne");
+        author.put("lastName", lastName.toString());
+        author.put("birthday", "2000-01-01");
+        author.put("tags", Arrays.asList("a", Collections.singletonMap("b", Arrays.asList(1, 2.5, true, null))));
+        mockKinto.put("Author", "A1", author);
+        mockKinto.putAuthor("A2", "Mike", "Land");
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        KintoSyncResult result = kinto.sync();
+        assertEquals(2, result.getPulled("Author"));
+        assertEquals(lastName.toString(), ((Author) kinto.findByUUID(Author.class, "A1")).getLastName());
+        assertEquals("Land", ((Author) kinto.findByUUID(Author.class, "A2")).getLastName());
+
+        // the pushed record is written from the saved values
+        kinto.update(Author.class, "A1", new KintoFieldUpdate().set("firstName", "\u00c4nne \"A\""));
+        kinto.sync();
+        assertEquals("\u00c4nne \"A\"", mockKinto.get("Author", "A1").get("firstName"));
+        assertEquals(lastName.toString(), mockKinto.get("Author", "A1").get("lastName"));
+    }
+
+    @Test
+    void pushChangedObjectsInBatches() throws Exception {
+        List<Author> authors = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            Author author = new Author("First" + i, "Last" + i, LocalDate.of(2000, 1, i + 1));
+            kinto.add(author);
+            authors.add(author);
+        }
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        KintoSyncResult result = kinto.sync();
+        // bucket, collection and 7 records with 3 requests per batch
+        assertEquals(7, result.getPushed("Author"));
+        assertEquals(3, result.getBatchRequests());
+        assertEquals(3, mockKinto.batchSizes.size());
+        for (int batchSize : mockKinto.batchSizes) {
+            assertTrue(batchSize <= 3);
+        }
+        Author author = (Author) kinto.findByUUID(Author.class, authors.get(0).getUUID());
+        assertEquals(author.getUUID(), author.getKintoID());
+        assertTrue(author.isSynced());
+        assertEquals(mockKinto.lastModified("Author", author.getUUID()), author.getLastModified());
+        assertEquals("First0", mockKinto.get("Author", author.getUUID()).get("firstName"));
+        assertEquals("2000-01-01", mockKinto.get("Author", author.getUUID()).get("birthday"));
+
+        // only the changed object is pushed, nothing is pulled
+        kinto.update(Author.class, author.getUUID(), new KintoFieldUpdate().set("lastName", "Changed"));
+        mockKinto.batchSizes.clear();
+        result = kinto.sync();
+        assertEquals(0, result.getPulled());
+        assertEquals(1, result.getPushed());
+        assertEquals(Collections.singletonList(1), mockKinto.batchSizes);
+        assertEquals("Changed", mockKinto.get("Author", author.getUUID()).get("lastName"));
+        assertTrue(kinto.findByUUID(Author.class, author.getUUID()).isSynced());
+
+        // the objects are pushed with the embedded objects and the lists
+        Book book = new Book("4711", "Test Book", author, 10.99, 1);
+        kinto.add(book);
+        Store store = new Store("My book store", new ArrayList<>(), Collections.singletonList(book));
+        kinto.add(store);
+        result = kinto.sync();
+        assertEquals(2, result.getPushed());
+        assertEquals(author.getUUID(), mockKinto.get("Book", book.getUUID()).get("author"));
+        assertEquals(10.99, mockKinto.get("Book", book.getUUID()).get("price"));
+        assertEquals(Collections.singletonList(book.getUUID()), mockKinto.get("Store", store.getUUID()).get("books"));
+    }
+
+    @Test
+    void syncCompressesBodies() throws Exception {
+        kinto.close();
+        kinto = new Kinto(newConfiguration().syncCompressionThreshold(400).build());
+        for (int i = 1; i <= 6; i++) {
+            mockKinto.putAuthor("A" + i, "Author", "No. " + i);
+        }
+        kinto.login(Credentials.basicAuth("test", "secret"));
+
+        // the responses are compressed
+        KintoSyncResult result = kinto.sync();
+        assertEquals(6, result.getPulled("Author"));
+        assertTrue(result.getBytesReceived() > 0);
+        assertTrue(result.getTransferredBytesReceived() > 0);
+        assertNotEquals(result.getBytesReceived(), result.getTransferredBytesReceived());
+        assertEquals(0, result.getBytesSent());
+
+        // only the large batch requests are compressed, a batch of 3 records and a batch of 1 record
+        for (int i = 0; i < 4; i++) {
+            kinto.add(new Author("First" + i, "Last" + i, LocalDate.of(2000, 1, i + 1)));
+        }
+        result = kinto.sync();
+        assertEquals(4, result.getPushed("Author"));
+        assertEquals(Arrays.asList(3, 1), mockKinto.batchSizes);
+        assertEquals(1, mockKinto.compressedBatches);
+        assertTrue(result.getTransferredBytesSent() < result.getBytesSent());
+        Author author = (Author) kinto.findAll(Author.class).stream()
+                .filter(object -> ((Author) object).getFirstName().equals("First1"))
+                .findFirst().orElseThrow();
+        assertEquals("Last1", mockKinto.get("Author", author.getUUID()).get("lastName"));
+        assertTrue(author.isSynced());
+    }
+
+    @Test
+    void pushDoesNotOverwriteRemoteChanges() throws Exception {
+        Author author = new Author("Anne", "Welcome", LocalDate.now());
+        kinto.add(author);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        // changed in remote kinto after the pull of the next sync
+        kinto.update(Author.class, author.getUUID(), new KintoFieldUpdate().set("lastName", "Local"));
+        mockKinto.changeBeforeNextBatch("Author", author.getUUID(), "lastName", "Remote");
+        KintoSyncResult result = kinto.sync();
+        assertEquals(0, result.getPushed());
+        assertEquals(Collections.singleton(author.getUUID()), result.getConflictUUIDs("Author"));
+        assertEquals("Remote", mockKinto.get("Author", author.getUUID()).get("lastName"));
+        assertFalse(kinto.findByUUID(Author.class, author.getUUID()).isSynced());
+    }
+
+    @Test
+    void pushSavesConflictsWithTheNextSync() throws Exception {
+        Author author = new Author("Anne", "Welcome", LocalDate.now());
+        kinto.add(author);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        kinto.update(Author.class, author.getUUID(), new KintoFieldUpdate().set("lastName", "Local"));
+        mockKinto.changeBeforeNextBatch("Author", author.getUUID(), "lastName", "Remote");
+        assertEquals(1, kinto.sync().getConflicts("Author"));
+        // the conflict is pushed again without a new local change, the local change wins
+        KintoSyncResult result = kinto.sync();
+        assertEquals(1, result.getPushed("Author"));
+        assertEquals("Local", mockKinto.get("Author", author.getUUID()).get("lastName"));
+        Author synced = (Author) kinto.findByUUID(Author.class, author.getUUID());
+        assertEquals("Local", synced.getLastName());
+        assertTrue(synced.isSynced());
+        assertEquals(((Number) mockKinto.get("Author", author.getUUID()).get("last_modified")).longValue(),
+                synced.getLastModified());
+        // both sides are synced
+        mockKinto.batchSizes.clear();
+        result = kinto.sync();
+        assertEquals(0, result.getPushed());
+        assertEquals(0, result.getConflicts());
+        assertTrue(mockKinto.batchSizes.isEmpty());
+        assertEquals("Local", ((Author) kinto.findByUUID(Author.class, author.getUUID())).getLastName());
+    }
+
+    @Test
+    void pushRemovedObjects() throws Exception {
+        Author author = new Author("Anne", "Welcome", LocalDate.now());
+        kinto.add(author);
+        Author neverSynced = new Author("Bert", "Later", LocalDate.now());
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        kinto.add(neverSynced);
+        kinto.remove(kinto.findByUUID(Author.class, author.getUUID()));
+        kinto.remove(kinto.findByUUID(Author.class, neverSynced.getUUID()));
+        mockKinto.batchSizes.clear();
+        KintoSyncResult result = kinto.sync();
+        // only the synced object is deleted in remote kinto
+        assertEquals(1, result.getPushed("Author"));
+        assertEquals(Collections.singletonList(1), mockKinto.batchSizes);
+        assertEquals(true, mockKinto.get("Author", author.getUUID()).get("deleted"));
+        assertNull(mockKinto.get("Author", neverSynced.getUUID()));
+        // the tombstone is pulled and the removes are not pushed again
+        mockKinto.batchSizes.clear();
+        result = kinto.sync();
+        assertEquals(0, result.getPushed());
+        assertTrue(mockKinto.batchSizes.isEmpty());
+    }
+
+    @Test
+    void pullDoesNotPushRemoteRemoves() throws Exception {
+        Author author = new Author("Anne", "Welcome", LocalDate.now());
+        kinto.add(author);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        mockKinto.delete("Author", author.getUUID());
+        mockKinto.batchSizes.clear();
+        KintoSyncResult result = kinto.sync();
+        assertEquals(1, result.getDeleted("Author"));
+        assertEquals(0, result.getPushed());
+        assertTrue(mockKinto.batchSizes.isEmpty());
+        assertNull(kinto.findByUUID(Author.class, author.getUUID()));
+        List<KintoChange> changes = kinto.changesSince(Author.class, 0, 10);
+        assertEquals(1, changes.size());
+        assertEquals(KintoChange.Operation.DELETE, changes.get(0).getOperation());
+        assertTrue(changes.get(0).isRemote());
+    }
+
+    @Test
+    void pullKeepsLocalRemoves() throws Exception {
+        Author author = new Author("Anne", "Welcome", LocalDate.now());
+        kinto.add(author);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        kinto.remove(kinto.findByUUID(Author.class, author.getUUID()));
+        mockKinto.putAuthor(author.getUUID(), "Anne", "Remote");
+        KintoSyncResult result = kinto.sync();
+        // the remote change is not pulled and the remove is not pushed (conflict)
+        assertNull(kinto.findByUUID(Author.class, author.getUUID()));
+        assertEquals(Collections.singleton(author.getUUID()), result.getConflictUUIDs("Author"));
+        assertEquals("Remote", mockKinto.get("Author", author.getUUID()).get("lastName"));
+    }
+
+    @Test
+    void pullSavesConflictsOfLocalRemoves() throws Exception {
+        Author author = new Author("Anne", "Welcome", LocalDate.now());
+        kinto.add(author);
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        kinto.sync();
+        kinto.remove(kinto.findByUUID(Author.class, author.getUUID()));
+        mockKinto.putAuthor(author.getUUID(), "Anne", "Remote");
+        assertEquals(1, kinto.sync().getConflicts("Author"));
+        // the next sync deletes the record in remote kinto
+        KintoSyncResult result = kinto.sync();
+        assertEquals(1, result.getPushed("Author"));
+        assertEquals(true, mockKinto.get("Author", author.getUUID()).get("deleted"));
+        assertNull(kinto.findByUUID(Author.class, author.getUUID()));
+        // the tombstone is pulled and the remove is not pushed again
+        mockKinto.batchSizes.clear();
+        result = kinto.sync();
+        assertEquals(0, result.getPushed());
+        assertEquals(0, result.getConflicts());
+        assertTrue(mockKinto.batchSizes.isEmpty());
+        assertNull(kinto.findByUUID(Author.class, author.getUUID()));
+    }
+
+    @Test
+    void journalCoalescesChanges() throws Exception {
+        Author author = new Author("Anne", "Welcome", LocalDate.now());
+        kinto.add(author);
+        kinto.update(Author.class, author.getUUID(), new KintoFieldUpdate().set("lastName", "First"));
+        kinto.update(Author.class, author.getUUID(), new KintoFieldUpdate().set("lastName", "Second"));
+        List<KintoChange> changes = kinto.changesSince(0);
+        assertEquals(1, changes.size());
+        KintoChange change = changes.get(0);
+        assertEquals("Author", change.getCollection());
+        assertEquals(author.getUUID(), change.getUUID());
+        assertEquals(KintoChange.Operation.UPDATE, change.getOperation());
+        assertFalse(change.isRemote());
+        // the change of a list is a change of the object with the list
+        Book book = new Book("4711", "Test Book", author, 10.99, 1);
+        kinto.add(book);
+        Store store = new Store("My book store", new ArrayList<>(), new ArrayList<>());
+        kinto.add(store);
+        long seq = kinto.changesSince(0).get(2).getSeq();
+        kinto.addToRelation(kinto.findByUUID(Store.class, store.getUUID()), "books", book);
+        changes = kinto.changesSince(seq);
+        assertEquals(1, changes.size());
+        assertEquals(store.getUUID(), changes.get(0).getUUID());
+        assertTrue(changes.get(0).getSeq() > seq);
+        // the results of a push are not journaled
+        seq = changes.get(0).getSeq();
+        kinto.login(Credentials.basicAuth("test", "secret"));
+        assertEquals(3, kinto.sync().getPushed());
+        assertTrue(kinto.changesSince(seq).isEmpty());
+        // the tombstone keeps the timestamp of remote kinto
+        kinto.remove(kinto.findByUUID(Store.class, store.getUUID()));
+        changes = kinto.changesSince(seq);
+        assertEquals(1, changes.size());
+        assertEquals(KintoChange.Operation.DELETE, changes.get(0).getOperation());
+        assertEquals(store.getUUID(), changes.get(0).getKintoID());
+        assertEquals(mockKinto.lastModified("Store", store.getUUID()), changes.get(0).getLastModified());
+    }
+
+    // a remote kinto with the records of one bucket in memory
+    private static final class MockKinto {
+
+        private final HttpServer server;
+        private final int pageSize;
+        private final int batchMaxRequests;
+        private final Map<String, Map<String, Map<String, Object>>> collections; // collection -> id -> record
+        private final Set<String> createdPaths; // buckets and collections
+        private final List<String> requests;
+        private final List<Integer> batchSizes;
+        private String[] nextBatchChange; // collection, id, attribute, value
+        private volatile int compressedBatches;
+        private long timestamp;
+        private volatile boolean acceptLogin;
+
+        private MockKinto(int pageSize, int batchMaxRequests) throws IOException {
+            this.pageSize = pageSize;
+            this.batchMaxRequests = batchMaxRequests;
+            collections = new HashMap<>();
+            createdPaths = new HashSet<>();
+            requests = Collections.synchronizedList(new ArrayList<>());
+            batchSizes = Collections.synchronizedList(new ArrayList<>());
+            timestamp = 1000;
+            acceptLogin = true;
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/v1/", this::handle);
+            server.start();
+        }
+
+        private int getPort() {
+            return server.getAddress().getPort();
+        }
+
+        private void stop() {
+            server.stop(0);
+        }
+
+        private synchronized void putAuthor(String id, String firstName, String lastName) {
+            Map<String, Object> author = new LinkedHashMap<>();
+            author.put("firstName", firstName);
+            author.put("lastName", lastName);
+            author.put("birthday", "2000-01-01");
+            put("Author", id, author);
+        }
+
+        private synchronized void put(String collection, String id, Map<String, Object> values) {
+            Map<String, Object> record = new LinkedHashMap<>(values);
+            record.put("id", id);
+            record.put("last_modified", ++timestamp);
+            collections.computeIfAbsent(collection, key -> new LinkedHashMap<>()).put(id, record);
+        }
+
+        private synchronized void delete(String collection, String id) {
+            Map<String, Object> tombstone = new LinkedHashMap<>();
+            tombstone.put("id", id);
+            tombstone.put("last_modified", ++timestamp);
+            tombstone.put("deleted", true);
+            collections.get(collection).put(id, tombstone);
+        }
+
+        private synchronized long lastModified(String collection, String id) {
+            return (Long) collections.get(collection).get(id).get("last_modified");
+        }
+
+        private synchronized Map<String, Object> get(String collection, String id) {
+            return collections.get(collection).get(id);
+        }
+
+        private synchronized void changeBeforeNextBatch(String collection, String id, String attribute, String value) {
+            nextBatchChange = new String[] {collection, id, attribute, value};
+        }
+
+        private int countRequests(String collection) {
+            int count = 0;
+            for (String request : requests) {
+                if (request.contains("/collections/" + collection + "/")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            requests.add(exchange.getRequestURI().toString());
+            String expectedAuthorization = "Basic " + Base64.getEncoder()
+                    .encodeToString("test:secret".getBytes(StandardCharsets.UTF_8));
+            if (!acceptLogin || !expectedAuthorization.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                send(exchange, 401, "{\"code\":401,\"message\":\"Please authenticate yourself.\"}");
+                return;
+            }
+            if (path.equals("/v1/")) {
+                send(exchange, 200, "{\"project_name\":\"kinto\",\"settings\":{\"batch_max_requests\":"
+                        + batchMaxRequests + "},\"user\":{\"id\":\"account:test\"}}");
+                return;
+            }
+            if (path.equals("/v1/batch") && exchange.getRequestMethod().equals("POST")) {
+                handleBatch(exchange);
+                return;
+            }
+            String prefix = "/v1/buckets/" + BUCKET + "/collections/";
+            if (!path.startsWith(prefix) || !path.endsWith("/records")) {
+                send(exchange, 404, "{\"code\":404,\"message\":\"Not found.\"}");
+                return;
+            }
+            String collection = path.substring(prefix.length(), path.length() - "/records".length());
+            Map<String, String> parameters = new HashMap<>();
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String parameter : query.split("&")) {
+                    String[] pair = parameter.split("=", 2);
+                    parameters.put(pair[0], pair.length > 1 ? URLDecoder.decode(pair[1], StandardCharsets.UTF_8) : "");
+                }
+            }
+            List<Map<String, Object>> page = new ArrayList<>();
+            boolean hasNextPage;
+            int offset = Integer.parseInt(parameters.getOrDefault("_token", "0"));
+            // the page size of the server is the maximum
+            int limit = Math.min(pageSize, Integer.parseInt(parameters.getOrDefault("_limit", String.valueOf(pageSize))));
+            synchronized (this) {
+                if (!collections.containsKey(collection)) {
+                    send(exchange, 404, "{\"code\":404,\"message\":\"Not found.\"}");
+                    return;
+                }
+                long since = Long.parseLong(parameters.getOrDefault("_since", "0"));
+                List<Map<String, Object>> changed = new ArrayList<>();
+                for (Map<String, Object> record : collections.get(collection).values()) {
+                    if ((Long) record.get("last_modified") > since) {
+                        changed.add(record);
+                    }
+                }
+                changed.sort(Comparator.comparing(record -> (Long) record.get("last_modified")));
+                for (int i = offset; i < Math.min(changed.size(), offset + limit); i++) {
+                    page.add(changed.get(i));
+                }
+                hasNextPage = offset + limit < changed.size();
+            }
+            if (hasNextPage) {
+                parameters.put("_token", String.valueOf(offset + limit));
+                StringBuilder nextPage = new StringBuilder("http://localhost:" + getPort() + path + "?");
+                for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                    nextPage.append(parameter.getKey()).append('=').append(parameter.getValue()).append('&');
+                }
+                exchange.getResponseHeaders().add("Next-Page", nextPage.substring(0, nextPage.length() - 1));
+            }
+            send(exchange, 200, KintoJson.toJson(Collections.singletonMap("data", page)));
+        }
+
+        @SuppressWarnings("unchecked")
+        private void handleBatch(HttpExchange exchange) throws IOException {
+            Map<String, Object> batch;
+            try {
+                InputStream body = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    compressedBatches++;
+                    body = new GZIPInputStream(body);
+                }
+                batch = KintoJson.parseObject(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            } catch (KintoException exception) {
+                send(exchange, 400, "{\"code\":400,\"message\":\"Invalid json.\"}");
+                return;
+            }
+            List<Object> batchRequests = (List<Object>) batch.get("requests");
+            if (batchRequests.size() > batchMaxRequests) {
+                send(exchange, 400, "{\"code\":400,\"message\":\"Too many requests.\"}");
+                return;
+            }
+            batchSizes.add(batchRequests.size());
+            List<Map<String, Object>> responses = new ArrayList<>();
+            synchronized (this) {
+                if (nextBatchChange != null) {
+                    Map<String, Object> record = new LinkedHashMap<>(collections.get(nextBatchChange[0]).get(nextBatchChange[1]));
+                    record.put(nextBatchChange[2], nextBatchChange[3]);
+                    put(nextBatchChange[0], nextBatchChange[1], record);
+                    nextBatchChange = null;
+                }
+                for (Object batchRequest : batchRequests) {
+                    Map<String, Object> request = (Map<String, Object>) batchRequest;
+                    String requestPath = (String) request.get("path");
+                    Map<String, Object> headers = (Map<String, Object>) request.getOrDefault("headers", Collections.emptyMap());
+                    Map<String, Object> response = new LinkedHashMap<>();
+                    response.put("path", requestPath);
+                    String[] segments = requestPath.substring(1).split("/");
+                    if (segments.length < 6) {
+                        // bucket or collection
+                        boolean exists = !createdPaths.add(requestPath);
+                        if (segments.length == 4) {
+                            collections.computeIfAbsent(segments[3], key -> new LinkedHashMap<>());
+                        }
+                        response.put("status", exists && "*".equals(headers.get("If-None-Match")) ? 412 : 201);
+                    } else {
+                        Map<String, Object> current = collections.get(segments[3]).get(segments[5]);
+                        Object ifMatch = headers.get("If-Match");
+                        boolean isDelete = "DELETE".equals(request.get("method"));
+                        if (isDelete && (current == null || Boolean.TRUE.equals(current.get("deleted")))) {
+                            response.put("status", 404);
+                        } else if (ifMatch != null && (current == null
+                                || !ifMatch.equals("\"" + current.get("last_modified") + "\""))) {
+                            response.put("status", 412);
+                            if (current != null) {
+                                // the record of remote kinto in the response of the conflict
+                                response.put("body", Collections.singletonMap("details",
+                                        Collections.singletonMap("existing", current)));
+                            }
+                        } else if (isDelete) {
+                            delete(segments[3], segments[5]);
+                            response.put("status", 200);
+                            response.put("body", Collections.singletonMap("data", get(segments[3], segments[5])));
+                        } else {
+                            Map<String, Object> data = (Map<String, Object>) ((Map<String, Object>) request.get("body")).get("data");
+                            put(segments[3], segments[5], data);
+                            response.put("status", current == null ? 201 : 200);
+                            response.put("body", Collections.singletonMap("data", get(segments[3], segments[5])));
+                        }
+                    }
+                    responses.add(response);
+                }
+            }
+            send(exchange, 200, KintoJson.toJson(Collections.singletonMap("responses", responses)));
+        }
+
+        private void send(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream output = new GZIPOutputStream(compressed)) {
+                    output.write(bytes);
+                }
+                bytes = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(bytes);
+            }
+        }
+    }
+}
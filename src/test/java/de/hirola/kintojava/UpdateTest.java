@@ -0,0 +1,165 @@
+package de.hirola.kintojava;
+
+import de.hirola.kintojava.bookstore.Address;
+import de.hirola.kintojava.bookstore.Author;
+import de.hirola.kintojava.bookstore.Book;
+import de.hirola.kintojava.bookstore.Customer;
+import de.hirola.kintojava.model.KintoObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdateTest {
+
+    private RecordingStorageEngine storageEngine;
+    private Kinto kinto;
+    private Author author;
+    private Book book;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ArrayList<Class<? extends KintoObject>> typeList = new ArrayList<>();
+        typeList.add(Author.class);
+        typeList.add(Book.class);
+        typeList.add(Address.class);
+        typeList.add(Customer.class);
+        storageEngine = new RecordingStorageEngine();
+        KintoConfiguration configuration = new KintoConfiguration.Builder("UpdateTest")
+                .objectTypes(typeList)
+                .storageEngine(storageEngine)
+                .build();
+        kinto = new Kinto(configuration);
+        author = new Author("Jane", "Doe", LocalDate.of(1970, 1, 1));
+        kinto.add(author);
+        book = new Book("ISBN-1", "First Title", author, 10.99, 1);
+        kinto.add(book);
+        storageEngine.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        kinto.close();
+    }
+
+    @Test
+    void onlyChangedColumnsAreWritten() throws Exception {
+        book.setTitle("Second Title");
+        kinto.update(book);
+        assertEquals(1, storageEngine.updates.size());
+        assertEquals(Set.of("title"), storageEngine.updates.get(0).keySet());
+        assertEquals("Second Title", storageEngine.updates.get(0).get("title"));
+
+        storageEngine.clear();
+        book.setPrice(12.99);
+        book.setTitle("Third Title");
+        kinto.update(book);
+        assertEquals(1, storageEngine.updates.size());
+        assertEquals(Set.of("title", "price"), storageEngine.updates.get(0).keySet());
+
+        Book loaded = (Book) kinto.findByUUID(Book.class, book.getUUID());
+        assertNotNull(loaded);
+        assertEquals("Third Title", loaded.getTitle());
+        assertEquals(12.99, loaded.getPrice());
+        assertEquals("ISBN-1", loaded.getISBN());
+    }
+
+    @Test
+    void unchangedObjectIsNotWritten() throws Exception {
+        long usn = book.getUSN();
+        kinto.update(book);
+        assertTrue(storageEngine.updates.isEmpty());
+        assertEquals(usn, book.getUSN());
+        // the value is changed back before the update
+        book.setTitle("Second Title");
+        book.setTitle("First Title");
+        kinto.update(book);
+        assertTrue(storageEngine.updates.isEmpty());
+    }
+
+    @Test
+    void loadedObjectWritesOnlyChangedColumns() throws Exception {
+        Book loaded = (Book) kinto.findByUUID(Book.class, book.getUUID());
+        assertNotNull(loaded);
+        loaded.setISBN("ISBN-2");
+        kinto.update(loaded);
+        assertEquals(1, storageEngine.updates.size());
+        assertEquals(Set.of("isbn"), storageEngine.updates.get(0).keySet());
+    }
+
+    @Test
+    void changedEmbeddedObjectIsWritten() throws Exception {
+        Author otherAuthor = new Author("John", "Roe", LocalDate.of(1980, 1, 1));
+        kinto.add(otherAuthor);
+        storageEngine.clear();
+        book.setAuthor(otherAuthor);
+        kinto.update(book);
+        assertEquals(1, storageEngine.updates.size());
+        assertEquals(Set.of("author"), storageEngine.updates.get(0).keySet());
+        assertEquals(otherAuthor.getUUID(), storageEngine.updates.get(0).get("author"));
+    }
+
+    @Test
+    void relationEntriesAreDiffed() throws Exception {
+        Address home = new Address("Home Street", 1, "Berlin", "10115");
+        Address office = new Address("Office Street", 2, "Berlin", "10117");
+        Address holiday = new Address("Beach Road", 3, "Kiel", "24103");
+        kinto.add(home);
+        kinto.add(office);
+        kinto.add(holiday);
+        Customer customer = new Customer("Jane", "Doe", false, home);
+        customer.addAddress(office);
+        kinto.add(customer);
+        storageEngine.clear();
+
+        // only the added entry is written
+        customer.addAddress(holiday);
+        kinto.update(customer);
+        assertEquals(List.of("add [" + holiday.getUUID() + "]"), storageEngine.relationWrites);
+        // the list is no column of the record
+        assertEquals(1, storageEngine.updates.size());
+        assertTrue(storageEngine.updates.get(0).isEmpty());
+
+        // only the removed entry is written
+        storageEngine.clear();
+        customer.getAddressList().remove(office);
+        kinto.update(customer);
+        assertEquals(List.of("remove [" + office.getUUID() + "]"), storageEngine.relationWrites);
+
+        // an unchanged list is not written
+        storageEngine.clear();
+        customer.setLastName("Roe");
+        kinto.update(customer);
+        assertTrue(storageEngine.relationWrites.isEmpty());
+        assertEquals(Set.of("lastName"), storageEngine.updates.get(0).keySet());
+
+        Customer loaded = (Customer) kinto.findByUUID(Customer.class, customer.getUUID());
+        assertNotNull(loaded);
+        assertEquals(2, loaded.getAddressList().size());
+        assertTrue(loaded.getAddressList().stream().anyMatch(address -> address.getUUID().equals(home.getUUID())));
+        assertTrue(loaded.getAddressList().stream().anyMatch(address -> address.getUUID().equals(holiday.getUUID())));
+    }
+
+    @Test
+    void reorderedListWritesNoRelationEntries() throws Exception {
+        Address home = new Address("Home Street", 1, "Berlin", "10115");
+        Address office = new Address("Office Street", 2, "Berlin", "10117");
+        kinto.add(home);
+        kinto.add(office);
+        Customer customer = new Customer("Jane", "Doe", false, home);
+        customer.addAddress(office);
+        kinto.add(customer);
+        storageEngine.clear();
+        customer.getAddressList().remove(home);
+        customer.getAddressList().add(home);
+        kinto.update(customer);
+        // the same entries, nothing to add or remove
+        assertTrue(storageEngine.relationWrites.isEmpty());
+    }
+}